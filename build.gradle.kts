@@ -10,6 +10,7 @@ plugins {
     id("io.spring.dependency-management") version "1.1.7"
     id("jacoco")
     id("org.sonarqube") version "6.1.0.5360"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 java {
@@ -68,6 +69,7 @@ dependencies {
     implementation("org.drools:drools-io:10.0.0")
     implementation("org.drools:drools-decisiontables:10.0.0")
     implementation("org.drools:drools-mvel:10.0.0")
+    implementation("org.drools:drools-model-codegen:10.0.0")
     implementation("org.projectlombok:lombok:1.18.28")
     implementation("org.mapstruct:mapstruct:1.5.5.Final")
     implementation("org.apache.commons:commons-lang3:3.14.0")
@@ -147,6 +149,12 @@ publishing {
     }
 }
 
+// Benchmarks live under src/jmh/java; run with ./gradlew jmh
+jmh {
+    fork.set(1)
+    resultFormat.set("JSON")
+}
+
 tasks.withType<JavaCompile>() {
     options.encoding = "UTF-8"
 }
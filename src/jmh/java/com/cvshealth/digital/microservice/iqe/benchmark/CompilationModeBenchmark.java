@@ -0,0 +1,97 @@
+package com.cvshealth.digital.microservice.iqe.benchmark;
+
+import com.cvshealth.digital.microservice.iqe.config.DroolConfig;
+import com.cvshealth.digital.microservice.iqe.config.RulesEngineConfig;
+import com.cvshealth.digital.microservice.iqe.entity.QuestionnaireRules;
+import com.cvshealth.digital.microservice.iqe.model.RulesDetails;
+import com.cvshealth.digital.microservice.iqe.service.CompiledRuleBase;
+import com.cvshealth.digital.microservice.iqe.service.RuleBaseCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares MVEL and executable model compilation, and native predicates, for the seeded
+ * {@code questionnaire_rules} of a flow.
+ * <p>
+ * {@link #firstEvaluation} rebuilds the rule base before every iteration and times a single
+ * evaluation, which is what the first request after a rebuild sees. {@link #steadyState} times
+ * evaluations once the JIT has settled.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompilationModeBenchmark {
+
+    @Param({"MC_CORE", "VM"})
+    private String flow;
+
+    @Param({"MVEL", "EXECUTABLE_MODEL", "NATIVE"})
+    private String compilationMode;
+
+    private List<QuestionnaireRules> rules;
+    private CompiledRuleBase ruleBase;
+
+    @Setup(Level.Trial)
+    public void loadRules() {
+        rules = SeedRules.questionnaireRules(flow);
+    }
+
+    @Setup(Level.Iteration)
+    public void build() {
+        RulesEngineConfig.RulesEngineProperties properties = new RulesEngineConfig.RulesEngineProperties();
+        if ("NATIVE".equals(compilationMode)) {
+            properties.setNativeConditionsEnabled(true);
+        } else {
+            properties.setNativeConditionsEnabled(false);
+            properties.setMemoMaxEntries(0);
+            properties.setCompilationMode(RulesEngineConfig.CompilationMode.valueOf(compilationMode));
+        }
+        properties.setSessionMode(RulesEngineConfig.SessionMode.STATEFUL);
+        RuleBaseCache ruleBaseCache = new RuleBaseCache(properties, new SimpleMeterRegistry(), Schedulers.immediate());
+        ruleBase = ruleBaseCache.getOrBuild(flow, DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE, rules).block();
+    }
+
+    private RulesDetails fact() {
+        RulesDetails rulesDetails = new RulesDetails();
+        rulesDetails.setFlow(flow);
+        if ("VM".equals(flow)) {
+            rulesDetails.setRequiredQuestionnaireContext("TB");
+        } else {
+            rulesDetails.setRequiredQuestionnaireContext("MC_CORE_ELIGIBILITY_QUESTION");
+            rulesDetails.setReasonId(30);
+            rulesDetails.setReasonMappingId(132);
+        }
+        return rulesDetails;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 20)
+    public String firstEvaluation() {
+        RulesDetails rulesDetails = fact();
+        ruleBase.fire(rulesDetails);
+        return rulesDetails.getQuestions();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public String steadyState() {
+        RulesDetails rulesDetails = fact();
+        ruleBase.fire(rulesDetails);
+        return rulesDetails.getQuestions();
+    }
+}
@@ -0,0 +1,141 @@
+package com.cvshealth.digital.microservice.iqe.benchmark;
+
+import com.cvshealth.digital.microservice.iqe.dto.AnswerOptions;
+import com.cvshealth.digital.microservice.iqe.dto.Questions;
+import com.cvshealth.digital.microservice.iqe.entity.AnswerOptionsEntity;
+import com.cvshealth.digital.microservice.iqe.entity.QuestionsEntity;
+import com.cvshealth.digital.microservice.iqe.service.QuestionnaireTreeBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares assembling the questionnaire tree of an action with {@link QuestionnaireTreeBuilder}
+ * against scanning every row at every node, as the questionnaire was assembled before.
+ * <p>
+ * The questions form chains of {@code depth} questions: the first answer option of each question
+ * relates to the next question of its chain, and the first question of each chain is a top level
+ * question. Every question has three answer options.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class QuestionnaireAssemblyBenchmark {
+
+    private static final int ANSWER_OPTIONS_PER_QUESTION = 3;
+
+    @Param({"10", "100", "1000"})
+    private int questionCount;
+
+    @Param({"1", "3", "5"})
+    private int depth;
+
+    private List<QuestionsEntity> questions;
+    private List<AnswerOptionsEntity> answerOptions;
+    private List<QuestionsEntity> topLevel;
+
+    @Setup
+    public void setUp() {
+        questions = new ArrayList<>(questionCount);
+        answerOptions = new ArrayList<>(questionCount * ANSWER_OPTIONS_PER_QUESTION);
+        topLevel = new ArrayList<>();
+        for (int i = 0; i < questionCount; i++) {
+            boolean chainContinues = (i + 1) % depth != 0 && i + 1 < questionCount;
+            List<String> answerOptionIds = new ArrayList<>(ANSWER_OPTIONS_PER_QUESTION);
+            for (int j = 0; j < ANSWER_OPTIONS_PER_QUESTION; j++) {
+                String answerOptionId = "Q" + i + "_" + j;
+                answerOptionIds.add(answerOptionId);
+                answerOptions.add(AnswerOptionsEntity.builder()
+                        .actionId("BENCHMARK")
+                        .questionId("Q" + i)
+                        .answerOptionId(answerOptionId)
+                        .answerText("Answer " + (ANSWER_OPTIONS_PER_QUESTION - j))
+                        .answerValue(String.valueOf(j))
+                        .relatedQuestions(j == 0 && chainContinues ? List.of("Q" + (i + 1)) : null)
+                        .sequence_id(j + 1)
+                        .build());
+            }
+            QuestionsEntity question = QuestionsEntity.builder()
+                    .actionId("BENCHMARK")
+                    .questionId("Q" + i)
+                    .questionText("Question " + i)
+                    .answerType("radio")
+                    .answerOptionId(answerOptionIds)
+                    .sequence_id(i + 1)
+                    .build();
+            questions.add(question);
+            if (i % depth == 0) {
+                topLevel.add(question);
+            }
+        }
+    }
+
+    @Benchmark
+    public List<Questions> indexed() {
+        return new QuestionnaireTreeBuilder(questions, answerOptions).build(topLevel);
+    }
+
+    @Benchmark
+    public List<Questions> scanning() {
+        List<AnswerOptionsEntity> rows = new ArrayList<>(answerOptions);
+        List<Questions> trees = new ArrayList<>(topLevel.size());
+        for (QuestionsEntity question : topLevel) {
+            rows.sort(Comparator.comparing(AnswerOptionsEntity::getAnswerText));
+            trees.add(scanQuestion(question, rows));
+        }
+        trees.sort(Comparator.comparingInt(Questions::getSequenceId));
+        return trees;
+    }
+
+    private Questions scanQuestion(QuestionsEntity row, List<AnswerOptionsEntity> rows) {
+        Questions question = Questions.builder()
+                .questionId(row.getQuestionId())
+                .text(row.getQuestionText())
+                .sequenceId(row.getSequence_id())
+                .answerOptionIds(row.getAnswerOptionId())
+                .build();
+        List<AnswerOptions> options = new ArrayList<>();
+        for (AnswerOptionsEntity option : rows) {
+            if (row.getAnswerOptionId().contains(option.getAnswerOptionId())) {
+                options.add(scanAnswerOption(option, rows));
+            }
+        }
+        options.sort(Comparator.comparing(AnswerOptions::getSequenceId));
+        question.setAnswerOptions(options);
+        return question;
+    }
+
+    private AnswerOptions scanAnswerOption(AnswerOptionsEntity row, List<AnswerOptionsEntity> rows) {
+        AnswerOptions option = AnswerOptions.builder()
+                .answerOptionId(row.getAnswerOptionId())
+                .text(row.getAnswerText())
+                .sequenceId(row.getSequence_id())
+                .relatedQuestionIds(row.getRelatedQuestions())
+                .build();
+        List<Questions> related = new ArrayList<>();
+        for (QuestionsEntity question : questions) {
+            if (row.getRelatedQuestions() != null && row.getRelatedQuestions().contains(question.getQuestionId())) {
+                related.add(scanQuestion(question, rows));
+            }
+        }
+        if (!related.isEmpty()) {
+            related.sort(Comparator.comparingInt(Questions::getSequenceId));
+            option.setRelatedQuestions(related);
+        }
+        return option;
+    }
+}
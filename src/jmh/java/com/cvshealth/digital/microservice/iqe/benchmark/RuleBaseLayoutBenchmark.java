@@ -0,0 +1,92 @@
+package com.cvshealth.digital.microservice.iqe.benchmark;
+
+import com.cvshealth.digital.microservice.iqe.config.DroolConfig;
+import com.cvshealth.digital.microservice.iqe.config.RulesEngineConfig;
+import com.cvshealth.digital.microservice.iqe.entity.QuestionnaireRules;
+import com.cvshealth.digital.microservice.iqe.service.CompiledRuleBase;
+import com.cvshealth.digital.microservice.iqe.service.RuleBaseCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per-flow and consolidated rule base layouts for the seeded
+ * {@code questionnaire_rules} of every flow.
+ * <p>
+ * {@link #buildAll} times building the rule base of every flow, and reports the heap the built rule
+ * bases retain as the {@code retainedHeapBytes} counter. The heap is measured after a full GC in
+ * the benchmark's own fork, which is why this comparison does not run on a serving node.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class RuleBaseLayoutBenchmark {
+
+    @Param({"PER_FLOW", "CONSOLIDATED"})
+    private String ruleBaseLayout;
+
+    private Map<String, List<QuestionnaireRules>> rulesByFlow;
+    private List<CompiledRuleBase> ruleBases;
+
+    @Setup(Level.Trial)
+    public void loadRules() {
+        rulesByFlow = SeedRules.questionnaireRulesByFlow();
+    }
+
+    @TearDown(Level.Invocation)
+    public void release() {
+        ruleBases = null;
+    }
+
+    /**
+     * Heap retained by the rule bases of one invocation.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class RetainedHeap {
+
+        public long retainedHeapBytes;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 10)
+    public List<CompiledRuleBase> buildAll(RetainedHeap retainedHeap) {
+        RulesEngineConfig.RulesEngineProperties properties = new RulesEngineConfig.RulesEngineProperties();
+        properties.setRuleBaseLayout(RulesEngineConfig.RuleBaseLayout.valueOf(ruleBaseLayout));
+        properties.setNativeConditionsEnabled(false);
+        properties.setMemoMaxEntries(0);
+        long before = usedHeap();
+        RuleBaseCache ruleBaseCache = new RuleBaseCache(properties, new SimpleMeterRegistry(), Schedulers.immediate());
+        ruleBases = new ArrayList<>(rulesByFlow.size());
+        rulesByFlow.forEach((flow, rules) -> ruleBases.add(
+                ruleBaseCache.getOrBuild(flow, DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE, rules).block()));
+        retainedHeap.retainedHeapBytes = usedHeap() - before;
+        return ruleBases;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,82 @@
+package com.cvshealth.digital.microservice.iqe.benchmark;
+
+import com.cvshealth.digital.microservice.iqe.config.DroolConfig;
+import com.cvshealth.digital.microservice.iqe.config.RulesEngineConfig;
+import com.cvshealth.digital.microservice.iqe.entity.RulesByFlowEntity;
+import com.cvshealth.digital.microservice.iqe.model.RulesDetails;
+import com.cvshealth.digital.microservice.iqe.service.CompiledRuleBase;
+import com.cvshealth.digital.microservice.iqe.service.RuleBaseCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of evaluating one {@link RulesDetails} against a cached rule base in each
+ * {@link RulesEngineConfig.SessionMode}, for flows of different sizes.
+ * <p>
+ * The fact matches the last, lowest salience rule of the flow, so session creation and the match
+ * of a single fact are measured rather than an early exit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class RuleSessionBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int ruleCount;
+
+    @Param({"STATEFUL", "STATELESS", "POOLED"})
+    private RulesEngineConfig.SessionMode sessionMode;
+
+    private CompiledRuleBase ruleBase;
+
+    @Setup
+    public void setUp() {
+        RulesEngineConfig.RulesEngineProperties properties = new RulesEngineConfig.RulesEngineProperties();
+        properties.setSessionMode(sessionMode);
+        properties.setNativeConditionsEnabled(false);
+        properties.setMemoMaxEntries(0);
+        RuleBaseCache ruleBaseCache = new RuleBaseCache(properties, new SimpleMeterRegistry(), Schedulers.immediate());
+        ruleBase = ruleBaseCache.getOrBuild("BENCHMARK", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                rules(ruleCount)).block();
+    }
+
+    static List<RulesByFlowEntity> rules(int ruleCount) {
+        List<RulesByFlowEntity> rules = new ArrayList<>(ruleCount);
+        for (int i = 0; i < ruleCount; i++) {
+            rules.add(RulesByFlowEntity.builder()
+                    .flow("BENCHMARK")
+                    .ruleId("rule-" + i)
+                    .condition("reasonId == " + i + " && state == \"RI\"")
+                    .actionId("action-" + i)
+                    .salience(ruleCount - i)
+                    .isActive(true)
+                    .build());
+        }
+        return rules;
+    }
+
+    @Benchmark
+    public String fire() {
+        RulesDetails rulesDetails = new RulesDetails();
+        rulesDetails.setReasonId(ruleCount - 1);
+        rulesDetails.setState("RI");
+        ruleBase.fire(rulesDetails);
+        return rulesDetails.getActionId();
+    }
+}
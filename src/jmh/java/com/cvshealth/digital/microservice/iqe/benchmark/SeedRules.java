@@ -0,0 +1,106 @@
+package com.cvshealth.digital.microservice.iqe.benchmark;
+
+import com.cvshealth.digital.microservice.iqe.entity.QuestionnaireRules;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Reads the {@code questionnaire_rules} rows seeded by {@code cassandra/rulesdata.cql}, so the
+ * benchmarks run against the same conditions and actions as a freshly provisioned environment.
+ */
+final class SeedRules {
+
+    private static final String SEED_FILE = "cassandra/rulesdata.cql";
+    private static final String INSERT = "INSERT  INTO iqe.questionnaire_rules";
+    private static final String VALUES = "VALUES (";
+
+    private SeedRules() {
+    }
+
+    /**
+     * Seeded rules of the flow, in the column order of the INSERT statements:
+     * rule_id, flow, action, condition, lob, rule_name, salience.
+     */
+    static List<QuestionnaireRules> questionnaireRules(String flow) {
+        return questionnaireRules().stream().filter(rule -> rule.getFlow().equals(flow)).toList();
+    }
+
+    /**
+     * Seeded rules of every flow, by flow.
+     */
+    static Map<String, List<QuestionnaireRules>> questionnaireRulesByFlow() {
+        return questionnaireRules().stream()
+                .collect(Collectors.groupingBy(QuestionnaireRules::getFlow, TreeMap::new, Collectors.toList()));
+    }
+
+    private static List<QuestionnaireRules> questionnaireRules() {
+        String cql = read();
+        List<QuestionnaireRules> rules = new ArrayList<>();
+        int from = 0;
+        while ((from = cql.indexOf(INSERT, from)) >= 0) {
+            from = cql.indexOf(VALUES, from) + VALUES.length();
+            List<String> values = new ArrayList<>();
+            from = parseValues(cql, from, values);
+            if (values.size() == 7) {
+                QuestionnaireRules rule = new QuestionnaireRules();
+                rule.setId(values.get(0));
+                rule.setFlow(values.get(1));
+                rule.setAction(values.get(2));
+                rule.setCondition(values.get(3));
+                rule.setLob(values.get(4));
+                rule.setRuleName(values.get(5));
+                rule.setSalience(Integer.parseInt(values.get(6)));
+                rules.add(rule);
+            }
+        }
+        return rules;
+    }
+
+    private static int parseValues(String cql, int pos, List<String> values) {
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        while (pos < cql.length()) {
+            char c = cql.charAt(pos++);
+            if (quoted) {
+                if (c == '\'' && pos < cql.length() && cql.charAt(pos) == '\'') {
+                    value.append('\'');
+                    pos++;
+                } else if (c == '\'') {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '\'') {
+                quoted = true;
+            } else if (c == ',' || c == ')') {
+                values.add(value.toString().trim());
+                value.setLength(0);
+                if (c == ')') {
+                    return pos;
+                }
+            } else {
+                value.append(c);
+            }
+        }
+        return pos;
+    }
+
+    private static String read() {
+        try (InputStream in = SeedRules.class.getClassLoader().getResourceAsStream(SEED_FILE)) {
+            if (in == null) {
+                throw new IllegalStateException(SEED_FILE + " not found on the classpath");
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
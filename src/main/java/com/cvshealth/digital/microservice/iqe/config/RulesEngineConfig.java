@@ -0,0 +1,182 @@
+package com.cvshealth.digital.microservice.iqe.config;
+
+import lombok.Data;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+
+/**
+ * Rules engine configuration.
+ *
+ */
+@Configuration
+public class RulesEngineConfig {
+
+    @Bean
+    public RulesEngineProperties rulesEngineProperties() {
+        return new RulesEngineProperties();
+    }
+
+    /**
+     * Scheduler the rule bases are compiled on, so DRL compilation never runs on the event loop.
+     */
+    @Bean(destroyMethod = "dispose")
+    public Scheduler ruleCompileScheduler(RulesEngineProperties rulesEngineProperties) {
+        return Schedulers.newBoundedElastic(rulesEngineProperties.getCompileThreads(),
+                rulesEngineProperties.getCompileQueueSize(), "rule-compile");
+    }
+
+    @ConfigurationProperties(prefix = "service.rules-engine")
+    @Data
+    public static class RulesEngineProperties implements InitializingBean {
+
+        /** Enables the compiled rule base cache. When disabled every evaluation rebuilds the DRL. */
+        private boolean cacheEnabled = true;
+
+        /** Maximum number of rule bases compiled at the same time. */
+        private int compileThreads = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+
+        /** Maximum number of compilations waiting for a compile thread before new ones are rejected. */
+        private int compileQueueSize = 100;
+
+        /** Evaluates flows whose conditions are all simple comparisons as Java predicates instead of DRL. */
+        private boolean nativeConditionsEnabled = true;
+
+        /** How the generated rules are compiled. */
+        private CompilationMode compilationMode = CompilationMode.MVEL;
+
+        /** How facts are evaluated against a compiled rule base. */
+        private SessionMode sessionMode = SessionMode.STATELESS;
+
+        /** How the Drools rules of the flows are laid out in rule bases. */
+        private RuleBaseLayout ruleBaseLayout = RuleBaseLayout.PER_FLOW;
+
+        /** Initial number of sessions kept per rule base when {@code sessionMode} is {@code POOLED}. */
+        private int sessionPoolSize = 8;
+
+        /**
+         * Maximum number of outcomes memoized per Drools rule base, keyed by the fact fields its
+         * conditions read. {@code 0} disables the memo.
+         */
+        private long memoMaxEntries = 10_000;
+
+        /**
+         * Stores compiled rule bases in Cassandra and loads them on a cache miss when their rule rows
+         * are unchanged, instead of compiling the DRL again on every node. Requires the
+         * {@code EXECUTABLE_MODEL} compilation mode, as an MVEL KJAR is compiled again when loaded.
+         */
+        private boolean artifactsEnabled = false;
+
+        /** Activates the rule set of every flow at startup and holds readiness until it is done. */
+        private boolean warmupEnabled = true;
+
+        /** Time after which readiness no longer waits for the startup warmup. */
+        private Duration warmupTimeout = Duration.ofMinutes(2);
+
+        /**
+         * How often the rule set versions are checked for changes made on other nodes. A newer
+         * version is compiled in the background and swapped in once built.
+         */
+        private Duration ruleSetRefreshInterval = Duration.ofSeconds(10);
+
+        /**
+         * Share of the evaluations of a flow with a shadow candidate that are replayed against the
+         * candidate rule base, from 0 to 1.
+         */
+        private double shadowSampleRate = 0.1;
+
+        /** Maximum number of shadow evaluations running at the same time; further samples are dropped. */
+        private int shadowMaxConcurrency = 2;
+
+        /** Number of most recent mismatches kept per shadow candidate. */
+        private int shadowReportSize = 100;
+
+        /**
+         * Number of most fired rules per flow reported with a fire counter of their own. Fires of
+         * the other rules are only included in the flow's totals. {@code 0} disables per rule counters.
+         */
+        private int ruleMetricsTopN = 20;
+
+        /** How often the most fired rules of each flow are ranked again. */
+        private Duration ruleMetricsRankInterval = Duration.ofSeconds(30);
+
+        /** Largest number of facts accepted by one batch evaluation request. */
+        private int batchMaxFacts = 100;
+
+        /** Leave inactive, duplicate and shadowed rules out of compiled rule bases. */
+        private boolean pruneRules = true;
+
+        /**
+         * Derives the flow's new Drools rule base from its last build, compiling only the added and
+         * changed rules, instead of rebuilding the whole flow. Only used with the {@code MVEL}
+         * compilation mode.
+         */
+        private boolean incrementalUpdates = true;
+
+        /** Largest number of added, changed and removed rules since the last build; larger changes rebuild the flow. */
+        private int incrementalMaxChanges = 50;
+
+        /** Largest number of rules accepted by one decision table import. */
+        private int importMaxRules = 10000;
+
+        /** Rows written concurrently by a decision table import. */
+        private int importWriteConcurrency = 32;
+
+        /**
+         * Longest time a Drools evaluation may take. Evaluations over it are abandoned and leave the
+         * fact unmatched. {@code 0} disables the budget.
+         */
+        private Duration evaluationTimeout = Duration.ofMillis(200);
+
+        /** Maximum number of budgeted Drools evaluations running at the same time. */
+        private int evaluationThreads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+        /** Maximum number of budgeted evaluations waiting for a thread before new ones are abandoned. */
+        private int evaluationQueueSize = 1000;
+
+        /** Actions whose questionnaire document a backfill assembles and writes concurrently. */
+        private int backfillConcurrency = 16;
+
+        /**
+         * Fails startup on settings that cannot work together.
+         */
+        @Override
+        public void afterPropertiesSet() {
+            if (artifactsEnabled && compilationMode != CompilationMode.EXECUTABLE_MODEL) {
+                throw new IllegalStateException("service.rules-engine.artifactsEnabled requires compilationMode "
+                        + CompilationMode.EXECUTABLE_MODEL + ", not " + compilationMode);
+            }
+        }
+    }
+
+    public enum CompilationMode {
+        /** Constraints and consequences are interpreted by MVEL until the JIT thresholds are reached. */
+        MVEL,
+        /** Rules are compiled to the Drools executable model, with constraints as Java lambdas. */
+        EXECUTABLE_MODEL
+    }
+
+    public enum RuleBaseLayout {
+        /** Every flow has a rule base of its own. */
+        PER_FLOW,
+        /**
+         * The flows of a template share one rule base, each in an agenda group of its own that is
+         * focused when the flow is evaluated. Only used with the {@code MVEL} compilation mode.
+         */
+        CONSOLIDATED
+    }
+
+    public enum SessionMode {
+        /** A new stateful session is created and disposed for every evaluation. */
+        STATEFUL,
+        /** A stateless session shared by all evaluations of the rule base. */
+        STATELESS,
+        /** Stateful sessions borrowed from a per rule base pool and reset on dispose. */
+        POOLED
+    }
+}
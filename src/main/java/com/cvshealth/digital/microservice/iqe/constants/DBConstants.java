@@ -51,10 +51,13 @@ public interface DBConstants {
     String SCHEDULE_BY_PATIENT_DEMOGRAPHIC = "schedule_by_patient_demographic";
 
     String RULES_BY_FLOW = "rules_by_flow";
+    String RULE_ARTIFACTS = "rule_artifacts";
+    String RULE_SET_VERSIONS = "rule_set_versions";
     String ACTIONS= "actions";
     String QUESTIONS= "questions";
     String QUESTIONS_DETAILS= "questions_details";
     String ANSWER_OPTIONS= "answer_options";
+    String QUESTIONNAIRE_BY_ACTION = "questionnaire_by_action";
     String SERVICES="services";
 
 //IMZ event
@@ -1,13 +1,24 @@
 package com.cvshealth.digital.microservice.iqe.controller;
 
 
+import com.cvshealth.digital.microservice.iqe.dto.BatchEvaluationResponse;
 import com.cvshealth.digital.microservice.iqe.dto.QuestionareRequest;
+import com.cvshealth.digital.microservice.iqe.dto.QuestionnaireBackfillReport;
 import com.cvshealth.digital.microservice.iqe.dto.RelatedQuestionsRequest;
+import com.cvshealth.digital.microservice.iqe.dto.RuleAnalysisReport;
+import com.cvshealth.digital.microservice.iqe.dto.RuleImportReport;
+import com.cvshealth.digital.microservice.iqe.dto.ShadowReport;
+import com.cvshealth.digital.microservice.iqe.entity.RulesByFlowEntity;
+import com.cvshealth.digital.microservice.iqe.error.ErrorResponse;
+import com.cvshealth.digital.microservice.iqe.error.IQEBaseException;
+import com.cvshealth.digital.microservice.iqe.error.InvalidRequestException;
+import com.cvshealth.digital.microservice.iqe.error.ResourceNotFoundException;
 import com.cvshealth.digital.microservice.iqe.exception.CvsException;
 import com.cvshealth.digital.microservice.iqe.model.IQEResponse;
 import com.cvshealth.digital.microservice.iqe.model.Questions;
 import com.cvshealth.digital.microservice.iqe.model.RulesDetails;
 import com.cvshealth.digital.microservice.iqe.service.IQEService;
+import com.cvshealth.digital.microservice.iqe.service.RuleSetRegistry;
 import com.cvshealth.digital.microservice.iqe.utils.LoggingUtils;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.media.Content;
@@ -17,13 +28,22 @@ import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.http.codec.multipart.FilePart;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 import static com.cvshealth.digital.microservice.iqe.constants.SchedulingConstants.*;
 
@@ -52,7 +72,8 @@ public class IQEController {
                                             value = SUCCESS_RESPONSE_GET_QUESTIONNAIRE_RULES)}) })
             })
     @PostMapping("/getquestionnairerules")
-    public Mono<Questions> getQuestionnaire(@Valid  @RequestBody RulesDetails rulesDetails, @RequestHeader Map<String, String> headers) {
+    public Mono<Questions> getQuestionnaire(@Valid  @RequestBody RulesDetails rulesDetails, @RequestHeader Map<String, String> headers,
+                                            ServerHttpResponse serverResponse) {
          long lStart = System.currentTimeMillis();
 
          Map<String, Object> eventMap =
@@ -65,11 +86,11 @@ public class IQEController {
          loggingUtils.entryEventLogging(log, eventMap);
 
 
-        return iqeService.getRuleDetails(rulesDetails, headers,eventMap).doFinally(response -> {
+        return withRuleSetVersions(iqeService.getRuleDetails(rulesDetails, headers,eventMap).doFinally(response -> {
             long endTime = System.currentTimeMillis();
             eventMap.put(RESP_TIME,  endTime - lStart);
             loggingUtils.exitEventLogging(log, eventMap);
-        });
+        }), serverResponse);
     }
 
     @Operation(summary = "Creates New IQE Questionnaires", description = "This service is used to create new IQE Questionnaire")
@@ -179,6 +200,27 @@ public class IQEController {
         );
     }
 
+    @Operation(summary = "Streams All Rules By Flows", description = "This service is used to stream All Rules By Flows as they are read")
+    @ApiResponses(
+            value = {
+                    @ApiResponse(
+                            responseCode = "200",
+                            description = "Stream IQE Rules",
+                            content  = {
+                                    @Content(mediaType = MediaType.APPLICATION_NDJSON_VALUE),
+                                    @Content(mediaType = MediaType.TEXT_EVENT_STREAM_VALUE) })
+            })
+    @GetMapping(value = "/rules/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<RulesByFlowEntity> streamRules(@RequestHeader Map<String, String> headers) {
+        return streamOperation("streamRules", "This service is used to stream all the existing rules",
+                headers, iqeService::streamRules);
+    }
+
+    @GetMapping(value = "/rules/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<Object>> streamRuleEvents(@RequestHeader Map<String, String> headers) {
+        return asEvents("rule", streamRules(headers));
+    }
+
     @Operation(summary = "Get the question based on action Id", description = "This service is used to Get the question based on action Id")
     @ApiResponses(
             value = {
@@ -199,7 +241,7 @@ public class IQEController {
 
             })
     @GetMapping("/questionnaire/{actionId}")
-    public Mono<QuestionareRequest> questionnaireByActionId(@PathVariable("actionId") String actionId,
+    public Mono<ResponseEntity<byte[]>> questionnaireByActionId(@PathVariable("actionId") String actionId,
                                                             @RequestHeader Map<String, String> headers,
                                                             @RequestHeader Map<String, String> reqHdrMap) {
 
@@ -214,11 +256,11 @@ public class IQEController {
                         headers);
         loggingUtils.entryEventLogging(log, eventMap);
 
-        QuestionareRequest iqeOutPut = new QuestionareRequest();
-
+        // The stored document is written out as it is, without being read into a questionnaire
         return Mono.deferContextual(
                 ctx ->
-                        iqeService.questionnaireByActionId(actionId, iqeOutPut)
+                        iqeService.questionnaireJsonByActionId(actionId)
+                                .map(json -> ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(json))
                                 .onErrorResume(error -> {
                                     if (error instanceof CvsException) {
                                         return Mono.error(error);
@@ -241,6 +283,35 @@ public class IQEController {
         );
     }
 
+    @Operation(summary = "Streams the questions based on action Id", description = "This service is used to stream the questions of the questionnaire of an action Id")
+    @ApiResponses(
+            value = {
+                    @ApiResponse(
+                            responseCode = "200",
+                            description = "Stream Questions based on action Id",
+                            content  = {
+                                    @Content(mediaType = MediaType.APPLICATION_NDJSON_VALUE),
+                                    @Content(mediaType = MediaType.TEXT_EVENT_STREAM_VALUE) }),
+                    @ApiResponse(
+                            responseCode = "404",
+                            description = "No questionnaire for the action Id",
+                            content  = {
+                                    @Content(mediaType = "application/json") })
+
+            })
+    @GetMapping(value = "/questionnaires/{actionId}/questions", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<com.cvshealth.digital.microservice.iqe.dto.Questions> streamQuestionnaire(@PathVariable("actionId") String actionId,
+                                                                                         @RequestHeader Map<String, String> headers) {
+        return streamOperation("streamQuestionnaire", "This service is used to stream questions by actionId",
+                headers, () -> iqeService.streamQuestionnaire(actionId));
+    }
+
+    @GetMapping(value = "/questionnaires/{actionId}/questions", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<Object>> streamQuestionnaireEvents(@PathVariable("actionId") String actionId,
+                                                                  @RequestHeader Map<String, String> headers) {
+        return asEvents("question", streamQuestionnaire(actionId, headers));
+    }
+
     @Operation(summary = "Deletes the question based on action Id", description = "This service is used to Deletes the question based on action Id")
     @ApiResponses(
             value = {
@@ -316,7 +387,8 @@ public class IQEController {
     @io.swagger.v3.oas.annotations.parameters.RequestBody(description = "Gets IQE Questionnaire", content = @Content(mediaType = MediaType.APPLICATION_JSON_VALUE, examples = {
             @ExampleObject( value = DYNAMIC_FLOW_REQUEST)}))
     @PostMapping("/questionnaires/dynamic-flow-condition-evaluation")
-    public Mono<QuestionareRequest> questionnaireByFlowAndCondition(@Valid  @RequestBody RulesDetails rulesDetails, @RequestHeader Map<String, String> headers){
+    public Mono<QuestionareRequest> questionnaireByFlowAndCondition(@Valid  @RequestBody RulesDetails rulesDetails, @RequestHeader Map<String, String> headers,
+                                                                    ServerHttpResponse serverResponse){
 
         long lStart = System.currentTimeMillis();
 
@@ -331,7 +403,7 @@ public class IQEController {
 
         QuestionareRequest iqeOutPut=new QuestionareRequest();
 
-        return Mono.deferContextual(
+        return withRuleSetVersions(Mono.deferContextual(
                 ctx ->
                         iqeService.questionnaireByFlowAndCondition(rulesDetails, iqeOutPut, headers)
                                 .onErrorResume(error -> {
@@ -356,7 +428,58 @@ public class IQEController {
                                     eventMap.put(RESP_TIME, endTime - lStart);
                                     loggingUtils.exitEventLogging(log, eventMap);
                                 })
-        );
+        ), serverResponse);
+    }
+
+    @Operation(summary = "Get IQE Questionnaires for a batch of flows and conditions", description = "This service is used to evaluate many facts by flow and condition in one call")
+    @ApiResponses(
+            value = {
+                    @ApiResponse(
+                            responseCode = "200",
+                            description = "Gets IQE Questions for every fact",
+                            content  = {
+                                    @Content(mediaType = "application/json") })
+
+            })
+    @PostMapping("/questionnaires/dynamic-flow-condition-evaluation/batch")
+    public Mono<BatchEvaluationResponse> questionnairesByFlowAndConditions(@Valid @RequestBody List<@Valid RulesDetails> rulesDetailsList,
+                                                                           @RequestHeader Map<String, String> headers,
+                                                                           ServerHttpResponse serverResponse) {
+
+        long lStart = System.currentTimeMillis();
+
+        Map<String, Object> eventMap =
+                LoggingUtils.populateEventMap(
+                        CLASS_NAME,
+                        "dynamic-flow-condition-evaluation-batch",
+                        CLASS_NAME,
+                        "This service is used to retrieve questionares for a batch of flows and conditions",
+                        headers);
+        loggingUtils.entryEventLogging(log, eventMap);
+
+        return withRuleSetVersions(Mono.deferContextual(
+                ctx ->
+                        iqeService.questionnairesByFlowAndConditions(rulesDetailsList, headers)
+                                .onErrorResume(error -> {
+                                    if (error instanceof CvsException || error instanceof InvalidRequestException) {
+                                        return Mono.error(error);
+                                    }
+                                    return Mono.error(
+                                            new CvsException(
+                                                    HttpStatus.INTERNAL_SERVER_ERROR.value(),
+                                                    ERROR_INTERNAL_SERVER_ERROR,
+                                                    errorMessages.get(INTERNAL_SERVER_ERROR_MESSAGE),
+                                                    errorMessages.get(INTERNAL_SERVER_ERROR_MESSAGE),
+                                                    error.getMessage()
+                                            )
+                                    );
+                                })
+                                .doFinally(response -> {
+                                    long endTime = System.currentTimeMillis();
+                                    eventMap.put(RESP_TIME, endTime - lStart);
+                                    loggingUtils.exitEventLogging(log, eventMap);
+                                })
+        ), serverResponse);
     }
 
     @Operation(summary = "Get the question based on action Id and Question Id", description = "This service is used to Get the question based on action Id and Question Id")
@@ -433,7 +556,8 @@ public class IQEController {
         @io.swagger.v3.oas.annotations.parameters.RequestBody(description = "Gets IQE Questionnaire", content = @Content(mediaType = MediaType.APPLICATION_JSON_VALUE, examples = {
             @ExampleObject( value = DYNAMIC_FLOW_REQUEST)}))
     @PostMapping("/questionnaire/evaluation-by-flow")
-    public Mono<QuestionareRequest> questionnaireByFlow(@Valid @RequestBody RulesDetails rulesDetails, @RequestHeader Map<String, String> headers){
+    public Mono<QuestionareRequest> questionnaireByFlow(@Valid @RequestBody RulesDetails rulesDetails, @RequestHeader Map<String, String> headers,
+                                                        ServerHttpResponse serverResponse){
 
         long lStart = System.currentTimeMillis();
 
@@ -448,7 +572,7 @@ public class IQEController {
 
         QuestionareRequest iqeOutPut=new QuestionareRequest();
 
-        return Mono.deferContextual(
+        return withRuleSetVersions(Mono.deferContextual(
                 ctx ->
                         iqeService.questionnaireByFlow(rulesDetails, iqeOutPut, headers)
                                 .onErrorResume(error -> {
@@ -470,7 +594,7 @@ public class IQEController {
                                     eventMap.put("respTime", endTime - lStart);
                                     loggingUtils.exitEventLogging(log, eventMap);
                                 })
-        );
+        ), serverResponse);
     }
 
     @Operation(summary = "Get questions by list of action and question id's", description = "This service is used to Get questions by list of action and question id's")
@@ -527,4 +651,241 @@ public class IQEController {
                                 })
         );
     }
+
+    @Operation(summary = "Registers shadow candidate rules for a flow", description = "This service is used to replay a sample of the flow's live evaluations against candidate rules and compare the outcomes")
+    @ApiResponses(
+            value = {
+                    @ApiResponse(
+                            responseCode = "200",
+                            description = "Candidate registered",
+                            content  = {
+                                    @Content(mediaType = "application/json") })
+
+            })
+    @PutMapping("/shadow/{flow}")
+    public Mono<ShadowReport> registerShadowCandidate(@PathVariable("flow") String flow,
+                                                      @RequestBody List<RulesByFlowEntity> rules,
+                                                      @RequestHeader Map<String, String> headers) {
+        return adminOperation("registerShadowCandidate", "This service is used to register shadow candidate rules",
+                headers, () -> iqeService.registerShadowCandidate(flow, rules));
+    }
+
+    @Operation(summary = "Gets the shadow evaluation report of a flow", description = "This service is used to compare a flow's shadow candidate with its live rules")
+    @ApiResponses(
+            value = {
+                    @ApiResponse(
+                            responseCode = "200",
+                            description = "Shadow report",
+                            content  = {
+                                    @Content(mediaType = "application/json") })
+
+            })
+    @GetMapping("/shadow/{flow}")
+    public Mono<ShadowReport> shadowReport(@PathVariable("flow") String flow,
+                                           @RequestHeader Map<String, String> headers) {
+        return adminOperation("shadowReport", "This service is used to get the shadow evaluation report",
+                headers, () -> iqeService.shadowReport(flow));
+    }
+
+    @Operation(summary = "Removes the shadow candidate of a flow", description = "This service is used to stop shadow evaluation of a flow")
+    @ApiResponses(
+            value = {
+                    @ApiResponse(
+                            responseCode = "200",
+                            description = "Final shadow report",
+                            content  = {
+                                    @Content(mediaType = "application/json") })
+
+            })
+    @DeleteMapping("/shadow/{flow}")
+    public Mono<ShadowReport> removeShadowCandidate(@PathVariable("flow") String flow,
+                                                    @RequestHeader Map<String, String> headers) {
+        return adminOperation("removeShadowCandidate", "This service is used to remove shadow candidate rules",
+                headers, () -> iqeService.removeShadowCandidate(flow));
+    }
+
+    @Operation(summary = "Analyzes the rules of a flow", description = "This service is used to find the inactive, duplicate and shadowed rules of a flow and what pruning them saves")
+    @ApiResponses(
+            value = {
+                    @ApiResponse(
+                            responseCode = "200",
+                            description = "Rule analysis report",
+                            content  = {
+                                    @Content(mediaType = "application/json") })
+
+            })
+    @GetMapping("/rules/analysis/{flow}")
+    public Mono<RuleAnalysisReport> analyzeRules(@PathVariable("flow") String flow,
+                                                 @RequestHeader Map<String, String> headers) {
+        return adminOperation("analyzeRules", "This service is used to analyze the rules of a flow",
+                headers, () -> iqeService.analyzeRules(flow));
+    }
+
+    @Operation(summary = "Backfills questionnaire documents", description = "This service is used to write the stored questionnaire document of every action")
+    @ApiResponses(
+            value = {
+                    @ApiResponse(
+                            responseCode = "200",
+                            description = "Questionnaire backfill report",
+                            content  = {
+                                    @Content(mediaType = "application/json") })
+
+            })
+    @PostMapping("/questionnaires/backfill")
+    public Mono<QuestionnaireBackfillReport> backfillQuestionnaireDocuments(@RequestHeader Map<String, String> headers) {
+        return adminOperation("backfillQuestionnaireDocuments", "This service is used to backfill questionnaire documents",
+                headers, iqeService::backfillQuestionnaireDocuments);
+    }
+
+    @Operation(summary = "Imports the rules of a flow from a decision table", description = "This service is used to bulk load the rules of a flow from an XLSX decision table")
+    @ApiResponses(
+            value = {
+                    @ApiResponse(
+                            responseCode = "200",
+                            description = "Rule import report",
+                            content  = {
+                                    @Content(mediaType = "application/json") })
+
+            })
+    @PostMapping(value = "/rules/import/{flow}", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public Mono<RuleImportReport> importRules(@PathVariable("flow") String flow,
+                                              @RequestPart("file") FilePart file,
+                                              @RequestHeader Map<String, String> headers) {
+        return adminOperation("importRules", "This service is used to import the rules of a flow from a decision table",
+                headers, () -> DataBufferUtils.join(file.content())
+                        .map(buffer -> {
+                            byte[] workbook = new byte[buffer.readableByteCount()];
+                            buffer.read(workbook);
+                            DataBufferUtils.release(buffer);
+                            return workbook;
+                        })
+                        .defaultIfEmpty(new byte[0])
+                        .flatMap(workbook -> iqeService.importDecisionTable(flow, workbook, headers)));
+    }
+
+    private <T> Mono<T> adminOperation(String operation, String description, Map<String, String> headers,
+                                       Supplier<Mono<T>> call) {
+
+        long lStart = System.currentTimeMillis();
+
+        Map<String, Object> eventMap =
+                LoggingUtils.populateEventMap(
+                        CLASS_NAME,
+                        operation,
+                        CLASS_NAME,
+                        description,
+                        headers);
+        loggingUtils.entryEventLogging(log, eventMap);
+
+        return Mono.deferContextual(
+                ctx ->
+                        call.get()
+                                .onErrorResume(error -> {
+                                    if (error instanceof CvsException || error instanceof IQEBaseException) {
+                                        return Mono.error(error);
+                                    }
+                                    return Mono.error(
+                                            new CvsException(
+                                                    HttpStatus.INTERNAL_SERVER_ERROR.value(),
+                                                    ERROR_INTERNAL_SERVER_ERROR,
+                                                    errorMessages.get(INTERNAL_SERVER_ERROR_MESSAGE),
+                                                    errorMessages.get(INTERNAL_SERVER_ERROR_MESSAGE),
+                                                    error.getMessage()
+                                            )
+                                    );
+                                })
+                                .doFinally(response -> {
+                                    long endTime = System.currentTimeMillis();
+                                    eventMap.put(RESP_TIME, endTime - lStart);
+                                    loggingUtils.exitEventLogging(log, eventMap);
+                                })
+        );
+    }
+
+    /**
+     * Like {@link #adminOperation}, for responses streamed element by element. An error raised
+     * before the first element still gets its status; a later one ends the stream.
+     */
+    private <T> Flux<T> streamOperation(String operation, String description, Map<String, String> headers,
+                                        Supplier<Flux<T>> call) {
+
+        long lStart = System.currentTimeMillis();
+
+        Map<String, Object> eventMap =
+                LoggingUtils.populateEventMap(
+                        CLASS_NAME,
+                        operation,
+                        CLASS_NAME,
+                        description,
+                        headers);
+        loggingUtils.entryEventLogging(log, eventMap);
+
+        return Flux.deferContextual(
+                ctx ->
+                        call.get()
+                                .onErrorResume(error -> {
+                                    if (error instanceof CvsException || error instanceof IQEBaseException) {
+                                        return Flux.error(error);
+                                    }
+                                    return Flux.error(
+                                            new CvsException(
+                                                    HttpStatus.INTERNAL_SERVER_ERROR.value(),
+                                                    ERROR_INTERNAL_SERVER_ERROR,
+                                                    errorMessages.get(INTERNAL_SERVER_ERROR_MESSAGE),
+                                                    errorMessages.get(INTERNAL_SERVER_ERROR_MESSAGE),
+                                                    error.getMessage()
+                                            )
+                                    );
+                                })
+                                .doFinally(response -> {
+                                    long endTime = System.currentTimeMillis();
+                                    eventMap.put(RESP_TIME, endTime - lStart);
+                                    loggingUtils.exitEventLogging(log, eventMap);
+                                })
+        );
+    }
+
+    /**
+     * Sends the elements of a stream as server sent events. Event streams are answered with a 200
+     * before the first element, so an error is sent as a final {@code error} event carrying the
+     * status and code the other endpoints answer with.
+     */
+    private <T> Flux<ServerSentEvent<Object>> asEvents(String event, Flux<T> stream) {
+        return stream
+                .map(element -> ServerSentEvent.builder((Object) element).event(event).build())
+                .onErrorResume(error -> Flux.just(ServerSentEvent.builder((Object) errorResponse(error))
+                        .event("error")
+                        .build()));
+    }
+
+    private static ErrorResponse errorResponse(Throwable error) {
+        if (error instanceof ResourceNotFoundException notFound) {
+            return new ErrorResponse(HttpStatus.NOT_FOUND.value(), notFound.getErrorCode(), notFound.getErrorDesc());
+        }
+        if (error instanceof InvalidRequestException invalid) {
+            return new ErrorResponse(HttpStatus.BAD_REQUEST.value(), invalid.getErrorCode(), invalid.getErrorDesc());
+        }
+        if (error instanceof IQEBaseException iqeError) {
+            return new ErrorResponse(HttpStatus.INTERNAL_SERVER_ERROR.value(), iqeError.getErrorCode(), iqeError.getErrorDesc());
+        }
+        if (error instanceof CvsException cvsError) {
+            return new ErrorResponse(cvsError.getHttpStatusCode(), cvsError.getStatusCode(), cvsError.getStatusDescription());
+        }
+        return new ErrorResponse(HttpStatus.INTERNAL_SERVER_ERROR.value(), ERROR_INTERNAL_SERVER_ERROR, error.getMessage());
+    }
+
+    /**
+     * Reports the rule set versions the request was evaluated with in the
+     * {@value RuleSetRegistry#RULE_SET_VERSION_HEADER} response header.
+     */
+    private <T> Mono<T> withRuleSetVersions(Mono<T> evaluation, ServerHttpResponse serverResponse) {
+        Map<String, Long> versions = new ConcurrentHashMap<>();
+        serverResponse.beforeCommit(() -> Mono.fromRunnable(() -> {
+            if (!versions.isEmpty()) {
+                serverResponse.getHeaders().set(RuleSetRegistry.RULE_SET_VERSION_HEADER,
+                        RuleSetRegistry.formatVersions(versions));
+            }
+        }));
+        return evaluation.contextWrite(RuleSetRegistry.servedVersions(versions));
+    }
 }
\ No newline at end of file
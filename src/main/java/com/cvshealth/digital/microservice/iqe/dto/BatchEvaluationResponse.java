@@ -0,0 +1,37 @@
+package com.cvshealth.digital.microservice.iqe.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Response of the batch dynamic flow condition evaluation. Each fact gets a result at the index
+ * it had in the request; the questionnaire of an actionId is returned once however many facts
+ * resolved to it.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BatchEvaluationResponse {
+    private String statusCode;
+    private List<FactResult> results;
+    private Map<String, QuestionareRequest> questionnaires;
+
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class FactResult {
+        private int index;
+        private String flow;
+        private String actionId;
+    }
+}
@@ -0,0 +1,23 @@
+package com.cvshealth.digital.microservice.iqe.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Outcome of backfilling the questionnaire documents. Missing actions are actions without a rule,
+ * which have no questionnaire to store.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class QuestionnaireBackfillReport {
+    private int writtenDocuments;
+    private int missingActions;
+    private int failedActions;
+    private long elapsedMillis;
+}
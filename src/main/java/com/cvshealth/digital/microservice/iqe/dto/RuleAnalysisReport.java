@@ -0,0 +1,66 @@
+package com.cvshealth.digital.microservice.iqe.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Rules of a flow that can never fire and what leaving them out of its rule base saves. The
+ * generated DRL size stands in for the rule base's memory, which grows with the rules and
+ * constraints it is built from; build times are measured by building the flow both ways. Rete node
+ * counts compare the kept rules as stored with the same rules with canonical conditions.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class RuleAnalysisReport {
+    private String flow;
+    private String templateFile;
+    private boolean pruningEnabled;
+    private int totalRules;
+    private int keptRules;
+    private int prunedRules;
+    private List<Finding> findings;
+    private long drlBytes;
+    private long prunedDrlBytes;
+    private long savedDrlBytes;
+    private Long buildMillis;
+    private Long prunedBuildMillis;
+    private Long savedBuildMillis;
+    /** Kept rules whose condition is not stored in canonical form. */
+    private Integer canonicalizableRules;
+    private Integer nodeCount;
+    private Integer canonicalNodeCount;
+    private Integer savedNodes;
+
+    /**
+     * Why a rule can never fire.
+     */
+    public enum Reason {
+        /** The rule is not active. */
+        INACTIVE,
+        /** No fact can satisfy the rule's condition. */
+        UNSATISFIABLE,
+        /** A rule that fires first has an equivalent condition. */
+        DUPLICATE,
+        /** A rule that fires first matches every fact this rule matches. */
+        SHADOWED
+    }
+
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Finding {
+        private String ruleId;
+        private Reason reason;
+        private String coveredBy;
+    }
+}
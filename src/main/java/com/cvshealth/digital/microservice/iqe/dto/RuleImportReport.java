@@ -0,0 +1,27 @@
+package com.cvshealth.digital.microservice.iqe.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Outcome of importing a decision table into a flow. Replaced rules are imported rules whose
+ * ruleId the flow already had; the total counts every rule of the flow after the import.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class RuleImportReport {
+    private String flow;
+    private int importedRules;
+    private int replacedRules;
+    private int updatedActions;
+    private int totalRules;
+    private long parseMillis;
+    private long compileMillis;
+    private long writeMillis;
+}
@@ -0,0 +1,53 @@
+package com.cvshealth.digital.microservice.iqe.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Outcome of replaying sampled live evaluations of a flow against its shadow candidate rule set.
+ * Latencies are in microseconds; the delta is the candidate's mean minus the live mean, so a
+ * positive value means the candidate is slower.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ShadowReport {
+    private String flow;
+    private Instant registeredAt;
+    private int rules;
+    private long sampled;
+    private long matched;
+    private long mismatched;
+    private long failed;
+    private long dropped;
+    private Double meanLiveMicros;
+    private Double meanCandidateMicros;
+    private Double meanLatencyDeltaMicros;
+    private List<Mismatch> mismatches;
+
+    /**
+     * A sampled evaluation whose outcomes differ. Only identifiers are kept, never the fact, as it
+     * carries patient data.
+     */
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Mismatch {
+        private Instant evaluatedAt;
+        private String flow;
+        private String liveRuleId;
+        private String candidateRuleId;
+        private String liveActionId;
+        private String candidateActionId;
+    }
+}
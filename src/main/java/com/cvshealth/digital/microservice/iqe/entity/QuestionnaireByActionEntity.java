@@ -0,0 +1,39 @@
+package com.cvshealth.digital.microservice.iqe.entity;
+
+import com.cvshealth.digital.microservice.iqe.constants.DBConstants;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.cassandra.core.cql.PrimaryKeyType;
+import org.springframework.data.cassandra.core.mapping.Column;
+import org.springframework.data.cassandra.core.mapping.PrimaryKeyColumn;
+import org.springframework.data.cassandra.core.mapping.Table;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+/**
+ * Questionnaire of an action as served, assembled from the rules_by_flow, actions, questions,
+ * answer_options and questions_details rows of the action when they are written, so it is read
+ * from a single partition.
+ */
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+@Table(QuestionnaireByActionEntity.TABLE_NAME)
+public class QuestionnaireByActionEntity {
+    public static final String TABLE_NAME = DBConstants.QUESTIONNAIRE_BY_ACTION;
+
+    @PrimaryKeyColumn(type = PrimaryKeyType.PARTITIONED, name = "action_id", ordinal = 0)
+    private String actionId;
+    /** Format of {@code document}; documents of another format are assembled again. */
+    @Column("document_version")
+    private int documentVersion;
+    /** The questionnaire as JSON. */
+    @Column("document")
+    private ByteBuffer document;
+    @Column("updated_ts")
+    private Instant updatedTs;
+}
@@ -0,0 +1,45 @@
+package com.cvshealth.digital.microservice.iqe.entity;
+
+import com.cvshealth.digital.microservice.iqe.constants.DBConstants;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.cassandra.core.cql.Ordering;
+import org.springframework.data.cassandra.core.cql.PrimaryKeyType;
+import org.springframework.data.cassandra.core.mapping.Column;
+import org.springframework.data.cassandra.core.mapping.PrimaryKeyColumn;
+import org.springframework.data.cassandra.core.mapping.Table;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+/**
+ * Compiled rule base of a flow, stored as a KJAR so other nodes can load it instead of
+ * compiling the same DRL again.
+ */
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+@Table(RuleArtifactEntity.TABLE_NAME)
+public class RuleArtifactEntity {
+    public static final String TABLE_NAME = DBConstants.RULE_ARTIFACTS;
+
+    @PrimaryKeyColumn(type = PrimaryKeyType.PARTITIONED, name = DBConstants.FLOW, ordinal = 0)
+    private String flow;
+    @PrimaryKeyColumn(type = PrimaryKeyType.CLUSTERED, name = "template_file", ordinal = 1, ordering = Ordering.ASCENDING)
+    private String templateFile;
+    @PrimaryKeyColumn(type = PrimaryKeyType.CLUSTERED, name = "compilation_mode", ordinal = 2, ordering = Ordering.ASCENDING)
+    private String compilationMode;
+    /** Hash of the rule rows the artifact was compiled from, which is the rule set version. */
+    @Column("rules_hash")
+    private String rulesHash;
+    /** SHA-256 of {@code kjar}. */
+    @Column("checksum")
+    private String checksum;
+    @Column("kjar")
+    private ByteBuffer kjar;
+    @Column("created_ts")
+    private Instant createdTs;
+}
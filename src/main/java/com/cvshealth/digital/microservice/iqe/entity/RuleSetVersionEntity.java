@@ -0,0 +1,28 @@
+package com.cvshealth.digital.microservice.iqe.entity;
+
+import com.cvshealth.digital.microservice.iqe.constants.DBConstants;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.cassandra.core.cql.PrimaryKeyType;
+import org.springframework.data.cassandra.core.mapping.Column;
+import org.springframework.data.cassandra.core.mapping.PrimaryKeyColumn;
+import org.springframework.data.cassandra.core.mapping.Table;
+
+/**
+ * Version of the rule set of a flow, incremented on every change to its rules.
+ */
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+@Table(RuleSetVersionEntity.TABLE_NAME)
+public class RuleSetVersionEntity {
+    public static final String TABLE_NAME = DBConstants.RULE_SET_VERSIONS;
+
+    @PrimaryKeyColumn(type = PrimaryKeyType.PARTITIONED, name = DBConstants.FLOW, ordinal = 0)
+    private String flow;
+    @Column("version")
+    private long version;
+}
@@ -0,0 +1,61 @@
+package com.cvshealth.digital.microservice.iqe.model;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Questions parsed once from the action of a questionnaire rule and shared by every evaluation
+ * that fires it. The list cannot be replaced or modified, and responses write the JSON prepared
+ * with it instead of serializing the questions again.
+ */
+@JsonSerialize(using = PreparedQuestions.Serializer.class)
+public final class PreparedQuestions extends Questions {
+
+    private final String json;
+
+    private PreparedQuestions(List<Question> questions, String json) {
+        super(questions == null ? null : Collections.unmodifiableList(questions));
+        this.json = json;
+    }
+
+    /**
+     * Parses a rule action.
+     *
+     * @param action the JSON the rule sets as the questions of the fact
+     * @param mapper the mapper used to parse the action and serialize the questions
+     * @return the prepared questions
+     * @throws IOException if the action is not valid questions JSON
+     */
+    public static PreparedQuestions parse(String action, ObjectMapper mapper) throws IOException {
+        Questions questions = mapper.readValue(action, Questions.class);
+        return new PreparedQuestions(questions.getQuestions(), mapper.writeValueAsString(questions));
+    }
+
+    /**
+     * The serialized questions, as written in responses.
+     */
+    public String json() {
+        return json;
+    }
+
+    @Override
+    public void setQuestions(List<Question> questions) {
+        throw new UnsupportedOperationException("Prepared questions are shared and cannot be modified");
+    }
+
+    public static final class Serializer extends JsonSerializer<PreparedQuestions> {
+
+        @Override
+        public void serialize(PreparedQuestions value, JsonGenerator gen, SerializerProvider serializers)
+                throws IOException {
+            gen.writeRawValue(value.json());
+        }
+    }
+}
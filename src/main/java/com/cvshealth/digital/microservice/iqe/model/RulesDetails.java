@@ -3,9 +3,15 @@ package com.cvshealth.digital.microservice.iqe.model;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import jakarta.validation.Valid;
 import jakarta.validation.constraints.NotBlank;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
 import lombok.Data;
+import lombok.NoArgsConstructor;
 
 @Data
+@Builder(toBuilder = true)
+@NoArgsConstructor
+@AllArgsConstructor
 @Valid
 @JsonInclude(JsonInclude.Include.NON_NULL)
 public class RulesDetails {
@@ -17,4 +17,7 @@ public interface ActionsRepository extends ReactiveCassandraRepository<ActionsEn
     Flux<ActionsEntity> findByActionId(@Param("actionId") String actionId);
 
     Mono<Void> deleteByActionId(@Param("actionId") String actionId);
+
+    @Query("UPDATE actions SET action_text = :actionText WHERE action_id = :actionId")
+    Mono<Void> updateActionText(@Param("actionId") String actionId, @Param("actionText") String actionText);
 }
\ No newline at end of file
@@ -7,6 +7,8 @@ import org.springframework.data.repository.query.Param;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Collection;
+
 /**
  * The Class AnswerOptionsRepository
  *
@@ -21,4 +23,7 @@ public interface AnswerOptionsRepository  extends ReactiveCassandraRepository<An
 
     @Query("SELECT * FROM iqe.answer_options WHERE action_id = :actionId AND question_id = :questionId")
     Flux<AnswerOptionsEntity> findByActionIdAndQuestionId(@Param("actionId") String actionId, @Param("questionId") String questionId);
+
+    @Query("SELECT * FROM iqe.answer_options WHERE action_id = :actionId AND question_id IN :questionIds")
+    Flux<AnswerOptionsEntity> findByActionIdAndQuestionIdIn(@Param("actionId") String actionId, @Param("questionIds") Collection<String> questionIds);
 }
\ No newline at end of file
@@ -0,0 +1,20 @@
+package com.cvshealth.digital.microservice.iqe.repository;
+
+import com.cvshealth.digital.microservice.iqe.entity.QuestionnaireByActionEntity;
+import org.springframework.data.cassandra.repository.Query;
+import org.springframework.data.cassandra.repository.ReactiveCassandraRepository;
+import org.springframework.data.repository.query.Param;
+import reactor.core.publisher.Mono;
+
+
+/**
+ * The Class QuestionnaireByActionRepository
+ *
+ */
+public interface QuestionnaireByActionRepository extends ReactiveCassandraRepository<QuestionnaireByActionEntity, String> {
+
+    @Query("SELECT * FROM iqe.questionnaire_by_action WHERE action_id = :actionId")
+    Mono<QuestionnaireByActionEntity> findByActionId(@Param("actionId") String actionId);
+
+    Mono<Void> deleteByActionId(@Param("actionId") String actionId);
+}
@@ -7,6 +7,8 @@ import org.springframework.data.repository.query.Param;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Collection;
+
 /**
  * The Class QuestionsRepository
  *
@@ -21,5 +23,8 @@ public interface QuestionsRepository  extends ReactiveCassandraRepository<Questi
     @Query("SELECT * FROM questions WHERE action_id = :actionId AND question_id = :questionId")
     Mono<QuestionsEntity> findByActionIdAndQuestionId(@Param("actionId") String actionId, @Param("questionId") String questionId);
 
+    @Query("SELECT * FROM questions WHERE action_id = :actionId AND question_id IN :questionIds")
+    Flux<QuestionsEntity> findByActionIdAndQuestionIdIn(@Param("actionId") String actionId, @Param("questionIds") Collection<String> questionIds);
+
 
 }
\ No newline at end of file
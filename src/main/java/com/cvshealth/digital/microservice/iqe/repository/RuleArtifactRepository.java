@@ -0,0 +1,19 @@
+package com.cvshealth.digital.microservice.iqe.repository;
+
+import com.cvshealth.digital.microservice.iqe.entity.RuleArtifactEntity;
+import org.springframework.data.cassandra.repository.Query;
+import org.springframework.data.cassandra.repository.ReactiveCassandraRepository;
+import org.springframework.data.repository.query.Param;
+import reactor.core.publisher.Mono;
+
+
+/**
+ * The Class RuleArtifactRepository
+ *
+ */
+public interface RuleArtifactRepository extends ReactiveCassandraRepository<RuleArtifactEntity, String> {
+
+    @Query("SELECT * FROM iqe.rule_artifacts WHERE flow = :flow AND template_file = :templateFile AND compilation_mode = :compilationMode")
+    Mono<RuleArtifactEntity> findArtifact(@Param("flow") String flow, @Param("templateFile") String templateFile,
+                                          @Param("compilationMode") String compilationMode);
+}
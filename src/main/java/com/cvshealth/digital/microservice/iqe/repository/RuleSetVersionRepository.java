@@ -0,0 +1,22 @@
+package com.cvshealth.digital.microservice.iqe.repository;
+
+import com.cvshealth.digital.microservice.iqe.entity.RuleSetVersionEntity;
+import org.springframework.data.cassandra.repository.Query;
+import org.springframework.data.cassandra.repository.ReactiveCassandraRepository;
+import org.springframework.data.repository.query.Param;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+
+/**
+ * The Class RuleSetVersionRepository
+ *
+ */
+public interface RuleSetVersionRepository extends ReactiveCassandraRepository<RuleSetVersionEntity, String> {
+
+    @Query("UPDATE iqe.rule_set_versions SET version = version + 1 WHERE flow = :flow")
+    Mono<Void> incrementVersion(@Param("flow") String flow);
+
+    @Query("SELECT * FROM iqe.rule_set_versions")
+    Flux<RuleSetVersionEntity> findAll();
+}
@@ -0,0 +1,531 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.config.RulesEngineConfig.SessionMode;
+import com.cvshealth.digital.microservice.iqe.model.PreparedQuestions;
+import com.cvshealth.digital.microservice.iqe.model.RulesDetails;
+import com.cvshealth.digital.microservice.iqe.utils.ConditionParser;
+import org.kie.api.KieBase;
+import org.kie.api.KieServices;
+import org.kie.api.command.Command;
+import org.kie.api.command.KieCommands;
+import org.kie.api.event.rule.AfterMatchFiredEvent;
+import org.kie.api.event.rule.DefaultAgendaEventListener;
+import org.kie.api.runtime.ExecutionResults;
+import org.kie.api.runtime.KieContainer;
+import org.kie.api.runtime.KieSessionsPool;
+import org.kie.api.runtime.KieSession;
+import org.kie.api.runtime.StatelessKieSession;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * A compiled rule base together with the sessions used to evaluate facts against it.
+ * <p>
+ * The stateless session and the session pool are created once per rule base, so evaluations in
+ * those modes do not pay for building and tearing down a {@link KieSession} each time.
+ * <p>
+ * When every condition of a flow could be compiled to a Java predicate the rule base holds
+ * {@link NativeRule}s instead and Drools is not involved at all.
+ * <p>
+ * Drools rule bases may also carry an {@link EvaluationMemo}, so facts that agree on every field
+ * the conditions read are evaluated by Drools only once.
+ * <p>
+ * Rule bases serving live traffic are instrumented with the {@link RuleMetrics} of their flow,
+ * which listens to the agenda of every session.
+ * <p>
+ * A rule base may be the view of one flow onto a {@link SharedKieBase}, in which case the flow's
+ * agenda group is focused before its rules are fired. Evaluations enter the published shared
+ * {@link KieBase}, and the view creates its sessions anew whenever another one has been published,
+ * retiring the sessions it replaces.
+ * <p>
+ * Questionnaire rule bases keep the questions of their rules' actions parsed, so a fired action
+ * is neither parsed nor serialized again per evaluation.
+ * <p>
+ * Drools evaluations may be held to an {@link EvaluationBudget}; an evaluation it abandons leaves
+ * the fact unmatched.
+ * <p>
+ * A rule base replaced by a newer one is {@link #retire retired}: its session pool is shut down
+ * once the evaluations running on it have finished.
+ */
+public class CompiledRuleBase {
+
+    private static final KieCommands kieCommands = KieServices.Factory.get().getCommands();
+    private static final String FIRED_RULES = "firedRules";
+
+    private final KieContainer kieContainer;
+    private final SharedKieBase sharedKieBase;
+    private final SessionMode sessionMode;
+    private final int sessionPoolSize;
+    private volatile Sessions sessions;
+    private final NativeRuleIndex nativeRules;
+    private final EvaluationMemo memo;
+    private final String agendaGroup;
+    private RuleMetrics.FlowRuleMetrics metrics;
+    private EvaluationBudget.RuleBaseBudget budget;
+    private Map<String, PreparedQuestions> preparedQuestions = Map.of();
+    private final AtomicInteger evaluations = new AtomicInteger();
+    private final AtomicBoolean disposed = new AtomicBoolean();
+    private volatile boolean retired;
+
+    CompiledRuleBase(KieContainer kieContainer, SessionMode sessionMode, int sessionPoolSize) {
+        this(kieContainer, sessionMode, sessionPoolSize, null);
+    }
+
+    /**
+     * @param memo the memo of outcomes, {@code null} to always evaluate with Drools
+     */
+    CompiledRuleBase(KieContainer kieContainer, SessionMode sessionMode, int sessionPoolSize, EvaluationMemo memo) {
+        this(kieContainer, sessionMode, sessionPoolSize, memo, null);
+    }
+
+    /**
+     * @param memo        the memo of outcomes, {@code null} to always evaluate with Drools
+     * @param agendaGroup the agenda group holding the rules, {@code null} when every rule of the
+     *                    container is
+     */
+    CompiledRuleBase(KieContainer kieContainer, SessionMode sessionMode, int sessionPoolSize, EvaluationMemo memo,
+                     String agendaGroup) {
+        this(kieContainer, kieContainer.getKieBase(), sessionMode, sessionPoolSize, memo, agendaGroup);
+    }
+
+    /**
+     * A rule base of a {@link KieBase} created apart from the default one of its container.
+     *
+     * @param memo        the memo of outcomes, {@code null} to always evaluate with Drools
+     * @param agendaGroup the agenda group holding the rules, {@code null} when every rule of the
+     *                    rule base is
+     */
+    CompiledRuleBase(KieBase kieBase, SessionMode sessionMode, int sessionPoolSize, EvaluationMemo memo,
+                     String agendaGroup) {
+        this(null, kieBase, null, sessionMode, sessionPoolSize, memo, agendaGroup);
+    }
+
+    /**
+     * The view of a flow onto a {@link KieBase} shared by several flows.
+     *
+     * @param sharedKieBase the shared rule base, holding the flow's rules in its agenda group
+     * @param memo          the memo of outcomes, {@code null} to always evaluate with Drools
+     * @param agendaGroup   the agenda group holding the flow's rules
+     */
+    CompiledRuleBase(SharedKieBase sharedKieBase, SessionMode sessionMode, int sessionPoolSize, EvaluationMemo memo,
+                     String agendaGroup) {
+        this(null, null, sharedKieBase, sessionMode, sessionPoolSize, memo, agendaGroup);
+    }
+
+    private CompiledRuleBase(KieContainer kieContainer, KieBase kieBase, SharedKieBase sharedKieBase,
+                             SessionMode sessionMode, int sessionPoolSize, EvaluationMemo memo, String agendaGroup) {
+        this.kieContainer = kieContainer;
+        this.sharedKieBase = sharedKieBase;
+        this.sessionMode = sessionMode;
+        this.sessionPoolSize = sessionPoolSize;
+        // A view creates its sessions on its first evaluation
+        this.sessions = kieBase == null ? null : newSessions(kieBase, null, true);
+        this.nativeRules = null;
+        this.memo = memo;
+        this.agendaGroup = agendaGroup;
+    }
+
+    /**
+     * @param nativeRules the rules in the order Drools would consider them, highest salience first
+     */
+    CompiledRuleBase(List<NativeRule> nativeRules) {
+        this.kieContainer = null;
+        this.sharedKieBase = null;
+        this.sessionMode = null;
+        this.sessionPoolSize = 0;
+        this.sessions = null;
+        this.nativeRules = new NativeRuleIndex(nativeRules);
+        this.memo = null;
+        this.agendaGroup = null;
+    }
+
+    /**
+     * The container the Drools rule base was created from, {@code null} for native rules and rule
+     * bases created apart from their container's.
+     */
+    KieContainer kieContainer() {
+        return kieContainer;
+    }
+
+    /**
+     * The Drools rule base the rules are evaluated against, {@code null} for native rules.
+     */
+    public KieBase getKieBase() {
+        if (sharedKieBase != null) {
+            return sharedKieBase.kieBase();
+        }
+        Sessions current = sessions;
+        return current == null ? null : current.kieBase;
+    }
+
+    /**
+     * Whether the rules are evaluated as Java predicates rather than by Drools.
+     */
+    public boolean isNative() {
+        return nativeRules != null;
+    }
+
+    /**
+     * Inserts the fact and fires at most one rule, matching the {@code activation-group} of the
+     * rule templates.
+     *
+     * @param fact the fact to evaluate
+     * @return the number of rules fired
+     */
+    public int fire(Object fact) {
+        evaluations.incrementAndGet();
+        try {
+            RuleMetrics.FlowRuleMetrics metrics = this.metrics;
+            if (metrics == null) {
+                return evaluate(fact);
+            }
+            long start = System.nanoTime();
+            int fired = evaluate(fact);
+            metrics.evaluated(nativeRules != null, fired, System.nanoTime() - start);
+            return fired;
+        } finally {
+            if (evaluations.decrementAndGet() == 0 && retired) {
+                dispose();
+            }
+        }
+    }
+
+    /**
+     * Evaluates the fact without metrics, memo, budget or pooled sessions, so two rule bases can be
+     * timed against each other on the same thread. Drools evaluations get a session of their own.
+     *
+     * @param fact the fact to evaluate
+     * @return the name of the rule fired, {@code null} when none did
+     */
+    String fireUninstrumented(RulesDetails fact) {
+        evaluations.incrementAndGet();
+        try {
+            return evaluateUninstrumented(fact);
+        } finally {
+            if (evaluations.decrementAndGet() == 0 && retired) {
+                dispose();
+            }
+        }
+    }
+
+    private String evaluateUninstrumented(RulesDetails fact) {
+        if (nativeRules != null) {
+            for (NativeRule rule : nativeRules.candidates(fact)) {
+                if (rule.predicate().test(fact)) {
+                    rule.action().accept(fact);
+                    return rule.name();
+                }
+            }
+            return null;
+        }
+        SharedKieBase.Generation generation = sharedKieBase == null ? null : sharedKieBase.enter();
+        KieSession kieSession = (generation == null ? sessions.kieBase : generation.kieBase()).newKieSession();
+        try {
+            String[] fired = new String[1];
+            kieSession.addEventListener(new DefaultAgendaEventListener() {
+                @Override
+                public void afterMatchFired(AfterMatchFiredEvent event) {
+                    fired[0] = event.getMatch().getRule().getName();
+                }
+            });
+            kieSession.insert(fact);
+            if (agendaGroup != null) {
+                kieSession.getAgenda().getAgendaGroup(agendaGroup).setFocus();
+            }
+            kieSession.fireAllRules(1);
+            return fired[0];
+        } finally {
+            kieSession.dispose();
+            if (generation != null) {
+                generation.leave();
+            }
+        }
+    }
+
+    /**
+     * Disposes the rule base once the evaluations running on it have finished. Called once a newer
+     * rule base has replaced it, so evaluations that started on this one finish on it.
+     */
+    void retire() {
+        retired = true;
+        if (evaluations.get() == 0) {
+            dispose();
+        }
+    }
+
+    /**
+     * Records the rules fired and the evaluation time into the metrics of the flow. Called before
+     * the rule base is published, as the listener is not added to sessions already in use.
+     *
+     * @param metrics the metrics of the flow
+     */
+    void instrument(RuleMetrics.FlowRuleMetrics metrics) {
+        this.metrics = metrics;
+        Sessions current = sessions;
+        if (current != null && current.stateless != null) {
+            current.stateless.addEventListener(metrics);
+        }
+    }
+
+    /**
+     * Holds the Drools evaluations to the budget. Called before the rule base is published, like
+     * {@link #instrument}.
+     *
+     * @param budget the budget of the rule base
+     */
+    void budget(EvaluationBudget.RuleBaseBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Keeps the questions of the rule actions, parsed once. Called before the rule base is
+     * published, like {@link #instrument}.
+     *
+     * @param preparedQuestions the prepared questions by the value the actions set
+     */
+    void prepare(Map<String, PreparedQuestions> preparedQuestions) {
+        this.preparedQuestions = preparedQuestions;
+    }
+
+    /**
+     * The prepared questions of the action that set the fact's questions.
+     *
+     * @param questions the questions a fired rule set on the fact
+     * @return the prepared questions, or {@code null} when the action could not be prepared
+     */
+    public PreparedQuestions preparedQuestions(String questions) {
+        return questions == null ? null : preparedQuestions.get(questions);
+    }
+
+    private int evaluate(Object fact) {
+        if (nativeRules != null) {
+            return fireNative((RulesDetails) fact);
+        }
+        try {
+            if (memo != null && fact instanceof RulesDetails rulesDetails) {
+                return memo.fire(rulesDetails, this::fireWithinBudget);
+            }
+            return fireWithinBudget(fact);
+        } catch (EvaluationBudget.Exceeded e) {
+            // Thrown past the memo, so an abandoned evaluation is not remembered as a miss
+            return 0;
+        }
+    }
+
+    private int fireWithinBudget(Object fact) {
+        EvaluationBudget.RuleBaseBudget budget = this.budget;
+        if (budget != null && fact instanceof RulesDetails rulesDetails) {
+            return budget.fire(rulesDetails, this::fireDrools);
+        }
+        return fireDrools(fact, null);
+    }
+
+    /**
+     * Whether outcomes are memoized.
+     */
+    public boolean isMemoized() {
+        return memo != null;
+    }
+
+    /**
+     * @param deadline the deadline halting the session, {@code null} when there is none
+     */
+    private int fireDrools(Object fact, EvaluationBudget.Deadline deadline) {
+        SharedKieBase.Generation generation = sharedKieBase == null ? null : sharedKieBase.enter();
+        try {
+            Sessions current = sessions(generation);
+            current.evaluations.incrementAndGet();
+            try {
+                return switch (sessionMode) {
+                    case STATELESS -> fireStateless(current.stateless, fact);
+                    // Requests that got the rule base or its sessions before they were retired may still evaluate on them
+                    case POOLED -> fireStateful(retired || current.replaced || current.pool == null
+                            ? current.kieBase.newKieSession() : current.pool.newKieSession(), fact, deadline);
+                    default -> fireStateful(current.kieBase.newKieSession(), fact, deadline);
+                };
+            } finally {
+                current.leave();
+            }
+        } finally {
+            if (generation != null) {
+                generation.leave();
+            }
+        }
+    }
+
+    /**
+     * The sessions of the rule base. A view of a shared rule base creates new sessions for each
+     * published shared rule base it enters, and retires the sessions they replace. An evaluation
+     * that entered a shared rule base replaced since gets sessions of its own, without a pool.
+     *
+     * @param generation the shared rule base entered, {@code null} unless the rule base is a view
+     */
+    private Sessions sessions(SharedKieBase.Generation generation) {
+        Sessions current = sessions;
+        if (generation == null || (current != null && current.generation == generation)) {
+            return current;
+        }
+        if (!sharedKieBase.isPublished(generation)) {
+            return newSessions(generation.kieBase(), generation, false);
+        }
+        synchronized (this) {
+            current = sessions;
+            if (current != null && current.generation == generation) {
+                return current;
+            }
+            Sessions next = newSessions(generation.kieBase(), generation, !disposed.get());
+            sessions = next;
+            if (current != null) {
+                current.retire();
+            }
+            return next;
+        }
+    }
+
+    /**
+     * @param pooled whether the sessions get a pool when the session mode is pooled
+     */
+    private Sessions newSessions(KieBase kieBase, SharedKieBase.Generation generation, boolean pooled) {
+        StatelessKieSession stateless = sessionMode == SessionMode.STATELESS ? kieBase.newStatelessKieSession() : null;
+        RuleMetrics.FlowRuleMetrics metrics = this.metrics;
+        if (stateless != null && metrics != null) {
+            stateless.addEventListener(metrics);
+        }
+        return new Sessions(kieBase, generation, stateless,
+                pooled && sessionMode == SessionMode.POOLED ? kieBase.newKieSessionsPool(sessionPoolSize) : null);
+    }
+
+    private int fireNative(RulesDetails rulesDetails) {
+        for (NativeRule rule : nativeRules.candidates(rulesDetails)) {
+            if (rule.predicate().test(rulesDetails)) {
+                rule.action().accept(rulesDetails);
+                if (metrics != null) {
+                    metrics.ruleFired(rule.name());
+                }
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Stateless sessions cannot be halted, so an abandoned stateless evaluation runs to its end.
+     */
+    private int fireStateless(StatelessKieSession statelessKieSession, Object fact) {
+        // Every template rule is in the same activation-group, so at most one of them fires here too
+        List<Command<?>> commands = agendaGroup == null
+                ? List.of(kieCommands.newInsert(fact), kieCommands.newFireAllRules(FIRED_RULES))
+                : List.of(kieCommands.newInsert(fact), kieCommands.newAgendaGroupSetFocus(agendaGroup),
+                        kieCommands.newFireAllRules(FIRED_RULES));
+        ExecutionResults results = statelessKieSession.execute(kieCommands.newBatchExecution(commands));
+        return (Integer) results.getValue(FIRED_RULES);
+    }
+
+    private int fireStateful(KieSession kieSession, Object fact, EvaluationBudget.Deadline deadline) {
+        // Pooled sessions keep their listeners when they are reset
+        if (metrics != null && !kieSession.getAgendaEventListeners().contains(metrics)) {
+            kieSession.addEventListener(metrics);
+        }
+        try {
+            if (deadline != null) {
+                deadline.watch(kieSession::halt);
+            }
+            // Conditions are evaluated here, which a halt cannot stop
+            kieSession.insert(fact);
+            if (deadline != null && deadline.passed()) {
+                return 0;
+            }
+            if (agendaGroup != null) {
+                kieSession.getAgenda().getAgendaGroup(agendaGroup).setFocus();
+            }
+            return kieSession.fireAllRules(1);
+        } finally {
+            if (deadline != null) {
+                deadline.release();
+            }
+            // Returns the session to the pool when it came from one
+            kieSession.dispose();
+        }
+    }
+
+    void dispose() {
+        if (disposed.compareAndSet(false, true)) {
+            synchronized (this) {
+                Sessions current = sessions;
+                if (current != null) {
+                    current.shutdown();
+                }
+            }
+        }
+    }
+
+    /**
+     * The sessions evaluating facts against one {@link KieBase}. Sessions replaced by those of a
+     * newer shared rule base shut their pool down once the evaluations running on them have
+     * finished, like {@link #retire}.
+     */
+    private static final class Sessions {
+
+        private final KieBase kieBase;
+        /** The published shared rule base, {@code null} unless the rule base is a view. */
+        private final SharedKieBase.Generation generation;
+        /** The stateless session, {@code null} unless the session mode is stateless. */
+        private final StatelessKieSession stateless;
+        /** The session pool, {@code null} unless the session mode is pooled. */
+        private final KieSessionsPool pool;
+        private final AtomicInteger evaluations = new AtomicInteger();
+        private final AtomicBoolean shutdown = new AtomicBoolean();
+        private volatile boolean replaced;
+
+        Sessions(KieBase kieBase, SharedKieBase.Generation generation, StatelessKieSession stateless,
+                 KieSessionsPool pool) {
+            this.kieBase = kieBase;
+            this.generation = generation;
+            this.stateless = stateless;
+            this.pool = pool;
+        }
+
+        void leave() {
+            if (evaluations.decrementAndGet() == 0 && replaced) {
+                shutdown();
+            }
+        }
+
+        void retire() {
+            replaced = true;
+            if (evaluations.get() == 0) {
+                shutdown();
+            }
+        }
+
+        void shutdown() {
+            if (pool != null && shutdown.compareAndSet(false, true)) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * A rule compiled to Java: the first rule whose condition holds runs its action, like the
+     * {@code activation-group} of the templates.
+     *
+     * @param name      the rule name, as used for the DRL rule
+     * @param salience  the rule salience
+     * @param condition the parsed condition
+     * @param predicate the condition compiled to a predicate
+     * @param action    the consequence
+     */
+    record NativeRule(String name, int salience, ConditionParser.ParsedCondition condition,
+                      Predicate<RulesDetails> predicate, Consumer<RulesDetails> action) {
+
+        NativeRule(String name, int salience, ConditionParser.ParsedCondition condition,
+                   Consumer<RulesDetails> action) {
+            this(name, salience, condition, condition.toPredicate(), action);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.config.RulesEngineConfig;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.kie.api.definition.KiePackage;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Drools rule bases of the {@code CONSOLIDATED} layout, where the flows of a template share
+ * one {@link SharedKieBase} so class loaders, type declarations and node memory are not duplicated
+ * per flow. Each flow's rules are compiled into a package of their own, in an agenda group named
+ * after the flow, and the rule base of a flow only focuses its agenda group.
+ */
+@Slf4j
+final class ConsolidatedRuleBases {
+
+    private static final String CONSOLIDATED_PACKAGE = "rules.consolidated";
+
+    private final RuleCompiler ruleCompiler;
+    private final RulesEngineConfig.RulesEngineProperties rulesEngineProperties;
+    private final Map<String, SharedKieBase> sharedKieBases = new ConcurrentHashMap<>();
+
+    ConsolidatedRuleBases(RuleCompiler ruleCompiler, RulesEngineConfig.RulesEngineProperties rulesEngineProperties) {
+        this.ruleCompiler = ruleCompiler;
+        this.rulesEngineProperties = rulesEngineProperties;
+    }
+
+    /**
+     * Whether Drools rule bases are consolidated. Only MVEL rule bases are.
+     */
+    boolean isEnabled() {
+        return rulesEngineProperties.getRuleBaseLayout() == RulesEngineConfig.RuleBaseLayout.CONSOLIDATED
+                && rulesEngineProperties.getCompilationMode() == RulesEngineConfig.CompilationMode.MVEL;
+    }
+
+    /**
+     * Compiles the flow into its package of the template's shared rule base, replacing the
+     * package of its previous rules.
+     *
+     * @param memo the memo of outcomes, {@code null} to always evaluate with Drools
+     */
+    CompiledRuleBase build(String flow, String templateFile, List<?> rules, EvaluationMemo memo) {
+        Collection<KiePackage> packages = compileFlowPackage(flow, templateFile, rules);
+        SharedKieBase shared = sharedKieBases.computeIfAbsent(templateFile, this::newSharedKieBase);
+        shared.replace(flowPackage(flow), packages);
+        log.info("Built the rules of flow {} into the shared rule base of {} from {} rules", flow, templateFile,
+                rules.size());
+        return new CompiledRuleBase(shared, rulesEngineProperties.getSessionMode(),
+                rulesEngineProperties.getSessionPoolSize(), memo, flow);
+    }
+
+    private SharedKieBase newSharedKieBase(String templateFile) {
+        return new SharedKieBase(ruleCompiler.newKieContainer(
+                ruleCompiler.compileKieModule(templateFile, "package " + CONSOLIDATED_PACKAGE + ";").getReleaseId()));
+    }
+
+    private Collection<KiePackage> compileFlowPackage(String flow, String templateFile, List<?> rules) {
+        // Package level attributes apply to every rule of the package
+        return ruleCompiler.compilePackages(flow, "package " + flowPackage(flow) + ";\n"
+                + "agenda-group \"" + flow.replace("\\", "\\\\").replace("\"", "\\\"") + "\"\n"
+                + ruleCompiler.generateDrl(templateFile, rules));
+    }
+
+    /**
+     * The package of the flow's rules in a shared rule base. Flow names are not identifiers, so the
+     * package is the flow name with other characters replaced, and a hash keeping it unique.
+     */
+    static String flowPackage(String flow) {
+        return CONSOLIDATED_PACKAGE + ".flow_" + flow.replaceAll("[^A-Za-z0-9_]", "_") + "_"
+                + DigestUtils.sha256Hex(flow).substring(0, 8);
+    }
+}
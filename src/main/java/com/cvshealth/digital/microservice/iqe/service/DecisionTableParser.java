@@ -0,0 +1,303 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.entity.RulesByFlowEntity;
+import com.cvshealth.digital.microservice.iqe.error.InvalidRequestException;
+import com.cvshealth.digital.microservice.iqe.model.RulesDetails;
+import com.cvshealth.digital.microservice.iqe.udt.AuditEntity;
+import com.cvshealth.digital.microservice.iqe.utils.ConditionParser;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import static com.cvshealth.digital.microservice.iqe.constants.SchedulingConstants.INVALID_INPUT;
+
+/**
+ * Reads the rules of a flow from an XLSX decision table.
+ * <p>
+ * The sheet named after the flow is read, or the first sheet when there is none. Its first
+ * non-blank row holds the column names and every following non-blank row is a rule:
+ * <ul>
+ *   <li>{@code actionId} (required), {@code actionText}, {@code ruleId}, {@code ruleName},
+ *   {@code salience}, {@code lob} and {@code active} map to the {@code rules_by_flow} and
+ *   {@code actions} columns of the same name;</li>
+ *   <li>a column named after a {@link RulesDetails} field is a condition on that field: a value
+ *   is compared for equality, a value starting with an operator, such as {@code >= 18}, is used
+ *   as is, and a blank cell places no condition;</li>
+ *   <li>{@code condition} holds any further Drools constraint.</li>
+ * </ul>
+ * Conditions may not call methods or build objects, see {@link ConditionParser#sandboxViolation}.
+ * A rule's condition is the conjunction of its field conditions and {@code condition}. Rules
+ * without a {@code ruleId} get a random one, so only tables with rule ids can be imported again
+ * without duplicating their rules.
+ */
+final class DecisionTableParser {
+
+    private static final int MAX_REPORTED_ERRORS = 20;
+    private static final List<String> OPERATORS = List.of("==", "!=", "<=", ">=", "<", ">");
+
+    private DecisionTableParser() {
+    }
+
+    /**
+     * The rules read from a table.
+     *
+     * @param rules       the rule rows, in table order
+     * @param actionTexts the action texts given in the table, by actionId
+     */
+    record DecisionTable(List<RulesByFlowEntity> rules, Map<String, String> actionTexts) {
+    }
+
+    private enum Column {
+        RULE_ID("ruleId"), RULE_NAME("ruleName"), CONDITION("condition"), ACTION_ID("actionId"),
+        ACTION_TEXT("actionText"), SALIENCE("salience"), LOB("lob"), ACTIVE("active"), FIELD(null);
+
+        private final String header;
+
+        Column(String header) {
+            this.header = header;
+        }
+
+        static Column of(String header) {
+            for (Column column : values()) {
+                if (column.header != null && column.header.equalsIgnoreCase(header)) {
+                    return column;
+                }
+            }
+            return ConditionParser.getter(header) != null ? FIELD : null;
+        }
+    }
+
+    /**
+     * Parses and validates a decision table.
+     *
+     * @param flow     the flow the rules are imported into
+     * @param workbook the XLSX workbook
+     * @param audit    the audit of the imported rows
+     * @param maxRules the largest number of rules accepted
+     * @return the rules of the table
+     * @throws InvalidRequestException if the workbook cannot be read or any row is invalid, with
+     *                                 every problem found
+     */
+    static DecisionTable parse(String flow, byte[] workbook, AuditEntity audit, int maxRules) {
+        List<List<Cell>> rows = new ArrayList<>();
+        List<String> headers = new ArrayList<>();
+        List<Integer> rowNumbers = new ArrayList<>();
+        DataFormatter formatter = new DataFormatter(Locale.ROOT);
+        List<String> errors = new ArrayList<>();
+        try (Workbook book = WorkbookFactory.create(new ByteArrayInputStream(workbook))) {
+            Sheet sheet = book.getSheet(flow) != null ? book.getSheet(flow) : book.getSheetAt(0);
+            FormulaEvaluator evaluator = book.getCreationHelper().createFormulaEvaluator();
+            for (Row row : sheet) {
+                List<Cell> cells = new ArrayList<>();
+                boolean blank = true;
+                for (int i = 0; i < row.getLastCellNum(); i++) {
+                    Cell cell = row.getCell(i);
+                    if (cell != null && cell.getCellType() == CellType.FORMULA) {
+                        evaluator.evaluateInCell(cell);
+                    }
+                    cells.add(cell);
+                    blank &= text(cell, formatter).isEmpty();
+                }
+                if (blank) {
+                    continue;
+                }
+                if (headers.isEmpty()) {
+                    cells.forEach(cell -> headers.add(text(cell, formatter)));
+                } else if (rows.size() < maxRules) {
+                    rows.add(cells);
+                    rowNumbers.add(row.getRowNum() + 1);
+                } else {
+                    throw new InvalidRequestException(INVALID_INPUT,
+                            "The decision table has more than " + maxRules + " rules");
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (e instanceof InvalidRequestException invalid) {
+                throw invalid;
+            }
+            throw new InvalidRequestException(INVALID_INPUT, "The decision table is not a readable XLSX workbook: "
+                    + e.getMessage());
+        }
+
+        Map<Integer, Column> columns = columns(headers, errors);
+        if (errors.isEmpty() && rows.isEmpty()) {
+            errors.add("The decision table has no rules");
+        }
+        List<RulesByFlowEntity> rules = new ArrayList<>(rows.size());
+        Map<String, String> actionTexts = new LinkedHashMap<>();
+        Set<String> ruleIds = new HashSet<>();
+        for (int i = 0; i < rows.size() && !columns.isEmpty() && errors.size() < MAX_REPORTED_ERRORS; i++) {
+            RulesByFlowEntity rule = rule(flow, rows.get(i), headers, columns, formatter, audit,
+                    actionTexts, "Row " + rowNumbers.get(i) + ": ", errors);
+            if (rule == null) {
+                continue;
+            }
+            if (!ruleIds.add(rule.getRuleId())) {
+                errors.add("Row " + rowNumbers.get(i) + ": duplicate ruleId " + rule.getRuleId());
+            }
+            rules.add(rule);
+        }
+        if (!errors.isEmpty()) {
+            List<String> reported = errors.subList(0, Math.min(errors.size(), MAX_REPORTED_ERRORS));
+            throw new InvalidRequestException(INVALID_INPUT, "Invalid decision table: " + String.join("; ", reported)
+                    + (errors.size() > reported.size() ? "; ..." : ""));
+        }
+        return new DecisionTable(rules, actionTexts);
+    }
+
+    private static Map<Integer, Column> columns(List<String> headers, List<String> errors) {
+        Map<Integer, Column> columns = new TreeMap<>();
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < headers.size(); i++) {
+            String header = headers.get(i);
+            if (header.isEmpty()) {
+                continue;
+            }
+            Column column = Column.of(header);
+            if (column == null) {
+                errors.add("Unknown column " + header);
+            } else if (!seen.add(header.toLowerCase(Locale.ROOT))) {
+                errors.add("Duplicate column " + header);
+            } else {
+                columns.put(i, column);
+            }
+        }
+        if (!columns.containsValue(Column.ACTION_ID)) {
+            errors.add("Missing column actionId");
+        }
+        if (!columns.containsValue(Column.CONDITION) && !columns.containsValue(Column.FIELD)) {
+            errors.add("Missing condition or field columns");
+        }
+        return errors.isEmpty() ? columns : Map.of();
+    }
+
+    private static RulesByFlowEntity rule(String flow, List<Cell> cells, List<String> headers,
+                                          Map<Integer, Column> columns, DataFormatter formatter, AuditEntity audit,
+                                          Map<String, String> actionTexts, String row, List<String> errors) {
+        RulesByFlowEntity rule = RulesByFlowEntity.builder()
+                .flow(flow)
+                .isActive(true)
+                .audit(audit)
+                .build();
+        List<String> constraints = new ArrayList<>();
+        String condition = null;
+        String actionText = null;
+        int errorCount = errors.size();
+        for (Map.Entry<Integer, Column> entry : columns.entrySet()) {
+            Cell cell = entry.getKey() < cells.size() ? cells.get(entry.getKey()) : null;
+            String value = text(cell, formatter);
+            if (value.isEmpty()) {
+                continue;
+            }
+            switch (entry.getValue()) {
+                case RULE_ID -> rule.setRuleId(value);
+                case RULE_NAME -> rule.setRuleName(value);
+                case CONDITION -> condition = value;
+                case ACTION_ID -> rule.setActionId(value);
+                case ACTION_TEXT -> actionText = value;
+                case LOB -> rule.setLob(value);
+                case SALIENCE -> {
+                    try {
+                        rule.setSalience(new BigDecimal(value).intValueExact());
+                    } catch (ArithmeticException | NumberFormatException e) {
+                        errors.add(row + "salience " + value + " is not an integer");
+                    }
+                }
+                case ACTIVE -> {
+                    switch (value.toLowerCase(Locale.ROOT)) {
+                        case "true", "yes", "y", "1" -> rule.setActive(true);
+                        case "false", "no", "n", "0" -> rule.setActive(false);
+                        default -> errors.add(row + "active " + value + " is not a boolean");
+                    }
+                }
+                case FIELD -> {
+                    String field = headers.get(entry.getKey());
+                    String constraint = constraint(field, value, isNumeric(cell));
+                    if (constraint == null) {
+                        errors.add(row + field + " " + value + " is not a number");
+                    } else {
+                        constraints.add(constraint);
+                    }
+                }
+            }
+        }
+        if (rule.getActionId() == null) {
+            errors.add(row + "actionId is required");
+        }
+        if (condition != null) {
+            // Keep a disjunction from binding looser than the field conditions it is joined with
+            constraints.add(constraints.isEmpty() || !condition.contains("||") ? condition : "(" + condition + ")");
+        }
+        if (constraints.isEmpty()) {
+            errors.add(row + "a condition is required");
+        }
+        String joined = String.join(" && ", constraints);
+        ConditionParser.sandboxViolation(joined).ifPresent(violation -> errors.add(row + "the condition " + violation));
+        if (errors.size() > errorCount) {
+            return null;
+        }
+        if (rule.getRuleId() == null) {
+            rule.setRuleId(UUID.randomUUID().toString());
+        }
+        rule.setCondition(joined);
+        if (actionText != null) {
+            actionTexts.put(rule.getActionId(), actionText);
+        }
+        return rule;
+    }
+
+    /**
+     * The condition a field cell places on its field, or {@code null} when a numeric field is
+     * given something that is not a number.
+     */
+    private static String constraint(String field, String value, boolean numericCell) {
+        for (String operator : OPERATORS) {
+            if (value.startsWith(operator)) {
+                return field + " " + value;
+            }
+        }
+        if (!ConditionParser.isNumericField(field)) {
+            return field + " == \"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        }
+        try {
+            return field + " == " + (numericCell ? value : new BigDecimal(value).toPlainString());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean isNumeric(Cell cell) {
+        return cell != null && cell.getCellType() == CellType.NUMERIC;
+    }
+
+    /**
+     * The trimmed text of the cell. Numbers are written out in full, without the cell's format.
+     */
+    private static String text(Cell cell, DataFormatter formatter) {
+        if (cell == null) {
+            return "";
+        }
+        if (isNumeric(cell)) {
+            return BigDecimal.valueOf(cell.getNumericCellValue()).stripTrailingZeros().toPlainString();
+        }
+        return formatter.formatCellValue(cell).trim();
+    }
+}
@@ -0,0 +1,277 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.model.RulesDetails;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.mvel2.MVEL;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * Time budget of the Drools evaluations of the rule bases serving live traffic.
+ * <p>
+ * Conditions are MVEL, so one badly written rule can make every evaluation of its flow slow.
+ * Budgeted evaluations run on a copy of the fact on a bounded scheduler of their own, and the
+ * caller waits for them at most {@code evaluationTimeout}. An evaluation over the budget, or one
+ * finding the scheduler full, is abandoned and the fact is left unmatched. An abandoned stateful
+ * session is halted, or never fired if the budget ran out while its fact was inserted; a stateless
+ * one runs to its end on its evaluation thread.
+ * <p>
+ * Drools evaluates the conditions of every rule when the fact is inserted, so an overrun does not
+ * tell which rule caused it. The first overrun of a rule base therefore evaluates each condition
+ * on its own with MVEL, in firing order, and reports the slowest one, or the one still running
+ * when the budget runs out again.
+ */
+@Slf4j
+final class EvaluationBudget {
+
+    static final String EXCEEDED_METRIC = "iqe.rule.evaluation.budget.exceeded";
+    static final String OFFENDER_METRIC = "iqe.rule.evaluation.budget.offender";
+
+    private final Duration timeout;
+    private final MeterRegistry meterRegistry;
+    private final Scheduler evaluationScheduler;
+
+    /**
+     * @param timeout       the longest time an evaluation may take
+     * @param threads       the most evaluations running at the same time
+     * @param queueSize     the most evaluations waiting for a thread
+     * @param meterRegistry the registry of the overrun metrics
+     */
+    EvaluationBudget(Duration timeout, int threads, int queueSize, MeterRegistry meterRegistry) {
+        this.timeout = timeout;
+        this.meterRegistry = meterRegistry;
+        this.evaluationScheduler = Schedulers.newBoundedElastic(threads, queueSize, "rule-evaluation");
+    }
+
+    void dispose() {
+        evaluationScheduler.dispose();
+    }
+
+    /**
+     * The budget of one rule base.
+     *
+     * @param flow         the flow of the rule base
+     * @param templateFile the DRL template of the rule base
+     * @param conditions   the conditions of its rules by rule name, in firing order
+     * @return the rule base's budget
+     */
+    RuleBaseBudget forRuleBase(String flow, String templateFile, Map<String, String> conditions) {
+        return new RuleBaseBudget(flow, templateFile, conditions);
+    }
+
+    /**
+     * Thrown to the rule base when an evaluation was abandoned, so the fact is left unmatched
+     * without the outcome being memoized.
+     */
+    static final class Exceeded extends RuntimeException {
+
+        private Exceeded(String flow) {
+            super("Evaluation of flow " + flow + " was abandoned", null, false, false);
+        }
+    }
+
+    /**
+     * The deadline of one evaluation. A session is watched from before its fact is inserted, and
+     * must be released before it is disposed, as pooled sessions are reused by later evaluations.
+     */
+    static final class Deadline {
+
+        private Runnable halt;
+        private boolean passed;
+
+        /**
+         * Halts the session if the deadline passes while its rules fire.
+         *
+         * @param halt halts the session
+         */
+        synchronized void watch(Runnable halt) {
+            if (!passed) {
+                this.halt = halt;
+            }
+        }
+
+        synchronized void release() {
+            halt = null;
+        }
+
+        /**
+         * Whether the evaluation was abandoned. Checked once the fact is inserted, as a halt only
+         * stops rules that are firing.
+         */
+        synchronized boolean passed() {
+            return passed;
+        }
+
+        private synchronized void pass() {
+            passed = true;
+            if (halt != null) {
+                halt.run();
+            }
+        }
+    }
+
+    final class RuleBaseBudget {
+
+        private final String flow;
+        private final String templateFile;
+        private final Map<String, String> conditions;
+        private final Counter exceeded;
+        private final Counter rejected;
+        private final AtomicBoolean diagnosed = new AtomicBoolean();
+
+        private RuleBaseBudget(String flow, String templateFile, Map<String, String> conditions) {
+            this.flow = flow;
+            this.templateFile = templateFile;
+            this.conditions = conditions;
+            this.exceeded = exceededCounter("timeout");
+            this.rejected = exceededCounter("rejected");
+        }
+
+        /**
+         * Evaluates a copy of the fact within the budget, and sets the outcome of the copy on the
+         * fact once the evaluation completes in time.
+         *
+         * @param rulesDetails the fact
+         * @param evaluation   evaluates the copy against the rule base, returning the rules fired;
+         *                     it may hand its session to the deadline to be halted
+         * @return the number of rules fired
+         * @throws Exceeded when the evaluation was abandoned
+         */
+        int fire(RulesDetails rulesDetails, ToIntBiFunction<RulesDetails, Deadline> evaluation) {
+            RulesDetails fact = rulesDetails.toBuilder().build();
+            Deadline deadline = new Deadline();
+            CompletableFuture<Integer> result;
+            try {
+                result = CompletableFuture.supplyAsync(() -> evaluation.applyAsInt(fact, deadline),
+                        evaluationScheduler::schedule);
+            } catch (RejectedExecutionException e) {
+                rejected.increment();
+                throw new Exceeded(flow);
+            }
+            int fired;
+            try {
+                fired = result.get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                deadline.pass();
+                exceeded.increment();
+                diagnose(rulesDetails);
+                throw new Exceeded(flow);
+            } catch (InterruptedException e) {
+                deadline.pass();
+                Thread.currentThread().interrupt();
+                throw new Exceeded(flow);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof RuntimeException cause ? cause : new IllegalStateException(e.getCause());
+            }
+            rulesDetails.setActionId(fact.getActionId());
+            rulesDetails.setQuestions(fact.getQuestions());
+            return fired;
+        }
+
+        /**
+         * Looks for the rule behind the first overrun of the rule base, off the request path.
+         */
+        private void diagnose(RulesDetails rulesDetails) {
+            if (!diagnosed.compareAndSet(false, true)) {
+                return;
+            }
+            Diagnosis diagnosis = new Diagnosis(rulesDetails.toBuilder().build());
+            Schedulers.boundedElastic().schedule(diagnosis::run);
+            // Names the rule the diagnosis is stuck on if it runs out of budget too
+            Schedulers.parallel().schedule(diagnosis::expire, timeout.toNanos(), TimeUnit.NANOSECONDS);
+        }
+
+        private void offender(String rule, long nanos) {
+            log.warn("Rule {} of flow {} takes {} ms to evaluate, over the evaluation budget of {} ms", rule, flow,
+                    TimeUnit.NANOSECONDS.toMillis(nanos), timeout.toMillis());
+            Counter.builder(OFFENDER_METRIC)
+                    .description("Rules found behind evaluations over the evaluation budget")
+                    .tag("flow", flow)
+                    .tag("template", templateFile)
+                    .tag("rule", rule)
+                    .register(meterRegistry)
+                    .increment();
+        }
+
+        private Counter exceededCounter(String reason) {
+            return Counter.builder(EXCEEDED_METRIC)
+                    .description("Evaluations that went over the evaluation budget")
+                    .tag("flow", flow)
+                    .tag("template", templateFile)
+                    .tag("reason", reason)
+                    .register(meterRegistry);
+        }
+
+        /**
+         * Evaluates every condition on its own against the fact that overran. Conditions MVEL cannot
+         * compile outside Drools, such as ones using Drools-only operators, are skipped.
+         */
+        private final class Diagnosis {
+
+            private final RulesDetails fact;
+            private final AtomicBoolean reported = new AtomicBoolean();
+            private volatile String rule;
+            private volatile long startedAt;
+
+            Diagnosis(RulesDetails fact) {
+                this.fact = fact;
+            }
+
+            void run() {
+                String slowest = null;
+                long slowestNanos = 0;
+                long total = 0;
+                Map<String, Serializable> compiled = new LinkedHashMap<>();
+                conditions.forEach((name, condition) -> {
+                    try {
+                        compiled.put(name, MVEL.compileExpression(condition));
+                    } catch (RuntimeException e) {
+                        log.debug("Cannot time condition of rule {} of flow {} outside Drools", name, flow);
+                    }
+                });
+                for (Map.Entry<String, Serializable> entry : compiled.entrySet()) {
+                    rule = entry.getKey();
+                    startedAt = System.nanoTime();
+                    try {
+                        MVEL.executeExpression(entry.getValue(), fact.toBuilder().build());
+                    } catch (RuntimeException e) {
+                        // Conditions that fail on this fact are not the slow ones
+                    }
+                    long nanos = System.nanoTime() - startedAt;
+                    total += nanos;
+                    if (nanos > slowestNanos) {
+                        slowest = entry.getKey();
+                        slowestNanos = nanos;
+                    }
+                }
+                rule = null;
+                if (total < timeout.toNanos()) {
+                    log.info("Evaluation of flow {} went over budget, but no condition is slow on its own", flow);
+                } else if (slowest != null && reported.compareAndSet(false, true)) {
+                    offender(slowest, slowestNanos);
+                }
+            }
+
+            void expire() {
+                String running = rule;
+                if (running != null && reported.compareAndSet(false, true)) {
+                    offender(running, System.nanoTime() - startedAt);
+                }
+            }
+        }
+    }
+}
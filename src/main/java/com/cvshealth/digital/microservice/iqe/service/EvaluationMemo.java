@@ -0,0 +1,172 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.model.RulesDetails;
+import com.cvshealth.digital.microservice.iqe.utils.ConditionParser;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.Counter;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Bounded memo of the outcomes of a rule base, keyed by the fact fields its conditions read.
+ * <p>
+ * Numeric fields only compared with number literals are keyed by the interval between those
+ * thresholds rather than by value, so for example every age between two age limits shares an
+ * entry. The memo belongs to one compiled rule base, which is itself tied to one version of the
+ * flow's rules, so it is dropped together with the rule base when the rules change.
+ */
+class EvaluationMemo {
+
+    private final List<KeyPart> keyParts;
+    private final Outcome outcome;
+    private final Cache<List<Object>, Result> results;
+    private final Counter hits;
+    private final Counter misses;
+
+    private EvaluationMemo(List<KeyPart> keyParts, Outcome outcome, long maxEntries, Counter hits, Counter misses) {
+        this.keyParts = keyParts;
+        this.outcome = outcome;
+        this.results = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+        this.hits = hits;
+        this.misses = misses;
+    }
+
+    /**
+     * Creates the memo for rules with the given conditions.
+     *
+     * @param conditions the conditions of every rule of the rule base
+     * @param outcome    the field the rules' consequences set
+     * @param maxEntries the maximum number of memoized outcomes
+     * @param hits       counter of evaluations answered from the memo
+     * @param misses     counter of evaluations that went to the rule base
+     * @return the memo, or empty when the inputs of some condition cannot be determined
+     */
+    static Optional<EvaluationMemo> of(List<String> conditions, Outcome outcome, long maxEntries,
+                                       Counter hits, Counter misses) {
+        Set<String> fields = new LinkedHashSet<>();
+        Map<String, NavigableSet<BigDecimal>> thresholds = new HashMap<>();
+        Set<String> exact = new HashSet<>();
+        for (String condition : conditions) {
+            Optional<ConditionParser.FieldUsage> usage = ConditionParser.fieldUsage(condition);
+            if (usage.isEmpty()) {
+                return Optional.empty();
+            }
+            for (String field : usage.get().fields()) {
+                fields.add(field);
+                NavigableSet<BigDecimal> fieldThresholds = usage.get().thresholds().get(field);
+                if (fieldThresholds == null) {
+                    exact.add(field);
+                } else {
+                    thresholds.computeIfAbsent(field, k -> new TreeSet<>()).addAll(fieldThresholds);
+                }
+            }
+        }
+        List<KeyPart> keyParts = new ArrayList<>(fields.size());
+        for (String field : fields) {
+            BigDecimal[] fieldThresholds = exact.contains(field)
+                    ? null : thresholds.get(field).toArray(new BigDecimal[0]);
+            keyParts.add(new KeyPart(ConditionParser.getter(field), fieldThresholds));
+        }
+        return Optional.of(new EvaluationMemo(keyParts, outcome, maxEntries, hits, misses));
+    }
+
+    /**
+     * Returns the memoized outcome for the fact, or evaluates it and memoizes the outcome.
+     *
+     * @param rulesDetails the fact
+     * @param evaluation   evaluates the fact against the rule base, returning the rules fired
+     * @return the number of rules fired
+     */
+    int fire(RulesDetails rulesDetails, ToIntFunction<RulesDetails> evaluation) {
+        List<Object> key = key(rulesDetails);
+        Result result = results.getIfPresent(key);
+        if (result != null) {
+            hits.increment();
+            if (result.fired() > 0) {
+                outcome.setter().accept(rulesDetails, result.value());
+            }
+            return result.fired();
+        }
+        misses.increment();
+        int fired = evaluation.applyAsInt(rulesDetails);
+        results.put(key, new Result(fired, fired > 0 ? outcome.getter().apply(rulesDetails) : null));
+        return fired;
+    }
+
+    long size() {
+        return results.size();
+    }
+
+    private List<Object> key(RulesDetails rulesDetails) {
+        Object[] key = new Object[keyParts.size()];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = keyParts.get(i).apply(rulesDetails);
+        }
+        return Arrays.asList(key);
+    }
+
+    /**
+     * The field set by the consequence of every rule of a template.
+     */
+    enum Outcome {
+        ACTION_ID(RulesDetails::getActionId, RulesDetails::setActionId),
+        QUESTIONS(RulesDetails::getQuestions, RulesDetails::setQuestions);
+
+        private final Function<RulesDetails, String> getter;
+        private final BiConsumer<RulesDetails, String> setter;
+
+        Outcome(Function<RulesDetails, String> getter, BiConsumer<RulesDetails, String> setter) {
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        Function<RulesDetails, String> getter() {
+            return getter;
+        }
+
+        BiConsumer<RulesDetails, String> setter() {
+            return setter;
+        }
+    }
+
+    /**
+     * A field of the key, read as is or reduced to the interval its value falls in.
+     */
+    private record KeyPart(Function<RulesDetails, Object> getter, BigDecimal[] thresholds) {
+
+        Object apply(RulesDetails rulesDetails) {
+            Object value = getter.apply(rulesDetails);
+            if (thresholds == null || value == null) {
+                return value;
+            }
+            BigDecimal number;
+            try {
+                number = new BigDecimal(value.toString());
+            } catch (NumberFormatException e) {
+                // NaN and infinities have no interval, key them by value
+                return value;
+            }
+            int index = Arrays.binarySearch(thresholds, number);
+            // Odd buckets are the thresholds themselves, even ones the intervals between them
+            return index >= 0 ? 2 * index + 1 : 2 * (-index - 1);
+        }
+    }
+
+    private record Result(int fired, String value) {
+    }
+}
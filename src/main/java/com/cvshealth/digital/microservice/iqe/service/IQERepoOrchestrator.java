@@ -4,20 +4,33 @@ package com.cvshealth.digital.microservice.iqe.service;
 import com.cvshealth.digital.microservice.iqe.dto.*;
 import com.cvshealth.digital.microservice.iqe.entity.*;
 import com.cvshealth.digital.microservice.iqe.error.RedisServerException;
+import com.cvshealth.digital.microservice.iqe.error.ResourceNotFoundException;
 import com.cvshealth.digital.microservice.iqe.error.ServerErrorException;
 import com.cvshealth.digital.microservice.iqe.model.IQEResponse;
 
 import com.cvshealth.digital.microservice.iqe.repository.*;
 import com.cvshealth.digital.microservice.iqe.udt.AuditEntity;
+import com.cvshealth.digital.microservice.iqe.utils.ConditionParser;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static com.cvshealth.digital.microservice.iqe.constants.SchedulingConstants.*;
@@ -40,6 +53,18 @@ public class IQERepoOrchestrator {
     private final QuestionnaireDetailsRepository questionnaireDetailsRepo;
     private final AnswerOptionsRepository answerOptionsRepo;
     private final RedisCacheService redisCacheService;
+    private final QuestionnaireByActionRepository questionnaireByActionRepo;
+    private final MeterRegistry meterRegistry;
+
+    /** Format of the stored questionnaire documents, to be bumped when {@link QuestionareRequest} changes shape. */
+    static final int QUESTIONNAIRE_DOCUMENT_VERSION = 1;
+    private static final ObjectMapper DOCUMENT_MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private static final ObjectReader QUESTIONNAIRE_READER = DOCUMENT_MAPPER.readerFor(QuestionareRequest.class);
+    private static final ObjectWriter QUESTIONNAIRE_WRITER = DOCUMENT_MAPPER.writerFor(QuestionareRequest.class);
+
+    static final String QUERIES_METRIC = "iqe.questionnaire.queries";
+    private static final String QUERY_COUNT_KEY = IQERepoOrchestrator.class.getName() + ".queryCount";
 
     /**
      * Generate a random UUID.
@@ -53,8 +78,8 @@ public class IQERepoOrchestrator {
     /**
      * Processes the input data for a questionnaire request.
      * <p>
-     * This method processes the input data by generating a ruleId and actionId, and updating the
-     * questionnaire request, response, and event map accordingly.
+     * This method processes the input data by generating a ruleId and actionId, canonicalizing the
+     * rule condition, and updating the questionnaire request, response, and event map accordingly.
      * <p>
      *
      * @param questionareRequest the request containing the questionnaire data
@@ -74,6 +99,8 @@ public class IQERepoOrchestrator {
                     request.getRulesByFlow().setRuleId(ruleId);
                     request.getRulesByFlow().setActionId(actionId);
                     request.getRulesByFlow().setActive(true);
+                    // Equivalent conditions are stored as the same text, so their rules share Rete nodes
+                    request.getRulesByFlow().setCondition(ConditionParser.canonicalize(request.getRulesByFlow().getCondition()));
                     // Set actionId in Actions
                     request.getActions().setActionId(actionId);
                     setAuditData(request.getRulesByFlow(), reqHdrMap);
@@ -245,13 +272,27 @@ public class IQERepoOrchestrator {
             Flux<QuestionsDetailsEntity> questionsDetailsEntityFlux = Flux.fromIterable(detailsList)
                     .flatMap(this::extractQuestionsDetails);
 
-            return Mono.zip(
-                    rulesByFlowRepo.save(rulesByFlow),
-                    actionsRepo.save(actions),
-                    questionsFlux.flatMap(questionsRepo::save).collectList(),
-                    answerOptionsFlux.flatMap(answerOptionsRepo::save).collectList(),
-                    questionsDetailsEntityFlux.flatMap(questionnaireDetailsRepo::save).collectList()
-            ).flatMap(t -> {
+            // The questionnaire is assembled from the rows before they are written. Its document is
+            // only written once every row is, and is dropped when any write fails, so readers fall
+            // back to the rows rather than serve a document the rows disagree with
+            return Mono.zip(questionsFlux.collectList(), answerOptionsFlux.collectList(),
+                            questionsDetailsEntityFlux.collectList())
+                    .flatMap(rows -> assembleQuestionnaire(rulesByFlow, actions, rows.getT1(),
+                            rows.getT2(), rows.getT3(), new QuestionareRequest())
+                            .flatMap(document -> Mono.zip(
+                                            rulesByFlowRepo.save(rulesByFlow),
+                                            actionsRepo.save(actions),
+                                            Flux.fromIterable(rows.getT1()).flatMap(questionsRepo::save).collectList(),
+                                            Flux.fromIterable(rows.getT2()).flatMap(answerOptionsRepo::save).collectList(),
+                                            Flux.fromIterable(rows.getT3()).flatMap(questionnaireDetailsRepo::save).collectList())
+                                    .then(saveQuestionnaireDocument(actions.getActionId(), document))
+                                    .onErrorResume(e -> deleteQuestionnaireDocument(actions.getActionId())
+                                            .onErrorResume(deleteError -> {
+                                                log.error("Questionnaire document of actionId {} could not be dropped: {}",
+                                                        actions.getActionId(), deleteError.getMessage());
+                                                return Mono.empty();
+                                            })
+                                            .then(Mono.error(e))))).flatMap(t -> {
                 log.info("Data inserted successfully");
                 eventMap.put("DBInsertStatus", "SUCCESS");
                 iqeResponse.setStatusCode("0000");
@@ -274,6 +315,425 @@ public class IQERepoOrchestrator {
         });
     }
 
+    /**
+     * Writes imported rules and the texts of their actions, with at most {@code concurrency}
+     * writes in flight. Only the text of an action is written, so the questions of an existing
+     * action are kept. The questionnaire documents of the actions are then assembled again from
+     * the rows written.
+     *
+     * @param rules       the rule rows to write
+     * @param actionTexts the action texts by actionId
+     * @param concurrency the largest number of concurrent writes
+     * @return Mono completing once every row is written
+     */
+    public Mono<Void> insertRulesIntoDB(List<RulesByFlowEntity> rules, Map<String, String> actionTexts, int concurrency) {
+        Set<String> actionIds = new LinkedHashSet<>(actionTexts.keySet());
+        rules.stream().map(RulesByFlowEntity::getActionId).filter(Objects::nonNull).forEach(actionIds::add);
+        return Flux.concat(
+                        Flux.fromIterable(rules).map(rule -> rulesByFlowRepo.save(rule).then()),
+                        Flux.fromIterable(actionTexts.entrySet())
+                                .map(action -> actionsRepo.updateActionText(action.getKey(), action.getValue())))
+                .flatMap(write -> write, Math.max(1, concurrency))
+                .thenMany(Flux.fromIterable(actionIds)
+                        .flatMap(actionId -> materializeQuestionnaire(actionId)
+                                .onErrorResume(e -> {
+                                    // A stale document must not outlive the rows, reads assemble the questionnaire instead
+                                    log.warn("Questionnaire document of actionId {} could not be rebuilt: {}", actionId, e.getMessage());
+                                    return deleteQuestionnaireDocument(actionId).thenReturn(false);
+                                }), Math.max(1, concurrency)))
+                .then()
+                .onErrorResume(e -> {
+                    log.error("Error inserting imported rules", e);
+                    return Mono.error(new ServerErrorException(FAILURE_CD, e.getMessage()));
+                });
+    }
+
+    /**
+     * Reads the questionnaire of an action from the rows of its rule, action, questions, answer
+     * options and details, reading the five tables concurrently.
+     *
+     * @param actionId  the actionId
+     * @param iqeOutPut the questionnaire to fill, returned with a not found status when the action
+     *                  or its rule does not exist
+     * @return Mono containing the questionnaire
+     */
+    public Mono<QuestionareRequest> readQuestionnaire(String actionId, QuestionareRequest iqeOutPut) {
+        Mono<RulesByFlowEntity> rulesByFlowMono = rulesByFlowRepo.findByActionId(actionId)
+                .next()
+                .onErrorResume(NoSuchElementException.class, e -> {
+                    log.info("No RulesByFlow found for actionId: {}", actionId);
+                    return Mono.empty();
+                })
+                .defaultIfEmpty(new RulesByFlowEntity());
+
+        Mono<ActionsEntity> actionsMono = actionsRepo.findByActionId(actionId)
+                .next()
+                .onErrorResume(NoSuchElementException.class, e -> {
+                    log.info("No Actions found for actionId: {}", actionId);
+                    return Mono.empty();
+                })
+                .defaultIfEmpty(new ActionsEntity());
+
+        // Every row of the action is read at once, a miss costs one round trip rather than five
+        return Mono.zip(rulesByFlowMono, actionsMono,
+                        questionsRepo.findByActionId(actionId).collectList(),
+                        answerOptionsRepo.findByActionId(actionId).collectList(),
+                        questionnaireDetailsRepo.findByActionId(actionId).collectList())
+                .flatMap(rows -> {
+                    if (rows.getT1().getActionId() == null || rows.getT2().getActionId() == null) {
+                        iqeOutPut.setStatusCode(DATA_NOT_FOUND_CODE);
+                        iqeOutPut.setErrorDescription(DATA_NOT_FOUND_MESSAGE);
+                        return Mono.just(iqeOutPut);
+                    }
+                    return assembleQuestionnaire(rows.getT1(), rows.getT2(), rows.getT3(), rows.getT4(), rows.getT5(),
+                            iqeOutPut);
+                });
+    }
+
+    /**
+     * Streams the top level questions of the questionnaire of an action, each with its answer
+     * options and nested questions. The rows of the action are read concurrently, then each tree is
+     * built only when it is requested, so a slow consumer holds back the building rather than a
+     * queue of built trees. Nested questions can relate to any row of the action, so the rows are
+     * all read before the first tree.
+     *
+     * @param actionId the actionId
+     * @return Flux of the questions in sequence order, failing with a {@link ResourceNotFoundException}
+     * when the action or its rule does not exist
+     */
+    public Flux<Questions> streamQuestions(String actionId) {
+        return Mono.zip(rulesByFlowRepo.findByActionId(actionId).hasElements(),
+                        actionsRepo.findByActionId(actionId).next(),
+                        questionsRepo.findByActionId(actionId).collectList(),
+                        answerOptionsRepo.findByActionId(actionId).collectList())
+                .filter(rows -> rows.getT1())
+                .switchIfEmpty(Mono.error(() -> new ResourceNotFoundException(NOT_FOUND_CODE,
+                        "No questionnaire for actionId " + actionId)))
+                .flatMapMany(rows -> {
+                    Set<String> questionIds = rows.getT2().getQuestionId() != null
+                            ? new HashSet<>(rows.getT2().getQuestionId()) : Set.of();
+                    List<QuestionsEntity> topLevel = rows.getT3().stream()
+                            .filter(question -> questionIds.contains(question.getQuestionId()))
+                            .sorted(Comparator.comparingInt(question ->
+                                    question.getSequence_id() != null ? question.getSequence_id() : 0))
+                            .toList();
+                    QuestionnaireTreeBuilder builder = new QuestionnaireTreeBuilder(rows.getT3(), rows.getT4());
+                    return Flux.fromIterable(topLevel).map(builder::build);
+                });
+    }
+
+    /**
+     * Assembles the questionnaire of an action from its rows: the questions and details the action
+     * lists, in sequence order, with their answer options and the questions nested under them.
+     *
+     * @param rulesByFlow   the rule of the action
+     * @param actions       the action
+     * @param questions     every question of the action, nested ones included
+     * @param answerOptions every answer option of the action
+     * @param details       the details of the action
+     * @param iqeOutPut     the questionnaire to fill
+     * @return Mono containing the questionnaire
+     */
+    public Mono<QuestionareRequest> assembleQuestionnaire(RulesByFlowEntity rulesByFlow, ActionsEntity actions,
+                                                          List<QuestionsEntity> questions,
+                                                          List<AnswerOptionsEntity> answerOptions,
+                                                          List<QuestionsDetailsEntity> details,
+                                                          QuestionareRequest iqeOutPut) {
+        RulesByFlow rulesByFlowData = RulesByFlow.builder()
+                .flow(rulesByFlow.getFlow())
+                .ruleId(rulesByFlow.getRuleId())
+                .ruleName(rulesByFlow.getRuleName())
+                .actionId(rulesByFlow.getActionId())
+                .condition(rulesByFlow.getCondition())
+                .lob(rulesByFlow.getLob())
+                .salience(rulesByFlow.getSalience())
+                .isActive(rulesByFlow.isActive())
+                .build();
+
+        if (rulesByFlow.getAudit() != null) {
+            Audit audit = new Audit();
+            audit.setCreatedBy(rulesByFlow.getAudit().getCreatedBy());
+            audit.setCreatedTs(rulesByFlow.getAudit().getCreatedTs());
+            audit.setModifiedBy(rulesByFlow.getAudit().getModifiedBy());
+            audit.setModifiedTs(rulesByFlow.getAudit().getModifiedTs());
+            rulesByFlowData.setAudit(audit);
+        }
+
+        Actions actionsData = Actions.builder()
+                .actionId(actions.getActionId())
+                .actionText(actions.getActionText())
+                .questionIds(actions.getQuestionId())
+                .detailIds(actions.getDetailId())
+                .build();
+
+        // Filter questions matching action IDs
+        Set<String> questionIds = actions.getQuestionId() != null ? new HashSet<>(actions.getQuestionId()) : Set.of();
+        List<QuestionsEntity> filteredQuestions = questions.stream()
+                .filter(question -> questionIds.contains(question.getQuestionId()))
+                .toList();
+
+        // Filter details matching action IDs
+        Set<String> detailIds = actions.getDetailId() != null ? new HashSet<>(actions.getDetailId()) : Set.of();
+        List<QuestionsDetailsEntity> filteredDetails = details.stream()
+                .filter(detail -> detailIds.contains(detail.getDetailId()))
+                .toList();
+
+        return Mono.fromSupplier(() -> {
+            // One index of the rows for the whole questionnaire, trees in sequenceId order
+            List<Questions> sortedQuestionsList = new QuestionnaireTreeBuilder(questions, answerOptions)
+                    .build(filteredQuestions);
+            List<Details> detailsList = filteredDetails.stream()
+                    .map(detailEntity -> Details.builder()
+                            .title(detailEntity.getTitle())
+                            .instructions(detailEntity.getInstructions())
+                            .helper(detailEntity.getHelper())
+                            .subContext(detailEntity.getSubContext())
+                            .pageNumber(detailEntity.getPageNumber())
+                            .sequenceId(detailEntity.getSequenceId())
+                            .footer(detailEntity.getFooter())
+                            .build())
+                    .sorted(Comparator.comparingInt(Details::getSequenceId))
+                    .toList();
+
+            iqeOutPut.setRulesByFlow(rulesByFlowData);
+            iqeOutPut.setActions(actionsData);
+            iqeOutPut.setQuestions(sortedQuestionsList);
+            iqeOutPut.setDetails(detailsList);
+            return iqeOutPut;
+        });
+    }
+
+    /**
+     * Reads questions of an action with their answer options, one query per table however many
+     * questions are asked for. Unlike {@link #readQuestionnaire}, related questions are not
+     * expanded: an answer option only carries the ids of its related questions.
+     *
+     * @param actionId    the actionId
+     * @param questionIds the questionIds, in the order the questions are returned
+     * @return Mono containing a question for each questionId that exists, its answer options in
+     * sequence order
+     */
+    public Mono<List<Questions>> readQuestions(String actionId, List<String> questionIds) {
+        List<String> distinctIds = questionIds.stream().distinct().toList();
+        if (distinctIds.isEmpty()) {
+            return Mono.just(List.of());
+        }
+        return Mono.zip(counted(questionsRepo.findByActionIdAndQuestionIdIn(actionId, distinctIds)).collectList(),
+                        counted(answerOptionsRepo.findByActionIdAndQuestionIdIn(actionId, distinctIds)).collectList())
+                .map(rows -> {
+                    Map<String, QuestionsEntity> questionsById = new HashMap<>();
+                    rows.getT1().forEach(question -> questionsById.putIfAbsent(question.getQuestionId(), question));
+                    Map<String, List<AnswerOptionsEntity>> answerOptionsByQuestion = rows.getT2().stream()
+                            .collect(Collectors.groupingBy(AnswerOptionsEntity::getQuestionId));
+                    List<Questions> questions = new ArrayList<>(questionIds.size());
+                    for (String questionId : questionIds) {
+                        QuestionsEntity row = questionsById.get(questionId);
+                        if (row == null) {
+                            continue;
+                        }
+                        Questions question = toQuestion(row);
+                        question.setAnswerOptions(answerOptionsByQuestion.getOrDefault(questionId, List.of()).stream()
+                                .map(IQERepoOrchestrator::toAnswerOption)
+                                .sorted(Comparator.comparingInt(AnswerOptions::getSequenceId))
+                                .toList());
+                        questions.add(question);
+                    }
+                    return questions;
+                });
+    }
+
+    /**
+     * Counts the queries a request makes and records them once it ends. Queries are counted when
+     * they are subscribed to, so only the ones that actually run are counted.
+     *
+     * @param operation the operation of the request
+     * @param request   the request
+     * @return the request, counting its queries
+     */
+    public <T> Mono<T> countingQueries(String operation, Mono<T> request) {
+        return Mono.defer(() -> {
+            AtomicInteger queries = new AtomicInteger();
+            return request
+                    .contextWrite(Context.of(QUERY_COUNT_KEY, queries))
+                    .doFinally(signal -> recordQueries(operation, queries.get()));
+        });
+    }
+
+    /**
+     * Counts a query against the request it runs for, see {@link #countingQueries}.
+     *
+     * @param query the query
+     * @return the query, counted when subscribed to
+     */
+    public static <T> Flux<T> counted(Flux<T> query) {
+        return Flux.deferContextual(ctx -> {
+            ctx.<AtomicInteger>getOrEmpty(QUERY_COUNT_KEY).ifPresent(AtomicInteger::incrementAndGet);
+            return query;
+        });
+    }
+
+    private void recordQueries(String operation, int queries) {
+        DistributionSummary.builder(QUERIES_METRIC)
+                .description("Database queries made to serve a questionnaire request")
+                .tag("operation", operation)
+                .register(meterRegistry)
+                .record(queries);
+    }
+
+    /**
+     * Maps a question row, without its answer options.
+     *
+     * @param row the question row
+     * @return the question
+     */
+    static Questions toQuestion(QuestionsEntity row) {
+        return Questions.builder()
+                .actionId(row.getActionId())
+                .questionId(row.getQuestionId())
+                .answerOptionIds(row.getAnswerOptionId())
+                .answerType(row.getAnswerType())
+                .characterLimit(row.getCharacterLimit())
+                .errorMessage(row.getErrorMessage())
+                .helpText(row.getHelpText())
+                .stacked(row.isStacked())
+                .required(row.isRequired())
+                .text(row.getQuestionText())
+                .sequenceId(row.getSequence_id())
+                .build();
+    }
+
+    /**
+     * Maps an answer option row, its related questions reduced to their ids.
+     *
+     * @param row the answer option row
+     * @return the answer option
+     */
+    static AnswerOptions toAnswerOption(AnswerOptionsEntity row) {
+        AnswerOptions answerOption = AnswerOptions.builder()
+                .actionId(row.getActionId())
+                .questionId(row.getQuestionId())
+                .answerOptionId(row.getAnswerOptionId())
+                .text(row.getAnswerText())
+                .value(row.getAnswerValue())
+                .relatedQuestionIds(row.getRelatedQuestions())
+                .sequenceId(row.getSequence_id())
+                .build();
+        if (row.getRelatedQuestions() != null && !row.getRelatedQuestions().isEmpty()) {
+            answerOption.setRelatedQuestions(row.getRelatedQuestions().stream()
+                    .map(relatedQuestionId -> Questions.builder()
+                            .actionId(row.getActionId())
+                            .questionId(relatedQuestionId)
+                            .build())
+                    .toList());
+        }
+        return answerOption;
+    }
+
+    /**
+     * Reads the stored questionnaire document of an action.
+     *
+     * @param actionId the actionId
+     * @return Mono containing the questionnaire, empty when the action has no document, or one of
+     * another format, or one that cannot be read
+     */
+    public Mono<QuestionareRequest> findQuestionnaireDocument(String actionId) {
+        return questionnaireByActionRepo.findByActionId(actionId)
+                .filter(entity -> entity.getDocumentVersion() == QUESTIONNAIRE_DOCUMENT_VERSION
+                        && entity.getDocument() != null)
+                .<QuestionareRequest>handle((entity, sink) -> {
+                    ByteBuffer document = entity.getDocument().duplicate();
+                    byte[] json = new byte[document.remaining()];
+                    document.get(json);
+                    try {
+                        sink.next(QUESTIONNAIRE_READER.readValue(json));
+                    } catch (IOException e) {
+                        log.warn("Questionnaire document of actionId {} cannot be read: {}", actionId, e.getMessage());
+                    }
+                })
+                .onErrorResume(e -> {
+                    log.warn("Questionnaire document of actionId {} could not be read: {}", actionId, e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Reads the stored questionnaire document of an action as the JSON it was written as.
+     *
+     * @param actionId the actionId
+     * @return Mono containing the document's JSON, empty when the action has no document or one of
+     * another format
+     */
+    public Mono<byte[]> findQuestionnaireJson(String actionId) {
+        return questionnaireByActionRepo.findByActionId(actionId)
+                .filter(entity -> entity.getDocumentVersion() == QUESTIONNAIRE_DOCUMENT_VERSION
+                        && entity.getDocument() != null)
+                .map(entity -> {
+                    ByteBuffer document = entity.getDocument().duplicate();
+                    byte[] json = new byte[document.remaining()];
+                    document.get(json);
+                    return json;
+                })
+                .onErrorResume(e -> {
+                    log.warn("Questionnaire document of actionId {} could not be read: {}", actionId, e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Writes a questionnaire as the JSON its documents are stored as.
+     *
+     * @param questionnaire the questionnaire
+     * @return the questionnaire's JSON
+     */
+    public byte[] questionnaireJson(QuestionareRequest questionnaire) {
+        try {
+            return QUESTIONNAIRE_WRITER.writeValueAsBytes(questionnaire);
+        } catch (IOException e) {
+            throw new ServerErrorException(FAILURE_CD, "Questionnaire could not be written: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the questionnaire document of an action, replacing the previous one.
+     *
+     * @param actionId      the actionId
+     * @param questionnaire the assembled questionnaire
+     * @return Mono containing the stored document
+     */
+    public Mono<QuestionnaireByActionEntity> saveQuestionnaireDocument(String actionId, QuestionareRequest questionnaire) {
+        return Mono.fromCallable(() -> QuestionnaireByActionEntity.builder()
+                        .actionId(actionId)
+                        .documentVersion(QUESTIONNAIRE_DOCUMENT_VERSION)
+                        .document(ByteBuffer.wrap(questionnaireJson(questionnaire)))
+                        .updatedTs(Instant.now())
+                        .build())
+                .flatMap(questionnaireByActionRepo::save);
+    }
+
+    /**
+     * Deletes the questionnaire document of an action.
+     *
+     * @param actionId the actionId
+     * @return Mono completing once the document is deleted
+     */
+    public Mono<Void> deleteQuestionnaireDocument(String actionId) {
+        return questionnaireByActionRepo.deleteByActionId(actionId);
+    }
+
+    /**
+     * Assembles the questionnaire of an action from its rows and writes it as the action's
+     * document. The document of an action that no longer exists is deleted.
+     *
+     * @param actionId the actionId
+     * @return Mono emitting whether a document was written
+     */
+    public Mono<Boolean> materializeQuestionnaire(String actionId) {
+        return readQuestionnaire(actionId, new QuestionareRequest())
+                .flatMap(questionnaire -> questionnaire.getStatusCode() == null
+                        ? saveQuestionnaireDocument(actionId, questionnaire).thenReturn(true)
+                        : deleteQuestionnaireDocument(actionId).thenReturn(false));
+    }
+
     private Flux<QuestionsDetailsEntity> extractQuestionsDetails(Details details) {
         QuestionsDetailsEntity questionDetails = QuestionsDetailsEntity.builder()
                 .detailId(details.getDetailId())
@@ -402,10 +862,10 @@ public class IQERepoOrchestrator {
 
 
     /**
-     * Process the questions, answer options and nested questions recursively.
+     * Process the questions, answer options and nested questions.
      * <p>
-     * This method takes a questions entity, answer options list and a list of questions.
-     * It processes the questions and answer options recursively and returns a Mono containing a QuestionsData object.
+     * This method takes a questions entity, answer options list and a list of questions, and
+     * builds the question's tree with a {@link QuestionnaireTreeBuilder}. The lists are not modified.
      *
      * @param questionsEntity   the questions entity
      * @param answerOptionsList the answer options list
@@ -417,47 +877,14 @@ public class IQERepoOrchestrator {
             QuestionsEntity questionsEntity,
             List<AnswerOptionsEntity> answerOptionsList,
             List<QuestionsEntity> questions) {
-        Questions question = Questions.builder()
-                .actionId(questionsEntity.getActionId())
-                .questionId(questionsEntity.getQuestionId())
-                .text(questionsEntity.getQuestionText())
-                .errorMessage(questionsEntity.getErrorMessage())
-                .answerType(questionsEntity.getAnswerType())
-                .stacked(questionsEntity.isStacked())
-                .required(questionsEntity.isRequired())
-                .helpText(questionsEntity.getHelpText() != null ? questionsEntity.getHelpText() : "")
-                .characterLimit(questionsEntity.getCharacterLimit() != 0 ? questionsEntity.getCharacterLimit() : 0)
-                .sequenceId(questionsEntity.getSequence_id() != 0 ? questionsEntity.getSequence_id() : 0)
-                .linkText(questionsEntity.getLinkText() != null ? questionsEntity.getLinkText() : "")
-                .skipLegend(questionsEntity.getSkiplegend()!= null ? questionsEntity.getSkiplegend() : "")
-                .questionNumber(questionsEntity.getQuestionnumber() != null ? questionsEntity.getQuestionnumber() : 0)
-                .subContext(questionsEntity.getSubcontext() != null ? questionsEntity.getSubcontext() : "")
-                .answerOptionIds(questionsEntity.getAnswerOptionId() != null ? questionsEntity.getAnswerOptionId() : new ArrayList<>())
-                .build();
-        // Sort the answerOptionsList in ascending order
-        answerOptionsList.sort(Comparator.comparing(AnswerOptionsEntity::getAnswerText));
-        return Flux.fromIterable(answerOptionsList)
-                .filter(answerOption ->
-                        questionsEntity.getAnswerOptionId() != null &&
-                                questionsEntity.getAnswerOptionId().contains(answerOption.getAnswerOptionId()))
-                .flatMap(answerOption -> processAnswerOption(answerOption, answerOptionsList, questions))
-                .collectList()
-                .map(answerOptions -> {
-                    answerOptions.sort(Comparator.comparing(AnswerOptions::getSequenceId));
-                    question.setAnswerOptions(answerOptions);
-                    return question;
-                })
-                .onErrorResume(e -> {
-                    log.info("Exception occurred in the method {} error : {}", PROCESS_DATA, e.getMessage());
-                    return Mono.just(question);
-                });
+        return Mono.fromSupplier(() -> new QuestionnaireTreeBuilder(questions, answerOptionsList).build(questionsEntity));
     }
 
     /**
      * Process a single answer option.
      * <p>
-     * This method takes an answer option, answer options list and a list of questions.
-     * It processes the answer option and its related questions recursively and returns a Mono containing an AnswerOptionsData object.
+     * This method takes an answer option, answer options list and a list of questions, and builds
+     * the answer option with its related questions with a {@link QuestionnaireTreeBuilder}.
      *
      * @param answerOption      the answer option to process
      * @param answerOptionsList the answer options list
@@ -469,40 +896,14 @@ public class IQERepoOrchestrator {
             AnswerOptionsEntity answerOption,
             List<AnswerOptionsEntity> answerOptionsList,
             List<QuestionsEntity> questions) {
-        AnswerOptions answerOptionsDTO = AnswerOptions.builder()
-                .actionId(answerOption.getActionId())
-                .questionId(answerOption.getQuestionId())
-                .answerOptionId(answerOption.getAnswerOptionId())
-                .text(answerOption.getAnswerText())
-                .value(answerOption.getAnswerValue())
-                .sequenceId(answerOption.getSequence_id() != 0 ? answerOption.getSequence_id() : 0)
-                .relatedQuestionIds(answerOption.getRelatedQuestions())
-                .additionalDetailText(answerOption.getAdditionalDetailText() != null ? answerOption.getAdditionalDetailText() : "")
-                .build();
-        return Flux.fromIterable(questions)
-                .filter(questionsDTO -> answerOption.getRelatedQuestions() != null &&
-                        answerOption.getRelatedQuestions().contains(questionsDTO.getQuestionId()))
-                .flatMap(relatedQuestion -> processRelatedQuestion(relatedQuestion, answerOptionsList, questions))
-                .collectList()
-                .map(relatedQuestionsDTO -> {
-                    if (!relatedQuestionsDTO.isEmpty()) {
-                        // Sort the relatedQuestionsDTO by sequenceId
-                        List<Questions> sortedRelatedQuestionsDTO =
-                                relatedQuestionsDTO.stream()
-                                        .sorted(Comparator.comparingInt(Questions::getSequenceId))
-                                        .toList();
-                        answerOptionsDTO.setRelatedQuestions(sortedRelatedQuestionsDTO);
-                    }
-                    return answerOptionsDTO;
-                });
+        return Mono.fromSupplier(() -> new QuestionnaireTreeBuilder(questions, answerOptionsList).build(answerOption));
     }
 
 
     /**
      * Process a related question.
      * <p>
-     * This method takes a related question and answer options list and a list of questions.
-     * It processes the related question and its answer options recursively and returns a Mono containing a QuestionsData object.
+     * Related questions are built like any other question, see {@link #processQuestionnaire}.
      *
      * @param relatedQuestion   the related question to process
      * @param answerOptionsList the answer options list
@@ -514,38 +915,7 @@ public class IQERepoOrchestrator {
             QuestionsEntity relatedQuestion,
             List<AnswerOptionsEntity> answerOptionsList,
             List<QuestionsEntity> questions) {
-        Questions relatedQuestionDTO = Questions.builder()
-                .actionId(relatedQuestion.getActionId())
-                .questionId(relatedQuestion.getQuestionId())
-                .text(relatedQuestion.getQuestionText())
-                .errorMessage(relatedQuestion.getErrorMessage())
-                .answerType(relatedQuestion.getAnswerType())
-                .stacked(relatedQuestion.isStacked())
-                .required(relatedQuestion.isRequired())
-                .helpText(relatedQuestion.getHelpText() != null ? relatedQuestion.getHelpText() : "")
-                .characterLimit(relatedQuestion.getCharacterLimit() != 0 ? relatedQuestion.getCharacterLimit() : 0)
-                .sequenceId(relatedQuestion.getSequence_id() != 0 ? relatedQuestion.getSequence_id() : 0)
-                .linkText(relatedQuestion.getLinkText() != null ? relatedQuestion.getLinkText() : "")
-                .skipLegend(relatedQuestion.getSkiplegend()!= null ? relatedQuestion.getSkiplegend() : "")
-                .questionNumber(relatedQuestion.getQuestionnumber() != null ? relatedQuestion.getQuestionnumber() : 0)
-                .subContext(relatedQuestion.getSubcontext() != null ? relatedQuestion.getSubcontext() : "")
-                .answerOptionIds(relatedQuestion.getAnswerOptionId() != null ? relatedQuestion.getAnswerOptionId() : new ArrayList<>())
-                .build();
-        return Flux.fromIterable(answerOptionsList)
-                .filter(relatedAnswerOption ->
-                        relatedQuestion.getAnswerOptionId() != null &&
-                                relatedQuestion.getAnswerOptionId().contains(relatedAnswerOption.getAnswerOptionId()))
-                .flatMap(relatedAnswerOption -> processAnswerOption(relatedAnswerOption, answerOptionsList, questions))
-                .collectList()
-                .map(relatedAnswerOptions -> {
-                    // Sort the relatedAnswerOptions by sequenceId
-                    List<AnswerOptions> sortedRelatedAnswerOptions =
-                            relatedAnswerOptions.stream()
-                                    .sorted(Comparator.comparingInt(AnswerOptions::getSequenceId))
-                                    .toList();
-                    relatedQuestionDTO.setAnswerOptions(sortedRelatedAnswerOptions);
-                    return relatedQuestionDTO;
-                });
+        return processQuestionnaire(relatedQuestion, answerOptionsList, questions);
     }
 
 
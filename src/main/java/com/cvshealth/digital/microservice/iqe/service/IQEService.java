@@ -2,34 +2,37 @@ package com.cvshealth.digital.microservice.iqe.service;
 
 
 import com.cvshealth.digital.microservice.iqe.config.DroolConfig;
+import com.cvshealth.digital.microservice.iqe.config.RulesEngineConfig;
 import com.cvshealth.digital.microservice.iqe.constants.SchedulingConstants;
 import com.cvshealth.digital.microservice.iqe.dto.*;
 import com.cvshealth.digital.microservice.iqe.entity.*;
 import com.cvshealth.digital.microservice.iqe.entity.RulesByFlowEntity;
+import com.cvshealth.digital.microservice.iqe.error.IQEBaseException;
+import com.cvshealth.digital.microservice.iqe.error.InvalidRequestException;
 import com.cvshealth.digital.microservice.iqe.error.RedisServerException;
+import com.cvshealth.digital.microservice.iqe.error.ResourceNotFoundException;
 import com.cvshealth.digital.microservice.iqe.error.ServerErrorException;
 import com.cvshealth.digital.microservice.iqe.model.IQEResponse;
 import com.cvshealth.digital.microservice.iqe.model.RulesDetails;
 import com.cvshealth.digital.microservice.iqe.repository.*;
+import com.cvshealth.digital.microservice.iqe.udt.AuditEntity;
 import com.cvshealth.digital.microservice.iqe.utils.LoggingUtils;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.drools.template.ObjectDataCompiler;
-import org.kie.api.KieBase;
-import org.kie.api.KieServices;
-import org.kie.api.io.Resource;
-import org.kie.api.io.ResourceType;
-import org.kie.api.runtime.KieSession;
-import org.kie.internal.utils.KieHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 
@@ -48,11 +51,21 @@ public class IQEService implements SchedulingConstants {
     private final AnswerOptionsRepository answerOptionsRepo;
     private final RedisCacheService redisCacheService;
     private final QuestionnaireDetailsRepository questionnaireDetailsRepo;
+    private final RuleSetRegistry ruleSetRegistry;
+    private final RulesEngineConfig.RulesEngineProperties rulesEngineProperties;
+    private final ShadowEvaluator shadowEvaluator;
 
     private static final Logger logger = LoggerFactory.getLogger(IQEService.class);
+    private static final String DECISION_TABLE_IMPORT = "Imported from a decision table";
+    private static final String QUESTIONNAIRE_BY_FLOW_OPERATION = "questionnaireByFlow";
+    private static final String RELATED_QUESTIONS_OPERATION = "relatedQuestions";
+    private static final ObjectReader QUESTIONS_READER = new ObjectMapper()
+            .readerFor(com.cvshealth.digital.microservice.iqe.model.Questions.class);
 
     /**
-     * Legacy method used to get the rule details by flow
+     * Legacy method used to get the rule details by flow. The questions of the fired rule are
+     * served as parsed when the rule base was built; only actions that could not be prepared are
+     * parsed here.
      *
      * @param rulesDetails
      * @param headers
@@ -72,38 +85,26 @@ public class IQEService implements SchedulingConstants {
         eventMap.putAll(headers);
         eventMap.put("flow", rulesDetails.getFlow());
 
-        Flux<QuestionnaireRules> ruleAttributesFlux = rulesRepo.findByFlow(rulesDetails.getFlow());
-
-        ObjectDataCompiler compiler = new ObjectDataCompiler();
-        ObjectMapper objectMapper = new ObjectMapper();
-
-        return ruleAttributesFlux.collectList()
-                .map(ruleAttributesList -> {
-                    if (ruleAttributesList != null && !ruleAttributesList.isEmpty()) {
-                        String generatedDRL = compiler.compile(ruleAttributesList, getClass().getClassLoader()
-                                .getResourceAsStream(DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE));
-                        KieServices kieServices = KieServices.Factory.get();
-                        KieHelper kieHelper = new KieHelper();
-                        byte[] b1 = generatedDRL.getBytes();
-                        Resource resource1 = kieServices.getResources().newByteArrayResource(b1);
-                        kieHelper.addResource(resource1, ResourceType.DRL);
-                        KieBase kieBase = kieHelper.build();
-                        KieSession kieSession = kieBase.newKieSession();
-                        kieSession.insert(rulesDetails);
-                        int numberOfRulesFired = kieSession.fireAllRules(1);
-                        logRuleExecutionStatus(numberOfRulesFired, eventMap);
-                        kieSession.dispose();
-                        return numberOfRulesFired;
-                    } else {
-                        return 0;
-                    }
+        String flow = rulesDetails.getFlow();
+
+        return ruleSetRegistry.ruleBase(flow, DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE,
+                        () -> rulesRepo.findByFlow(flow).collectList())
+                .map(ruleBase -> {
+                    int numberOfRulesFired = ruleBase.fire(rulesDetails);
+                    logRuleExecutionStatus(numberOfRulesFired, eventMap);
+                    return Optional.ofNullable(ruleBase.preparedQuestions(rulesDetails.getQuestions()));
                 })
-                .handle((numberOfRulesFired, sink) -> {
+                .defaultIfEmpty(Optional.empty())
+                .handle((preparedQuestions, sink) -> {
                     if (rulesDetails.getQuestions() != null && !rulesDetails.getQuestions().isEmpty()) {
                         eventMap.put(STATUSCODE_KEY, SUCCESS_MSG);
                         eventMap.put(STATUS, SUCCESS_MSG);
+                        if (preparedQuestions.isPresent()) {
+                            sink.next(preparedQuestions.get());
+                            return;
+                        }
                         try {
-                            sink.next(objectMapper.readValue(rulesDetails.getQuestions(), com.cvshealth.digital.microservice.iqe.model.Questions.class));
+                            sink.next(QUESTIONS_READER.readValue(rulesDetails.getQuestions()));
                         } catch (JsonProcessingException e) {
                             sink.error(new RuntimeException(e));
                         }
@@ -145,6 +146,7 @@ public class IQEService implements SchedulingConstants {
                         helper.processInputData(assignedRequest, reqHdrMap, iqeResponse, eventMap)
                                 .flatMap(processedRequest ->
                                         helper.insertQuestionsIntoDB(processedRequest, eventMap, iqeResponse)
+                                                .then(Mono.fromRunnable(() -> publishRuleBase(processedRequest.getRulesByFlow().getFlow())))
                                                 .thenReturn(iqeResponse)
                                 )
                 ).onErrorResume(e -> {
@@ -181,12 +183,57 @@ public class IQEService implements SchedulingConstants {
 
 
     /**
-     * Retrieve the questionnaire by actionId
+     * Streams the rules of every flow as the pages of rules_by_flow are read, so the rules are
+     * never all held in memory. Pages are only fetched as fast as the rules are consumed.
+     *
+     * @return Flux of the rules, active and inactive
+     */
+    public Flux<RulesByFlowEntity> streamRules() {
+        return Flux.deferContextual(ctx -> rulesByFlowRepo.findAll())
+                .onErrorResume(e -> Flux.error(new ServerErrorException(FAILURE_CD, e.getMessage())));
+    }
+
+    /**
+     * Streams the top level questions of the questionnaire of an action as their trees are built
+     * from the action's rows, see {@link IQERepoOrchestrator#streamQuestions}. Unlike
+     * {@link #questionnaireByActionId}, a failed read is not served as an empty questionnaire.
+     *
+     * @param actionId the actionId
+     * @return Flux of the questions, in sequence order
+     */
+    public Flux<Questions> streamQuestionnaire(String actionId) {
+        return Flux.defer(() -> helper.streamQuestions(actionId))
+                .onErrorResume(e -> Flux.error(e instanceof IQEBaseException ? e
+                        : new ServerErrorException(FAILURE_CD, e.getMessage())));
+    }
+
+    /**
+     * Retrieve the questionnaire by actionId as JSON. The stored questionnaire document of the
+     * action is served as the bytes it was written as, without reading it into a questionnaire. An
+     * action without a document is served from Redis or assembled from its rows.
+     *
+     * @param actionId : The action id
+     * @return The Mono object which contains the questionnaire's JSON
+     */
+    public Mono<byte[]> questionnaireJsonByActionId(String actionId) {
+        return Mono.defer(() -> helper.findQuestionnaireJson(actionId))
+                .switchIfEmpty(Mono.defer(() -> questionnaireByActionId(actionId, new QuestionareRequest(), false))
+                        .map(helper::questionnaireJson));
+    }
+
+    /**
+     * Retrieve the questionnaire by actionId. Served from Redis, else from the action's stored
+     * questionnaire document, and only assembled from the action's rows when it has neither.
      *
      * @param actionId : The action id
      * @return The Mono object which contains the questionnaire
      */
     public Mono<QuestionareRequest> questionnaireByActionId(String actionId, QuestionareRequest iqeOutPut) {
+        return questionnaireByActionId(actionId, iqeOutPut, true);
+    }
+
+    private Mono<QuestionareRequest> questionnaireByActionId(String actionId, QuestionareRequest iqeOutPut,
+                                                             boolean readDocument) {
         String methodName = GET_QUESTIONARE_BY_ACTION_ID;
         Map<String, String> eventMap = new HashMap<>();
         log.debug(ENTRY_LOG, methodName);
@@ -204,133 +251,54 @@ public class IQEService implements SchedulingConstants {
                                 return Mono.empty();
                             }
                         })
-                        .switchIfEmpty(Mono.deferContextual(ctx1 -> {
-                            Mono<RulesByFlowEntity> rulesByFlowMono = rulesByFlowRepo.findByActionId(actionId)
-                                    .next()
-                                    .onErrorResume(NoSuchElementException.class, e -> {
-                                        log.info("No RulesByFlow found for actionId: {}", actionId);
-                                        return Mono.empty();
-                                    })
-                                    .defaultIfEmpty(new RulesByFlowEntity());
-
-                            Mono<ActionsEntity> actionsMono = actionsRepo.findByActionId(actionId)
-                                    .next()
-                                    .onErrorResume(NoSuchElementException.class, e -> {
-                                        log.info("No Actions found for actionId: {}", actionId);
-                                        return Mono.empty();
-                                    })
-                                    .defaultIfEmpty(new ActionsEntity());
-
-                            return Mono.zip(rulesByFlowMono, actionsMono)
-                                    .flatMap(tuple -> {
-                                        RulesByFlowEntity rulesByFlow = tuple.getT1();
-                                        ActionsEntity actions = tuple.getT2();
-                                        if (rulesByFlow.getActionId() == null || actions.getActionId() == null) {
-                                            iqeOutPut.setStatusCode(DATA_NOT_FOUND_CODE);
-                                            iqeOutPut.setErrorDescription(DATA_NOT_FOUND_MESSAGE);
+                        // The stored document first, then the questionnaire assembled from the action's rows
+                        .switchIfEmpty(Mono.defer(() -> readDocument ? helper.findQuestionnaireDocument(actionId)
+                                        : Mono.<QuestionareRequest>empty())
+                                .switchIfEmpty(Mono.defer(() -> helper.readQuestionnaire(actionId, iqeOutPut))
+                                        .onErrorResume(e -> {
+                                            log.info("Exception occurred in the method {} and error {}", methodName, e.getMessage());
                                             return Mono.just(iqeOutPut);
-                                        }
-
-                                        RulesByFlow rulesByFlowData = RulesByFlow.builder()
-                                                .flow(rulesByFlow.getFlow())
-                                                .ruleId(rulesByFlow.getRuleId())
-                                                .ruleName(rulesByFlow.getRuleName())
-                                                .actionId(rulesByFlow.getActionId())
-                                                .condition(rulesByFlow.getCondition())
-                                                .lob(rulesByFlow.getLob())
-                                                .salience(rulesByFlow.getSalience())
-                                                .isActive(rulesByFlow.isActive())
-                                                .build();
-
-                                        Audit audit = new Audit();
-                                        audit.setCreatedBy(rulesByFlow.getAudit().getCreatedBy());
-                                        audit.setCreatedTs(rulesByFlow.getAudit().getCreatedTs());
-                                        audit.setModifiedBy(rulesByFlow.getAudit().getModifiedBy());
-                                        audit.setModifiedTs(rulesByFlow.getAudit().getModifiedTs());
-                                        rulesByFlowData.setAudit(audit);
-
-                                        Actions actionsData = Actions.builder()
-                                                .actionId(actions.getActionId())
-                                                .actionText(actions.getActionText())
-                                                .questionIds(actions.getQuestionId())
-                                                .detailIds(actions.getDetailId())
-                                                .build();
-
-                                        iqeOutPut.setRulesByFlow(rulesByFlowData);
-                                        iqeOutPut.setActions(actionsData);
-
-                                        return actionsRepo.findByActionId(actionId)
-                                                .next()
-                                                .flatMap(actions1 ->
-                                                        questionsRepo.findByActionId(actionId)
-                                                                .collectList()
-                                                                .flatMap(questions ->
-                                                                        answerOptionsRepo.findByActionId(actionId)
-                                                                                .collectList()
-                                                                                .flatMap(answerOptions ->
-                                                                                        questionnaireDetailsRepo.findByActionId(actionId)
-                                                                                                .collectList()
-                                                                                                .flatMap(details -> {
-
-                                                                                                    // Filter questions matching action IDs
-                                                                                                    List<QuestionsEntity> filteredQuestions = questions.stream()
-                                                                                                            .filter(question -> actions1.getQuestionId()
-                                                                                                                    .contains(question.getQuestionId()))
-                                                                                                            .toList();
-
-                                                                                                    // Filter details matching action IDs
-                                                                                                    List<QuestionsDetailsEntity> filteredDetails = details.stream()
-                                                                                                            .filter(detail -> actions1.getDetailId()
-                                                                                                                    .contains(detail.getDetailId()))
-                                                                                                            .toList();
-                                                                                                    return Flux.fromIterable(filteredQuestions)
-                                                                                                            .flatMap(questionEntity ->
-                                                                                                                    helper.processQuestionnaire(questionEntity,
-                                                                                                                            answerOptions, questions))
-                                                                                                            .collectList()
-                                                                                                            .flatMap(questionsDataList -> {
-                                                                                                                // Sort the questionsDataList by sequenceId
-                                                                                                                List<Questions> sortedQuestionsList = questionsDataList.stream()
-                                                                                                                        .sorted(Comparator.comparingInt(Questions::getSequenceId))
-                                                                                                                        .toList();
-                                                                                                                iqeOutPut.setQuestions(sortedQuestionsList);
-                                                                                                                List<Details> detailsList = filteredDetails.stream()
-                                                                                                                        .map(detailEntity -> Details.builder()
-                                                                                                                                .title(detailEntity.getTitle())
-                                                                                                                                .instructions(detailEntity.getInstructions())
-                                                                                                                                .helper(detailEntity.getHelper())
-                                                                                                                                .subContext(detailEntity.getSubContext())
-                                                                                                                                .pageNumber(detailEntity.getPageNumber())
-                                                                                                                                .sequenceId(detailEntity.getSequenceId())
-                                                                                                                                .footer(detailEntity.getFooter())
-                                                                                                                                .build())
-                                                                                                                        .sorted(Comparator.comparingInt(Details::getSequenceId))
-                                                                                                                        .toList();
-
-                                                                                                                iqeOutPut.setDetails(detailsList);
-
-                                                                                                                return Mono.just(iqeOutPut);
-                                                                                                            });
-                                                                                                })
-                                                                                )
-                                                                )
-                                                )
-                                                .onErrorResume(e -> {
-                                                    log.info("Exception occurred in the method {} and error {}", methodName, e.getMessage());
-                                                    return Mono.just(iqeOutPut);
-                                                });
-                                    })
-                                    .doOnSuccess(result -> Mono.fromCallable(() -> redisCacheService.setDataToRedisRest(actionId, result, eventMap))
-                                            .onErrorResume(e -> {
-                                                log.error("Exception in questionnaireByActionId when setting data to redis {}", e.getMessage());
-                                                return Mono.empty();
-                                            })
-                                            .subscribe());
-                        }))
+                                        }))
+                                .doOnSuccess(result -> Mono.fromCallable(() -> redisCacheService.setDataToRedisRest(actionId, result, eventMap))
+                                        .onErrorResume(e -> {
+                                            log.error("Exception in questionnaireByActionId when setting data to redis {}", e.getMessage());
+                                            return Mono.empty();
+                                        })
+                                        .subscribe()))
                         .doOnSuccess(result -> log.debug(EXIT_LOG, methodName)))
                 .onErrorResume(e -> Mono.just(new QuestionareRequest()));
     }
 
+    /**
+     * Bumps the rule set version of the flow and compiles its new rules in the background, swapping
+     * them in once built. Other nodes pick the new version up on their next refresh and load the
+     * flow's stored rule artifact instead of compiling.
+     *
+     * @param flow the flow whose rules changed
+     */
+    private void publishRuleBase(String flow) {
+        if (flow == null) {
+            return;
+        }
+        ruleSetRegistry.publish(flow, DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                        () -> rulesByFlowRepo.findByFlow(flow).collectList())
+                .subscribe(null,
+                        e -> log.warn("Could not publish rule base for flow {}: {}", flow, e.getMessage()),
+                        () -> log.info("Published rule base for flow {}", flow));
+    }
+
+    /**
+     * Active rule base of the flow for the IQE template, empty when the flow has no rules.
+     *
+     * @param flow the flow
+     * @return Mono emitting the rule base
+     */
+    private Mono<CompiledRuleBase> iqeRuleBase(String flow) {
+        return ruleSetRegistry.ruleBase(flow, DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                () -> rulesByFlowRepo.findByFlow(flow).collectList());
+    }
+
+
     /**
      * Delete questionnaire by actionId.
      * <p>
@@ -351,10 +319,12 @@ public class IQEService implements SchedulingConstants {
                         Map<String, String> eventMap = new HashMap<>();
                         RulesByFlowEntity rulesByFlow = rulesByFlowList.get(0);
                         return rulesByFlowRepo.deleteByFlowAndRuleId(rulesByFlow.getFlow(), rulesByFlow.getRuleId())
+                                .then(Mono.fromRunnable(() -> publishRuleBase(rulesByFlow.getFlow())))
                                 .then(actionsRepo.deleteByActionId(actionId))
                                 .then(questionsRepo.deleteByActionId(actionId))
                                 .then(answerOptionsRepo.deleteByActionId(actionId))
                                 .then(questionnaireDetailsRepo.deleteByActionId(actionId))
+                                .then(helper.deleteQuestionnaireDocument(actionId))
                                 .then(redisCacheService.deleteDataFromRedis(IQE_QUESTIONNAIRE, actionId, eventMap))
                                 .then(Mono.just(new IQEResponse("0000", "ActionId deleted successfully", null)));
                     }
@@ -372,40 +342,275 @@ public class IQEService implements SchedulingConstants {
      */
     public Mono<QuestionareRequest> questionnaireByFlowAndCondition(RulesDetails rulesDetails, QuestionareRequest iqeOutPut,
                                                                     Map<String, String> headers) {
-        return Mono.deferContextual(ctx -> {
-                    Flux<RulesByFlowEntity> ruleAttributesFlux = rulesByFlowRepo.findByFlow(rulesDetails.getFlow());
-
-                    ObjectDataCompiler compiler = new ObjectDataCompiler();
-
-                    return ruleAttributesFlux.collectList()
-                            .flatMap(ruleAttributesList -> {
-                                if (ruleAttributesList != null && !ruleAttributesList.isEmpty()) {
-                                    String generatedDRL = compiler.compile(ruleAttributesList, getClass().getClassLoader()
-                                            .getResourceAsStream(DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE));
-                                    KieServices kieServices = KieServices.Factory.get();
-                                    KieHelper kieHelper = new KieHelper();
-                                    byte[] b1 = generatedDRL.getBytes();
-                                    Resource resource1 = kieServices.getResources().newByteArrayResource(b1);
-                                    kieHelper.addResource(resource1, ResourceType.DRL);
-                                    KieBase kieBase = kieHelper.build();
-                                    KieSession kieSession = kieBase.newKieSession();
-                                    kieSession.insert(rulesDetails);
-                                    kieSession.fireAllRules(1);
-                                    kieSession.dispose();
-                                    if (rulesDetails.getActionId() != null && !rulesDetails.getActionId().isEmpty()) {
-                                        log.info("Rules Details: {}", rulesDetails);
-                                        return questionnaireByActionId(rulesDetails.getActionId(), iqeOutPut);
-                                    } else {
-                                        return Mono.just(iqeOutPut);
-                                    }
-                                } else {
-                                    return Mono.just(iqeOutPut);
-                                }
-                            });
-                })
+        return Mono.deferContextual(ctx -> iqeRuleBase(rulesDetails.getFlow())
+                        .flatMap(ruleBase -> {
+                            ShadowEvaluator.Sample sample = shadowEvaluator.sample(ruleBase, rulesDetails);
+                            ruleBase.fire(rulesDetails);
+                            sample.replay(rulesDetails);
+                            if (rulesDetails.getActionId() != null && !rulesDetails.getActionId().isEmpty()) {
+                                log.info("Rules Details: {}", rulesDetails);
+                                return questionnaireByActionId(rulesDetails.getActionId(), iqeOutPut);
+                            } else {
+                                return Mono.just(iqeOutPut);
+                            }
+                        })
+                        .defaultIfEmpty(iqeOutPut))
+                .onErrorResume(e -> Mono.error(new ServerErrorException(FAILURE_CD, e.getMessage())));
+    }
+
+
+    /**
+     * Registers candidate rules for the flow. A sample of the flow's live evaluations is then
+     * replayed against them in the background and compared with the live outcome.
+     *
+     * @param flow  the flow
+     * @param rules the candidate rules
+     * @return Mono containing the empty report of the candidate
+     */
+    public Mono<ShadowReport> registerShadowCandidate(String flow, List<RulesByFlowEntity> rules) {
+        if (rules == null || rules.isEmpty()) {
+            return Mono.error(new InvalidRequestException(INVALID_INPUT, "At least one rule is required"));
+        }
+        rules.forEach(rule -> rule.setFlow(flow));
+        return shadowEvaluator.register(flow, rules)
+                .onErrorResume(e -> Mono.error(new InvalidRequestException(INVALID_INPUT,
+                        "Candidate rules could not be compiled: " + e.getMessage())));
+    }
+
+    /**
+     * Returns how the flow's shadow candidate compared with the live rules so far.
+     *
+     * @param flow the flow
+     * @return Mono containing the report
+     */
+    public Mono<ShadowReport> shadowReport(String flow) {
+        return Mono.justOrEmpty(shadowEvaluator.report(flow))
+                .switchIfEmpty(Mono.error(new ResourceNotFoundException(NOT_FOUND_CODE,
+                        "No shadow candidate for flow " + flow)));
+    }
+
+    /**
+     * Stops shadowing the flow.
+     *
+     * @param flow the flow
+     * @return Mono containing the final report of the candidate
+     */
+    public Mono<ShadowReport> removeShadowCandidate(String flow) {
+        return Mono.justOrEmpty(shadowEvaluator.remove(flow))
+                .switchIfEmpty(Mono.error(new ResourceNotFoundException(NOT_FOUND_CODE,
+                        "No shadow candidate for flow " + flow)));
+    }
+
+    /**
+     * Finds the rules of the flow that can never fire: inactive ones, ones whose condition cannot
+     * hold and ones covered by a rule that fires first. Compiled rule bases leave them out unless
+     * pruning is disabled.
+     *
+     * @param flow the flow
+     * @return Mono containing the rules found and what leaving them out saves
+     */
+    public Mono<RuleAnalysisReport> analyzeRules(String flow) {
+        return rulesByFlowRepo.findByFlow(flow).collectList()
+                .filter(rules -> !rules.isEmpty())
+                .switchIfEmpty(Mono.error(new ResourceNotFoundException(NOT_FOUND_CODE, "No rules for flow " + flow)))
+                .flatMap(rules -> ruleSetRegistry.analyze(flow, DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, rules)
+                        .onErrorResume(e -> Mono.error(new ServerErrorException(FAILURE_CD,
+                                "Rules of flow " + flow + " could not be analyzed: " + e.getMessage()))));
+    }
+
+    /**
+     * Writes the questionnaire document of every action, assembled from the action's rows, so
+     * actions written before documents existed are served from their document too. Actions without
+     * a rule are counted as missing and left without a document.
+     *
+     * @return Mono containing the number of actions backfilled, missing and failed
+     */
+    public Mono<QuestionnaireBackfillReport> backfillQuestionnaireDocuments() {
+        long start = System.nanoTime();
+        AtomicInteger written = new AtomicInteger();
+        AtomicInteger missing = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        return actionsRepo.findAll()
+                .mapNotNull(ActionsEntity::getActionId)
+                .distinct()
+                .flatMap(actionId -> helper.materializeQuestionnaire(actionId)
+                        .doOnNext(stored -> (stored ? written : missing).incrementAndGet())
+                        .onErrorResume(e -> {
+                            log.warn("Questionnaire document of actionId {} could not be backfilled: {}", actionId, e.getMessage());
+                            failed.incrementAndGet();
+                            return Mono.empty();
+                        }), Math.max(1, rulesEngineProperties.getBackfillConcurrency()))
+                .then(Mono.fromSupplier(() -> {
+                    long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+                    log.info("Backfilled {} questionnaire documents in {} ms, {} actions missing, {} failed",
+                            written.get(), elapsedMillis, missing.get(), failed.get());
+                    return QuestionnaireBackfillReport.builder()
+                            .writtenDocuments(written.get())
+                            .missingActions(missing.get())
+                            .failedActions(failed.get())
+                            .elapsedMillis(elapsedMillis)
+                            .build();
+                }))
                 .onErrorResume(e -> Mono.error(new ServerErrorException(FAILURE_CD, e.getMessage())));
     }
 
+    /**
+     * Imports the rules of a flow from an XLSX decision table, see {@link DecisionTableParser}.
+     * The table is validated and compiled together with the flow's other rules before anything is
+     * written, so a table that does not compile leaves the flow untouched. The rows are then
+     * written concurrently and the flow republished with the rule base already compiled.
+     *
+     * @param flow     the flow
+     * @param workbook the XLSX workbook
+     * @param headers  the headers of the request
+     * @return Mono containing the outcome of the import
+     */
+    public Mono<RuleImportReport> importDecisionTable(String flow, byte[] workbook, Map<String, String> headers) {
+        if (workbook == null || workbook.length == 0) {
+            return Mono.error(new InvalidRequestException(INVALID_INPUT, "A decision table is required"));
+        }
+        String now = LocalDateTime.now(ZoneOffset.UTC).format(DATE_TIME_MILLI_SECONDS_FORMATTER);
+        String user = headers.get(CONST_USER_ID) != null ? headers.get(CONST_USER_ID) : DEFAULT_USER;
+        AuditEntity audit = AuditEntity.builder()
+                .createdTs(now)
+                .createdBy(user)
+                .remarks(DECISION_TABLE_IMPORT)
+                .build();
+        return Mono.fromCallable(() -> DecisionTableParser.parse(flow, workbook, audit,
+                        rulesEngineProperties.getImportMaxRules()))
+                // POI reads the whole workbook, keep it off the event loop
+                .subscribeOn(Schedulers.boundedElastic())
+                .elapsed()
+                .flatMap(parsed -> rulesByFlowRepo.findByFlow(flow).collectList()
+                        .flatMap(existing -> importRules(flow, parsed.getT2(), existing, now, user, parsed.getT1())))
+                .onErrorResume(e -> Mono.error(e instanceof IQEBaseException ? e
+                        : new ServerErrorException(FAILURE_CD, e.getMessage())));
+    }
+
+    private Mono<RuleImportReport> importRules(String flow, DecisionTableParser.DecisionTable table,
+                                               List<RulesByFlowEntity> existing, String now, String user,
+                                               long parseMillis) {
+        // In rule_id order, as the rows will be read back, so publishing finds them compiled
+        Map<String, RulesByFlowEntity> rules = new TreeMap<>();
+        existing.forEach(rule -> rules.put(rule.getRuleId(), rule));
+        int replaced = 0;
+        for (RulesByFlowEntity rule : table.rules()) {
+            RulesByFlowEntity previous = rules.put(rule.getRuleId(), rule);
+            if (previous != null) {
+                replaced++;
+                AuditEntity created = previous.getAudit() != null ? previous.getAudit() : rule.getAudit();
+                rule.setAudit(AuditEntity.builder()
+                        .createdTs(created.getCreatedTs())
+                        .createdBy(created.getCreatedBy())
+                        .modifiedTs(now)
+                        .modifiedBy(user)
+                        .remarks(DECISION_TABLE_IMPORT)
+                        .build());
+            }
+        }
+        int replacedRules = replaced;
+        return Mono.defer(() -> {
+            long compileStart = System.nanoTime();
+            return ruleSetRegistry.stage(flow, DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, new ArrayList<>(rules.values()))
+                    .onErrorMap(e -> new InvalidRequestException(INVALID_INPUT,
+                            "The decision table does not compile: " + e.getMessage()))
+                    .then(Mono.fromSupplier(() -> (System.nanoTime() - compileStart) / 1_000_000));
+        }).flatMap(compileMillis -> {
+            long writeStart = System.nanoTime();
+            return helper.insertRulesIntoDB(table.rules(), table.actionTexts(), rulesEngineProperties.getImportWriteConcurrency())
+                    .then(Mono.fromSupplier(() -> (System.nanoTime() - writeStart) / 1_000_000))
+                    .flatMap(writeMillis -> ruleSetRegistry.publish(flow, DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                                    () -> rulesByFlowRepo.findByFlow(flow).collectList())
+                            .then(Mono.fromSupplier(() -> {
+                                log.info("Imported {} rules into flow {} in {} ms", table.rules().size(), flow, writeMillis);
+                                return RuleImportReport.builder()
+                                        .flow(flow)
+                                        .importedRules(table.rules().size())
+                                        .replacedRules(replacedRules)
+                                        .updatedActions(table.actionTexts().size())
+                                        .totalRules(rules.size())
+                                        .parseMillis(parseMillis)
+                                        .compileMillis(compileMillis)
+                                        .writeMillis(writeMillis)
+                                        .build();
+                            })));
+        });
+    }
+
+
+    /**
+     * This method evaluates many facts against their flows' rules in one call.
+     * Identical facts are evaluated once, the rules of each flow are read and compiled once, and the
+     * questionnaire of each distinct actionId is loaded once.
+     *
+     * @param rulesDetailsList the facts to evaluate
+     * @param headers          the headers of the request
+     * @return Mono containing the per fact actionIds and the questionnaires by actionId
+     */
+    public Mono<BatchEvaluationResponse> questionnairesByFlowAndConditions(List<RulesDetails> rulesDetailsList,
+                                                                           Map<String, String> headers) {
+        if (rulesDetailsList == null || rulesDetailsList.isEmpty()) {
+            return Mono.error(new InvalidRequestException(INVALID_INPUT, "At least one fact is required"));
+        }
+        int maxFacts = rulesEngineProperties.getBatchMaxFacts();
+        if (rulesDetailsList.size() > maxFacts) {
+            return Mono.error(new InvalidRequestException(INVALID_INPUT, "At most " + maxFacts + " facts are allowed"));
+        }
+
+        // Facts are mutated by the rules, so duplicates are resolved before anything is evaluated
+        List<RulesDetails> distinctFacts = new ArrayList<>();
+        int[] distinctIndex = new int[rulesDetailsList.size()];
+        Map<RulesDetails, Integer> seen = new HashMap<>();
+        for (int i = 0; i < rulesDetailsList.size(); i++) {
+            RulesDetails fact = rulesDetailsList.get(i);
+            if (fact == null || fact.getFlow() == null) {
+                return Mono.error(new InvalidRequestException(INVALID_INPUT, "Flow cannot be null"));
+            }
+            Integer index = seen.get(fact);
+            if (index == null) {
+                index = distinctFacts.size();
+                seen.put(fact, index);
+                distinctFacts.add(fact);
+            }
+            distinctIndex[i] = index;
+        }
+        Map<String, List<RulesDetails>> factsByFlow = distinctFacts.stream()
+                .collect(Collectors.groupingBy(RulesDetails::getFlow, LinkedHashMap::new, Collectors.toList()));
+
+        return Flux.fromIterable(factsByFlow.entrySet())
+                .flatMap(flowFacts -> iqeRuleBase(flowFacts.getKey())
+                        .doOnNext(ruleBase -> flowFacts.getValue().forEach(fact -> {
+                            ShadowEvaluator.Sample sample = shadowEvaluator.sample(ruleBase, fact);
+                            ruleBase.fire(fact);
+                            sample.replay(fact);
+                        })))
+                .then(Mono.defer(() -> Flux.fromIterable(distinctFacts)
+                        .mapNotNull(RulesDetails::getActionId)
+                        .filter(actionId -> !actionId.isEmpty())
+                        .distinct()
+                        .flatMap(actionId -> questionnaireByActionId(actionId, new QuestionareRequest())
+                                .map(questionnaire -> Map.entry(actionId, questionnaire)))
+                        .collectMap(Map.Entry::getKey, Map.Entry::getValue)))
+                .map(questionnaires -> {
+                    List<BatchEvaluationResponse.FactResult> results = new ArrayList<>(rulesDetailsList.size());
+                    for (int i = 0; i < rulesDetailsList.size(); i++) {
+                        RulesDetails evaluated = distinctFacts.get(distinctIndex[i]);
+                        results.add(BatchEvaluationResponse.FactResult.builder()
+                                .index(i)
+                                .flow(evaluated.getFlow())
+                                .actionId(evaluated.getActionId())
+                                .build());
+                    }
+                    return BatchEvaluationResponse.builder()
+                            .statusCode(SUCCESS_MSG)
+                            .results(results)
+                            .questionnaires(questionnaires)
+                            .build();
+                })
+                .onErrorResume(e -> e instanceof InvalidRequestException ? Mono.error(e)
+                        : Mono.error(new ServerErrorException(FAILURE_CD, e.getMessage())));
+    }
+
 
     /**
      * This method is used to retrieve the questionnaire by actionId and questionId
@@ -421,42 +626,10 @@ public class IQEService implements SchedulingConstants {
         QuestionareRequest iqeOutPut = new QuestionareRequest();
         return Mono.deferContextual(ctx -> {
                     Mono<Questions> questionData = questionsRepo.findByActionIdAndQuestionId(actionId, questionId)
-                            .map(questions -> Questions.builder()
-                                    .actionId(questions.getActionId())
-                                    .questionId(questions.getQuestionId())
-                                    .answerOptionIds(questions.getAnswerOptionId())
-                                    .answerType(questions.getAnswerType())
-                                    .characterLimit(questions.getCharacterLimit())
-                                    .errorMessage(questions.getErrorMessage())
-                                    .helpText(questions.getHelpText())
-                                    .stacked(questions.isStacked())
-                                    .required(questions.isRequired())
-                                    .text(questions.getQuestionText())
-                                    .sequenceId(questions.getSequence_id()).build());
+                            .map(IQERepoOrchestrator::toQuestion);
 
                     Flux<AnswerOptions> answerOptionData = answerOptionsRepo.findByActionIdAndQuestionId(actionId, questionId)
-                            .map(answerOptions -> AnswerOptions.builder()
-                                    .actionId(answerOptions.getActionId())
-                                    .questionId(answerOptions.getQuestionId())
-                                    .answerOptionId(answerOptions.getAnswerOptionId())
-                                    .text(answerOptions.getAnswerText())
-                                    .value(answerOptions.getAnswerValue())
-                                    .relatedQuestionIds(answerOptions.getRelatedQuestions())
-                                    .sequenceId(answerOptions.getSequence_id())
-                                    .build())
-                            .flatMap(answerOptions -> {
-                                if (answerOptions.getRelatedQuestionIds() != null && !answerOptions.getRelatedQuestionIds().isEmpty()) {
-                                    List<Questions> relatedQuestions = answerOptions.getRelatedQuestionIds().stream()
-                                            .map(relatedQuestionId -> Questions.builder()
-                                                    .actionId(answerOptions.getActionId())
-                                                    .questionId(relatedQuestionId)
-                                                    .build())
-                                            .toList();
-                                    answerOptions.setRelatedQuestions(relatedQuestions);
-                                }
-                                return Mono.just(answerOptions);
-                            });
-
+                            .map(IQERepoOrchestrator::toAnswerOption);
 
                     return questionData.flatMap(qd -> answerOptionData.collectList()
                             .map(aos -> aos.stream()
@@ -484,62 +657,42 @@ public class IQEService implements SchedulingConstants {
      */
     public Mono<QuestionareRequest> questionnaireByFlow(RulesDetails rulesDetails, QuestionareRequest iqeOutPut,
                                                         Map<String, String> headers) {
-        return Mono.deferContextual(ctx -> {
-                    Flux<RulesByFlowEntity> ruleAttributesFlux = rulesByFlowRepo.findByFlow(rulesDetails.getFlow());
-
-                    ObjectDataCompiler compiler = new ObjectDataCompiler();
-
-                    return ruleAttributesFlux.collectList()
-                            .flatMap(ruleAttributesList -> {
-                                if (ruleAttributesList != null && !ruleAttributesList.isEmpty()) {
-                                    String generatedDRL = compiler.compile(ruleAttributesList, getClass().getClassLoader()
-                                            .getResourceAsStream(DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE));
-                                    KieServices kieServices = KieServices.Factory.get();
-                                    KieHelper kieHelper = new KieHelper();
-                                    byte[] b1 = generatedDRL.getBytes();
-                                    Resource resource1 = kieServices.getResources().newByteArrayResource(b1);
-                                    kieHelper.addResource(resource1, ResourceType.DRL);
-                                    KieBase kieBase = kieHelper.build();
-                                    KieSession kieSession = kieBase.newKieSession();
-                                    kieSession.insert(rulesDetails);
-                                    kieSession.fireAllRules(1);
-                                    kieSession.dispose();
-                                    if (rulesDetails.getActionId() != null && !rulesDetails.getActionId().isEmpty()) {
-                                        log.info("Rules Details: {}", rulesDetails);
-                                        return actionsRepo.findByActionId(rulesDetails.getActionId())
-                                                .collectList()
-                                                .flatMap(actionsEntities -> {
-                                                    ActionsEntity firstEntity = actionsEntities.stream().findFirst().orElse(null);
-                                                    if (firstEntity != null) {
-                                                        List<String> questionIds = firstEntity.getQuestionId().stream()
-                                                                .filter(id -> !id.isEmpty())
-                                                                .toList();
-                                                        return Flux.fromIterable(questionIds)
-                                                                .flatMap(questionId -> questionnaireByActionAndQuestionId(rulesDetails.getActionId(),
-                                                                        questionId, headers))
-                                                                .collectList()
-                                                                .doOnSuccess(questions -> {
-                                                                    if (iqeOutPut.getQuestions() == null) {
-                                                                        iqeOutPut.setQuestions(new ArrayList<>());
-                                                                    }
-                                                                    questions.forEach(question ->
-                                                                            iqeOutPut.getQuestions().add(question.getQuestion()));
-                                                                })
-
-                                                                .doOnSuccess(questions -> Collections.sort(iqeOutPut.getQuestions(), Comparator.comparingInt(Questions::getSequenceId)))
-                                                                .thenReturn(iqeOutPut);
-                                                    } else {
-                                                        return Mono.just(iqeOutPut);
-                                                    }
-                                                });
-                                    } else {
-                                        return Mono.just(iqeOutPut);
-                                    }
-                                } else {
-                                    return Mono.just(iqeOutPut);
-                                }
-                            });
-                })
+        return Mono.deferContextual(ctx -> iqeRuleBase(rulesDetails.getFlow())
+                        .flatMap(ruleBase -> {
+                            ShadowEvaluator.Sample sample = shadowEvaluator.sample(ruleBase, rulesDetails);
+                            ruleBase.fire(rulesDetails);
+                            sample.replay(rulesDetails);
+                            if (rulesDetails.getActionId() != null && !rulesDetails.getActionId().isEmpty()) {
+                                log.info("Rules Details: {}", rulesDetails);
+                                return helper.countingQueries(QUESTIONNAIRE_BY_FLOW_OPERATION,
+                                        IQERepoOrchestrator.counted(actionsRepo.findByActionId(rulesDetails.getActionId()))
+                                        .collectList()
+                                        .flatMap(actionsEntities -> {
+                                            ActionsEntity firstEntity = actionsEntities.stream().findFirst().orElse(null);
+                                            if (firstEntity != null) {
+                                                List<String> questionIds = firstEntity.getQuestionId().stream()
+                                                        .filter(id -> !id.isEmpty())
+                                                        .toList();
+                                                // One query per table for all the questions of the action
+                                                return helper.readQuestions(rulesDetails.getActionId(), questionIds)
+                                                        .doOnSuccess(questions -> {
+                                                            if (iqeOutPut.getQuestions() == null) {
+                                                                iqeOutPut.setQuestions(new ArrayList<>());
+                                                            }
+                                                            iqeOutPut.getQuestions().addAll(questions);
+                                                        })
+
+                                                        .doOnSuccess(questions -> Collections.sort(iqeOutPut.getQuestions(), Comparator.comparingInt(Questions::getSequenceId)))
+                                                        .thenReturn(iqeOutPut);
+                                            } else {
+                                                return Mono.just(iqeOutPut);
+                                            }
+                                        }));
+                            } else {
+                                return Mono.just(iqeOutPut);
+                            }
+                        })
+                        .defaultIfEmpty(iqeOutPut))
                 .onErrorResume(e -> Mono.error(new ServerErrorException(FAILURE_CD, e.getMessage())));
     }
 
@@ -559,19 +712,19 @@ public class IQEService implements SchedulingConstants {
      */
     public Mono<QuestionareRequest> getQuestionsByRelatedQuestionsList(RelatedQuestionsRequest answerOptions, QuestionareRequest iqeOutPut, Map<String, String> headers) {
 
-        return Flux.deferContextual(ctx -> Flux.fromIterable(answerOptions.getRelatedQuestions().isEmpty() ?
-                                Collections.emptyList() : answerOptions.getRelatedQuestions().stream()
-                                .map(Questions::getQuestionId).collect(Collectors.toList()))
-                        .flatMap(questionId -> questionnaireByActionAndQuestionId(answerOptions
-                                .getRelatedQuestions().get(0).getActionId(), questionId, headers))
-                        .collectList())
+        List<String> questionIds = answerOptions.getRelatedQuestions().stream()
+                .map(Questions::getQuestionId)
+                .collect(Collectors.toList());
+        return Mono.deferContextual(ctx -> helper.countingQueries(RELATED_QUESTIONS_OPERATION, questionIds.isEmpty()
+                        ? Mono.just(List.<Questions>of())
+                        : helper.readQuestions(answerOptions.getRelatedQuestions().get(0).getActionId(), questionIds)))
+                .onErrorResume(e -> Mono.error(new ServerErrorException(FAILURE_CD, e.getMessage())))
                 .doOnNext(questions -> {
                     if (iqeOutPut.getQuestions() == null) iqeOutPut.setQuestions(new ArrayList<>());
-                    questions.forEach(question -> iqeOutPut.getQuestions().add(question.getQuestion()));
+                    iqeOutPut.getQuestions().addAll(questions);
                 })
                 .doOnNext(questions -> Collections.sort(iqeOutPut.getQuestions(),
                         Comparator.comparingInt(Questions::getSequenceId)))
-                .last()
                 .map(questions -> iqeOutPut);
 
     }
@@ -0,0 +1,181 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.config.RulesEngineConfig;
+import lombok.extern.slf4j.Slf4j;
+import org.drools.kiesession.rulebase.InternalKnowledgeBase;
+import org.kie.api.KieBase;
+import org.kie.api.KieServices;
+import org.kie.api.definition.KiePackage;
+import org.kie.api.runtime.KieContainer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Derives the new Drools rule base of a flow from its last build when its rows changed by a few
+ * rules: a new {@link KieBase} is created from the build's container, which reuses its compiled
+ * packages, only the rules added or changed since are compiled, and they and the removed rules are
+ * added to and removed from the new {@link KieBase} before it is published. The rule base being
+ * replaced is never changed, so evaluations still running on it finish on the rules they started
+ * with.
+ * <p>
+ * Changes adding up to more rules than allowed, changes the salience order of the rules would not
+ * decide, and failed updates rebuild the flow instead, as do flows compiled to the executable model
+ * or consolidated.
+ */
+@Slf4j
+final class IncrementalRuleBaseUpdater {
+
+    private static final KieServices kieServices = KieServices.Factory.get();
+
+    private final RuleCompiler ruleCompiler;
+    private final RulesEngineConfig.RulesEngineProperties rulesEngineProperties;
+    private final Map<FlowKey, UpdatableRuleBase> updatableRuleBases = new ConcurrentHashMap<>();
+
+    IncrementalRuleBaseUpdater(RuleCompiler ruleCompiler, RulesEngineConfig.RulesEngineProperties rulesEngineProperties) {
+        this.ruleCompiler = ruleCompiler;
+        this.rulesEngineProperties = rulesEngineProperties;
+    }
+
+    private boolean isEnabled() {
+        return rulesEngineProperties.isIncrementalUpdates()
+                && rulesEngineProperties.getCompilationMode() == RulesEngineConfig.CompilationMode.MVEL
+                && rulesEngineProperties.getRuleBaseLayout() != RulesEngineConfig.RuleBaseLayout.CONSOLIDATED;
+    }
+
+    /**
+     * The update turning the flow's last build into the rule base of the rows. The last build is
+     * left as it is, so concurrent builds of the flow may both derive from it.
+     *
+     * @return the update, empty when the flow has to be rebuilt
+     */
+    Optional<Update> update(String flow, String templateFile, List<?> rules) {
+        UpdatableRuleBase previous = updatableRuleBases.get(new FlowKey(flow, templateFile));
+        if (previous == null || !isEnabled()) {
+            return Optional.empty();
+        }
+        return RuleDelta.between(previous.rules(), rules, rulesEngineProperties.getIncrementalMaxChanges())
+                .map(delta -> new Update(previous.kieContainer(), delta));
+    }
+
+    /**
+     * Compiles the added rules on their own, then creates a new {@link KieBase} from the container
+     * of the last build, removes the removed rules from it and adds the compiled ones.
+     *
+     * @param memo the memo of outcomes, {@code null} to always evaluate with Drools
+     */
+    CompiledRuleBase apply(String flow, String templateFile, Update update, EvaluationMemo memo) {
+        RuleDelta delta = update.delta();
+        Collection<KiePackage> added = delta.added().isEmpty() ? List.of()
+                : ruleCompiler.compilePackages(flow, ruleCompiler.generateDrl(templateFile, delta.added()));
+        KieBase kieBase = update.kieContainer().newKieBase(kieServices.newKieBaseConfiguration());
+        for (String ruleName : delta.removed()) {
+            for (KiePackage kiePackage : kieBase.getKiePackages()) {
+                if (kieBase.getRule(kiePackage.getName(), ruleName) != null) {
+                    kieBase.removeRule(kiePackage.getName(), ruleName);
+                }
+            }
+        }
+        ((InternalKnowledgeBase) kieBase).addPackages(added);
+        log.info("Derived rule base for flow {} from its last build: {} rules compiled, {} removed", flow,
+                delta.added().size(), delta.removed().size());
+        return new CompiledRuleBase(kieBase, rulesEngineProperties.getSessionMode(),
+                rulesEngineProperties.getSessionPoolSize(), memo, null);
+    }
+
+    /**
+     * Records the rule base built for the rows as the base of the flow's later changes. Derived
+     * rule bases have no container of their own, so later changes derive from the same build.
+     */
+    void built(String flow, String templateFile, List<?> rules, CompiledRuleBase ruleBase) {
+        FlowKey key = new FlowKey(flow, templateFile);
+        if (!ruleBase.isNative() && ruleBase.kieContainer() != null && isEnabled()) {
+            updatableRuleBases.put(key, new UpdatableRuleBase(rules, ruleBase.kieContainer()));
+        } else if (ruleBase.isNative()) {
+            updatableRuleBases.remove(key);
+        }
+    }
+
+    /**
+     * Forgets the last builds of the flow.
+     */
+    void invalidate(String flow) {
+        updatableRuleBases.keySet().removeIf(k -> k.flow().equals(flow));
+    }
+
+    /**
+     * The changes to apply to the container of the flow's last build.
+     */
+    record Update(KieContainer kieContainer, RuleDelta delta) {
+    }
+
+    private record FlowKey(String flow, String templateFile) {
+    }
+
+    /**
+     * The container of a Drools build and the rows it was built from.
+     */
+    private record UpdatableRuleBase(List<?> rules, KieContainer kieContainer) {
+    }
+
+    /**
+     * The rules to compile and to remove to turn the rule base of one set of rows into the rule base
+     * of another. A changed rule is removed and compiled again.
+     *
+     * @param added   the added and changed rows
+     * @param removed the names of the removed and changed rules
+     */
+    record RuleDelta(List<Object> added, List<String> removed) {
+
+        /**
+         * The delta between the rows, unless it is larger than {@code maxChanges} or applying it
+         * could fire rules in another order than a rebuild. Rules of equal salience fire in load
+         * order, which a rebuild takes from the rows, so every added rule must have a salience of
+         * its own. Rows with duplicate rule names, which do not compile, or of an unknown type have
+         * no delta either.
+         */
+        static Optional<RuleDelta> between(List<?> previous, List<?> rules, int maxChanges) {
+            Map<String, Object> previousByName = byName(previous);
+            Map<String, Object> rulesByName = byName(rules);
+            if (previousByName == null || rulesByName == null) {
+                return Optional.empty();
+            }
+            Map<Integer, Integer> saliences = new HashMap<>();
+            rules.forEach(rule -> saliences.merge(RuleBaseCache.salience(rule), 1, Integer::sum));
+            List<Object> added = new ArrayList<>();
+            List<String> removed = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : previousByName.entrySet()) {
+                Object rule = rulesByName.get(entry.getKey());
+                if (rule == null || !rule.equals(entry.getValue())) {
+                    removed.add(entry.getKey());
+                }
+            }
+            for (Object rule : rules) {
+                if (!rule.equals(previousByName.get(RuleBaseCache.ruleName(rule)))) {
+                    if (saliences.get(RuleBaseCache.salience(rule)) > 1) {
+                        return Optional.empty();
+                    }
+                    added.add(rule);
+                }
+            }
+            long changes = added.size() + removed.stream().filter(name -> !rulesByName.containsKey(name)).count();
+            return changes > maxChanges ? Optional.empty() : Optional.of(new RuleDelta(added, removed));
+        }
+
+        private static Map<String, Object> byName(List<?> rules) {
+            Map<String, Object> byName = new HashMap<>();
+            for (Object rule : rules) {
+                String name = RuleBaseCache.ruleName(rule);
+                if (name == null || byName.putIfAbsent(name, rule) != null) {
+                    return null;
+                }
+            }
+            return byName;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.model.RulesDetails;
+import com.cvshealth.digital.microservice.iqe.service.CompiledRuleBase.NativeRule;
+import com.cvshealth.digital.microservice.iqe.utils.ConditionParser;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Hash index over the native rules of a flow.
+ * <p>
+ * The index is keyed on the one attribute, among the equality attributes rules are usually
+ * written against, that leaves the fewest candidate rules per request. A rule that does not test
+ * that attribute for equality is a candidate for every request. Candidate lists keep the salience
+ * order of the rule base, so the first candidate whose condition holds is the rule Drools would
+ * have fired.
+ */
+@Slf4j
+class NativeRuleIndex {
+
+    static final List<String> INDEXABLE_FIELDS = List.of("requiredQuestionnaireContext", "reasonId",
+            "reasonMappingId", "state", "modality", "lob");
+
+    /** Name of the indexed attribute, {@code null} when no attribute narrows the rules down. */
+    @Getter
+    private final String field;
+    private final Function<RulesDetails, Object> getter;
+    private final Map<Object, List<NativeRule>> candidatesByValue = new HashMap<>();
+    private final List<NativeRule> unindexed = new ArrayList<>();
+
+    /**
+     * @param rules the rules in evaluation order
+     */
+    NativeRuleIndex(List<NativeRule> rules) {
+        this.field = chooseField(rules);
+        this.getter = field == null ? null : ConditionParser.getter(field);
+
+        Map<Object, List<NativeRule>> indexed = new HashMap<>();
+        for (NativeRule rule : rules) {
+            Object value = field == null ? null : equalityValue(rule, field);
+            if (value == null) {
+                unindexed.add(rule);
+                // A rule without the attribute stays a candidate of every bucket, in its position
+                indexed.values().forEach(bucket -> bucket.add(rule));
+            } else {
+                indexed.computeIfAbsent(key(value), k -> new ArrayList<>(unindexed)).add(rule);
+            }
+        }
+        indexed.forEach((value, bucket) -> candidatesByValue.put(value, List.copyOf(bucket)));
+        if (field != null) {
+            log.debug("Indexed {} rules on {} into {} buckets, {} unindexed", rules.size(), field,
+                    candidatesByValue.size(), unindexed.size());
+        }
+    }
+
+    /**
+     * Rules that may match the fact, in evaluation order.
+     *
+     * @param rulesDetails the fact
+     * @return the candidate rules
+     */
+    List<NativeRule> candidates(RulesDetails rulesDetails) {
+        if (field == null) {
+            return unindexed;
+        }
+        Object value = getter.apply(rulesDetails);
+        if (value == null) {
+            return unindexed;
+        }
+        return candidatesByValue.getOrDefault(key(value), unindexed);
+    }
+
+    /**
+     * Picks the attribute minimising the expected number of candidates: rules that do not test it
+     * plus the average bucket size of those that do.
+     */
+    private static String chooseField(List<NativeRule> rules) {
+        String best = null;
+        double bestCost = rules.size();
+        for (String candidate : INDEXABLE_FIELDS) {
+            Map<Object, Integer> bucketSizes = new HashMap<>();
+            int covered = 0;
+            for (NativeRule rule : rules) {
+                Object value = equalityValue(rule, candidate);
+                if (value != null) {
+                    bucketSizes.merge(key(value), 1, Integer::sum);
+                    covered++;
+                }
+            }
+            if (covered == 0) {
+                continue;
+            }
+            double cost = (rules.size() - covered) + (double) covered / bucketSizes.size();
+            if (cost < bestCost) {
+                best = candidate;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The literal the rule requires the attribute to equal, or {@code null} if it does not
+     * constrain the attribute that way.
+     */
+    private static Object equalityValue(NativeRule rule, String field) {
+        for (ConditionParser.Comparison comparison : rule.condition().comparisons()) {
+            if (comparison.field().equals(field) && comparison.operator() == ConditionParser.Operator.EQ
+                    && comparison.value() != null) {
+                return comparison.value();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Numbers are keyed by value so that an {@code Integer} fact finds a rule written as
+     * {@code 86} or {@code 86.0}.
+     */
+    private static Object key(Object value) {
+        if (value instanceof String) {
+            return value;
+        }
+        return new BigDecimal(value.toString()).stripTrailingZeros();
+    }
+}
@@ -0,0 +1,216 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.dto.AnswerOptions;
+import com.cvshealth.digital.microservice.iqe.dto.Questions;
+import com.cvshealth.digital.microservice.iqe.entity.AnswerOptionsEntity;
+import com.cvshealth.digital.microservice.iqe.entity.QuestionsEntity;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+
+/**
+ * Builds the question trees of an action from its question and answer option rows.
+ * <p>
+ * The rows are indexed by id once, so each node finds its answer options and related questions
+ * without scanning every row of the action, and the rows passed in are never modified. The order is
+ * the one questionnaires have always been served in: answer options by sequenceId, then answer
+ * text, and questions by sequenceId, then row order. Trees are expanded with an explicit stack, and
+ * a question is left out of its own subtree, so rows relating questions in a cycle still give a
+ * finite tree.
+ */
+public final class QuestionnaireTreeBuilder {
+
+    private static final Comparator<String> TEXT_ORDER = Comparator.nullsLast(Comparator.naturalOrder());
+
+    private final List<QuestionsEntity> questions;
+    private final List<AnswerOptionsEntity> answerOptions;
+    private final Map<String, List<Integer>> questionsById;
+    private final Map<String, List<Integer>> answerOptionsById;
+
+    /**
+     * @param questions     every question row of the action, nested ones included
+     * @param answerOptions every answer option row of the action
+     */
+    public QuestionnaireTreeBuilder(List<QuestionsEntity> questions, List<AnswerOptionsEntity> answerOptions) {
+        this.questions = new ArrayList<>(questions);
+        this.answerOptions = new ArrayList<>(answerOptions);
+        this.questionsById = new HashMap<>(this.questions.size() * 2);
+        for (int i = 0; i < this.questions.size(); i++) {
+            questionsById.computeIfAbsent(this.questions.get(i).getQuestionId(), id -> new ArrayList<>(1)).add(i);
+        }
+        this.answerOptionsById = new HashMap<>(this.answerOptions.size() * 2);
+        for (int i = 0; i < this.answerOptions.size(); i++) {
+            answerOptionsById.computeIfAbsent(this.answerOptions.get(i).getAnswerOptionId(), id -> new ArrayList<>(1)).add(i);
+        }
+    }
+
+    /**
+     * Builds the trees of top level questions.
+     *
+     * @param topLevel the top level question rows
+     * @return their trees, in sequence order
+     */
+    public List<Questions> build(List<QuestionsEntity> topLevel) {
+        List<QuestionsEntity> ordered = new ArrayList<>(topLevel);
+        ordered.sort(Comparator.comparingInt(question -> sequence(question.getSequence_id())));
+        Deque<Node> pending = new ArrayDeque<>();
+        List<Questions> trees = new ArrayList<>(ordered.size());
+        for (QuestionsEntity question : ordered) {
+            trees.add(enqueue(question, null, pending));
+        }
+        expand(pending);
+        return trees;
+    }
+
+    /**
+     * Builds the tree of one question.
+     *
+     * @param question the question row
+     * @return its tree
+     */
+    public Questions build(QuestionsEntity question) {
+        Deque<Node> pending = new ArrayDeque<>();
+        Questions tree = enqueue(question, null, pending);
+        expand(pending);
+        return tree;
+    }
+
+    /**
+     * Builds the tree of one answer option.
+     *
+     * @param answerOption the answer option row
+     * @return the answer option with its related questions
+     */
+    public AnswerOptions build(AnswerOptionsEntity answerOption) {
+        Deque<Node> pending = new ArrayDeque<>();
+        AnswerOptions tree = answerOption(answerOption, null, pending);
+        expand(pending);
+        return tree;
+    }
+
+    private void expand(Deque<Node> pending) {
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            List<AnswerOptions> options = new ArrayList<>();
+            for (int position : answerOptionPositions(node.row().getAnswerOptionId())) {
+                options.add(answerOption(answerOptions.get(position), node.path(), pending));
+            }
+            node.question().setAnswerOptions(options);
+        }
+    }
+
+    private AnswerOptions answerOption(AnswerOptionsEntity row, Path path, Deque<Node> pending) {
+        AnswerOptions answerOption = AnswerOptions.builder()
+                .actionId(row.getActionId())
+                .questionId(row.getQuestionId())
+                .answerOptionId(row.getAnswerOptionId())
+                .text(row.getAnswerText())
+                .value(row.getAnswerValue())
+                .sequenceId(sequence(row.getSequence_id()))
+                .relatedQuestionIds(row.getRelatedQuestions())
+                .additionalDetailText(row.getAdditionalDetailText() != null ? row.getAdditionalDetailText() : "")
+                .build();
+        List<Questions> relatedQuestions = new ArrayList<>();
+        for (int position : questionPositions(row.getRelatedQuestions())) {
+            QuestionsEntity related = questions.get(position);
+            if (path == null || !path.contains(related.getQuestionId())) {
+                relatedQuestions.add(enqueue(related, path, pending));
+            }
+        }
+        if (!relatedQuestions.isEmpty()) {
+            answerOption.setRelatedQuestions(relatedQuestions);
+        }
+        return answerOption;
+    }
+
+    private Questions enqueue(QuestionsEntity row, Path parent, Deque<Node> pending) {
+        Questions question = Questions.builder()
+                .actionId(row.getActionId())
+                .questionId(row.getQuestionId())
+                .text(row.getQuestionText())
+                .errorMessage(row.getErrorMessage())
+                .answerType(row.getAnswerType())
+                .stacked(row.isStacked())
+                .required(row.isRequired())
+                .helpText(row.getHelpText() != null ? row.getHelpText() : "")
+                .characterLimit(row.getCharacterLimit())
+                .sequenceId(sequence(row.getSequence_id()))
+                .linkText(row.getLinkText() != null ? row.getLinkText() : "")
+                .skipLegend(row.getSkiplegend() != null ? row.getSkiplegend() : "")
+                .questionNumber(row.getQuestionnumber() != null ? row.getQuestionnumber() : 0)
+                .subContext(row.getSubcontext() != null ? row.getSubcontext() : "")
+                .answerOptionIds(row.getAnswerOptionId() != null ? row.getAnswerOptionId() : new ArrayList<>())
+                .build();
+        pending.push(new Node(row, question, new Path(row.getQuestionId(), parent)));
+        return question;
+    }
+
+    /**
+     * Positions of the answer option rows with the ids, each once, by sequenceId, answer text and
+     * row order.
+     */
+    private List<Integer> answerOptionPositions(Collection<String> ids) {
+        List<Integer> positions = positions(ids, answerOptionsById);
+        positions.sort(Comparator.<Integer>comparingInt(position -> sequence(answerOptions.get(position).getSequence_id()))
+                .thenComparing(position -> answerOptions.get(position).getAnswerText(), TEXT_ORDER)
+                .thenComparingInt(position -> position));
+        return positions;
+    }
+
+    /**
+     * Positions of the question rows with the ids, each once, by sequenceId and row order.
+     */
+    private List<Integer> questionPositions(Collection<String> ids) {
+        List<Integer> positions = positions(ids, questionsById);
+        positions.sort(Comparator.<Integer>comparingInt(position -> sequence(questions.get(position).getSequence_id()))
+                .thenComparingInt(position -> position));
+        return positions;
+    }
+
+    private static List<Integer> positions(Collection<String> ids, Map<String, List<Integer>> index) {
+        if (ids == null || ids.isEmpty()) {
+            return new ArrayList<>(0);
+        }
+        TreeSet<Integer> positions = new TreeSet<>();
+        for (String id : ids) {
+            List<Integer> rows = index.get(id);
+            if (rows != null) {
+                positions.addAll(rows);
+            }
+        }
+        return new ArrayList<>(positions);
+    }
+
+    private static int sequence(Integer sequenceId) {
+        return sequenceId != null ? sequenceId : 0;
+    }
+
+    /**
+     * A question whose answer options are still to be built.
+     */
+    private record Node(QuestionsEntity row, Questions question, Path path) {
+    }
+
+    /**
+     * The ids of a question and its ancestors.
+     */
+    private record Path(String questionId, Path parent) {
+
+        boolean contains(String id) {
+            for (Path path = this; path != null; path = path.parent()) {
+                if (Objects.equals(path.questionId(), id)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.dto.RuleAnalysisReport;
+import com.cvshealth.digital.microservice.iqe.entity.QuestionnaireRules;
+import com.cvshealth.digital.microservice.iqe.entity.RulesByFlowEntity;
+import com.cvshealth.digital.microservice.iqe.utils.ConditionParser;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Finds the rules of a flow that can never fire.
+ * <p>
+ * Every template rule is in the same activation-group, so only the first matching rule fires, in
+ * descending salience with ties broken by row order. A rule is never reached when it is inactive,
+ * when its condition cannot be satisfied, or when a rule that fires before it matches every fact
+ * it matches. Implication between conditions is only decided for conditions {@link ConditionParser}
+ * understands; other conditions only cover rules with the very same condition text, so a rule is
+ * never reported unless it provably cannot fire.
+ */
+final class RuleAnalyzer {
+
+    private RuleAnalyzer() {
+    }
+
+    /**
+     * Analyzes the rule rows of a flow.
+     *
+     * @param rules the rule rows, in the order they are loaded
+     * @return the rows that can fire, in their original order, and why the others cannot
+     */
+    static Analysis analyze(List<?> rules) {
+        List<Row> rows = new ArrayList<>(rules.size());
+        for (int i = 0; i < rules.size(); i++) {
+            Row row = Row.of(rules.get(i), i);
+            if (row == null) {
+                // Rows of an unknown type are left alone
+                return new Analysis(rules, List.of());
+            }
+            rows.add(row);
+        }
+        rows.sort(Comparator.comparingInt(Row::salience).reversed());
+
+        Reachable reachable = new Reachable();
+        Map<Integer, RuleAnalysisReport.Finding> pruned = new HashMap<>();
+        List<RuleAnalysisReport.Finding> findings = new ArrayList<>();
+        for (Row row : rows) {
+            RuleAnalysisReport.Finding finding = finding(row, reachable);
+            if (finding == null) {
+                reachable.add(row);
+            } else {
+                pruned.put(row.index(), finding);
+                findings.add(finding);
+            }
+        }
+        if (pruned.isEmpty()) {
+            return new Analysis(rules, List.of());
+        }
+        List<Object> kept = new ArrayList<>(rules.size() - pruned.size());
+        for (int i = 0; i < rules.size(); i++) {
+            if (!pruned.containsKey(i)) {
+                kept.add(rules.get(i));
+            }
+        }
+        return new Analysis(kept, findings);
+    }
+
+    /**
+     * Copies the rule rows with their conditions in canonical form, see
+     * {@link ConditionParser#canonicalize}. Rows of an unknown type are kept as they are.
+     *
+     * @param rules the rule rows
+     * @return the canonical rows, in the same order
+     */
+    static List<?> canonicalize(List<?> rules) {
+        List<Object> canonical = new ArrayList<>(rules.size());
+        for (Object rule : rules) {
+            if (rule instanceof RulesByFlowEntity entity) {
+                canonical.add(RulesByFlowEntity.builder()
+                        .flow(entity.getFlow())
+                        .ruleId(entity.getRuleId())
+                        .ruleName(entity.getRuleName())
+                        .actionId(entity.getActionId())
+                        .condition(ConditionParser.canonicalize(entity.getCondition()))
+                        .lob(entity.getLob())
+                        .salience(entity.getSalience())
+                        .isActive(entity.isActive())
+                        .audit(entity.getAudit())
+                        .build());
+            } else if (rule instanceof QuestionnaireRules entity) {
+                QuestionnaireRules copy = new QuestionnaireRules();
+                copy.setFlow(entity.getFlow());
+                copy.setId(entity.getId());
+                copy.setLob(entity.getLob());
+                copy.setSalience(entity.getSalience());
+                copy.setCondition(ConditionParser.canonicalize(entity.getCondition()));
+                copy.setAction(entity.getAction());
+                copy.setRuleName(entity.getRuleName());
+                canonical.add(copy);
+            } else {
+                canonical.add(rule);
+            }
+        }
+        return canonical;
+    }
+
+    /**
+     * Number of rows whose condition differs between the two lists of the same rows.
+     */
+    static int countChanged(List<?> rules, List<?> canonical) {
+        int changed = 0;
+        for (int i = 0; i < rules.size(); i++) {
+            Row row = Row.of(rules.get(i), i);
+            Row canonicalRow = Row.of(canonical.get(i), i);
+            if (row != null && canonicalRow != null && !Objects.equals(row.condition(), canonicalRow.condition())) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    private static RuleAnalysisReport.Finding finding(Row row, Reachable firesBefore) {
+        if (!row.active()) {
+            return finding(row, RuleAnalysisReport.Reason.INACTIVE, null);
+        }
+        if (row.parsed().isPresent() && !row.parsed().get().isSatisfiable()) {
+            return finding(row, RuleAnalysisReport.Reason.UNSATISFIABLE, null);
+        }
+        Row before = firesBefore.firstCovering(row);
+        if (before == null) {
+            return null;
+        }
+        boolean equivalent = Objects.equals(row.condition(), before.condition())
+                || before.parsed().get().implies(row.parsed().get());
+        return finding(row, equivalent ? RuleAnalysisReport.Reason.DUPLICATE : RuleAnalysisReport.Reason.SHADOWED,
+                before.ruleId());
+    }
+
+    private static RuleAnalysisReport.Finding finding(Row row, RuleAnalysisReport.Reason reason, String coveredBy) {
+        return RuleAnalysisReport.Finding.builder()
+                .ruleId(row.ruleId())
+                .reason(reason)
+                .coveredBy(coveredBy)
+                .build();
+    }
+
+    /**
+     * The rules that can fire, indexed so a rule is only compared with the rules that could
+     * cover it. A rule comparing a field with {@code ==} can only be covered by rules that have
+     * the same comparison, so rules are filed under their first such comparison; only rules
+     * without one are compared with every rule.
+     */
+    private static final class Reachable {
+
+        private final Map<String, Row> byCondition = new HashMap<>();
+        private final Map<List<Object>, List<Row>> byEquality = new HashMap<>();
+        private final List<Row> withoutEquality = new ArrayList<>();
+        private final Map<Integer, Integer> positions = new HashMap<>();
+
+        void add(Row row) {
+            positions.put(row.index(), positions.size());
+            byCondition.putIfAbsent(row.condition(), row);
+            if (row.parsed().isEmpty()) {
+                return;
+            }
+            List<Object> key = row.parsed().get().comparisons().stream()
+                    .filter(comparison -> comparison.operator() == ConditionParser.Operator.EQ)
+                    .findFirst()
+                    .map(Reachable::key)
+                    .orElse(null);
+            if (key == null) {
+                withoutEquality.add(row);
+            } else {
+                byEquality.computeIfAbsent(key, k -> new ArrayList<>()).add(row);
+            }
+        }
+
+        /**
+         * The first rule that fires before the row whenever the row matches, if any.
+         */
+        Row firstCovering(Row row) {
+            Row first = byCondition.get(row.condition());
+            if (row.parsed().isEmpty()) {
+                return first;
+            }
+            first = earlier(first, firstImplied(row, withoutEquality));
+            for (ConditionParser.Comparison comparison : row.parsed().get().comparisons()) {
+                if (comparison.operator() == ConditionParser.Operator.EQ) {
+                    first = earlier(first, firstImplied(row, byEquality.getOrDefault(key(comparison), List.of())));
+                }
+            }
+            return first;
+        }
+
+        private Row firstImplied(Row row, List<Row> candidates) {
+            for (Row candidate : candidates) {
+                if (row.parsed().get().implies(candidate.parsed().get())) {
+                    return candidate;
+                }
+            }
+            return null;
+        }
+
+        private Row earlier(Row a, Row b) {
+            if (a == null || b == null) {
+                return a == null ? b : a;
+            }
+            return positions.get(a.index()) <= positions.get(b.index()) ? a : b;
+        }
+
+        private static List<Object> key(ConditionParser.Comparison comparison) {
+            Object value = comparison.value() instanceof BigDecimal number ? number.stripTrailingZeros() : comparison.value();
+            return Arrays.asList(comparison.field(), value);
+        }
+    }
+
+    /**
+     * Outcome of an analysis.
+     *
+     * @param kept     the rows that can fire, in their original order
+     * @param findings the rows that cannot, in firing order
+     */
+    record Analysis(List<?> kept, List<RuleAnalysisReport.Finding> findings) {
+    }
+
+    private record Row(int index, String ruleId, int salience, boolean active, String condition,
+                       Optional<ConditionParser.ParsedCondition> parsed) {
+
+        static Row of(Object rule, int index) {
+            if (rule instanceof RulesByFlowEntity entity) {
+                return new Row(index, entity.getRuleId(), entity.getSalience(), entity.isActive(),
+                        strip(entity.getCondition()), ConditionParser.parse(entity.getCondition()));
+            }
+            if (rule instanceof QuestionnaireRules entity) {
+                // Questionnaire rules have no active flag
+                return new Row(index, entity.getId(), entity.getSalience(), true,
+                        strip(entity.getCondition()), ConditionParser.parse(entity.getCondition()));
+            }
+            return null;
+        }
+
+        private static String strip(String condition) {
+            return condition == null ? null : condition.strip();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.config.RulesEngineConfig;
+import com.cvshealth.digital.microservice.iqe.entity.RuleArtifactEntity;
+import com.cvshealth.digital.microservice.iqe.repository.RuleArtifactRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.kie.api.KieServices;
+import org.kie.api.builder.ReleaseId;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The compiled rule bases stored as KJARs in {@code rule_artifacts}, keyed by flow, template and
+ * compilation mode, so whichever node sees a new rule set first compiles it for the others.
+ * <p>
+ * Only executable model KJARs are stored: they hold the compiled model classes, while an MVEL KJAR
+ * only holds the DRL, which Drools compiles again when it is loaded.
+ */
+@Slf4j
+final class RuleArtifactStore {
+
+    static final String ARTIFACT_METRIC = "iqe.rulebase.artifact";
+
+    private static final KieServices kieServices = KieServices.Factory.get();
+
+    private final RuleArtifactRepository ruleArtifactRepo;
+    private final RulesEngineConfig.RulesEngineProperties rulesEngineProperties;
+    private final MeterRegistry meterRegistry;
+    private final Map<ArtifactCounterKey, Counter> artifactCounters = new ConcurrentHashMap<>();
+
+    /**
+     * @param ruleArtifactRepo the repository, {@code null} when artifacts are not persisted
+     */
+    RuleArtifactStore(RuleArtifactRepository ruleArtifactRepo, RulesEngineConfig.RulesEngineProperties rulesEngineProperties,
+                      MeterRegistry meterRegistry) {
+        this.ruleArtifactRepo = ruleArtifactRepo;
+        this.rulesEngineProperties = rulesEngineProperties;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Whether Drools rule bases are stored as artifacts.
+     */
+    boolean isEnabled() {
+        return ruleArtifactRepo != null && rulesEngineProperties.isArtifactsEnabled()
+                && rulesEngineProperties.getCompilationMode() == RulesEngineConfig.CompilationMode.EXECUTABLE_MODEL;
+    }
+
+    /**
+     * The stored artifact of the flow, if it was built from the same rows. A failed read is logged
+     * and treated as a miss.
+     */
+    Mono<RuleArtifactEntity> find(String flow, String templateFile, String rulesHash) {
+        return ruleArtifactRepo.findArtifact(flow, templateFile, rulesEngineProperties.getCompilationMode().name())
+                .onErrorResume(e -> {
+                    log.warn("Could not read the rule artifact of flow {}", flow, e);
+                    return Mono.empty();
+                })
+                .filter(artifact -> {
+                    if (!rulesHash.equals(artifact.getRulesHash())) {
+                        artifactCounter(flow, "stale").increment();
+                        return false;
+                    }
+                    return true;
+                });
+    }
+
+    /**
+     * Adds the artifact's KJAR to the KieRepository.
+     *
+     * @return the release of the added module, {@code null} when the KJAR does not match its checksum
+     */
+    ReleaseId install(String flow, RuleArtifactEntity artifact) {
+        byte[] kjar = bytes(artifact.getKjar());
+        if (!DigestUtils.sha256Hex(kjar).equals(artifact.getChecksum())) {
+            log.warn("Checksum mismatch on the rule artifact of flow {}, compiling it instead", flow);
+            artifactCounter(flow, "corrupt").increment();
+            return null;
+        }
+        return kieServices.getRepository().addKieModule(kieServices.getResources().newByteArrayResource(kjar))
+                .getReleaseId();
+    }
+
+    void loaded(String flow) {
+        log.info("Loaded rule base for flow {} from its stored artifact", flow);
+        artifactCounter(flow, "loaded").increment();
+    }
+
+    void failed(String flow, Throwable e) {
+        log.warn("Could not load the rule artifact of flow {}, compiling it instead", flow, e);
+        artifactCounter(flow, "failed").increment();
+    }
+
+    /**
+     * Replaces the stored artifact of the flow. A failed write only costs other nodes a compile,
+     * so it does not fail the evaluation.
+     */
+    Mono<Void> store(String flow, String templateFile, String rulesHash, byte[] kjar) {
+        return ruleArtifactRepo.save(RuleArtifactEntity.builder()
+                        .flow(flow)
+                        .templateFile(templateFile)
+                        .compilationMode(rulesEngineProperties.getCompilationMode().name())
+                        .rulesHash(rulesHash)
+                        .checksum(DigestUtils.sha256Hex(kjar))
+                        .kjar(ByteBuffer.wrap(kjar))
+                        .createdTs(Instant.now())
+                        .build())
+                .doOnSuccess(saved -> artifactCounter(flow, "stored").increment())
+                .onErrorResume(e -> {
+                    log.warn("Could not store the rule artifact of flow {}", flow, e);
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        ByteBuffer copy = buffer.duplicate();
+        byte[] bytes = new byte[copy.remaining()];
+        copy.get(bytes);
+        return bytes;
+    }
+
+    private Counter artifactCounter(String flow, String result) {
+        return artifactCounters.computeIfAbsent(new ArtifactCounterKey(flow, result), k -> Counter.builder(ARTIFACT_METRIC)
+                .tag("flow", flow)
+                .tag("result", result)
+                .register(meterRegistry));
+    }
+
+    private record ArtifactCounterKey(String flow, String result) {
+    }
+}
@@ -0,0 +1,677 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.config.RulesEngineConfig;
+import com.cvshealth.digital.microservice.iqe.dto.RuleAnalysisReport;
+import com.cvshealth.digital.microservice.iqe.entity.QuestionnaireRules;
+import com.cvshealth.digital.microservice.iqe.entity.RulesByFlowEntity;
+import com.cvshealth.digital.microservice.iqe.model.PreparedQuestions;
+import com.cvshealth.digital.microservice.iqe.repository.RuleArtifactRepository;
+import com.cvshealth.digital.microservice.iqe.utils.ConditionParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.drools.compiler.kie.builder.impl.InternalKieModule;
+import org.drools.kiesession.rulebase.InternalKnowledgeBase;
+import org.kie.api.builder.ReleaseId;
+import org.kie.api.runtime.KieContainer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Caches the compiled rule base of each flow, keyed by flow, template file and a hash of the rule
+ * rows, so a flow is only built again once its rows change. Builds run single-flight on the
+ * {@code ruleCompileScheduler}, natively when every condition allows it, otherwise with Drools
+ * from a stored artifact, by deriving the flow's last build or into the template's shared rule
+ * base where enabled. Evicted rule bases are retired by {@link RuleSetRegistry}, not here.
+ */
+@Component
+@Slf4j
+public class RuleBaseCache {
+
+    static final String CACHE_METRIC = "iqe.rulebase.cache";
+    static final String BUILD_METRIC = "iqe.rulebase.build";
+    static final String QUEUE_METRIC = "iqe.rulebase.compile.queue";
+    static final String WAIT_METRIC = "iqe.rulebase.compile.wait";
+    static final String TOTAL_RULES_METRIC = "iqe.rulebase.rules";
+    static final String NATIVE_RULES_METRIC = "iqe.rulebase.rules.native";
+    static final String PRUNED_RULES_METRIC = "iqe.rulebase.rules.pruned";
+    static final String MEMO_METRIC = "iqe.rulebase.memo";
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final RulesEngineConfig.RulesEngineProperties rulesEngineProperties;
+    private final MeterRegistry meterRegistry;
+    private final Scheduler ruleCompileScheduler;
+    private final RuleCompiler ruleCompiler;
+    private final RuleArtifactStore artifactStore;
+    private final IncrementalRuleBaseUpdater incrementalUpdater;
+    private final ConsolidatedRuleBases consolidated;
+    private final RuleMetrics ruleMetrics;
+    private final EvaluationBudget evaluationBudget;
+
+    private final Map<RuleBaseKey, Mono<CompiledRuleBase>> ruleBases = new ConcurrentHashMap<>();
+    private final Map<RuleBaseKey, Mono<CompiledRuleBase>> staged = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingBuilds = new AtomicInteger();
+    private final Map<RuleCountKey, AtomicInteger> ruleCounts = new ConcurrentHashMap<>();
+    private final Map<String, FlowMeters> flowMeters = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a cache that always compiles, without persisted artifacts.
+     */
+    public RuleBaseCache(RulesEngineConfig.RulesEngineProperties rulesEngineProperties, MeterRegistry meterRegistry,
+                         Scheduler ruleCompileScheduler) {
+        this(rulesEngineProperties, meterRegistry, ruleCompileScheduler, null);
+    }
+
+    @Autowired
+    public RuleBaseCache(RulesEngineConfig.RulesEngineProperties rulesEngineProperties, MeterRegistry meterRegistry,
+                         Scheduler ruleCompileScheduler, RuleArtifactRepository ruleArtifactRepo) {
+        this.rulesEngineProperties = rulesEngineProperties;
+        this.meterRegistry = meterRegistry;
+        this.ruleCompileScheduler = ruleCompileScheduler;
+        this.ruleCompiler = new RuleCompiler(rulesEngineProperties);
+        this.artifactStore = new RuleArtifactStore(ruleArtifactRepo, rulesEngineProperties, meterRegistry);
+        this.incrementalUpdater = new IncrementalRuleBaseUpdater(ruleCompiler, rulesEngineProperties);
+        this.consolidated = new ConsolidatedRuleBases(ruleCompiler, rulesEngineProperties);
+        this.ruleMetrics = new RuleMetrics(meterRegistry, rulesEngineProperties);
+        Duration evaluationTimeout = rulesEngineProperties.getEvaluationTimeout();
+        this.evaluationBudget = evaluationTimeout == null || evaluationTimeout.isZero() ? null
+                : new EvaluationBudget(evaluationTimeout, rulesEngineProperties.getEvaluationThreads(),
+                        rulesEngineProperties.getEvaluationQueueSize(), meterRegistry);
+        Gauge.builder(QUEUE_METRIC, pendingBuilds, AtomicInteger::get)
+                .description("Rule base compilations waiting for a compile thread")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Returns the rule base for the given flow and rule rows, building it on a miss.
+     *
+     * @param flow         the flow the rules belong to
+     * @param templateFile the DRL template the rows are expanded into
+     * @param rules        the rule rows read for the flow
+     * @return Mono emitting the compiled rule base
+     */
+    public Mono<CompiledRuleBase> getOrBuild(String flow, String templateFile, List<?> rules) {
+        if (!rulesEngineProperties.isCacheEnabled()) {
+            return compile(flow, templateFile, rules, false);
+        }
+        RuleBaseKey key = new RuleBaseKey(flow, templateFile, rulesHash(rules));
+        Mono<CompiledRuleBase> ruleBase = ruleBases.get(key);
+        if (ruleBase != null) {
+            meters(flow).cacheHit.increment();
+            return ruleBase;
+        }
+        meters(flow).cacheMiss.increment();
+        ruleBase = ruleBases.computeIfAbsent(key, k -> {
+            Mono<CompiledRuleBase> prepared = staged.remove(k);
+            return (prepared != null ? prepared : compile(flow, templateFile, rules, true))
+                    // A failed build must not be served to later requests
+                    .doOnError(e -> ruleBases.remove(k))
+                    .cache();
+        });
+        // Drop rule bases built from an older version of the same flow's rows
+        evictIf(k -> k.flow().equals(flow) && k.templateFile().equals(templateFile)
+                && !k.rulesHash().equals(key.rulesHash()));
+        return ruleBase;
+    }
+
+    /**
+     * Builds the rule base of rows that are about to be written, without touching the cached rule
+     * base of the flow. The first {@link #getOrBuild} for the same rows then takes the staged
+     * rule base instead of compiling them again. Only the latest staged rows of a flow are kept.
+     *
+     * @param flow         the flow the rules belong to
+     * @param templateFile the DRL template the rows are expanded into
+     * @param rules        the rule rows, in the order they will be read back
+     * @return Mono emitting the compiled rule base, or the compilation error
+     */
+    public Mono<CompiledRuleBase> stage(String flow, String templateFile, List<?> rules) {
+        Mono<CompiledRuleBase> ruleBase = compile(flow, templateFile, rules, false).cache();
+        if (!rulesEngineProperties.isCacheEnabled()) {
+            return ruleBase;
+        }
+        RuleBaseKey key = new RuleBaseKey(flow, templateFile, rulesHash(rules));
+        discardStaged(k -> k.flow().equals(flow) && k.templateFile().equals(templateFile));
+        staged.put(key, ruleBase);
+        return ruleBase.doOnError(e -> staged.remove(key, ruleBase));
+    }
+
+    private void discardStaged(Predicate<RuleBaseKey> predicate) {
+        for (Map.Entry<RuleBaseKey, Mono<CompiledRuleBase>> entry : staged.entrySet()) {
+            if (predicate.test(entry.getKey()) && staged.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().subscribe(CompiledRuleBase::dispose, e -> { });
+            }
+        }
+    }
+
+    /**
+     * Removes every cached rule base of the flow.
+     *
+     * @param flow the flow whose rules changed
+     */
+    public void invalidate(String flow) {
+        if (flow == null) {
+            return;
+        }
+        discardStaged(k -> k.flow().equals(flow));
+        incrementalUpdater.invalidate(flow);
+        if (evictIf(k -> k.flow().equals(flow))) {
+            log.info("Invalidated cached rule bases for flow {}", flow);
+        }
+    }
+
+    private boolean evictIf(Predicate<RuleBaseKey> predicate) {
+        boolean evicted = false;
+        for (Map.Entry<RuleBaseKey, Mono<CompiledRuleBase>> entry : ruleBases.entrySet()) {
+            // Evicted rule bases may still be serving; the registry retires them once replaced
+            if (predicate.test(entry.getKey()) && ruleBases.remove(entry.getKey(), entry.getValue())) {
+                evicted = true;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Builds a rule base outside the cache, for rules that are not live. Its artifact is not
+     * stored and it does not replace the cached rule base of the flow; the caller disposes it.
+     *
+     * @param flow         the flow the rules belong to
+     * @param templateFile the DRL template the rows are expanded into
+     * @param rules        the rule rows
+     * @return Mono emitting the compiled rule base
+     */
+    public Mono<CompiledRuleBase> buildDetached(String flow, String templateFile, List<?> rules) {
+        return onCompileScheduler(flow, () -> buildUncached(flow, templateFile,
+                rulesEngineProperties.isPruneRules() ? RuleAnalyzer.analyze(rules).kept() : rules));
+    }
+
+    /**
+     * Reports the rules of the flow that can never fire and measures what leaving them out saves,
+     * by building the flow's rule base with and without them. Neither build is cached.
+     *
+     * @param flow         the flow the rules belong to
+     * @param templateFile the DRL template the rows are expanded into
+     * @param rules        the rule rows read for the flow
+     * @return Mono emitting the report
+     */
+    public Mono<RuleAnalysisReport> analyze(String flow, String templateFile, List<?> rules) {
+        return onCompileScheduler(flow, () -> {
+            RuleAnalyzer.Analysis analysis = RuleAnalyzer.analyze(rules);
+            long drlBytes = ruleCompiler.generateDrl(templateFile, rules).length();
+            long prunedDrlBytes = ruleCompiler.generateDrl(templateFile, analysis.kept()).length();
+            long buildMillis = timeBuild(flow, templateFile, rules);
+            long prunedBuildMillis = timeBuild(flow, templateFile, analysis.kept());
+            List<?> canonical = RuleAnalyzer.canonicalize(analysis.kept());
+            int nodeCount = nodeCount(flow, templateFile, analysis.kept());
+            int canonicalNodeCount = nodeCount(flow, templateFile, canonical);
+            return RuleAnalysisReport.builder()
+                    .flow(flow)
+                    .templateFile(templateFile)
+                    .pruningEnabled(rulesEngineProperties.isPruneRules())
+                    .totalRules(rules.size())
+                    .keptRules(analysis.kept().size())
+                    .prunedRules(analysis.findings().size())
+                    .findings(analysis.findings())
+                    .drlBytes(drlBytes)
+                    .prunedDrlBytes(prunedDrlBytes)
+                    .savedDrlBytes(drlBytes - prunedDrlBytes)
+                    .buildMillis(buildMillis)
+                    .prunedBuildMillis(prunedBuildMillis)
+                    .savedBuildMillis(buildMillis - prunedBuildMillis)
+                    .canonicalizableRules(RuleAnalyzer.countChanged(analysis.kept(), canonical))
+                    .nodeCount(nodeCount)
+                    .canonicalNodeCount(canonicalNodeCount)
+                    .savedNodes(nodeCount - canonicalNodeCount)
+                    .build();
+        });
+    }
+
+    /**
+     * Number of Rete nodes of the Drools rule base built from the rows, native conditions aside.
+     */
+    private int nodeCount(String flow, String templateFile, List<?> rules) {
+        KieContainer kieContainer = ruleCompiler.newKieContainer(
+                ruleCompiler.compileKieModule(flow, ruleCompiler.generateDrl(templateFile, rules)).getReleaseId());
+        try {
+            return ((InternalKnowledgeBase) kieContainer.getKieBase()).getNodeCount();
+        } finally {
+            kieContainer.dispose();
+        }
+    }
+
+    private long timeBuild(String flow, String templateFile, List<?> rules) {
+        long start = System.nanoTime();
+        buildUncached(flow, templateFile, rules).dispose();
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Builds the rule base on the calling thread, natively when the conditions allow it. It is
+     * neither timed nor memoized, as those metrics are tagged with the flow of the live rules.
+     */
+    private CompiledRuleBase buildUncached(String flow, String templateFile, List<?> rules) {
+        Optional<List<CompiledRuleBase.NativeRule>> nativeRules = rulesEngineProperties.isNativeConditionsEnabled()
+                ? compileNative(rules) : Optional.empty();
+        return nativeRules.map(CompiledRuleBase::new)
+                .orElseGet(() -> new CompiledRuleBase(
+                        ruleCompiler.newKieContainer(ruleCompiler.compileKieModule(flow,
+                                ruleCompiler.generateDrl(templateFile, rules)).getReleaseId()),
+                        rulesEngineProperties.getSessionMode(), rulesEngineProperties.getSessionPoolSize()));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (evaluationBudget != null) {
+            evaluationBudget.dispose();
+        }
+    }
+
+    /**
+     * Number of rule bases currently cached.
+     *
+     * @return the cache size
+     */
+    public int size() {
+        return ruleBases.size();
+    }
+
+    /**
+     * Prunes the rows, builds the rule base from the rest and instruments it with the metrics of
+     * the flow. Pruning, native compilation and the Drools build run as one task on the compile
+     * scheduler, so the calling thread never parses conditions; only a stored artifact is read off
+     * it, and loaded back on it.
+     *
+     * @param updatable whether the rule base replaces the flow's cached one, so it may be derived
+     *                  from the flow's last build and may itself be the base of later changes
+     */
+    private Mono<CompiledRuleBase> compile(String flow, String templateFile, List<?> rules, boolean updatable) {
+        return onCompileScheduler(flow, () -> rulesEngineProperties.isPruneRules() ? prune(flow, templateFile, rules) : rules)
+                .flatMap(compiled -> (updatable ? update(flow, templateFile, compiled) : build(flow, templateFile, compiled))
+                        .doOnNext(ruleBase -> {
+                            ruleBase.instrument(ruleMetrics.forFlow(flow, templateFile, ruleNames(compiled)));
+                            ruleBase.prepare(prepareQuestions(flow, compiled));
+                            if (evaluationBudget != null && !ruleBase.isNative()) {
+                                ruleBase.budget(evaluationBudget.forRuleBase(flow, templateFile, conditions(compiled)));
+                            }
+                        }));
+    }
+
+    /**
+     * Parses the questions of the questionnaire rules' actions, keyed by the value the action sets.
+     * Actions that are not string literals or not valid questions JSON are left out and parsed per
+     * evaluation, which reports the error as before.
+     */
+    private static Map<String, PreparedQuestions> prepareQuestions(String flow, List<?> rules) {
+        Map<String, PreparedQuestions> preparedQuestions = new HashMap<>();
+        for (Object rule : rules) {
+            if (rule instanceof QuestionnaireRules entity) {
+                ConditionParser.parseStringLiteral(entity.getAction())
+                        .filter(questions -> !questions.isEmpty() && !preparedQuestions.containsKey(questions))
+                        .ifPresent(questions -> {
+                            try {
+                                preparedQuestions.put(questions, PreparedQuestions.parse(questions, objectMapper));
+                            } catch (IOException e) {
+                                log.warn("Action of rule {} of flow {} is not valid questions JSON: {}", entity.getId(),
+                                        flow, e.getMessage());
+                            }
+                        });
+            }
+        }
+        return preparedQuestions.isEmpty() ? Map.of() : Map.copyOf(preparedQuestions);
+    }
+
+    private List<?> prune(String flow, String templateFile, List<?> rules) {
+        RuleAnalyzer.Analysis analysis = RuleAnalyzer.analyze(rules);
+        ruleCount(PRUNED_RULES_METRIC, flow, templateFile).set(analysis.findings().size());
+        if (!analysis.findings().isEmpty()) {
+            log.info("Pruned {} of {} rules of flow {} that can never fire: {}", analysis.findings().size(),
+                    rules.size(), flow, analysis.findings());
+        }
+        return analysis.kept();
+    }
+
+    /**
+     * Builds the rule base by deriving it from the flow's last Drools build when the rows differ
+     * from that build's by few enough rules, otherwise like {@link #build}. Runs on the compile
+     * scheduler.
+     */
+    private Mono<CompiledRuleBase> update(String flow, String templateFile, List<?> rules) {
+        return Mono.defer(() -> {
+            Optional<IncrementalRuleBaseUpdater.Update> update = incrementalUpdater.update(flow, templateFile, rules)
+                    // Rows that now compile natively are rebuilt natively
+                    .filter(u -> !rulesEngineProperties.isNativeConditionsEnabled() || compileNative(rules).isEmpty());
+            Mono<CompiledRuleBase> ruleBase = update.isEmpty() ? build(flow, templateFile, rules)
+                    : Mono.fromCallable(() -> applyUpdate(flow, templateFile, update.get(), rules))
+                            .onErrorResume(e -> {
+                                log.warn("Could not derive the rule base of flow {} from its last build, rebuilding it",
+                                        flow, e);
+                                return build(flow, templateFile, rules);
+                            });
+            return ruleBase.doOnNext(built -> incrementalUpdater.built(flow, templateFile, rules, built));
+        });
+    }
+
+    private CompiledRuleBase applyUpdate(String flow, String templateFile, IncrementalRuleBaseUpdater.Update update,
+                                         List<?> rules) {
+        return buildTimer(flow, templateFile, rulesEngineProperties.getCompilationMode().name(), "incremental").record(() -> {
+            CompiledRuleBase ruleBase = incrementalUpdater.apply(flow, templateFile, update, memo(flow, rules));
+            ruleCount(TOTAL_RULES_METRIC, flow, templateFile).set(rules.size());
+            ruleCount(NATIVE_RULES_METRIC, flow, templateFile).set(0);
+            return ruleBase;
+        });
+    }
+
+    /**
+     * Builds the rule base: natively when the conditions allow it, otherwise from the stored
+     * artifact when it is current, otherwise by compiling the DRL. Runs on the compile scheduler;
+     * the artifact is read off it, so loading or compiling after the read goes back to it.
+     */
+    private Mono<CompiledRuleBase> build(String flow, String templateFile, List<?> rules) {
+        return Mono.defer(() -> {
+            Optional<List<CompiledRuleBase.NativeRule>> nativeRules = rulesEngineProperties.isNativeConditionsEnabled()
+                    ? compileNative(rules) : Optional.empty();
+            ruleCount(TOTAL_RULES_METRIC, flow, templateFile).set(rules.size());
+            ruleCount(NATIVE_RULES_METRIC, flow, templateFile).set(nativeRules.map(List::size).orElse(0));
+            if (nativeRules.isPresent()) {
+                return Mono.fromCallable(() -> buildTimer(flow, templateFile, "NATIVE", "compiled").record(() -> {
+                    log.info("Using native conditions for flow {} with {} rules", flow, rules.size());
+                    return new CompiledRuleBase(nativeRules.get());
+                }));
+            }
+            if (consolidated.isEnabled()) {
+                return Mono.fromCallable(() -> buildTimer(flow, templateFile,
+                        rulesEngineProperties.getCompilationMode().name(), "consolidated")
+                        .record(() -> consolidated.build(flow, templateFile, rules, memo(flow, rules))));
+            }
+            if (!artifactStore.isEnabled()) {
+                return Mono.fromCallable(() -> buildDrools(flow, templateFile, rules, false).ruleBase());
+            }
+            String rulesHash = rulesHash(rules);
+            return loadArtifact(flow, templateFile, rules, rulesHash)
+                    .switchIfEmpty(Mono.defer(() -> onCompileScheduler(flow, () -> buildDrools(flow, templateFile, rules, true))
+                            .flatMap(build -> artifactStore.store(flow, templateFile, rulesHash, build.kjar())
+                                    .thenReturn(build.ruleBase()))));
+        });
+    }
+
+    /**
+     * Runs the task on the compile scheduler, recording how long it waited for a compile thread.
+     */
+    private <T> Mono<T> onCompileScheduler(String flow, Callable<T> task) {
+        return Mono.defer(() -> {
+            long queuedAt = System.nanoTime();
+            AtomicBoolean dequeued = new AtomicBoolean();
+            pendingBuilds.incrementAndGet();
+            return Mono.fromCallable(() -> {
+                        if (dequeued.compareAndSet(false, true)) {
+                            pendingBuilds.decrementAndGet();
+                        }
+                        meters(flow).compileWait.record(System.nanoTime() - queuedAt, TimeUnit.NANOSECONDS);
+                        return task.call();
+                    })
+                    .subscribeOn(ruleCompileScheduler)
+                    .doFinally(signal -> {
+                        if (dequeued.compareAndSet(false, true)) {
+                            pendingBuilds.decrementAndGet();
+                        }
+                    });
+        });
+    }
+
+    private DroolsBuild buildDrools(String flow, String templateFile, List<?> rules, boolean keepKjar) {
+        return buildTimer(flow, templateFile, rulesEngineProperties.getCompilationMode().name(), "compiled").record(() -> {
+            String generatedDRL = ruleCompiler.generateDrl(templateFile, rules);
+            log.info("Building rule base for flow {} from {} rules", flow, rules.size());
+            InternalKieModule kieModule = ruleCompiler.compileKieModule(flow, generatedDRL);
+            byte[] kjar = keepKjar ? kieModule.getBytes() : null;
+            return new DroolsBuild(newRuleBase(kieModule.getReleaseId(), flow, rules), kjar);
+        });
+    }
+
+    /**
+     * The stored artifact of the flow, if it was built from the same rows and is intact. Any
+     * failure to read or load it is logged and treated as a miss so the flow is compiled instead.
+     */
+    private Mono<CompiledRuleBase> loadArtifact(String flow, String templateFile, List<?> rules, String rulesHash) {
+        return artifactStore.find(flow, templateFile, rulesHash)
+                .flatMap(artifact -> onCompileScheduler(flow, () -> {
+                    ReleaseId releaseId = artifactStore.install(flow, artifact);
+                    if (releaseId == null) {
+                        return null;
+                    }
+                    CompiledRuleBase ruleBase = buildTimer(flow, templateFile,
+                            rulesEngineProperties.getCompilationMode().name(), "artifact")
+                            .record(() -> newRuleBase(releaseId, flow, rules));
+                    artifactStore.loaded(flow);
+                    return ruleBase;
+                }))
+                .onErrorResume(e -> {
+                    artifactStore.failed(flow, e);
+                    return Mono.empty();
+                });
+    }
+
+    private static List<String> ruleNames(List<?> rules) {
+        List<String> names = new ArrayList<>(rules.size());
+        for (Object rule : rules) {
+            String name = ruleName(rule);
+            if (name != null) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * The name of the rule generated from the row, {@code null} for rows of an unknown type.
+     */
+    static String ruleName(Object rule) {
+        if (rule instanceof RulesByFlowEntity entity) {
+            return entity.getRuleId();
+        }
+        if (rule instanceof QuestionnaireRules entity) {
+            return entity.getId();
+        }
+        return null;
+    }
+
+    /**
+     * The conditions of the rows by rule name, in the order the rules fire.
+     */
+    private static Map<String, String> conditions(List<?> rules) {
+        List<Object> ordered = new ArrayList<>(rules);
+        ordered.sort(Comparator.comparingInt(RuleBaseCache::salience).reversed());
+        Map<String, String> conditions = new LinkedHashMap<>();
+        for (Object rule : ordered) {
+            if (rule instanceof RulesByFlowEntity entity) {
+                conditions.put(entity.getRuleId(), entity.getCondition());
+            } else if (rule instanceof QuestionnaireRules entity) {
+                conditions.put(entity.getId(), entity.getCondition());
+            }
+        }
+        return conditions;
+    }
+
+    static int salience(Object rule) {
+        return rule instanceof RulesByFlowEntity entity ? entity.getSalience() : ((QuestionnaireRules) rule).getSalience();
+    }
+
+    /**
+     * Compiles the rows to Java predicates. Falls back to Drools for the whole flow as soon as one
+     * condition or action is outside what {@link ConditionParser} understands, so a flow is never
+     * evaluated partly natively.
+     */
+    static Optional<List<CompiledRuleBase.NativeRule>> compileNative(List<?> rules) {
+        List<CompiledRuleBase.NativeRule> nativeRules = new ArrayList<>(rules.size());
+        for (Object rule : rules) {
+            Optional<CompiledRuleBase.NativeRule> nativeRule = Optional.empty();
+            if (rule instanceof RulesByFlowEntity entity) {
+                String actionId = entity.getActionId();
+                nativeRule = ConditionParser.parse(entity.getCondition())
+                        .map(condition -> new CompiledRuleBase.NativeRule(entity.getRuleId(), entity.getSalience(),
+                                condition, rulesDetails -> rulesDetails.setActionId(actionId)));
+            } else if (rule instanceof QuestionnaireRules entity) {
+                Optional<String> questions = ConditionParser.parseStringLiteral(entity.getAction());
+                nativeRule = questions.flatMap(q -> ConditionParser.parse(entity.getCondition())
+                        .map(condition -> new CompiledRuleBase.NativeRule(entity.getId(), entity.getSalience(),
+                                condition, rulesDetails -> rulesDetails.setQuestions(q))));
+            }
+            if (nativeRule.isEmpty()) {
+                return Optional.empty();
+            }
+            nativeRules.add(nativeRule.get());
+        }
+        // Drools breaks salience ties by load order, which is the row order; the sort is stable
+        nativeRules.sort(Comparator.comparingInt(CompiledRuleBase.NativeRule::salience).reversed());
+        return Optional.of(nativeRules);
+    }
+
+    private AtomicInteger ruleCount(String metric, String flow, String templateFile) {
+        return ruleCounts.computeIfAbsent(new RuleCountKey(metric, flow, templateFile), k -> {
+            AtomicInteger count = new AtomicInteger();
+            Gauge.builder(metric, count, AtomicInteger::get)
+                    .tag("flow", flow)
+                    .tag("template", templateFile)
+                    .register(meterRegistry);
+            return count;
+        });
+    }
+
+    /**
+     * Creates the rule base from a module added to the KieRepository.
+     */
+    private CompiledRuleBase newRuleBase(ReleaseId releaseId, String flow, List<?> rules) {
+        return new CompiledRuleBase(ruleCompiler.newKieContainer(releaseId), rulesEngineProperties.getSessionMode(),
+                rulesEngineProperties.getSessionPoolSize(), memo(flow, rules));
+    }
+
+    /**
+     * The memo of the rule base's outcomes, or {@code null} when memoization is disabled or the
+     * rules read something besides fact fields: conditions outside {@link ConditionParser#fieldUsage}
+     * or a questionnaire action that is not a string literal.
+     */
+    private EvaluationMemo memo(String flow, List<?> rules) {
+        if (rulesEngineProperties.getMemoMaxEntries() <= 0) {
+            return null;
+        }
+        List<String> conditions = new ArrayList<>(rules.size());
+        EvaluationMemo.Outcome outcome = null;
+        for (Object rule : rules) {
+            if (rule instanceof RulesByFlowEntity entity) {
+                conditions.add(entity.getCondition());
+                outcome = EvaluationMemo.Outcome.ACTION_ID;
+            } else if (rule instanceof QuestionnaireRules entity
+                    && ConditionParser.parseStringLiteral(entity.getAction()).isPresent()) {
+                conditions.add(entity.getCondition());
+                outcome = EvaluationMemo.Outcome.QUESTIONS;
+            } else {
+                return null;
+            }
+        }
+        if (outcome == null) {
+            return null;
+        }
+        Optional<EvaluationMemo> memo = EvaluationMemo.of(conditions, outcome, rulesEngineProperties.getMemoMaxEntries(),
+                meters(flow).memoHit, meters(flow).memoMiss);
+        if (memo.isEmpty()) {
+            log.info("Not memoizing outcomes of flow {}, its conditions read more than fact fields", flow);
+        }
+        return memo.orElse(null);
+    }
+
+    private Timer buildTimer(String flow, String templateFile, String mode, String source) {
+        return meters(flow).buildTimer(templateFile, mode, source);
+    }
+
+    private FlowMeters meters(String flow) {
+        return flowMeters.computeIfAbsent(flow, FlowMeters::new);
+    }
+
+    /**
+     * The meters of one flow, registered once rather than looked up on every cache access.
+     */
+    private final class FlowMeters {
+
+        private final String flow;
+        private final Counter cacheHit;
+        private final Counter cacheMiss;
+        private final Counter memoHit;
+        private final Counter memoMiss;
+        private final Timer compileWait;
+        private final Map<BuildTimerKey, Timer> buildTimers = new ConcurrentHashMap<>();
+
+        private FlowMeters(String flow) {
+            this.flow = flow;
+            this.cacheHit = counter(CACHE_METRIC, "hit");
+            this.cacheMiss = counter(CACHE_METRIC, "miss");
+            this.memoHit = counter(MEMO_METRIC, "hit");
+            this.memoMiss = counter(MEMO_METRIC, "miss");
+            this.compileWait = Timer.builder(WAIT_METRIC)
+                    .tag("flow", flow)
+                    .register(meterRegistry);
+        }
+
+        Timer buildTimer(String templateFile, String mode, String source) {
+            return buildTimers.computeIfAbsent(new BuildTimerKey(templateFile, mode, source), k -> Timer.builder(BUILD_METRIC)
+                    .tag("flow", flow)
+                    .tag("template", templateFile)
+                    .tag("mode", mode)
+                    .tag("source", source)
+                    .register(meterRegistry));
+        }
+
+        private Counter counter(String metric, String result) {
+            return Counter.builder(metric)
+                    .tag("flow", flow)
+                    .tag("result", result)
+                    .register(meterRegistry);
+        }
+    }
+
+    private record BuildTimerKey(String templateFile, String mode, String source) {
+    }
+
+    /**
+     * Hash of the rule rows. The entities are Lombok {@code @Data} classes so their
+     * {@code toString} covers every column the templates read.
+     */
+    static String rulesHash(List<?> rules) {
+        StringBuilder content = new StringBuilder();
+        for (Object rule : rules) {
+            content.append(rule).append('\n');
+        }
+        return DigestUtils.sha256Hex(content.toString());
+    }
+
+    record RuleBaseKey(String flow, String templateFile, String rulesHash) {
+    }
+
+    private record DroolsBuild(CompiledRuleBase ruleBase, byte[] kjar) {
+    }
+
+    private record RuleCountKey(String metric, String flow, String templateFile) {
+    }
+}
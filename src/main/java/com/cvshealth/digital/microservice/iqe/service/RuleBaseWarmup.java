@@ -0,0 +1,138 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.config.DroolConfig;
+import com.cvshealth.digital.microservice.iqe.config.RulesEngineConfig;
+import com.cvshealth.digital.microservice.iqe.entity.QuestionnaireRules;
+import com.cvshealth.digital.microservice.iqe.entity.RulesByFlowEntity;
+import com.cvshealth.digital.microservice.iqe.model.RulesDetails;
+import com.cvshealth.digital.microservice.iqe.repository.QuestionnaireRulesRepository;
+import com.cvshealth.digital.microservice.iqe.repository.RulesByFlowRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Activates the rule set of every flow once the application has started, so the first requests
+ * after a deploy neither read the rule rows nor pay for DRL compilation.
+ * <p>
+ * Each flow is loaded through {@link RuleSetRegistry}, with the same query the evaluation path
+ * uses, so the rule bases warmed are the ones held by the flows' slots and served to requests. A
+ * synthetic evaluation is run against every rule base to warm the MVEL and Rete code paths. Until the warmup completes, or {@code warmupTimeout} passes, the
+ * {@code ruleBaseWarmup} health indicator reports {@code OUT_OF_SERVICE}, which keeps the
+ * readiness probe from accepting traffic.
+ */
+@Component("ruleBaseWarmup")
+@Slf4j
+@RequiredArgsConstructor
+public class RuleBaseWarmup implements HealthIndicator {
+
+    private final RulesEngineConfig.RulesEngineProperties rulesEngineProperties;
+    private final RulesByFlowRepository rulesByFlowRepo;
+    private final QuestionnaireRulesRepository rulesRepo;
+    private final RuleSetRegistry ruleSetRegistry;
+
+    private final AtomicReference<WarmupState> state = new AtomicReference<>(WarmupState.PENDING);
+    private final AtomicInteger warmedFlows = new AtomicInteger();
+    private final AtomicInteger failedFlows = new AtomicInteger();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        warmup().subscribe();
+    }
+
+    /**
+     * Activates and evaluates every flow of {@code rules_by_flow} and {@code questionnaire_rules}.
+     *
+     * @return Mono completing when the warmup has finished or timed out
+     */
+    Mono<Void> warmup() {
+        if (!rulesEngineProperties.isWarmupEnabled()) {
+            state.set(WarmupState.DISABLED);
+            return Mono.empty();
+        }
+        long start = System.currentTimeMillis();
+        state.set(WarmupState.RUNNING);
+
+        Flux<Boolean> flowsByRule = rulesByFlowRepo.findAll()
+                .map(RulesByFlowEntity::getFlow)
+                .distinct()
+                .flatMap(flow -> warmupFlow(flow, DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                        () -> rulesByFlowRepo.findByFlow(flow).collectList()));
+        Flux<Boolean> legacyFlows = rulesRepo.findAll()
+                .map(QuestionnaireRules::getFlow)
+                .distinct()
+                .flatMap(flow -> warmupFlow(flow, DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE,
+                        () -> rulesRepo.findByFlow(flow).collectList()));
+
+        return Flux.merge(flowsByRule, legacyFlows)
+                .then()
+                .timeout(rulesEngineProperties.getWarmupTimeout())
+                .doOnSuccess(v -> {
+                    state.set(WarmupState.COMPLETED);
+                    log.info("Rule base warmup completed for {} flows in {} ms, {} failed", warmedFlows.get(),
+                            System.currentTimeMillis() - start, failedFlows.get());
+                })
+                .onErrorResume(e -> {
+                    state.set(WarmupState.ABORTED);
+                    log.warn("Rule base warmup stopped after {} ms with {} flows warmed: {}",
+                            System.currentTimeMillis() - start, warmedFlows.get(), e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<Boolean> warmupFlow(String flow, String templateFile, Supplier<Mono<? extends List<?>>> rules) {
+        return ruleSetRegistry.ruleBase(flow, templateFile, rules)
+                .map(ruleBase -> {
+                    RulesDetails rulesDetails = new RulesDetails();
+                    rulesDetails.setFlow(flow);
+                    try {
+                        ruleBase.fire(rulesDetails);
+                    } catch (RuntimeException e) {
+                        // Conditions may not tolerate an empty fact, the rule base itself is still warm
+                        log.debug("Synthetic evaluation failed for flow {}: {}", flow, e.getMessage());
+                    }
+                    warmedFlows.incrementAndGet();
+                    return true;
+                })
+                .onErrorResume(e -> {
+                    failedFlows.incrementAndGet();
+                    log.error("Rule base warmup failed for flow {}: {}", flow, e.getMessage());
+                    return Mono.just(false);
+                });
+    }
+
+    @Override
+    public Health health() {
+        WarmupState current = state.get();
+        Health.Builder builder = current.isReady() ? Health.up() : Health.outOfService();
+        return builder.withDetail("state", current)
+                .withDetail("warmedFlows", warmedFlows.get())
+                .withDetail("failedFlows", failedFlows.get())
+                .build();
+    }
+
+    enum WarmupState {
+        PENDING(false), RUNNING(false), COMPLETED(true), ABORTED(true), DISABLED(true);
+
+        private final boolean ready;
+
+        WarmupState(boolean ready) {
+            this.ready = ready;
+        }
+
+        boolean isReady() {
+            return ready;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.config.RulesEngineConfig;
+import org.drools.compiler.kie.builder.impl.InternalKieModule;
+import org.drools.model.codegen.ExecutableModelProject;
+import org.drools.template.ObjectDataCompiler;
+import org.kie.api.KieServices;
+import org.kie.api.builder.KieBuilder;
+import org.kie.api.builder.KieFileSystem;
+import org.kie.api.builder.Message;
+import org.kie.api.builder.ReleaseId;
+import org.kie.api.builder.Results;
+import org.kie.api.definition.KiePackage;
+import org.kie.api.io.ResourceType;
+import org.kie.api.runtime.KieContainer;
+import org.kie.internal.builder.KnowledgeBuilder;
+import org.kie.internal.builder.KnowledgeBuilderFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Expands rule rows into DRL and compiles it with Drools.
+ */
+final class RuleCompiler {
+
+    private static final String RELEASE_GROUP = "com.cvshealth.digital.microservice.iqe.rules";
+    private static final String RELEASE_VERSION = "1.0.0";
+    private static final String GENERATED_DRL_PATH = "src/main/resources/rules/generated.drl";
+
+    private static final KieServices kieServices = KieServices.Factory.get();
+
+    private final RulesEngineConfig.RulesEngineProperties rulesEngineProperties;
+
+    RuleCompiler(RulesEngineConfig.RulesEngineProperties rulesEngineProperties) {
+        this.rulesEngineProperties = rulesEngineProperties;
+    }
+
+    String generateDrl(String templateFile, List<?> rules) {
+        return new ObjectDataCompiler().compile(rules, getClass().getClassLoader().getResourceAsStream(templateFile));
+    }
+
+    /**
+     * Builds the generated DRL into its own KieModule, either interpreted through MVEL or as an
+     * executable model with the constraints compiled to Java lambdas.
+     */
+    InternalKieModule compileKieModule(String flow, String generatedDRL) {
+        ReleaseId releaseId = kieServices.newReleaseId(RELEASE_GROUP, "rules-" + UUID.randomUUID(), RELEASE_VERSION);
+        KieFileSystem kieFileSystem = kieServices.newKieFileSystem();
+        kieFileSystem.generateAndWritePomXML(releaseId);
+        kieFileSystem.write(GENERATED_DRL_PATH, generatedDRL);
+        KieBuilder kieBuilder = kieServices.newKieBuilder(kieFileSystem, getClass().getClassLoader());
+        if (rulesEngineProperties.getCompilationMode() == RulesEngineConfig.CompilationMode.EXECUTABLE_MODEL) {
+            kieBuilder.buildAll(ExecutableModelProject.class);
+        } else {
+            kieBuilder.buildAll();
+        }
+        Results results = kieBuilder.getResults();
+        if (results.hasMessages(Message.Level.ERROR)) {
+            kieServices.getRepository().removeKieModule(releaseId);
+            throw new IllegalStateException("Rules of flow " + flow + " failed to compile: " + results.getMessages());
+        }
+        return (InternalKieModule) kieBuilder.getKieModule();
+    }
+
+    /**
+     * Compiles the DRL into packages, without a module, for adding to an existing rule base.
+     */
+    Collection<KiePackage> compilePackages(String flow, String generatedDRL) {
+        KnowledgeBuilder knowledgeBuilder = KnowledgeBuilderFactory.newKnowledgeBuilder(
+                KnowledgeBuilderFactory.newKnowledgeBuilderConfiguration(null, getClass().getClassLoader()));
+        knowledgeBuilder.add(kieServices.getResources().newByteArrayResource(generatedDRL.getBytes(StandardCharsets.UTF_8)),
+                ResourceType.DRL);
+        if (knowledgeBuilder.hasErrors()) {
+            throw new IllegalStateException("Rules of flow " + flow + " failed to compile: " + knowledgeBuilder.getErrors());
+        }
+        return knowledgeBuilder.getKnowledgePackages();
+    }
+
+    KieContainer newKieContainer(ReleaseId releaseId) {
+        KieContainer kieContainer = kieServices.newKieContainer(releaseId, getClass().getClassLoader());
+        // The container holds on to its module, the repository copy would only leak across rebuilds
+        kieServices.getRepository().removeKieModule(releaseId);
+        return kieContainer;
+    }
+}
@@ -0,0 +1,184 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.config.RulesEngineConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.kie.api.event.rule.AfterMatchFiredEvent;
+import org.kie.api.event.rule.DefaultAgendaEventListener;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Firing and evaluation time metrics of the rules of every flow.
+ * <p>
+ * Every evaluation is counted as fired or unmatched and timed in a histogram per flow. Fires are
+ * counted per rule in memory, but only the {@code ruleMetricsTopN} most fired rules of a flow get
+ * a counter of their own, so the number of series stays bounded however many rules a flow has.
+ * The ranking is refreshed every {@code ruleMetricsRankInterval} off the request path; rules that
+ * drop out of the top have their counter removed. The number of rules of the flow that have not
+ * fired since startup is reported as a gauge.
+ * <p>
+ * Statistics are kept per flow and template rather than per rule base, so they carry over when a
+ * flow's rules change. Outcomes served from a rule base's {@link EvaluationMemo} are counted and
+ * timed but not attributed to a rule.
+ */
+class RuleMetrics {
+
+    static final String EVALUATION_METRIC = "iqe.rule.evaluation";
+    static final String EVALUATION_TIME_METRIC = "iqe.rule.evaluation.time";
+    static final String FIRED_METRIC = "iqe.rule.fired";
+    static final String UNFIRED_METRIC = "iqe.rule.unfired";
+
+    private final MeterRegistry meterRegistry;
+    private final RulesEngineConfig.RulesEngineProperties rulesEngineProperties;
+    private final Map<FlowKey, FlowRuleMetrics> flows = new ConcurrentHashMap<>();
+
+    RuleMetrics(MeterRegistry meterRegistry, RulesEngineConfig.RulesEngineProperties rulesEngineProperties) {
+        this.meterRegistry = meterRegistry;
+        this.rulesEngineProperties = rulesEngineProperties;
+    }
+
+    /**
+     * The metrics of the flow, updated to the rules of its latest rule base.
+     *
+     * @param flow         the flow
+     * @param templateFile the DRL template of the rule base
+     * @param ruleNames    the names of the rule base's rules
+     * @return the flow's metrics
+     */
+    FlowRuleMetrics forFlow(String flow, String templateFile, List<String> ruleNames) {
+        FlowRuleMetrics metrics = flows.computeIfAbsent(new FlowKey(flow, templateFile), FlowRuleMetrics::new);
+        metrics.ruleNames = Set.copyOf(ruleNames);
+        return metrics;
+    }
+
+    /**
+     * Metrics of one flow. Also the agenda listener of the flow's Drools sessions, so it must
+     * tolerate concurrent evaluations.
+     */
+    final class FlowRuleMetrics extends DefaultAgendaEventListener {
+
+        private final FlowKey key;
+        private final Counter fired;
+        private final Counter unmatched;
+        private final Timer nativeTime;
+        private final Timer droolsTime;
+        private final Map<String, LongAdder> fires = new ConcurrentHashMap<>();
+        private final Map<String, Meter> rankedCounters = new HashMap<>();
+        private final AtomicLong nextRankAt = new AtomicLong(System.nanoTime());
+        private volatile Set<String> ruleNames = Set.of();
+
+        private FlowRuleMetrics(FlowKey key) {
+            this.key = key;
+            this.fired = evaluationCounter("fired");
+            this.unmatched = evaluationCounter("no_match");
+            this.nativeTime = evaluationTimer("native");
+            this.droolsTime = evaluationTimer("drools");
+            Gauge.builder(UNFIRED_METRIC, this, FlowRuleMetrics::unfiredRules)
+                    .description("Rules of the flow that have not fired since startup")
+                    .tag("flow", key.flow())
+                    .tag("template", key.templateFile())
+                    .register(meterRegistry);
+        }
+
+        @Override
+        public void afterMatchFired(AfterMatchFiredEvent event) {
+            ruleFired(event.getMatch().getRule().getName());
+        }
+
+        void ruleFired(String ruleName) {
+            fires.computeIfAbsent(ruleName, name -> new LongAdder()).increment();
+        }
+
+        /**
+         * Records an evaluation of a fact against the flow's rule base.
+         *
+         * @param isNative   whether the rule base evaluates natively
+         * @param rulesFired the number of rules fired
+         * @param nanos      the evaluation time
+         */
+        void evaluated(boolean isNative, int rulesFired, long nanos) {
+            (rulesFired > 0 ? fired : unmatched).increment();
+            (isNative ? nativeTime : droolsTime).record(nanos, TimeUnit.NANOSECONDS);
+            long next = nextRankAt.get();
+            if (System.nanoTime() - next >= 0 && nextRankAt.compareAndSet(next,
+                    next + rulesEngineProperties.getRuleMetricsRankInterval().toNanos())) {
+                Schedulers.boundedElastic().schedule(this::rank);
+            }
+        }
+
+        /**
+         * Registers a fire counter for each of the most fired rules and removes the counters of
+         * rules no longer among them.
+         */
+        synchronized void rank() {
+            // Sorted on a snapshot, the counts keep moving while the ranking is computed
+            Map<String, Long> counts = new HashMap<>();
+            fires.forEach((name, adder) -> counts.put(name, adder.sum()));
+            Set<String> top = counts.entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                    .limit(Math.max(0, rulesEngineProperties.getRuleMetricsTopN()))
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toSet());
+            rankedCounters.entrySet().removeIf(entry -> {
+                if (top.contains(entry.getKey())) {
+                    return false;
+                }
+                meterRegistry.remove(entry.getValue());
+                return true;
+            });
+            for (String ruleName : top) {
+                rankedCounters.computeIfAbsent(ruleName, name -> FunctionCounter
+                        .builder(FIRED_METRIC, fires.get(name), LongAdder::sum)
+                        .description("Times the rule fired, for the most fired rules of the flow")
+                        .tag("flow", key.flow())
+                        .tag("template", key.templateFile())
+                        .tag("rule", name)
+                        .register(meterRegistry));
+            }
+        }
+
+        long fires(String ruleName) {
+            LongAdder adder = fires.get(ruleName);
+            return adder == null ? 0 : adder.sum();
+        }
+
+        private double unfiredRules() {
+            return ruleNames.stream().filter(name -> !fires.containsKey(name)).count();
+        }
+
+        private Counter evaluationCounter(String outcome) {
+            return Counter.builder(EVALUATION_METRIC)
+                    .tag("flow", key.flow())
+                    .tag("template", key.templateFile())
+                    .tag("outcome", outcome)
+                    .register(meterRegistry);
+        }
+
+        private Timer evaluationTimer(String engine) {
+            return Timer.builder(EVALUATION_TIME_METRIC)
+                    .description("Time to evaluate a fact against the flow's rules")
+                    .tag("flow", key.flow())
+                    .tag("template", key.templateFile())
+                    .tag("engine", engine)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry);
+        }
+    }
+
+    private record FlowKey(String flow, String templateFile) {
+    }
+}
@@ -0,0 +1,348 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.config.RulesEngineConfig;
+import com.cvshealth.digital.microservice.iqe.dto.RuleAnalysisReport;
+import com.cvshealth.digital.microservice.iqe.entity.RuleSetVersionEntity;
+import com.cvshealth.digital.microservice.iqe.repository.RuleSetVersionRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Holds the active rule set of every flow and swaps in new versions atomically.
+ * <p>
+ * Every change to a flow's rules increments its version in {@code rule_set_versions}. Requests
+ * evaluate against the rule base held by the flow's reference and never read the rule rows or
+ * wait for a compile once the flow is active. The node taking a write rebuilds the flow right
+ * away; the other nodes pick the new version up on their next refresh. In both cases the new rule
+ * base is built off the request path and only replaces the reference once complete, so in-flight
+ * requests finish on the version they started with. The replaced rule base is retired once
+ * swapped out, and disposed when its last evaluation finishes. A flow whose rules were all
+ * deleted stays active without a rule base, so it no longer matches.
+ * <p>
+ * The version a request was served with is recorded in the Reactor context when the caller
+ * provides a map through {@link #servedVersions}.
+ */
+@Component
+@Slf4j
+public class RuleSetRegistry {
+
+    public static final String RULE_SET_VERSION_HEADER = "X-Rule-Set-Version";
+
+    static final String VERSION_METRIC = "iqe.ruleset.version";
+    static final String SWAP_METRIC = "iqe.ruleset.swap";
+
+    /** Version of a rule set whose version could not be read, refreshed as soon as it can be. */
+    static final long UNKNOWN_VERSION = -1;
+
+    private static final int INCREMENT_RETRIES = 3;
+    private static final Duration INCREMENT_BACKOFF = Duration.ofMillis(100);
+
+    private static final String SERVED_VERSIONS = RuleSetRegistry.class.getName() + ".servedVersions";
+
+    private final RuleBaseCache ruleBaseCache;
+    private final RulesEngineConfig.RulesEngineProperties rulesEngineProperties;
+    private final MeterRegistry meterRegistry;
+    private final RuleSetVersionRepository ruleSetVersionRepo;
+
+    private final Map<RuleSetKey, RuleSetSlot> slots = new ConcurrentHashMap<>();
+    private Disposable refresher;
+
+    /**
+     * Creates a registry without stored versions, where every rule set stays at version 0 and
+     * changes only take effect through {@link #publish}.
+     */
+    public RuleSetRegistry(RuleBaseCache ruleBaseCache, RulesEngineConfig.RulesEngineProperties rulesEngineProperties,
+                           MeterRegistry meterRegistry) {
+        this(ruleBaseCache, rulesEngineProperties, meterRegistry, null);
+    }
+
+    @Autowired
+    public RuleSetRegistry(RuleBaseCache ruleBaseCache, RulesEngineConfig.RulesEngineProperties rulesEngineProperties,
+                           MeterRegistry meterRegistry, RuleSetVersionRepository ruleSetVersionRepo) {
+        this.ruleBaseCache = ruleBaseCache;
+        this.rulesEngineProperties = rulesEngineProperties;
+        this.meterRegistry = meterRegistry;
+        this.ruleSetVersionRepo = ruleSetVersionRepo;
+    }
+
+    /**
+     * Returns the active rule base of the flow, loading it on first use.
+     *
+     * @param flow         the flow
+     * @param templateFile the DRL template the rows are expanded into
+     * @param rules        reads the flow's rule rows; kept to reload the flow on later versions
+     * @return Mono emitting the rule base, empty when the flow has no rules
+     */
+    public Mono<CompiledRuleBase> ruleBase(String flow, String templateFile, Supplier<Mono<? extends List<?>>> rules) {
+        RuleSetSlot slot = slot(flow, templateFile, rules);
+        ActiveRuleSet active = slot.active.get();
+        Mono<ActiveRuleSet> ruleSet = active != null ? Mono.just(active) : slot.initialLoad();
+        return ruleSet.flatMap(current -> Mono.deferContextual(ctx -> {
+            ctx.<Map<String, Long>>getOrEmpty(SERVED_VERSIONS)
+                    .ifPresent(versions -> versions.put(flow, current.version()));
+            return Mono.justOrEmpty(current.ruleBase());
+        }));
+    }
+
+    /**
+     * Increments the version of the flow and rebuilds it, swapping the new rule base in once it
+     * is built. Called after the flow's rules were written.
+     *
+     * @param flow         the flow whose rules changed
+     * @param templateFile the DRL template the rows are expanded into
+     * @param rules        reads the flow's rule rows
+     * @return Mono completing once the new version is active, or with the error of the last
+     * attempt to increment the version, as no node would pick the new rules up without it
+     */
+    public Mono<Void> publish(String flow, String templateFile, Supplier<Mono<? extends List<?>>> rules) {
+        RuleSetSlot slot = slot(flow, templateFile, rules);
+        Mono<Void> increment = ruleSetVersionRepo == null ? Mono.empty()
+                : Mono.defer(() -> ruleSetVersionRepo.incrementVersion(flow))
+                        .retryWhen(Retry.backoff(INCREMENT_RETRIES, INCREMENT_BACKOFF)
+                                .doBeforeRetry(retry -> log.warn("Could not increment the rule set version of flow {}, "
+                                        + "retrying: {}", flow, retry.failure().getMessage()))
+                                .onRetryExhaustedThrow((spec, retry) -> retry.failure()));
+        return increment.then(Mono.defer(() -> load(slot))).then();
+    }
+
+    /**
+     * Compiles rows about to be written for the flow, so a failing rule set is rejected before it
+     * is stored and the {@link #publish} that follows the write does not compile it again.
+     *
+     * @param flow         the flow
+     * @param templateFile the DRL template the rows are expanded into
+     * @param rules        the flow's rule rows once written, in the order they are read back
+     * @return Mono completing once the rows are compiled, or with the compilation error
+     */
+    public Mono<Void> stage(String flow, String templateFile, List<?> rules) {
+        return ruleBaseCache.stage(flow, templateFile, rules).then();
+    }
+
+    /**
+     * Reports the rules of the flow that can never fire and what pruning them saves, without
+     * touching the flow's active rule set.
+     *
+     * @param flow         the flow
+     * @param templateFile the DRL template the rows are expanded into
+     * @param rules        the flow's rule rows
+     * @return Mono emitting the report
+     */
+    public Mono<RuleAnalysisReport> analyze(String flow, String templateFile, List<?> rules) {
+        return ruleBaseCache.analyze(flow, templateFile, rules);
+    }
+
+    /**
+     * Rebuilds every active rule set whose stored version is newer than the active one.
+     *
+     * @return Mono completing once the outdated rule sets are swapped
+     */
+    Mono<Void> refresh() {
+        if (ruleSetVersionRepo == null || slots.isEmpty()) {
+            return Mono.empty();
+        }
+        return ruleSetVersionRepo.findAll()
+                .collectMap(RuleSetVersionEntity::getFlow, RuleSetVersionEntity::getVersion)
+                .flatMapMany(versions -> Flux.fromIterable(slots.values())
+                        .filter(slot -> slot.isBehind(versions.getOrDefault(slot.key.flow(), 0L))))
+                .flatMap(slot -> load(slot)
+                        .onErrorResume(e -> {
+                            log.warn("Could not refresh the rule set of flow {}: {}", slot.key.flow(), e.getMessage());
+                            return Mono.empty();
+                        }))
+                .then();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startRefresher() {
+        if (ruleSetVersionRepo == null || rulesEngineProperties.getRuleSetRefreshInterval().isZero()) {
+            return;
+        }
+        refresher = Flux.interval(rulesEngineProperties.getRuleSetRefreshInterval())
+                .onBackpressureDrop()
+                .concatMap(tick -> refresh()
+                        .onErrorResume(e -> {
+                            log.warn("Rule set refresh failed: {}", e.getMessage());
+                            return Mono.empty();
+                        }))
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void stopRefresher() {
+        if (refresher != null) {
+            refresher.dispose();
+        }
+    }
+
+    /**
+     * The active version of the flow's rule set.
+     *
+     * @param flow         the flow
+     * @param templateFile the DRL template
+     * @return the version, or {@code null} if the flow is not active on this node
+     */
+    Long activeVersion(String flow, String templateFile) {
+        RuleSetSlot slot = slots.get(new RuleSetKey(flow, templateFile));
+        ActiveRuleSet active = slot == null ? null : slot.active.get();
+        return active == null ? null : active.version();
+    }
+
+    /**
+     * Context in which {@link #ruleBase} records the version of every flow it serves into the map.
+     *
+     * @param versions the map receiving the versions by flow
+     * @return the context to write into the subscriber context
+     */
+    public static Context servedVersions(Map<String, Long> versions) {
+        return Context.of(SERVED_VERSIONS, versions);
+    }
+
+    /**
+     * Formats served versions for the {@value #RULE_SET_VERSION_HEADER} header, as
+     * {@code flow=version} pairs separated by commas.
+     *
+     * @param versions the versions by flow
+     * @return the header value
+     */
+    public static String formatVersions(Map<String, Long> versions) {
+        return new TreeMap<>(versions).entrySet().stream()
+                .map(entry -> entry.getKey() + "=" + entry.getValue())
+                .collect(Collectors.joining(","));
+    }
+
+    private RuleSetSlot slot(String flow, String templateFile, Supplier<Mono<? extends List<?>>> rules) {
+        return slots.computeIfAbsent(new RuleSetKey(flow, templateFile), key -> {
+            RuleSetSlot slot = new RuleSetSlot(key, rules);
+            Gauge.builder(VERSION_METRIC, slot, RuleSetSlot::gaugeValue)
+                    .description("Active rule set version of the flow")
+                    .tag("flow", flow)
+                    .tag("template", templateFile)
+                    .register(meterRegistry);
+            return slot;
+        });
+    }
+
+    /**
+     * Reads the version, then the rows, and builds them. The version is read first: rows are
+     * written before the version is incremented, so the rows read are never older than the version
+     * they are labelled with. Without rows the version is installed without a rule base, replacing
+     * the rules the flow had.
+     */
+    private Mono<ActiveRuleSet> load(RuleSetSlot slot) {
+        String flow = slot.key.flow();
+        return storedVersion(flow)
+                .flatMap(version -> slot.rules.get()
+                        .flatMap(rows -> {
+                            if (rows.isEmpty()) {
+                                ruleBaseCache.invalidate(flow);
+                                return Mono.just(slot.install(new ActiveRuleSet(version, null)));
+                            }
+                            return ruleBaseCache.getOrBuild(flow, slot.key.templateFile(), rows)
+                                    .map(ruleBase -> slot.install(new ActiveRuleSet(version, ruleBase)));
+                        }));
+    }
+
+    private Mono<Long> storedVersion(String flow) {
+        if (ruleSetVersionRepo == null) {
+            return Mono.just(0L);
+        }
+        return ruleSetVersionRepo.findById(flow)
+                .map(RuleSetVersionEntity::getVersion)
+                .defaultIfEmpty(0L)
+                .onErrorResume(e -> {
+                    log.warn("Could not read the rule set version of flow {}: {}", flow, e.getMessage());
+                    return Mono.just(UNKNOWN_VERSION);
+                });
+    }
+
+    private final class RuleSetSlot {
+
+        private final RuleSetKey key;
+        private final Supplier<Mono<? extends List<?>>> rules;
+        private final AtomicReference<ActiveRuleSet> active = new AtomicReference<>();
+        private final AtomicReference<Mono<ActiveRuleSet>> loading = new AtomicReference<>();
+
+        RuleSetSlot(RuleSetKey key, Supplier<Mono<? extends List<?>>> rules) {
+            this.key = key;
+            this.rules = rules;
+        }
+
+        /**
+         * Loads the flow for the requests that find it inactive, sharing one load between them.
+         */
+        Mono<ActiveRuleSet> initialLoad() {
+            Mono<ActiveRuleSet> current = loading.get();
+            if (current != null) {
+                return current;
+            }
+            Mono<ActiveRuleSet> load = load(this)
+                    .doFinally(signal -> loading.set(null))
+                    .cache();
+            return loading.compareAndSet(null, load) ? load : initialLoad();
+        }
+
+        /**
+         * Makes the rule set active unless a newer version already is, and retires the rule base it
+         * replaces.
+         */
+        ActiveRuleSet install(ActiveRuleSet candidate) {
+            ActiveRuleSet current;
+            do {
+                current = active.get();
+                if (current != null && candidate.version() < current.version() && current.version() != UNKNOWN_VERSION) {
+                    return current;
+                }
+            } while (!active.compareAndSet(current, candidate));
+            log.info("Activated version {} of the rule set of flow {}", candidate.version(), key.flow());
+            Counter.builder(SWAP_METRIC)
+                    .tag("flow", key.flow())
+                    .tag("template", key.templateFile())
+                    .register(meterRegistry)
+                    .increment();
+            if (current != null && current.ruleBase() != null && current.ruleBase() != candidate.ruleBase()) {
+                current.ruleBase().retire();
+            }
+            return candidate;
+        }
+
+        boolean isBehind(long storedVersion) {
+            ActiveRuleSet current = active.get();
+            return current != null && (current.version() == UNKNOWN_VERSION || storedVersion > current.version());
+        }
+
+        double gaugeValue() {
+            ActiveRuleSet current = active.get();
+            return current == null ? Double.NaN : current.version();
+        }
+    }
+
+    private record RuleSetKey(String flow, String templateFile) {
+    }
+
+    /**
+     * @param ruleBase the rule base, {@code null} when the flow has no rules
+     */
+    private record ActiveRuleSet(long version, CompiledRuleBase ruleBase) {
+    }
+}
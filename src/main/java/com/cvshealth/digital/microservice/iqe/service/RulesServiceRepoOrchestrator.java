@@ -6,6 +6,7 @@ import com.cvshealth.digital.microservice.iqe.error.InvalidRequestException;
 import com.cvshealth.digital.microservice.iqe.error.ResourceNotFoundException;
 import com.cvshealth.digital.microservice.iqe.model.IQEResponse;
 import com.cvshealth.digital.microservice.iqe.repository.RulesByFlowRepository;
+import com.cvshealth.digital.microservice.iqe.utils.ConditionParser;
 import jakarta.validation.ConstraintViolation;
 import jakarta.validation.Validation;
 import jakarta.validation.Validator;
@@ -13,8 +14,11 @@ import jakarta.validation.ValidatorFactory;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
 
 import static com.cvshealth.digital.microservice.iqe.constants.SchedulingConstants.*;
@@ -49,15 +53,24 @@ public class RulesServiceRepoOrchestrator {
             log.info("Exception occurred in the method {}", methodName);
             return Mono.error(new InvalidRequestException(INVALID_INPUT, "Validation failed: " + violations));
         }
+        Optional<String> sandboxViolation = ConditionParser.sandboxViolation(request.getRulesByFlow().getCondition());
+        if (sandboxViolation.isPresent()) {
+            log.info("Exception occurred in the method {}", methodName);
+            return Mono.error(new InvalidRequestException(INVALID_INPUT, "Rule condition " + sandboxViolation.get()));
+        }
         return Mono.deferContextual(ctx -> {
             if (request.getRulesByFlow().isUpdate()) {
                 return rulesByFlowRepo.findByFlowAndCondition(request.getRulesByFlow().getFlow(), request.getRulesByFlow().getCondition())
                         .switchIfEmpty(Mono.error(new ResourceNotFoundException(DATA_NOT_FOUND_CODE, DATA_NOT_FOUND_MESSAGE)))
                         .flatMap(hasElement -> Mono.just(request));
             } else {
-                return rulesByFlowRepo.findByFlowAndCondition(request.getRulesByFlow().getFlow(), request.getRulesByFlow()
-                                .getCondition())
-                        .hasElement()
+                // The rule is stored with its canonical condition, so an equivalent condition written differently is a duplicate too
+                String condition = request.getRulesByFlow().getCondition();
+                String canonical = ConditionParser.canonicalize(condition);
+                return Flux.concat(rulesByFlowRepo.findByFlowAndCondition(request.getRulesByFlow().getFlow(), condition),
+                                Objects.equals(canonical, condition) ? Mono.empty()
+                                        : rulesByFlowRepo.findByFlowAndCondition(request.getRulesByFlow().getFlow(), canonical))
+                        .hasElements()
                         .flatMap(hasElement -> {
                             if (hasElement || ((request.getRulesByFlow().getActionId() !=null && !request.getRulesByFlow().getActionId().isEmpty()) ||
                                     (request.getActions().getActionId() !=null && !request.getActions().getActionId().isEmpty()))) {
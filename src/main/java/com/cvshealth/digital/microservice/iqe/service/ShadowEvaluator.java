@@ -0,0 +1,302 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.config.DroolConfig;
+import com.cvshealth.digital.microservice.iqe.config.RulesEngineConfig;
+import com.cvshealth.digital.microservice.iqe.dto.ShadowReport;
+import com.cvshealth.digital.microservice.iqe.entity.RulesByFlowEntity;
+import com.cvshealth.digital.microservice.iqe.model.RulesDetails;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays a sample of live evaluations against a candidate rule set of the flow, so a new version
+ * of the rules can be compared with the live one on real traffic before it is published.
+ * <p>
+ * The live rule base is fired by the caller as usual; a sample only takes a copy of the fact before
+ * it fires and hands it over with the live outcome afterwards. The replay runs on a scheduler of
+ * its own with at most {@code shadowMaxConcurrency} evaluations in flight; samples arriving while
+ * they are all busy are dropped rather than queued, so a slow candidate never backs up into live
+ * traffic. Candidates are built outside the rule base cache, without its metrics or memo, and are
+ * only held in memory on the node they were registered on.
+ * <p>
+ * Outcomes are those of the live evaluation. Latencies are measured apart from it: the replay
+ * times both the live and the candidate rule base on the shadow thread, in alternating order and
+ * without metrics, memo or budget, and candidates are warmed when they are registered.
+ */
+@Component
+@Slf4j
+public class ShadowEvaluator {
+
+    static final String RESULT_METRIC = "iqe.shadow.evaluation";
+    static final String LATENCY_METRIC = "iqe.shadow.latency";
+    static final int WARMUP_EVALUATIONS = 100;
+
+    private final RuleBaseCache ruleBaseCache;
+    private final RulesEngineConfig.RulesEngineProperties rulesEngineProperties;
+    private final MeterRegistry meterRegistry;
+    private final Scheduler shadowScheduler;
+    private final Semaphore permits;
+
+    private final Map<String, Candidate> candidates = new ConcurrentHashMap<>();
+
+    public ShadowEvaluator(RuleBaseCache ruleBaseCache, RulesEngineConfig.RulesEngineProperties rulesEngineProperties,
+                           MeterRegistry meterRegistry) {
+        this.ruleBaseCache = ruleBaseCache;
+        this.rulesEngineProperties = rulesEngineProperties;
+        this.meterRegistry = meterRegistry;
+        int maxConcurrency = rulesEngineProperties.getShadowMaxConcurrency();
+        this.shadowScheduler = Schedulers.newBoundedElastic(maxConcurrency, maxConcurrency, "rule-shadow");
+        this.permits = new Semaphore(maxConcurrency);
+    }
+
+    /**
+     * Compiles the rules as the shadow candidate of the flow, replacing any previous candidate.
+     *
+     * @param flow  the flow
+     * @param rules the candidate rule rows
+     * @return Mono emitting the empty report of the new candidate
+     */
+    public Mono<ShadowReport> register(String flow, List<RulesByFlowEntity> rules) {
+        return ruleBaseCache.buildDetached(flow, DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, rules)
+                .map(ruleBase -> {
+                    warmUp(flow, ruleBase);
+                    Candidate candidate = new Candidate(ruleBase, rules.size());
+                    Candidate previous = candidates.put(flow, candidate);
+                    if (previous != null) {
+                        previous.ruleBase.retire();
+                    }
+                    log.info("Registered shadow candidate for flow {} with {} rules", flow, rules.size());
+                    return candidate.report(flow);
+                });
+    }
+
+    /**
+     * Fires facts that hold only the flow at the candidate, so its first timed replays do not pay
+     * for class loading and JIT compilation the live rule base is long past.
+     */
+    private static void warmUp(String flow, CompiledRuleBase ruleBase) {
+        for (int i = 0; i < WARMUP_EVALUATIONS; i++) {
+            RulesDetails fact = new RulesDetails();
+            fact.setFlow(flow);
+            ruleBase.fireUninstrumented(fact);
+        }
+    }
+
+    /**
+     * Stops shadowing the flow.
+     *
+     * @param flow the flow
+     * @return the final report of the candidate, empty if the flow had none
+     */
+    public Optional<ShadowReport> remove(String flow) {
+        Candidate candidate = candidates.remove(flow);
+        if (candidate == null) {
+            return Optional.empty();
+        }
+        candidate.ruleBase.retire();
+        log.info("Removed shadow candidate for flow {}", flow);
+        return Optional.of(candidate.report(flow));
+    }
+
+    /**
+     * The report of the flow's candidate.
+     *
+     * @param flow the flow
+     * @return the report, empty if the flow has no candidate
+     */
+    public Optional<ShadowReport> report(String flow) {
+        return Optional.ofNullable(candidates.get(flow)).map(candidate -> candidate.report(flow));
+    }
+
+    /**
+     * Samples a live evaluation of the fact for the flow's candidate. Call it before the live rule
+     * base fires, then {@link Sample#replay} the evaluated fact.
+     *
+     * @param live         the live rule base of the flow
+     * @param rulesDetails the fact, not evaluated yet
+     * @return the sample, which does nothing when the flow has no candidate or the fact is not sampled
+     */
+    public Sample sample(CompiledRuleBase live, RulesDetails rulesDetails) {
+        Candidate candidate = candidates.isEmpty() ? null : candidates.get(rulesDetails.getFlow());
+        if (candidate == null || ThreadLocalRandom.current().nextDouble() >= rulesEngineProperties.getShadowSampleRate()) {
+            return Sample.NONE;
+        }
+        RulesDetails input = rulesDetails.toBuilder().build();
+        return evaluated -> replay(candidate, live, input, evaluated.getActionId());
+    }
+
+    /**
+     * A sampled live evaluation.
+     */
+    @FunctionalInterface
+    public interface Sample {
+
+        Sample NONE = evaluated -> { };
+
+        /**
+         * Replays the sampled fact against the candidate in the background.
+         *
+         * @param evaluated the fact once the live rule base fired
+         */
+        void replay(RulesDetails evaluated);
+    }
+
+    private void replay(Candidate candidate, CompiledRuleBase live, RulesDetails input, String liveActionId) {
+        String flow = input.getFlow();
+        if (!permits.tryAcquire()) {
+            candidate.dropped.incrementAndGet();
+            resultCounter(flow, "dropped").increment();
+            return;
+        }
+        Mono.fromRunnable(() -> evaluate(candidate, live, input, liveActionId))
+                .subscribeOn(shadowScheduler)
+                .doFinally(signal -> permits.release())
+                .subscribe(null, e -> {
+                    candidate.failed.incrementAndGet();
+                    resultCounter(flow, "failed").increment();
+                    log.warn("Shadow evaluation failed for flow {}: {}", flow, e.getMessage());
+                });
+    }
+
+    private void evaluate(Candidate candidate, CompiledRuleBase live, RulesDetails input, String liveActionId) {
+        String flow = input.getFlow();
+        RulesDetails liveFact = input.toBuilder().build();
+        RulesDetails fact = input.toBuilder().build();
+        Timed liveRun;
+        Timed candidateRun;
+        // Alternated so neither side always runs on caches the other one warmed
+        if (candidate.replays.getAndIncrement() % 2 == 0) {
+            liveRun = time(live, liveFact);
+            candidateRun = time(candidate.ruleBase, fact);
+        } else {
+            candidateRun = time(candidate.ruleBase, fact);
+            liveRun = time(live, liveFact);
+        }
+        long liveNanos = liveRun.nanos();
+        long candidateNanos = candidateRun.nanos();
+
+        latencyTimer(flow, "live").record(liveNanos, TimeUnit.NANOSECONDS);
+        latencyTimer(flow, "candidate").record(candidateNanos, TimeUnit.NANOSECONDS);
+        candidate.liveNanos.addAndGet(liveNanos);
+        candidate.candidateNanos.addAndGet(candidateNanos);
+        if (Objects.equals(liveActionId, fact.getActionId())) {
+            candidate.matched.incrementAndGet();
+            resultCounter(flow, "match").increment();
+        } else {
+            candidate.mismatched.incrementAndGet();
+            resultCounter(flow, "mismatch").increment();
+            candidate.addMismatch(ShadowReport.Mismatch.builder()
+                    .evaluatedAt(Instant.now())
+                    .flow(flow)
+                    .liveRuleId(liveRun.ruleId())
+                    .candidateRuleId(candidateRun.ruleId())
+                    .liveActionId(liveActionId)
+                    .candidateActionId(fact.getActionId())
+                    .build(), rulesEngineProperties.getShadowReportSize());
+        }
+        // Counted last so a report never shows a sample whose outcome is not recorded yet
+        candidate.sampled.incrementAndGet();
+    }
+
+    private static Timed time(CompiledRuleBase ruleBase, RulesDetails fact) {
+        long start = System.nanoTime();
+        String ruleId = ruleBase.fireUninstrumented(fact);
+        return new Timed(ruleId, System.nanoTime() - start);
+    }
+
+    /**
+     * @param ruleId the id of the rule fired, {@code null} when none did
+     */
+    private record Timed(String ruleId, long nanos) {
+    }
+
+    private Counter resultCounter(String flow, String result) {
+        return Counter.builder(RESULT_METRIC)
+                .tag("flow", flow)
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    private Timer latencyTimer(String flow, String variant) {
+        return Timer.builder(LATENCY_METRIC)
+                .tag("flow", flow)
+                .tag("variant", variant)
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void dispose() {
+        shadowScheduler.dispose();
+        candidates.values().forEach(candidate -> candidate.ruleBase.retire());
+        candidates.clear();
+    }
+
+    private static final class Candidate {
+
+        private final CompiledRuleBase ruleBase;
+        private final int rules;
+        private final Instant registeredAt = Instant.now();
+        private final AtomicLong sampled = new AtomicLong();
+        private final AtomicLong matched = new AtomicLong();
+        private final AtomicLong mismatched = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong replays = new AtomicLong();
+        private final AtomicLong liveNanos = new AtomicLong();
+        private final AtomicLong candidateNanos = new AtomicLong();
+        private final Deque<ShadowReport.Mismatch> mismatches = new ArrayDeque<>();
+
+        Candidate(CompiledRuleBase ruleBase, int rules) {
+            this.ruleBase = ruleBase;
+            this.rules = rules;
+        }
+
+        synchronized void addMismatch(ShadowReport.Mismatch mismatch, int maxMismatches) {
+            mismatches.addLast(mismatch);
+            while (mismatches.size() > maxMismatches) {
+                mismatches.removeFirst();
+            }
+        }
+
+        synchronized ShadowReport report(String flow) {
+            long count = sampled.get();
+            Double meanLive = count == 0 ? null : liveNanos.get() / 1000.0 / count;
+            Double meanCandidate = count == 0 ? null : candidateNanos.get() / 1000.0 / count;
+            return ShadowReport.builder()
+                    .flow(flow)
+                    .registeredAt(registeredAt)
+                    .rules(rules)
+                    .sampled(count)
+                    .matched(matched.get())
+                    .mismatched(mismatched.get())
+                    .failed(failed.get())
+                    .dropped(dropped.get())
+                    .meanLiveMicros(meanLive)
+                    .meanCandidateMicros(meanCandidate)
+                    .meanLatencyDeltaMicros(count == 0 ? null : meanCandidate - meanLive)
+                    .mismatches(new ArrayList<>(mismatches))
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import org.drools.kiesession.rulebase.InternalKnowledgeBase;
+import org.kie.api.KieBase;
+import org.kie.api.KieServices;
+import org.kie.api.definition.KiePackage;
+import org.kie.api.runtime.KieContainer;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A rule base shared by the flows of a template, holding each flow's rules in a package of their
+ * own.
+ * <p>
+ * A published {@link KieBase} is never changed while evaluations may run on it. Two of them take
+ * turns: a build removes and adds only the changed flow's package on the one not published, and
+ * swaps it in. The one it replaces is brought up to date by the next build, provided the
+ * evaluations that started on it have finished; otherwise that build creates a new {@link KieBase}
+ * from the compiled packages of every flow, so nothing is compiled again either way.
+ */
+final class SharedKieBase {
+
+    private static final KieServices kieServices = KieServices.Factory.get();
+
+    private final KieContainer kieContainer;
+    private final Map<String, Collection<KiePackage>> packages = new LinkedHashMap<>();
+    private volatile Generation current;
+    private Generation standby;
+    private final Set<String> standbyStalePackages = new HashSet<>();
+
+    SharedKieBase(KieContainer kieContainer) {
+        this.kieContainer = kieContainer;
+        this.current = new Generation(kieContainer.getKieBase());
+    }
+
+    /**
+     * The published rule base.
+     */
+    KieBase kieBase() {
+        return current.kieBase();
+    }
+
+    /**
+     * Whether the rule base is the published one.
+     */
+    boolean isPublished(Generation generation) {
+        return current == generation;
+    }
+
+    /**
+     * Enters the published rule base for an evaluation, which must {@link Generation#leave leave}
+     * it once done so the rule base can be updated after it is replaced.
+     */
+    Generation enter() {
+        while (true) {
+            Generation generation = current;
+            generation.inFlight.incrementAndGet();
+            if (generation == current) {
+                return generation;
+            }
+            // Replaced in between; the next build may already be updating it
+            generation.inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Replaces the flow's package. Builds of different flows replace their packages one at a time.
+     *
+     * @param packageName  the package of the flow
+     * @param flowPackages the compiled packages of the flow
+     */
+    synchronized void replace(String packageName, Collection<KiePackage> flowPackages) {
+        packages.put(packageName, flowPackages);
+        KieBase next;
+        if (standby != null && standby.inFlight.get() == 0) {
+            next = standby.kieBase();
+            standbyStalePackages.add(packageName);
+            standbyStalePackages.forEach(stale -> update(next, stale));
+        } else {
+            next = kieContainer.newKieBase(kieServices.newKieBaseConfiguration());
+            packages.values().forEach(((InternalKnowledgeBase) next)::addPackages);
+        }
+        standby = current;
+        standbyStalePackages.clear();
+        standbyStalePackages.add(packageName);
+        current = new Generation(next);
+    }
+
+    private void update(KieBase kieBase, String packageName) {
+        if (kieBase.getKiePackage(packageName) != null) {
+            kieBase.removeKiePackage(packageName);
+        }
+        ((InternalKnowledgeBase) kieBase).addPackages(packages.get(packageName));
+    }
+
+    /**
+     * A published rule base and the evaluations running on it.
+     */
+    static final class Generation {
+
+        private final KieBase kieBase;
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private Generation(KieBase kieBase) {
+            this.kieBase = kieBase;
+        }
+
+        KieBase kieBase() {
+            return kieBase;
+        }
+
+        void leave() {
+            inFlight.decrementAndGet();
+        }
+    }
+}
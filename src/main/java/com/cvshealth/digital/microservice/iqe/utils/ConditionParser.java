@@ -0,0 +1,681 @@
+package com.cvshealth.digital.microservice.iqe.utils;
+
+import com.cvshealth.digital.microservice.iqe.model.RulesDetails;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Parser for the simple rule conditions stored in {@code rules_by_flow} and
+ * {@code questionnaire_rules}.
+ * <p>
+ * The accepted grammar is a conjunction, joined by {@code &&} or {@code ,}, of comparisons of a
+ * {@link RulesDetails} field with a literal:
+ * <pre>
+ *   condition  := comparison (('&amp;&amp;' | ',') comparison)*
+ *   comparison := field ('==' | '!=' | '&lt;' | '&lt;=' | '&gt;' | '&gt;=') literal
+ *   literal    := "string" | number | null
+ * </pre>
+ * String fields only support {@code ==} and {@code !=}. Anything else, such as disjunctions,
+ * method calls or coercions between strings and numbers, is rejected so the caller can leave the
+ * condition to Drools.
+ */
+public final class ConditionParser {
+
+    private static final Map<String, Field> FIELDS = Map.ofEntries(
+            stringField("flow", RulesDetails::getFlow),
+            numberField("age", RulesDetails::getAge),
+            stringField("code", RulesDetails::getCode),
+            stringField("questionId", RulesDetails::getQuestionId),
+            stringField("answerValue", RulesDetails::getAnswerValue),
+            stringField("serviceDescription", RulesDetails::getServiceDescription),
+            stringField("schedulingCategory", RulesDetails::getSchedulingCategory),
+            stringField("questions", RulesDetails::getQuestions),
+            stringField("action", RulesDetails::getAction),
+            stringField("requiredQuestionnaireContext", RulesDetails::getRequiredQuestionnaireContext),
+            numberField("reasonId", RulesDetails::getReasonId),
+            numberField("reasonMappingId", RulesDetails::getReasonMappingId),
+            stringField("state", RulesDetails::getState),
+            stringField("lob", RulesDetails::getLob),
+            stringField("modality", RulesDetails::getModality),
+            stringField("actionId", RulesDetails::getActionId));
+
+    /** Identifiers other than field names that a constraint may use without reading the fact. */
+    private static final Set<String> LITERALS = Set.of("null", "true", "false");
+
+    /** Drools operators that may be followed by a parenthesized list of values. */
+    private static final Set<String> SANDBOX_OPERATORS = Set.of("in");
+
+    /** Operators and grouping that can appear between the fields and literals of a constraint. */
+    private static final String PUNCTUATION = "&|()!,=<>+-*/%";
+
+    private ConditionParser() {
+    }
+
+    /**
+     * Parses a condition.
+     *
+     * @param condition the condition as stored with the rule
+     * @return the parsed condition, or empty when it is outside the supported grammar
+     */
+    public static Optional<ParsedCondition> parse(String condition) {
+        if (condition == null) {
+            return Optional.empty();
+        }
+        Lexer lexer = new Lexer(condition);
+        List<Comparison> comparisons = new ArrayList<>();
+        if (lexer.atEnd()) {
+            return Optional.of(new ParsedCondition(comparisons));
+        }
+        do {
+            Comparison comparison = parseComparison(lexer);
+            if (comparison == null) {
+                return Optional.empty();
+            }
+            comparisons.add(comparison);
+        } while (lexer.consume("&&") || lexer.consume(","));
+        return lexer.atEnd() ? Optional.of(new ParsedCondition(comparisons)) : Optional.empty();
+    }
+
+    /**
+     * Rewrites a condition in the grammar of {@link #parse} in canonical form: its equalities
+     * first, then its other comparisons, each ordered by field, operator and literal, repeated
+     * comparisons dropped, joined by {@code &&} and spaced the same way. Equivalent conditions
+     * written differently become the same text, so Drools builds the same alpha nodes for them and
+     * can share those nodes between rules.
+     *
+     * @param condition the condition as written
+     * @return the canonical condition, or the condition stripped of surrounding whitespace when it is
+     * outside the grammar or empty
+     */
+    public static String canonicalize(String condition) {
+        if (condition == null) {
+            return null;
+        }
+        return parse(condition)
+                .filter(parsed -> !parsed.comparisons().isEmpty())
+                .map(ParsedCondition::toCanonicalString)
+                .orElse(condition.strip());
+    }
+
+    /**
+     * Returns the accessor of a {@link RulesDetails} field known to the parser.
+     *
+     * @param field the field name
+     * @return the accessor, or {@code null} for an unknown field
+     */
+    public static Function<RulesDetails, Object> getter(String field) {
+        Field known = FIELDS.get(field);
+        return known == null ? null : known.getter();
+    }
+
+    /**
+     * Whether the field is a numeric {@link RulesDetails} field known to the parser.
+     *
+     * @param field the field name
+     * @return {@code true} for a known numeric field
+     */
+    public static boolean isNumericField(String field) {
+        Field known = FIELDS.get(field);
+        return known != null && known.numeric();
+    }
+
+    /**
+     * Finds the {@link RulesDetails} fields a Drools constraint reads, including constraints outside
+     * the grammar of {@link #parse}.
+     * <p>
+     * A numeric field that is only ever compared with number literals gets those literals as
+     * thresholds: any two values on the same side of every threshold give the same outcome.
+     *
+     * @param condition the condition as stored with the rule
+     * @return the field usage, or empty when the constraint uses anything besides fields, literals
+     * and operators, such as method calls, {@code this} or bindings, so its inputs are not known,
+     * or when a number a field is compared with is part of a larger expression such as
+     * {@code age > 5 + 1}, so the literal is not the threshold
+     */
+    public static Optional<FieldUsage> fieldUsage(String condition) {
+        if (condition == null) {
+            return Optional.empty();
+        }
+        Lexer lexer = new Lexer(condition);
+        Set<String> fields = new LinkedHashSet<>();
+        Map<String, NavigableSet<BigDecimal>> thresholds = new HashMap<>();
+        Set<String> exact = new HashSet<>();
+        while (!lexer.atEnd()) {
+            char c = lexer.peek();
+            if (c == '"') {
+                if (lexer.string() == null) {
+                    return Optional.empty();
+                }
+            } else if (Character.isDigit(c)) {
+                if (lexer.number() == null) {
+                    return Optional.empty();
+                }
+            } else if (Character.isJavaIdentifierStart(c)) {
+                String identifier = lexer.identifier();
+                if (LITERALS.contains(identifier)) {
+                    continue;
+                }
+                Field field = FIELDS.get(identifier);
+                if (field == null || lexer.peekIs('.') || lexer.peekIs('(')) {
+                    return Optional.empty();
+                }
+                fields.add(field.name());
+                Operator operator = field.numeric() ? lexer.operator() : null;
+                if (operator != null && lexer.consume("null")) {
+                    thresholds.computeIfAbsent(field.name(), k -> new TreeSet<>());
+                    continue;
+                }
+                BigDecimal threshold = operator != null ? lexer.number() : null;
+                if (threshold == null) {
+                    exact.add(field.name());
+                } else if (!lexer.atComparisonEnd()) {
+                    return Optional.empty();
+                } else {
+                    thresholds.computeIfAbsent(field.name(), k -> new TreeSet<>()).add(threshold);
+                }
+            } else if (PUNCTUATION.indexOf(c) >= 0) {
+                lexer.skip();
+            } else {
+                return Optional.empty();
+            }
+        }
+        exact.forEach(thresholds::remove);
+        return Optional.of(new FieldUsage(fields, thresholds));
+    }
+
+    /**
+     * Finds what keeps a condition from being a plain constraint on the fact: a method call, an
+     * object built with {@code new}, or an inline list or map. Such conditions can run arbitrary
+     * code for every evaluation, so they are rejected when rules are written. The Drools
+     * {@code in} operator is not a method call.
+     *
+     * @param condition the condition as written
+     * @return what the condition does that a constraint may not, or empty when it is allowed
+     */
+    public static Optional<String> sandboxViolation(String condition) {
+        if (condition == null) {
+            return Optional.empty();
+        }
+        Lexer lexer = new Lexer(condition);
+        while (!lexer.atEnd()) {
+            char c = lexer.peek();
+            if (c == '"') {
+                if (lexer.string() == null) {
+                    return Optional.of("has an unterminated string literal");
+                }
+            } else if (c == '\'') {
+                // Drools also accepts single quoted strings, their content is not code
+                do {
+                    lexer.skip();
+                } while (!lexer.atEnd() && lexer.peek() != '\'');
+                if (lexer.atEnd()) {
+                    return Optional.of("has an unterminated string literal");
+                }
+                lexer.skip();
+            } else if (Character.isJavaIdentifierStart(c)) {
+                String identifier = lexer.identifier();
+                if (identifier.equals("new")) {
+                    return Optional.of("builds an object with new");
+                }
+                if (lexer.peekIs('(') && !SANDBOX_OPERATORS.contains(identifier)) {
+                    return Optional.of("calls the method " + identifier);
+                }
+            } else if (c == '[' || c == '{') {
+                return Optional.of("builds an inline list or map");
+            } else {
+                lexer.skip();
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Parses a DRL string literal such as the {@code action} of a questionnaire rule.
+     *
+     * @param expression the expression
+     * @return the unescaped string, or empty when the expression is not a single string literal
+     */
+    public static Optional<String> parseStringLiteral(String expression) {
+        if (expression == null) {
+            return Optional.empty();
+        }
+        Lexer lexer = new Lexer(expression);
+        String value = lexer.string();
+        return value != null && lexer.atEnd() ? Optional.of(value) : Optional.empty();
+    }
+
+    private static Comparison parseComparison(Lexer lexer) {
+        Field field = FIELDS.get(lexer.identifier());
+        Operator operator = lexer.operator();
+        if (field == null || operator == null) {
+            return null;
+        }
+        if (lexer.consume("null")) {
+            return operator == Operator.EQ || operator == Operator.NE
+                    ? new Comparison(field.name(), operator, null) : null;
+        }
+        if (field.numeric()) {
+            BigDecimal number = lexer.number();
+            return number == null ? null : new Comparison(field.name(), operator, number);
+        }
+        String string = lexer.string();
+        if (string == null || (operator != Operator.EQ && operator != Operator.NE)) {
+            return null;
+        }
+        return new Comparison(field.name(), operator, string);
+    }
+
+    /**
+     * A condition made of comparisons that must all hold.
+     *
+     * @param comparisons the comparisons, in the order they were written
+     */
+    public record ParsedCondition(List<Comparison> comparisons) {
+
+        public ParsedCondition {
+            comparisons = Collections.unmodifiableList(comparisons);
+        }
+
+        /**
+         * Compiles the condition into a predicate with the same outcome as the Drools constraint.
+         *
+         * @return the predicate
+         */
+        public Predicate<RulesDetails> toPredicate() {
+            Predicate<RulesDetails> predicate = rulesDetails -> true;
+            for (Comparison comparison : comparisons) {
+                predicate = predicate.and(comparison.toPredicate());
+            }
+            return predicate;
+        }
+
+        /**
+         * Writes the condition in canonical form, see {@link ConditionParser#canonicalize}.
+         *
+         * @return the canonical condition
+         */
+        public String toCanonicalString() {
+            // Equalities come first: rules that share them then share the start of their alpha node chain
+            return comparisons.stream()
+                    .sorted(Comparator.comparing((Comparison comparison) -> comparison.operator() != Operator.EQ)
+                            .thenComparing(Comparison::field)
+                            .thenComparing(Comparison::operator)
+                            .thenComparing(Comparison::toConstraint))
+                    .map(Comparison::toConstraint)
+                    .distinct()
+                    .collect(Collectors.joining(" && "));
+        }
+
+        /**
+         * Whether every fact matching this condition also matches the other one. Only implications
+         * that follow from single comparisons are found, so a {@code false} may be a false negative.
+         *
+         * @param other the other condition
+         * @return {@code true} if this condition implies the other
+         */
+        public boolean implies(ParsedCondition other) {
+            for (Comparison required : other.comparisons) {
+                if (comparisons.stream().noneMatch(comparison -> comparison.implies(required))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Whether some fact could match the condition. Detects a field pinned by {@code ==} that
+         * another comparison contradicts, and numeric bounds that leave no value.
+         *
+         * @return {@code false} if no fact can match
+         */
+        public boolean isSatisfiable() {
+            Map<String, BigDecimal[]> bounds = new HashMap<>();
+            Map<String, boolean[]> strict = new HashMap<>();
+            for (Comparison comparison : comparisons) {
+                if (comparison.operator() == Operator.EQ) {
+                    for (Comparison other : comparisons) {
+                        if (other.field().equals(comparison.field()) && !comparison.implies(other)) {
+                            return false;
+                        }
+                    }
+                }
+                if (!(comparison.value() instanceof BigDecimal number)
+                        || comparison.operator() == Operator.EQ || comparison.operator() == Operator.NE) {
+                    continue;
+                }
+                BigDecimal[] bound = bounds.computeIfAbsent(comparison.field(), f -> new BigDecimal[2]);
+                boolean[] exclusive = strict.computeIfAbsent(comparison.field(), f -> new boolean[2]);
+                int side = comparison.operator() == Operator.GT || comparison.operator() == Operator.GE ? 0 : 1;
+                boolean isStrict = comparison.operator() == Operator.GT || comparison.operator() == Operator.LT;
+                int tighter = bound[side] == null ? 1 : number.compareTo(bound[side]) * (side == 0 ? 1 : -1);
+                if (tighter > 0 || (tighter == 0 && isStrict)) {
+                    bound[side] = number;
+                    exclusive[side] = isStrict;
+                }
+            }
+            for (Map.Entry<String, BigDecimal[]> entry : bounds.entrySet()) {
+                BigDecimal[] bound = entry.getValue();
+                boolean[] exclusive = strict.get(entry.getKey());
+                if (bound[0] != null && bound[1] != null) {
+                    int order = bound[0].compareTo(bound[1]);
+                    if (order > 0 || (order == 0 && (exclusive[0] || exclusive[1]))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A comparison of a {@link RulesDetails} field with a literal.
+     *
+     * @param field    the field name
+     * @param operator the operator
+     * @param value    a {@link String}, a {@link BigDecimal} or {@code null}
+     */
+    public record Comparison(String field, Operator operator, Object value) {
+
+        public Predicate<RulesDetails> toPredicate() {
+            Function<RulesDetails, Object> getter = FIELDS.get(field).getter();
+            if (value == null) {
+                return operator == Operator.EQ
+                        ? rulesDetails -> getter.apply(rulesDetails) == null
+                        : rulesDetails -> getter.apply(rulesDetails) != null;
+            }
+            if (value instanceof BigDecimal number) {
+                return rulesDetails -> {
+                    Object actual = getter.apply(rulesDetails);
+                    if (actual == null) {
+                        // Drools treats null as different from any number and not comparable to it
+                        return operator == Operator.NE;
+                    }
+                    return operator.test(new BigDecimal(actual.toString()).compareTo(number));
+                };
+            }
+            return operator == Operator.EQ
+                    ? rulesDetails -> value.equals(getter.apply(rulesDetails))
+                    : rulesDetails -> !value.equals(getter.apply(rulesDetails));
+        }
+
+        /**
+         * Writes the comparison as a Drools constraint, with single spaces around the operator.
+         *
+         * @return the constraint
+         */
+        public String toConstraint() {
+            return field + " " + operator.symbol() + " " + literal();
+        }
+
+        private String literal() {
+            if (value == null) {
+                return "null";
+            }
+            if (value instanceof BigDecimal number) {
+                return number.toPlainString();
+            }
+            StringBuilder literal = new StringBuilder("\"");
+            for (char c : ((String) value).toCharArray()) {
+                switch (c) {
+                    case '"', '\\' -> literal.append('\\').append(c);
+                    case '\n' -> literal.append("\\n");
+                    case '\t' -> literal.append("\\t");
+                    case '\r' -> literal.append("\\r");
+                    default -> literal.append(c < ' ' ? String.format("\\u%04x", (int) c) : String.valueOf(c));
+                }
+            }
+            return literal.append('"').toString();
+        }
+
+        /**
+         * Whether every value of the field satisfying this comparison also satisfies the other, with
+         * the null semantics of {@link #toPredicate()}.
+         *
+         * @param other the other comparison
+         * @return {@code true} if this comparison implies the other
+         */
+        public boolean implies(Comparison other) {
+            if (!field.equals(other.field)) {
+                return false;
+            }
+            if (other.value == null) {
+                // Only == null implies == null; every operator but != with a literal rules null out
+                return other.operator == Operator.EQ
+                        ? operator == Operator.EQ && value == null
+                        : value != null ? operator != Operator.NE : operator == Operator.NE;
+            }
+            if (value == null) {
+                // A null field differs from every literal
+                return operator == Operator.EQ && other.operator == Operator.NE;
+            }
+            if (value instanceof String string) {
+                if (operator == Operator.NE) {
+                    return other.operator == Operator.NE && string.equals(other.value);
+                }
+                return other.operator == Operator.EQ ? string.equals(other.value) : !string.equals(other.value);
+            }
+            if (!(other.value instanceof BigDecimal bound)) {
+                return false;
+            }
+            int comparison = ((BigDecimal) value).compareTo(bound);
+            return switch (operator) {
+                case EQ -> other.operator.test(comparison);
+                case NE -> other.operator == Operator.NE && comparison == 0;
+                case GT -> (other.operator == Operator.GT || other.operator == Operator.GE
+                        || other.operator == Operator.NE) && comparison >= 0;
+                case GE -> other.operator == Operator.GE ? comparison >= 0
+                        : (other.operator == Operator.GT || other.operator == Operator.NE) && comparison > 0;
+                case LT -> (other.operator == Operator.LT || other.operator == Operator.LE
+                        || other.operator == Operator.NE) && comparison <= 0;
+                case LE -> other.operator == Operator.LE ? comparison <= 0
+                        : (other.operator == Operator.LT || other.operator == Operator.NE) && comparison < 0;
+            };
+        }
+    }
+
+    /**
+     * The fields a constraint reads.
+     *
+     * @param fields     the field names
+     * @param thresholds for the numeric fields only compared with number literals, those literals
+     */
+    public record FieldUsage(Set<String> fields, Map<String, NavigableSet<BigDecimal>> thresholds) {
+    }
+
+    public enum Operator {
+        EQ("=="), NE("!="), LE("<="), GE(">="), LT("<"), GT(">");
+
+        private final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        public String symbol() {
+            return symbol;
+        }
+
+        boolean test(int comparison) {
+            return switch (this) {
+                case EQ -> comparison == 0;
+                case NE -> comparison != 0;
+                case LT -> comparison < 0;
+                case LE -> comparison <= 0;
+                case GT -> comparison > 0;
+                case GE -> comparison >= 0;
+            };
+        }
+    }
+
+    private record Field(String name, boolean numeric, Function<RulesDetails, Object> getter) {
+    }
+
+    private static Map.Entry<String, Field> stringField(String name, Function<RulesDetails, Object> getter) {
+        return Map.entry(name, new Field(name, false, getter));
+    }
+
+    private static Map.Entry<String, Field> numberField(String name, Function<RulesDetails, Object> getter) {
+        return Map.entry(name, new Field(name, true, getter));
+    }
+
+    /**
+     * Hand written lexer, the grammar is too small to justify a parser generator.
+     */
+    private static final class Lexer {
+
+        private final String input;
+        private int pos;
+
+        Lexer(String input) {
+            this.input = input;
+            skipWhitespace();
+        }
+
+        boolean atEnd() {
+            return pos == input.length();
+        }
+
+        char peek() {
+            return input.charAt(pos);
+        }
+
+        boolean peekIs(char c) {
+            return pos < input.length() && input.charAt(pos) == c;
+        }
+
+        void skip() {
+            pos++;
+            skipWhitespace();
+        }
+
+        /**
+         * Whether the comparison just read ends here: at the end of the constraint, a closing
+         * parenthesis or a conjunction, rather than going on as an arithmetic expression.
+         */
+        boolean atComparisonEnd() {
+            return atEnd() || peekIs(')') || input.startsWith("&&", pos) || input.startsWith("||", pos);
+        }
+
+        boolean consume(String token) {
+            if (!input.startsWith(token, pos)) {
+                return false;
+            }
+            int end = pos + token.length();
+            // Keywords must not be a prefix of a longer identifier
+            if (Character.isLetter(token.charAt(0)) && end < input.length()
+                    && Character.isJavaIdentifierPart(input.charAt(end))) {
+                return false;
+            }
+            pos = end;
+            skipWhitespace();
+            return true;
+        }
+
+        String identifier() {
+            int start = pos;
+            while (pos < input.length() && Character.isJavaIdentifierPart(input.charAt(pos))) {
+                pos++;
+            }
+            String identifier = input.substring(start, pos);
+            skipWhitespace();
+            return identifier;
+        }
+
+        Operator operator() {
+            for (Operator operator : Operator.values()) {
+                if (consume(operator.symbol())) {
+                    return operator;
+                }
+            }
+            return null;
+        }
+
+        BigDecimal number() {
+            int start = pos;
+            if (pos < input.length() && input.charAt(pos) == '-') {
+                pos++;
+            }
+            while (pos < input.length() && (Character.isDigit(input.charAt(pos)) || input.charAt(pos) == '.')) {
+                pos++;
+            }
+            // A trailing letter would be a typed literal such as 10L or 1.5d, leave those to Drools
+            if (pos < input.length() && Character.isJavaIdentifierPart(input.charAt(pos))) {
+                return null;
+            }
+            try {
+                BigDecimal number = new BigDecimal(input.substring(start, pos));
+                skipWhitespace();
+                return number;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        String string() {
+            if (pos >= input.length() || input.charAt(pos) != '"') {
+                return null;
+            }
+            StringBuilder value = new StringBuilder();
+            pos++;
+            while (pos < input.length()) {
+                char c = input.charAt(pos++);
+                if (c == '"') {
+                    skipWhitespace();
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (pos >= input.length()) {
+                    return null;
+                }
+                char escaped = input.charAt(pos++);
+                switch (escaped) {
+                    case 'n' -> value.append('\n');
+                    case 't' -> value.append('\t');
+                    case 'r' -> value.append('\r');
+                    case 'b' -> value.append('\b');
+                    case 'f' -> value.append('\f');
+                    case '"', '\'', '\\' -> value.append(escaped);
+                    case 'u' -> {
+                        if (pos + 4 > input.length()) {
+                            return null;
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(input.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        pos += 4;
+                    }
+                    default -> {
+                        return null;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void skipWhitespace() {
+            while (pos < input.length() && Character.isWhitespace(input.charAt(pos))) {
+                pos++;
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.entity.RulesByFlowEntity;
+import com.cvshealth.digital.microservice.iqe.error.InvalidRequestException;
+import com.cvshealth.digital.microservice.iqe.udt.AuditEntity;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DecisionTableParserTest {
+
+    private static final String FLOW = "MC_CORE";
+    private static final AuditEntity AUDIT = AuditEntity.builder().createdBy("tester").build();
+
+    /**
+     * Writes the rows to a sheet; numbers are written as numeric cells, everything else as text.
+     */
+    private static byte[] workbook(String sheetName, Object[]... rows) throws IOException {
+        try (XSSFWorkbook workbook = new XSSFWorkbook(); ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            Sheet sheet = workbook.createSheet(sheetName);
+            for (int i = 0; i < rows.length; i++) {
+                Row row = sheet.createRow(i);
+                for (int j = 0; j < rows[i].length; j++) {
+                    Object value = rows[i][j];
+                    if (value instanceof Number number) {
+                        row.createCell(j).setCellValue(number.doubleValue());
+                    } else if (value != null) {
+                        row.createCell(j).setCellValue(value.toString());
+                    }
+                }
+            }
+            workbook.write(out);
+            return out.toByteArray();
+        }
+    }
+
+    @Test
+    void parse_buildsConditionsFromFieldColumns() throws IOException {
+        byte[] table = workbook(FLOW,
+                new Object[]{"ruleId", "requiredQuestionnaireContext", "reasonId", "age", "condition", "actionId",
+                        "actionText", "salience", "active"},
+                new Object[]{"r1", "MC_CORE_ELIGIBILITY_QUESTION", 86, ">= 18", null, "A1", "Wound care", 100, null},
+                new Object[]{},
+                new Object[]{"r2", null, "30", null, "reasonMappingId == 48 || reasonMappingId == 49", "A2", null, 90,
+                        "no"});
+
+        DecisionTableParser.DecisionTable parsed = DecisionTableParser.parse(FLOW, table, AUDIT, 100);
+
+        RulesByFlowEntity first = parsed.rules().get(0);
+        assertEquals("r1", first.getRuleId());
+        assertEquals(FLOW, first.getFlow());
+        assertEquals("requiredQuestionnaireContext == \"MC_CORE_ELIGIBILITY_QUESTION\" && reasonId == 86 && age >= 18",
+                first.getCondition());
+        assertEquals("A1", first.getActionId());
+        assertEquals(100, first.getSalience());
+        assertTrue(first.isActive());
+        assertSame(AUDIT, first.getAudit());
+        RulesByFlowEntity second = parsed.rules().get(1);
+        assertEquals("reasonId == 30 && (reasonMappingId == 48 || reasonMappingId == 49)", second.getCondition());
+        assertFalse(second.isActive());
+        assertEquals(Map.of("A1", "Wound care"), parsed.actionTexts());
+    }
+
+    @Test
+    void parse_readsFirstSheetAndGeneratesMissingRuleIds() throws IOException {
+        byte[] table = workbook("Rules",
+                new Object[]{"condition", "actionId"},
+                new Object[]{"state == \"RI\"", "A1"});
+
+        List<RulesByFlowEntity> rules = DecisionTableParser.parse(FLOW, table, AUDIT, 100).rules();
+
+        assertEquals(1, rules.size());
+        assertNotNull(rules.get(0).getRuleId());
+        assertEquals("state == \"RI\"", rules.get(0).getCondition());
+    }
+
+    @Test
+    void parse_reportsEveryInvalidRow() throws IOException {
+        byte[] table = workbook(FLOW,
+                new Object[]{"ruleId", "reasonId", "actionId", "salience"},
+                new Object[]{"r1", "eighty", "A1", 100},
+                new Object[]{"r2", 86, null, 1.5},
+                new Object[]{"r3", null, "A3", 1},
+                new Object[]{"r4", 86, "A4", 1},
+                new Object[]{"r4", 87, "A4", 1});
+
+        InvalidRequestException error = assertThrows(InvalidRequestException.class,
+                () -> DecisionTableParser.parse(FLOW, table, AUDIT, 100));
+
+        assertTrue(error.getMessage().contains("Row 2: reasonId eighty is not a number"), error.getMessage());
+        assertTrue(error.getMessage().contains("Row 3: salience 1.5 is not an integer"), error.getMessage());
+        assertTrue(error.getMessage().contains("Row 3: actionId is required"), error.getMessage());
+        assertTrue(error.getMessage().contains("Row 4: a condition is required"), error.getMessage());
+        assertTrue(error.getMessage().contains("Row 6: duplicate ruleId r4"), error.getMessage());
+    }
+
+    @Test
+    void parse_rejectsConditionsThatCallMethods() throws IOException {
+        byte[] table = workbook(FLOW,
+                new Object[]{"reasonId", "condition", "actionId"},
+                new Object[]{86, "state.startsWith(\"R\")", "A1"});
+
+        InvalidRequestException error = assertThrows(InvalidRequestException.class,
+                () -> DecisionTableParser.parse(FLOW, table, AUDIT, 100));
+
+        assertTrue(error.getMessage().contains("Row 2: the condition calls the method startsWith"), error.getMessage());
+    }
+
+    @Test
+    void parse_rejectsUnknownColumns() throws IOException {
+        byte[] table = workbook(FLOW,
+                new Object[]{"reasonId", "actionId", "priority"},
+                new Object[]{86, "A1", 1});
+
+        InvalidRequestException error = assertThrows(InvalidRequestException.class,
+                () -> DecisionTableParser.parse(FLOW, table, AUDIT, 100));
+
+        assertTrue(error.getMessage().contains("Unknown column priority"), error.getMessage());
+    }
+
+    @Test
+    void parse_rejectsTablesOverTheRuleLimit() throws IOException {
+        byte[] table = workbook(FLOW,
+                new Object[]{"reasonId", "actionId"},
+                new Object[]{86, "A1"},
+                new Object[]{87, "A2"});
+
+        assertThrows(InvalidRequestException.class, () -> DecisionTableParser.parse(FLOW, table, AUDIT, 1));
+    }
+
+    @Test
+    void parse_rejectsFilesThatAreNotWorkbooks() {
+        byte[] notAWorkbook = "reasonId,actionId".getBytes(StandardCharsets.UTF_8);
+
+        assertThrows(InvalidRequestException.class, () -> DecisionTableParser.parse(FLOW, notAWorkbook, AUDIT, 100));
+    }
+}
@@ -12,6 +12,7 @@ import com.cvshealth.digital.microservice.iqe.model.Question;
 import com.cvshealth.digital.microservice.iqe.model.RulesDetails;
 import com.cvshealth.digital.microservice.iqe.utils.LoggingUtils;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.tomcat.util.json.ParseException;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -309,7 +310,8 @@ public class IQEControllerTest {
 
         Mono<QuestionareRequest> expectedResponseMono = Mono.just(request);
 
-        Mockito.when(iqeService.questionnaireByActionId(Mockito.eq(actionId), Mockito.any())).thenReturn(expectedResponseMono);
+        Mockito.when(iqeService.questionnaireJsonByActionId(actionId))
+                .thenReturn(expectedResponseMono.map(response -> json(response)));
 
         StepVerifier.create(webTestClient.get().uri("/schedule/iqe/v1/questionnaire/" + actionId)
                         .header("Content-Type", MediaType.APPLICATION_JSON_VALUE)
@@ -331,7 +333,8 @@ public class IQEControllerTest {
 
         Mono<QuestionareRequest> errorMono = Mono.just(errorRequest);
 
-        Mockito.when(iqeService.questionnaireByActionId(Mockito.eq(actionId), Mockito.any())).thenReturn(errorMono);
+        Mockito.when(iqeService.questionnaireJsonByActionId(actionId))
+                .thenReturn(errorMono.map(response -> json(response)));
 
         StepVerifier.create(webTestClient.get().uri("/schedule/iqe/v1/questionnaire/" + actionId)
                         .header("Content-Type", MediaType.APPLICATION_JSON_VALUE)
@@ -343,6 +346,14 @@ public class IQEControllerTest {
                 .verifyComplete();
     }
 
+    private static byte[] json(QuestionareRequest questionareRequest) {
+        try {
+            return new ObjectMapper().writeValueAsBytes(questionareRequest);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     public void setQuestionareRequest(QuestionareRequest questionareRequest) {
         questionareRequest.setRulesByFlow(RulesByFlow.builder()
                 .flow("flow1.51")
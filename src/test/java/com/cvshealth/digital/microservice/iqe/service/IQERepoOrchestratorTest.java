@@ -1,17 +1,30 @@
 package com.cvshealth.digital.microservice.iqe.service;
 
 import com.cvshealth.digital.microservice.iqe.dto.*;
+import com.cvshealth.digital.microservice.iqe.entity.ActionsEntity;
+import com.cvshealth.digital.microservice.iqe.entity.AnswerOptionsEntity;
+import com.cvshealth.digital.microservice.iqe.entity.QuestionnaireByActionEntity;
+import com.cvshealth.digital.microservice.iqe.entity.QuestionsEntity;
+import com.cvshealth.digital.microservice.iqe.entity.RulesByFlowEntity;
+import com.cvshealth.digital.microservice.iqe.error.ResourceNotFoundException;
 import com.cvshealth.digital.microservice.iqe.error.ServerErrorException;
 import com.cvshealth.digital.microservice.iqe.model.IQEResponse;
 import com.cvshealth.digital.microservice.iqe.repository.*;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.*;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
 
@@ -23,6 +36,8 @@ public class IQERepoOrchestratorTest {
     @Mock private QuestionnaireDetailsRepository questionnaireDetailsRepo;
     @Mock private AnswerOptionsRepository answerOptionsRepo;
     @Mock private RedisCacheService redisCacheService;
+    @Mock private QuestionnaireByActionRepository questionnaireByActionRepo;
+    @Spy private SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
 
     @InjectMocks
     private IQERepoOrchestrator orchestrator;
@@ -48,6 +63,18 @@ public class IQERepoOrchestratorTest {
                 .verifyComplete();
     }
 
+    @Test
+    void processInputData_canonicalizesCondition() {
+        QuestionareRequest req = new QuestionareRequest();
+        req.setRulesByFlow(RulesByFlow.builder().condition("requiredQuestionnaireContext==\"X\" && reasonId==86").build());
+        req.setActions(Actions.builder().build());
+
+        StepVerifier.create(orchestrator.processInputData(req, new HashMap<>(), new IQEResponse(), new HashMap<>()))
+                .expectNextMatches(r -> r.getRulesByFlow().getCondition()
+                        .equals("reasonId == 86 && requiredQuestionnaireContext == \"X\""))
+                .verifyComplete();
+    }
+
     @Test
     void processInputData_error() {
         QuestionareRequest req = new QuestionareRequest();
@@ -117,4 +144,257 @@ public class IQERepoOrchestratorTest {
                 .expectNextMatches(r -> r.getQuestions().get(0).getSequenceId() == 1)
                 .verifyComplete();
     }
-}
\ No newline at end of file
+
+    @Test
+    void insertQuestionsIntoDB_writesTheDocumentOnceTheRowsAreWritten() {
+        when(rulesByFlowRepo.save(any())).thenReturn(Mono.just(new RulesByFlowEntity()));
+        when(actionsRepo.save(any())).thenReturn(Mono.just(new ActionsEntity()));
+        when(questionnaireByActionRepo.save(any())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        when(redisCacheService.setDataToRedisRest(anyString(), any(), anyMap())).thenReturn(Mono.empty());
+
+        StepVerifier.create(orchestrator.insertQuestionsIntoDB(questionnaireToInsert(), new HashMap<>(), new IQEResponse()))
+                .verifyComplete();
+
+        InOrder writes = inOrder(rulesByFlowRepo, actionsRepo, questionnaireByActionRepo);
+        writes.verify(rulesByFlowRepo).save(any());
+        writes.verify(questionnaireByActionRepo).save(any());
+        verify(questionnaireByActionRepo, never()).deleteByActionId(anyString());
+    }
+
+    @Test
+    void insertQuestionsIntoDB_dropsTheDocumentWhenARowWriteFails() {
+        when(rulesByFlowRepo.save(any())).thenReturn(Mono.error(new IllegalStateException("write timeout")));
+        when(actionsRepo.save(any())).thenReturn(Mono.just(new ActionsEntity()));
+        when(questionnaireByActionRepo.deleteByActionId("A1")).thenReturn(Mono.empty());
+
+        StepVerifier.create(orchestrator.insertQuestionsIntoDB(questionnaireToInsert(), new HashMap<>(), new IQEResponse()))
+                .expectError(ServerErrorException.class)
+                .verify();
+
+        verify(questionnaireByActionRepo, never()).save(any());
+        verify(questionnaireByActionRepo).deleteByActionId("A1");
+    }
+
+    @Test
+    void materializeQuestionnaire_storesTheAssembledQuestionnaire() {
+        stubActionRows("A1");
+        when(questionnaireByActionRepo.save(any())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        StepVerifier.create(orchestrator.materializeQuestionnaire("A1"))
+                .expectNext(true)
+                .verifyComplete();
+
+        ArgumentCaptor<QuestionnaireByActionEntity> stored = ArgumentCaptor.forClass(QuestionnaireByActionEntity.class);
+        verify(questionnaireByActionRepo).save(stored.capture());
+        when(questionnaireByActionRepo.findByActionId("A1")).thenReturn(Mono.just(stored.getValue()));
+
+        StepVerifier.create(orchestrator.findQuestionnaireDocument("A1"))
+                .expectNextMatches(document -> "flow1".equals(document.getRulesByFlow().getFlow())
+                        && document.getQuestions().size() == 1
+                        && document.getQuestions().get(0).getAnswerOptions().size() == 1
+                        && "Yes".equals(document.getQuestions().get(0).getAnswerOptions().get(0).getText()))
+                .verifyComplete();
+    }
+
+    @Test
+    void materializeQuestionnaire_deletesTheDocumentOfAnActionWithoutRule() {
+        when(rulesByFlowRepo.findByActionId("A1")).thenReturn(Flux.empty());
+        when(actionsRepo.findByActionId("A1")).thenReturn(Flux.just(ActionsEntity.builder().actionId("A1").build()));
+        when(questionsRepo.findByActionId("A1")).thenReturn(Flux.empty());
+        when(answerOptionsRepo.findByActionId("A1")).thenReturn(Flux.empty());
+        when(questionnaireDetailsRepo.findByActionId("A1")).thenReturn(Flux.empty());
+        when(questionnaireByActionRepo.deleteByActionId("A1")).thenReturn(Mono.empty());
+
+        StepVerifier.create(orchestrator.materializeQuestionnaire("A1"))
+                .expectNext(false)
+                .verifyComplete();
+
+        verify(questionnaireByActionRepo).deleteByActionId("A1");
+        verify(questionnaireByActionRepo, never()).save(any());
+    }
+
+    @Test
+    void readQuestionnaire_readsEveryTableInOneRoundTrip() {
+        Duration latency = Duration.ofMillis(100);
+        stubActionRows("A1", latency);
+
+        StepVerifier.withVirtualTime(() -> orchestrator.readQuestionnaire("A1", new QuestionareRequest()))
+                .expectSubscription()
+                .expectNoEvent(latency.minusMillis(1))
+                .thenAwait(Duration.ofMillis(1))
+                .expectNextMatches(questionnaire -> "flow1".equals(questionnaire.getRulesByFlow().getFlow())
+                        && questionnaire.getQuestions().size() == 1)
+                .expectComplete()
+                .verify(Duration.ofSeconds(5));
+
+        verify(rulesByFlowRepo, times(1)).findByActionId("A1");
+        verify(actionsRepo, times(1)).findByActionId("A1");
+        verify(questionsRepo, times(1)).findByActionId("A1");
+        verify(answerOptionsRepo, times(1)).findByActionId("A1");
+        verify(questionnaireDetailsRepo, times(1)).findByActionId("A1");
+        verifyNoMoreInteractions(rulesByFlowRepo, actionsRepo, questionsRepo, answerOptionsRepo,
+                questionnaireDetailsRepo);
+    }
+
+    @Test
+    void readQuestions_readsEveryQuestionInOneQueryPerTable() {
+        when(questionsRepo.findByActionIdAndQuestionIdIn(eq("A1"), anyCollection())).thenReturn(Flux.just(
+                QuestionsEntity.builder().actionId("A1").questionId("Q1").questionText("First").sequence_id(1).build(),
+                QuestionsEntity.builder().actionId("A1").questionId("Q2").questionText("Second").sequence_id(2).build()));
+        when(answerOptionsRepo.findByActionIdAndQuestionIdIn(eq("A1"), anyCollection())).thenReturn(Flux.just(
+                AnswerOptionsEntity.builder().actionId("A1").questionId("Q1").answerOptionId("O2").answerText("No")
+                        .sequence_id(2).build(),
+                AnswerOptionsEntity.builder().actionId("A1").questionId("Q1").answerOptionId("O1").answerText("Yes")
+                        .relatedQuestions(List.of("Q2")).sequence_id(1).build()));
+
+        StepVerifier.create(orchestrator.readQuestions("A1", List.of("Q2", "Q1", "Q3", "Q1")))
+                .expectNextMatches(questions -> questions.stream().map(Questions::getQuestionId).toList()
+                        .equals(List.of("Q2", "Q1", "Q1"))
+                        && questions.get(0).getAnswerOptions().isEmpty()
+                        && questions.get(1).getAnswerOptions().stream().map(AnswerOptions::getText).toList()
+                        .equals(List.of("Yes", "No"))
+                        && "Q2".equals(questions.get(1).getAnswerOptions().get(0).getRelatedQuestions().get(0).getQuestionId()))
+                .verifyComplete();
+
+        verify(questionsRepo, times(1)).findByActionIdAndQuestionIdIn("A1", List.of("Q2", "Q1", "Q3"));
+        verify(answerOptionsRepo, times(1)).findByActionIdAndQuestionIdIn("A1", List.of("Q2", "Q1", "Q3"));
+        verify(questionsRepo, never()).findByActionIdAndQuestionId(anyString(), anyString());
+    }
+
+    @Test
+    void readQuestions_makesNoQueryWithoutQuestions() {
+        StepVerifier.create(orchestrator.readQuestions("A1", List.of()))
+                .expectNext(List.of())
+                .verifyComplete();
+
+        verifyNoInteractions(questionsRepo, answerOptionsRepo);
+    }
+
+    @Test
+    void countingQueries_recordsTheQueriesThatRan() {
+        when(questionsRepo.findByActionIdAndQuestionIdIn(eq("A1"), anyCollection())).thenReturn(Flux.empty());
+        when(answerOptionsRepo.findByActionIdAndQuestionIdIn(eq("A1"), anyCollection())).thenReturn(Flux.empty());
+
+        StepVerifier.create(orchestrator.countingQueries("relatedQuestions",
+                        orchestrator.readQuestions("A1", List.of("Q1", "Q2"))))
+                .expectNext(List.of())
+                .verifyComplete();
+        StepVerifier.create(orchestrator.countingQueries("relatedQuestions",
+                        orchestrator.readQuestions("A1", List.of())))
+                .expectNext(List.of())
+                .verifyComplete();
+
+        DistributionSummary summary = meterRegistry.get(IQERepoOrchestrator.QUERIES_METRIC).tag("operation", "relatedQuestions").summary();
+        assertEquals(2, summary.count());
+        assertEquals(2.0, summary.totalAmount());
+        assertEquals(2.0, summary.max());
+    }
+
+    @Test
+    void streamQuestions_buildsEachTreeAsItIsRequested() {
+        stubActionRows("A1");
+
+        StepVerifier.create(orchestrator.streamQuestions("A1"), 0)
+                .expectSubscription()
+                .thenRequest(1)
+                .expectNextMatches(question -> "Q1".equals(question.getQuestionId())
+                        && "Yes".equals(question.getAnswerOptions().get(0).getText()))
+                .verifyComplete();
+    }
+
+    @Test
+    void streamQuestions_failsForAnActionWithoutRule() {
+        stubActionRows("A1");
+        when(rulesByFlowRepo.findByActionId("A1")).thenReturn(Flux.empty());
+
+        StepVerifier.create(orchestrator.streamQuestions("A1"))
+                .expectError(ResourceNotFoundException.class)
+                .verify();
+    }
+
+    @Test
+    void streamQuestions_propagatesReadFailures() {
+        stubActionRows("A1");
+        when(answerOptionsRepo.findByActionId("A1")).thenReturn(Flux.error(new IllegalStateException("read timeout")));
+
+        StepVerifier.create(orchestrator.streamQuestions("A1"))
+                .expectError(IllegalStateException.class)
+                .verify();
+    }
+
+    @Test
+    void findQuestionnaireJson_servesTheStoredBytes() {
+        byte[] json = "{\"questions\":[]}".getBytes(StandardCharsets.UTF_8);
+        when(questionnaireByActionRepo.findByActionId("A1")).thenReturn(Mono.just(QuestionnaireByActionEntity.builder()
+                .actionId("A1")
+                .documentVersion(IQERepoOrchestrator.QUESTIONNAIRE_DOCUMENT_VERSION)
+                .document(ByteBuffer.wrap(json))
+                .build()));
+
+        StepVerifier.create(orchestrator.findQuestionnaireJson("A1"))
+                .expectNextMatches(served -> Arrays.equals(json, served))
+                .verifyComplete();
+    }
+
+    @Test
+    void findQuestionnaireDocument_ignoresDocumentsOfAnotherFormat() {
+        when(questionnaireByActionRepo.findByActionId("A1")).thenReturn(Mono.just(QuestionnaireByActionEntity.builder()
+                .actionId("A1")
+                .documentVersion(IQERepoOrchestrator.QUESTIONNAIRE_DOCUMENT_VERSION + 1)
+                .document(ByteBuffer.wrap("{}".getBytes(StandardCharsets.UTF_8)))
+                .build()));
+
+        StepVerifier.create(orchestrator.findQuestionnaireDocument("A1"))
+                .verifyComplete();
+    }
+
+    @Test
+    void findQuestionnaireDocument_ignoresDocumentsThatCannotBeRead() {
+        when(questionnaireByActionRepo.findByActionId("A1")).thenReturn(Mono.just(QuestionnaireByActionEntity.builder()
+                .actionId("A1")
+                .documentVersion(IQERepoOrchestrator.QUESTIONNAIRE_DOCUMENT_VERSION)
+                .document(ByteBuffer.wrap("{\"questions\": 1".getBytes(StandardCharsets.UTF_8)))
+                .build()));
+
+        StepVerifier.create(orchestrator.findQuestionnaireDocument("A1"))
+                .verifyComplete();
+    }
+
+    private static QuestionareRequest questionnaireToInsert() {
+        QuestionareRequest req = new QuestionareRequest();
+        req.setRulesByFlow(RulesByFlow.builder().flow("flow1").actionId("A1").audit(Audit.builder().build()).build());
+        req.setActions(Actions.builder().actionId("A1").questionIds(List.of()).detailIds(List.of()).build());
+        req.setQuestions(new ArrayList<>());
+        req.setDetails(new ArrayList<>());
+        return req;
+    }
+
+    private void stubActionRows(String actionId) {
+        stubActionRows(actionId, Duration.ZERO);
+    }
+
+    /**
+     * Serves the rows of an action from memory, every read taking {@code latency}.
+     */
+    private void stubActionRows(String actionId, Duration latency) {
+        RulesByFlowEntity rule = RulesByFlowEntity.builder()
+                .flow("flow1").ruleId("R1").actionId(actionId).condition("reasonId == 86").isActive(true).build();
+        ActionsEntity action = ActionsEntity.builder()
+                .actionId(actionId).questionId(List.of("Q1")).detailId(List.of()).build();
+        QuestionsEntity question = QuestionsEntity.builder()
+                .actionId(actionId).questionId("Q1").questionText("Are you pregnant?").answerType("radio")
+                .answerOptionId(List.of("O1")).sequence_id(1).build();
+        AnswerOptionsEntity answerOption = AnswerOptionsEntity.builder()
+                .actionId(actionId).questionId("Q1").answerOptionId("O1").answerText("Yes").answerValue("yes")
+                .sequence_id(1).build();
+        when(rulesByFlowRepo.findByActionId(actionId)).thenAnswer(invocation -> withLatency(Flux.just(rule), latency));
+        when(actionsRepo.findByActionId(actionId)).thenAnswer(invocation -> withLatency(Flux.just(action), latency));
+        when(questionsRepo.findByActionId(actionId)).thenAnswer(invocation -> withLatency(Flux.just(question), latency));
+        when(answerOptionsRepo.findByActionId(actionId)).thenAnswer(invocation -> withLatency(Flux.just(answerOption), latency));
+        when(questionnaireDetailsRepo.findByActionId(actionId)).thenAnswer(invocation -> withLatency(Flux.empty(), latency));
+    }
+
+    private static <T> Flux<T> withLatency(Flux<T> rows, Duration latency) {
+        return latency.isZero() ? rows : rows.delaySubscription(latency);
+    }
+}
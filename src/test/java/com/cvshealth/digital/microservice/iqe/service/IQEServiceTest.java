@@ -1,17 +1,21 @@
 package com.cvshealth.digital.microservice.iqe.service;
 
 
+import com.cvshealth.digital.microservice.iqe.config.RulesEngineConfig;
 import com.cvshealth.digital.microservice.iqe.dto.*;
 import com.cvshealth.digital.microservice.iqe.dto.QuestionareRequest;
 import com.cvshealth.digital.microservice.iqe.entity.QuestionnaireRules;
 
 import com.cvshealth.digital.microservice.iqe.entity.*;
+import com.cvshealth.digital.microservice.iqe.error.ResourceNotFoundException;
+import com.cvshealth.digital.microservice.iqe.error.ServerErrorException;
 import com.cvshealth.digital.microservice.iqe.model.IQEResponse;
 import com.cvshealth.digital.microservice.iqe.model.RulesDetails;
 import com.cvshealth.digital.microservice.iqe.repository.*;
 import com.cvshealth.digital.microservice.iqe.udt.AuditEntity;
 import com.cvshealth.digital.microservice.iqe.utils.LoggingUtils;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.jupiter.api.BeforeEach;
@@ -24,8 +28,10 @@ import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.beans.factory.annotation.Autowired;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 import reactor.test.StepVerifier;
 
+import java.time.Duration;
 import java.util.*;
 
 import static graphql.Assert.assertNotNull;
@@ -78,16 +84,27 @@ public class IQEServiceTest {
     @Mock
     QuestionnaireDetailsRepository questionnaireDetailsRepo;
 
+    @Mock
+    QuestionnaireByActionRepository questionnaireByActionRepo;
+
     @Autowired
     private RedisCacheService redisCacheService;
 
+    RulesEngineConfig.RulesEngineProperties rulesEngineProperties = new RulesEngineConfig.RulesEngineProperties();
+    RuleBaseCache ruleBaseCache = new RuleBaseCache(rulesEngineProperties, new SimpleMeterRegistry(),
+            Schedulers.immediate());
+    RuleSetRegistry ruleSetRegistry = new RuleSetRegistry(ruleBaseCache, rulesEngineProperties,
+            new SimpleMeterRegistry());
+    ShadowEvaluator shadowEvaluator = new ShadowEvaluator(ruleBaseCache, rulesEngineProperties,
+            new SimpleMeterRegistry());
+
     @BeforeEach
     void setUp() {
         MockitoAnnotations.openMocks(this);
         iqeService = new IQEService(
                 questionnaireRulesRepository, loggingUtils, helper,
                 rulesServiceRepoOrchestrator, actionsRepo, questionsRepo,
-                rulesByFlowRepo, answerOptionsRepo, redisCacheService, questionnaireDetailsRepo
+                rulesByFlowRepo, answerOptionsRepo, redisCacheService, questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator
         );
     }
 
@@ -113,7 +130,7 @@ public class IQEServiceTest {
 
 
         IQEService iqeServiceClass = new IQEService(questionnaireRulesRepo, loggingUtils, helper,
-                rulesServiceRepoOrchestrator, actionsRepo, questionsRepo, rulesByFlowRepo, answerOptionsRepo,redisCacheService,questionnaireDetailsRepo);
+                rulesServiceRepoOrchestrator, actionsRepo, questionsRepo, rulesByFlowRepo, answerOptionsRepo,redisCacheService,questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
 
         Mono<com.cvshealth.digital.microservice.iqe.model.Questions> questionsMono = iqeServiceClass.getRuleDetails(rulesDetailsInput, mockHttpHeaders(), new HashMap<>());
 
@@ -141,7 +158,7 @@ public class IQEServiceTest {
 
 
         IQEService iqeServiceClass = new IQEService(questionnaireRulesRepo, loggingUtils, helper,
-                rulesServiceRepoOrchestrator, actionsRepo, questionsRepo, rulesByFlowRepo, answerOptionsRepo,redisCacheService,questionnaireDetailsRepo);
+                rulesServiceRepoOrchestrator, actionsRepo, questionsRepo, rulesByFlowRepo, answerOptionsRepo,redisCacheService,questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
 
         Mono<com.cvshealth.digital.microservice.iqe.model.Questions> questionsMono = iqeServiceClass.getRuleDetails(rulesDetailsInput, mockHttpHeaders(), new HashMap<>()).doOnNext(System.out::println);
 
@@ -172,7 +189,7 @@ public class IQEServiceTest {
         rulesDetailsInput.setRequiredQuestionnaireContext("MC_CORE_ELIGIBILITY_QUESTION");
 
         IQEService iqeServiceClass = new IQEService(questionnaireRulesRepo, loggingUtils, helper,
-                rulesServiceRepoOrchestrator, actionsRepo, questionsRepo, rulesByFlowRepo, answerOptionsRepo,redisCacheService,questionnaireDetailsRepo);
+                rulesServiceRepoOrchestrator, actionsRepo, questionsRepo, rulesByFlowRepo, answerOptionsRepo,redisCacheService,questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
 
         Mono<com.cvshealth.digital.microservice.iqe.model.Questions> questionsMono = iqeServiceClass.getRuleDetails(rulesDetailsInput, mockHttpHeaders(), new HashMap<>());
 
@@ -199,7 +216,7 @@ public class IQEServiceTest {
 
 
         IQEService iqeServiceClass = new IQEService(questionnaireRulesRepo, loggingUtils, helper,
-                rulesServiceRepoOrchestrator, actionsRepo, questionsRepo, rulesByFlowRepo, answerOptionsRepo,redisCacheService,questionnaireDetailsRepo);
+                rulesServiceRepoOrchestrator, actionsRepo, questionsRepo, rulesByFlowRepo, answerOptionsRepo,redisCacheService,questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
 
         Mono<com.cvshealth.digital.microservice.iqe.model.Questions> questionsMono = iqeServiceClass.getRuleDetails(rulesDetailsInput, mockHttpHeaders(), new HashMap<>());
 
@@ -232,7 +249,7 @@ public class IQEServiceTest {
         when(rulesByFlowRepository.findAll()).thenReturn(Flux.fromIterable(rulesByFlows));
 
         IQEService iqeServiceClass = new IQEService( questionnaireRulesRepository, loggingUtils, helper,
-                rulesServiceRepoOrchestrator, actionsRepo, questionsRepo, rulesByFlowRepository, answerOptionsRepo,redisCacheService,questionnaireDetailsRepo);
+                rulesServiceRepoOrchestrator, actionsRepo, questionsRepo, rulesByFlowRepository, answerOptionsRepo,redisCacheService,questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
 
         Mono<QuestionareRequest> result = iqeServiceClass.rules();
 
@@ -246,6 +263,52 @@ public class IQEServiceTest {
     }
 
 
+    @Test
+    public void testStreamRules_emitsRulesAsTheyAreRequested() {
+
+        List<RulesByFlowEntity> rulesByFlows = getRulesByFlow();
+
+        RulesByFlowRepository rulesByFlowRepository = mock(RulesByFlowRepository.class);
+        when(rulesByFlowRepository.findAll()).thenReturn(Flux.fromIterable(rulesByFlows));
+
+        IQEService iqeServiceClass = new IQEService( questionnaireRulesRepository, loggingUtils, helper,
+                rulesServiceRepoOrchestrator, actionsRepo, questionsRepo, rulesByFlowRepository, answerOptionsRepo,redisCacheService,questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
+
+        StepVerifier.create(iqeServiceClass.streamRules(), 1)
+                .expectNext(rulesByFlows.get(0))
+                .expectNoEvent(Duration.ofMillis(10))
+                .thenRequest(Long.MAX_VALUE)
+                .expectNextCount(rulesByFlows.size() - 1)
+                .verifyComplete();
+    }
+
+    @Test
+    public void testStreamQuestionnaire_propagatesReadFailures() {
+        String actionId = "131c1c73-3f2a-4f7d-9252-c90467f9e525";
+        when(helper.streamQuestions(actionId)).thenReturn(Flux.error(new RuntimeException("read timeout")));
+
+        IQEService iqeServiceClass = new IQEService(questionnaireRulesRepository, loggingUtils, helper,
+                rulesServiceRepoOrchestrator, actionsRepo, questionsRepo, rulesByFlowRepo, answerOptionsRepo, redisCacheService, questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
+
+        StepVerifier.create(iqeServiceClass.streamQuestionnaire(actionId))
+                .expectErrorMatches(error -> error instanceof ServerErrorException
+                        && error.getMessage().equals("read timeout"))
+                .verify();
+    }
+
+    @Test
+    public void testStreamQuestionnaire_unknownAction() {
+        String actionId = "131c1c73-3f2a-4f7d-9252-c90467f9e525";
+        when(helper.streamQuestions(actionId)).thenReturn(Flux.error(new ResourceNotFoundException("5013", "No questionnaire")));
+
+        IQEService iqeServiceClass = new IQEService(questionnaireRulesRepository, loggingUtils, helper,
+                rulesServiceRepoOrchestrator, actionsRepo, questionsRepo, rulesByFlowRepo, answerOptionsRepo, redisCacheService, questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
+
+        StepVerifier.create(iqeServiceClass.streamQuestionnaire(actionId))
+                .expectError(ResourceNotFoundException.class)
+                .verify();
+    }
+
     @Test
     public void testGetQuestionareByActionId() {
         String actionId = "131c1c73-3f2a-4f7d-9252-c90467f9e525";
@@ -270,8 +333,8 @@ public class IQEServiceTest {
 
 
 
-        IQEService iqeServiceClass = new IQEService( questionnaireRulesRepository, loggingUtils, helper,
-                rulesServiceRepoOrchestrator, actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository,redisCachingService,questionnaireDetailsRepo);
+        IQEService iqeServiceClass = new IQEService( questionnaireRulesRepository, loggingUtils, orchestrator(actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository),
+                rulesServiceRepoOrchestrator, actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository,redisCachingService,questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
 
         Mono<QuestionareRequest> result = iqeServiceClass.questionnaireByActionId(actionId, questionareRequest);
 
@@ -282,6 +345,53 @@ public class IQEServiceTest {
                 .verifyComplete();
     }
 
+    @Test
+    public void testGetQuestionareByActionId_servesStoredDocument() {
+        String actionId = "131c1c73-3f2a-4f7d-9252-c90467f9e525";
+        QuestionareRequest document = new QuestionareRequest();
+        document.setRulesByFlow(RulesByFlow.builder().flow("flow1.5").actionId(actionId).build());
+
+        RulesByFlowRepository rulesByFlowRepository = mock(RulesByFlowRepository.class);
+        RedisCacheService redisCachingService = mock(RedisCacheService.class);
+        when(redisCachingService.getDataFromRedis(Mockito.anyString(), Mockito.anyString(), Mockito.anyMap())).thenReturn(Mono.empty());
+        when(redisCachingService.setDataToRedisRest(Mockito.anyString(), Mockito.any(), Mockito.anyMap())).thenReturn(Mono.empty());
+        when(helper.findQuestionnaireDocument(actionId)).thenReturn(Mono.just(document));
+
+        IQEService iqeServiceClass = new IQEService(questionnaireRulesRepository, loggingUtils, helper,
+                rulesServiceRepoOrchestrator, actionsRepo, questionsRepo, rulesByFlowRepository, answerOptionsRepo, redisCachingService, questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
+
+        StepVerifier.create(iqeServiceClass.questionnaireByActionId(actionId, new QuestionareRequest()))
+                .expectNext(document)
+                .verifyComplete();
+
+        Mockito.verify(helper, Mockito.never()).readQuestionnaire(Mockito.anyString(), Mockito.any());
+        Mockito.verify(rulesByFlowRepository, Mockito.never()).findByActionId(Mockito.anyString());
+    }
+
+    @Test
+    public void testBackfillQuestionnaireDocuments_countsEveryAction() {
+        ActionsRepository actionsRepository = mock(ActionsRepository.class);
+        when(actionsRepository.findAll()).thenReturn(Flux.just(
+                ActionsEntity.builder().actionId("A1").build(),
+                ActionsEntity.builder().actionId("A2").build(),
+                ActionsEntity.builder().actionId("A3").build(),
+                ActionsEntity.builder().actionId("A1").build()));
+        when(helper.materializeQuestionnaire("A1")).thenReturn(Mono.just(true));
+        when(helper.materializeQuestionnaire("A2")).thenReturn(Mono.just(false));
+        when(helper.materializeQuestionnaire("A3")).thenReturn(Mono.error(new RuntimeException("timeout")));
+
+        IQEService iqeServiceClass = new IQEService(questionnaireRulesRepository, loggingUtils, helper,
+                rulesServiceRepoOrchestrator, actionsRepository, questionsRepo, rulesByFlowRepo, answerOptionsRepo, redisCacheService, questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
+
+        StepVerifier.create(iqeServiceClass.backfillQuestionnaireDocuments())
+                .expectNextMatches(report -> report.getWrittenDocuments() == 1
+                        && report.getMissingActions() == 1
+                        && report.getFailedActions() == 1)
+                .verifyComplete();
+
+        Mockito.verify(helper, Mockito.times(1)).materializeQuestionnaire("A1");
+    }
+
     @Test
     public void testGetQuestionareByActionId_EmptyValues() {
         String actionId = "131c1c73-3f2a-4f7d-9252-c90467f9e5251";
@@ -304,8 +414,8 @@ public class IQEServiceTest {
         when(questionsRepository.findByActionId(actionId)).thenReturn(Flux.fromIterable(questions));
         when(answerOptionsRepository.findByActionId(actionId)).thenReturn(Flux.fromIterable(answerOptions));
 
-        IQEService iqeServiceClass = new IQEService( questionnaireRulesRepository, loggingUtils, helper,
-                rulesServiceRepoOrchestrator, actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository,redisCachingService,questionnaireDetailsRepo);
+        IQEService iqeServiceClass = new IQEService( questionnaireRulesRepository, loggingUtils, orchestrator(actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository),
+                rulesServiceRepoOrchestrator, actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository,redisCachingService,questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
 
         Mono<QuestionareRequest> result = iqeServiceClass.questionnaireByActionId(actionId, questionareRequest);
 
@@ -365,7 +475,7 @@ public class IQEServiceTest {
         });
 
         IQEService iqeServiceClass = new IQEService( questionnaireRulesRepository, loggingUtils, helperClass,
-                rulesServiceRepo, actionsRepository, questionsRepository, rulesByFlowRepo, answerOptionsRepository,redisCacheService,questionnaireDetailsRepo);
+                rulesServiceRepo, actionsRepository, questionsRepository, rulesByFlowRepo, answerOptionsRepository,redisCacheService,questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
 
         Mono<IQEResponse> result = iqeServiceClass.processQuestionnaire(questionareRequest,iqeResponse, reqHdrMap , eventMap);
 
@@ -403,10 +513,11 @@ public class IQEServiceTest {
         when(questionsRepository.deleteByActionId(actionId)).thenReturn(Mono.empty());
         when(answerOptionsRepository.deleteByActionId(actionId)).thenReturn(Mono.empty());
         when(questionnaireDetailsRepository.deleteByActionId(actionId)).thenReturn(Mono.empty());
+        when(helper.deleteQuestionnaireDocument(actionId)).thenReturn(Mono.empty());
         when(redisCacheServiceClass.deleteDataFromRedis(Mockito.anyString(), Mockito.anyString(), Mockito.anyMap())).thenReturn(Mono.empty());
 
         IQEService iqeServiceClass = new IQEService( questionnaireRulesRepository, loggingUtils, helper,
-                rulesServiceRepoOrchestrator, actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository,redisCacheServiceClass,questionnaireDetailsRepository);
+                rulesServiceRepoOrchestrator, actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository,redisCacheServiceClass,questionnaireDetailsRepository, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
 
         Mono<IQEResponse> result = iqeServiceClass.deleteQuestionnaireByActionId(actionId);
 
@@ -426,7 +537,7 @@ public class IQEServiceTest {
         when(rulesByFlowRepository.findByActionId(actionId)).thenReturn(Flux.empty());
 
         IQEService iqeServiceClass = new IQEService(questionnaireRulesRepository, loggingUtils, helper,
-                rulesServiceRepoOrchestrator, actionsRepo, questionsRepo, rulesByFlowRepository, answerOptionsRepo,redisCacheService,questionnaireDetailsRepo);
+                rulesServiceRepoOrchestrator, actionsRepo, questionsRepo, rulesByFlowRepository, answerOptionsRepo,redisCacheService,questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
 
         Mono<IQEResponse> result = iqeServiceClass.deleteQuestionnaireByActionId(actionId);
 
@@ -478,8 +589,8 @@ public class IQEServiceTest {
 
         QuestionareRequest expectedOutput = setQuestionareRequestData();
 
-        IQEService iqeServiceClass = new IQEService( questionnaireRulesRepository, loggingUtils, helper,
-                rulesServiceRepoOrchestrator, actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository,redisCachingService,questionnaireDetailsRepo);
+        IQEService iqeServiceClass = new IQEService( questionnaireRulesRepository, loggingUtils, orchestrator(actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository),
+                rulesServiceRepoOrchestrator, actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository,redisCachingService,questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
 
         Mono<QuestionareRequest> result = iqeServiceClass.questionnaireByFlowAndCondition(rulesDetails, expectedOutput, reqHdrMap);
 
@@ -532,8 +643,8 @@ public class IQEServiceTest {
 
         QuestionareRequest expectedOutput = new QuestionareRequest();
 
-        IQEService iqeServiceClass = new IQEService( questionnaireRulesRepository, loggingUtils, helper,
-                rulesServiceRepoOrchestrator, actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository,redisCachingService,questionnaireDetailsRepo);
+        IQEService iqeServiceClass = new IQEService( questionnaireRulesRepository, loggingUtils, orchestrator(actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository),
+                rulesServiceRepoOrchestrator, actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository,redisCachingService,questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
 
         Mono<QuestionareRequest> result = iqeServiceClass.questionnaireByFlowAndCondition(rulesDetails, expectedOutput, reqHdrMap);
 
@@ -543,6 +654,68 @@ public class IQEServiceTest {
 
     }
 
+    @Test
+    public void testQuestionnairesByFlowAndConditions_deduplicatesFactsAndActions() {
+
+        List<RulesByFlowEntity> rulesByFlowList = new ArrayList<>();
+        rulesByFlowList.add(RulesByFlowEntity.builder()
+                .flow("flow1.49")
+                .ruleId("f146046e-fd6d-481c-bcf6-95aa17ec6d6e")
+                .ruleName("rule1")
+                .actionId("1928d95f-3eaf-432b-a771-52442f6778e9")
+                .condition("requiredQuestionnaireContext==\"condition6\"")
+                .salience(1)
+                .isActive(true)
+                .build());
+
+        RulesByFlowRepository rulesByFlowRepository = mock(RulesByFlowRepository.class);
+        ActionsRepository actionsRepository = mock(ActionsRepository.class);
+        RedisCacheService redisCachingService = mock(RedisCacheService.class);
+
+        when(redisCachingService.getDataFromRedis(Mockito.anyString(), Mockito.anyString(), Mockito.anyMap())).thenReturn(Mono.empty());
+        Mockito.when(rulesByFlowRepository.findByFlow("flow1.49")).thenReturn(Flux.fromIterable(rulesByFlowList));
+        Mockito.when(rulesByFlowRepository.findByActionId(Mockito.anyString())).thenReturn(Flux.empty());
+        Mockito.when(actionsRepository.findByActionId(Mockito.anyString())).thenReturn(Flux.empty());
+
+        List<RulesDetails> facts = new ArrayList<>();
+        for (String context : List.of("condition6", "condition6", "condition7", "condition6")) {
+            RulesDetails rulesDetails = new RulesDetails();
+            rulesDetails.setFlow("flow1.49");
+            rulesDetails.setRequiredQuestionnaireContext(context);
+            facts.add(rulesDetails);
+        }
+
+        IQEService iqeServiceClass = new IQEService(questionnaireRulesRepository, loggingUtils, orchestrator(actionsRepository, questionsRepo, rulesByFlowRepository, answerOptionsRepo),
+                rulesServiceRepoOrchestrator, actionsRepository, questionsRepo, rulesByFlowRepository, answerOptionsRepo, redisCachingService, questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
+
+        StepVerifier.create(iqeServiceClass.questionnairesByFlowAndConditions(facts, mockHttpHeaders()))
+                .expectNextMatches(response -> response.getResults().size() == 4
+                        && "1928d95f-3eaf-432b-a771-52442f6778e9".equals(response.getResults().get(0).getActionId())
+                        && "1928d95f-3eaf-432b-a771-52442f6778e9".equals(response.getResults().get(1).getActionId())
+                        && response.getResults().get(2).getActionId() == null
+                        && response.getResults().get(3).getIndex() == 3
+                        && response.getQuestionnaires().keySet().equals(Set.of("1928d95f-3eaf-432b-a771-52442f6778e9")))
+                .verifyComplete();
+
+        Mockito.verify(rulesByFlowRepository, Mockito.times(1)).findByFlow("flow1.49");
+        Mockito.verify(actionsRepository, Mockito.times(1)).findByActionId("1928d95f-3eaf-432b-a771-52442f6778e9");
+    }
+
+    @Test
+    public void testQuestionnairesByFlowAndConditions_rejectsOversizedBatch() {
+
+        rulesEngineProperties.setBatchMaxFacts(1);
+        RulesDetails rulesDetails = new RulesDetails();
+        rulesDetails.setFlow("flow1.49");
+
+        IQEService iqeServiceClass = new IQEService(questionnaireRulesRepository, loggingUtils, helper,
+                rulesServiceRepoOrchestrator, actionsRepo, questionsRepo, rulesByFlowRepo, answerOptionsRepo, redisCacheService, questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
+
+        StepVerifier.create(iqeServiceClass.questionnairesByFlowAndConditions(List.of(rulesDetails, rulesDetails), mockHttpHeaders()))
+                .expectError(com.cvshealth.digital.microservice.iqe.error.InvalidRequestException.class)
+                .verify();
+    }
+
     @Test
     public void testQuestionnaireByActionAndQuestionId() {
 
@@ -592,7 +765,7 @@ public class IQEServiceTest {
         Mockito.when( answerOptionsRepository.findByActionIdAndQuestionId(actionId, questionId)).thenReturn(Flux.fromIterable(answerOptionsEntities));
 
         IQEService iqeServiceClass = new IQEService( questionnaireRulesRepository, loggingUtils, helper,
-                rulesServiceRepoOrchestrator, actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository,redisCacheService,questionnaireDetailsRepo);
+                rulesServiceRepoOrchestrator, actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository,redisCacheService,questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
 
         Mono<QuestionareRequest> result = iqeServiceClass.questionnaireByActionAndQuestionId(actionId, questionId, reqHdrMap);
 
@@ -623,7 +796,7 @@ public class IQEServiceTest {
         Mockito.when( answerOptionsRepository.findByActionIdAndQuestionId(actionId, questionId)).thenReturn(Flux.empty());
 
         IQEService iqeServiceClass = new IQEService( questionnaireRulesRepository, loggingUtils, helper,
-                rulesServiceRepoOrchestrator, actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository,redisCacheService,questionnaireDetailsRepo);
+                rulesServiceRepoOrchestrator, actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository,redisCacheService,questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
 
         Mono<QuestionareRequest> result = iqeServiceClass.questionnaireByActionAndQuestionId(actionId, questionId, reqHdrMap);
 
@@ -674,9 +847,11 @@ public class IQEServiceTest {
         Mockito.when(rulesByFlowRepository.findByFlow(rulesDetails.getFlow())).thenReturn(Flux.fromIterable(rulesByFlowList));
 
         Mockito.when(actionsRepository.findByActionId(Mockito.anyString())).thenReturn(Flux.empty());
+        Mockito.when(helper.countingQueries(Mockito.anyString(), Mockito.any()))
+                .thenAnswer(invocation -> invocation.getArgument(1));
 
         IQEService iqeServiceClass = new IQEService( questionnaireRulesRepository, loggingUtils, helper,
-                rulesServiceRepoOrchestrator, actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository,redisCacheService,questionnaireDetailsRepo);
+                rulesServiceRepoOrchestrator, actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository,redisCacheService,questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
 
         Mono<QuestionareRequest> result = iqeServiceClass.questionnaireByFlow(rulesDetails, expectedOutput, reqHdrMap);
 
@@ -725,7 +900,7 @@ public class IQEServiceTest {
         Mockito.when(actionsRepository.findByActionId(Mockito.anyString())).thenReturn(Flux.empty());
 
         IQEService iqeServiceClass = new IQEService( questionnaireRulesRepository, loggingUtils, helper,
-                rulesServiceRepoOrchestrator, actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository,redisCacheService,questionnaireDetailsRepo);
+                rulesServiceRepoOrchestrator, actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository,redisCacheService,questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
 
         Mono<QuestionareRequest> result = iqeServiceClass.questionnaireByFlow(rulesDetails, expectedOutput, reqHdrMap);
 
@@ -769,6 +944,20 @@ public class IQEServiceTest {
         return Arrays.asList(activeRule1, activeRule2);
     }
 
+    /**
+     * An orchestrator reading the given repositories, with no stored questionnaire documents.
+     */
+    private IQERepoOrchestrator orchestrator(ActionsRepository actionsRepository, QuestionsRepository questionsRepository,
+                                             RulesByFlowRepository rulesByFlowRepository,
+                                             AnswerOptionsRepository answerOptionsRepository) {
+        QuestionnaireByActionRepository questionnaireByActionRepository = mock(QuestionnaireByActionRepository.class);
+        when(questionnaireByActionRepository.findByActionId(anyString())).thenReturn(Mono.empty());
+        when(questionnaireDetailsRepo.findByActionId(anyString())).thenReturn(Flux.empty());
+        return new IQERepoOrchestrator(actionsRepository, questionsRepository, rulesByFlowRepository,
+                questionnaireDetailsRepo, answerOptionsRepository, mock(RedisCacheService.class),
+                questionnaireByActionRepository, new SimpleMeterRegistry());
+    }
+
     private RulesByFlowEntity setupRulesByFlow() {
         RulesByFlowEntity rulesByFlow = new RulesByFlowEntity();
         rulesByFlow.setFlow("flow1.5");
@@ -1344,7 +1533,7 @@ public class IQEServiceTest {
         });
 
         IQEService iqeServiceClass = new IQEService( questionnaireRulesRepository, loggingUtils, helperClass,
-                rulesServiceRepo, actionsRepository, questionsRepository, rulesByFlowRepo, answerOptionsRepository,redisCacheService,questionnaireDetailsRepo);
+                rulesServiceRepo, actionsRepository, questionsRepository, rulesByFlowRepo, answerOptionsRepository,redisCacheService,questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
 
         Mono<IQEResponse> result = iqeServiceClass.processQuestionnaire(questionareRequest,iqeResponse, reqHdrMap , eventMap);
 
@@ -1380,8 +1569,8 @@ public class IQEServiceTest {
 
 
 
-        IQEService iqeServiceClass = new IQEService( questionnaireRulesRepository, loggingUtils, helper,
-                rulesServiceRepoOrchestrator, actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository,redisCachingService,questionnaireDetailsRepo);
+        IQEService iqeServiceClass = new IQEService( questionnaireRulesRepository, loggingUtils, orchestrator(actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository),
+                rulesServiceRepoOrchestrator, actionsRepository, questionsRepository, rulesByFlowRepository, answerOptionsRepository,redisCachingService,questionnaireDetailsRepo, ruleSetRegistry, rulesEngineProperties, shadowEvaluator);
 
         Mono<QuestionareRequest> result = iqeServiceClass.questionnaireByActionId(actionId, questionareRequest);
 
@@ -1425,7 +1614,8 @@ public class IQEServiceTest {
         List<QuestionsEntity> questions = List.of(relatedQuestion);
 
         IQERepoOrchestrator orchestrator = new IQERepoOrchestrator(
-                actionsRepo, questionsRepo, rulesByFlowRepo, questionnaireDetailsRepo, answerOptionsRepo, redisCacheService
+                actionsRepo, questionsRepo, rulesByFlowRepo, questionnaireDetailsRepo, answerOptionsRepo, redisCacheService,
+                questionnaireByActionRepo, new SimpleMeterRegistry()
         );
 
         // Act & Assert
@@ -1462,7 +1652,8 @@ public class IQEServiceTest {
         List<QuestionsEntity> questions = List.of(questionEntity);
 
         IQERepoOrchestrator orchestrator = new IQERepoOrchestrator(
-                actionsRepo, questionsRepo, rulesByFlowRepo, questionnaireDetailsRepo, answerOptionsRepo, redisCacheService
+                actionsRepo, questionsRepo, rulesByFlowRepo, questionnaireDetailsRepo, answerOptionsRepo, redisCacheService,
+                questionnaireByActionRepo, new SimpleMeterRegistry()
         );
 
         StepVerifier.create(orchestrator.processQuestionnaire(questionEntity, answerOptionsList, questions))
@@ -1537,7 +1728,8 @@ public class IQEServiceTest {
         List<AnswerOptionsEntity> answerOptionsList = Arrays.asList(femaleOption, maleOption, yesPregnant, noPregnant);
 
         IQERepoOrchestrator orchestrator = new IQERepoOrchestrator(
-                actionsRepo, questionsRepo, rulesByFlowRepo, questionnaireDetailsRepo, answerOptionsRepo, redisCacheService
+                actionsRepo, questionsRepo, rulesByFlowRepo, questionnaireDetailsRepo, answerOptionsRepo, redisCacheService,
+                questionnaireByActionRepo, new SimpleMeterRegistry()
         );
 
         StepVerifier.create(orchestrator.processQuestionnaire(mainQuestion, answerOptionsList, questions))
@@ -1574,7 +1766,8 @@ public class IQEServiceTest {
                 ))
                 .build();
         IQERepoOrchestrator orchestrator = new IQERepoOrchestrator(
-                actionsRepo, questionsRepo, rulesByFlowRepo, questionnaireDetailsRepo, answerOptionsRepo, redisCacheService
+                actionsRepo, questionsRepo, rulesByFlowRepo, questionnaireDetailsRepo, answerOptionsRepo, redisCacheService,
+                questionnaireByActionRepo, new SimpleMeterRegistry()
         );
 
 
@@ -1602,7 +1795,8 @@ public class IQEServiceTest {
                 ))
                 .build();
         IQERepoOrchestrator orchestrator = new IQERepoOrchestrator(
-                actionsRepo, questionsRepo, rulesByFlowRepo, questionnaireDetailsRepo, answerOptionsRepo, redisCacheService
+                actionsRepo, questionsRepo, rulesByFlowRepo, questionnaireDetailsRepo, answerOptionsRepo, redisCacheService,
+                questionnaireByActionRepo, new SimpleMeterRegistry()
         );
 
 
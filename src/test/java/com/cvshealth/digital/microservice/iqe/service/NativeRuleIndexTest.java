@@ -0,0 +1,78 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.model.RulesDetails;
+import com.cvshealth.digital.microservice.iqe.service.CompiledRuleBase.NativeRule;
+import com.cvshealth.digital.microservice.iqe.utils.ConditionParser;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NativeRuleIndexTest {
+
+    private static NativeRule rule(String name, String condition) {
+        return new NativeRule(name, 0, ConditionParser.parse(condition).orElseThrow(), rulesDetails -> { });
+    }
+
+    private static RulesDetails rulesDetails(String context, Integer reasonId, Integer reasonMappingId) {
+        RulesDetails rulesDetails = new RulesDetails();
+        rulesDetails.setRequiredQuestionnaireContext(context);
+        rulesDetails.setReasonId(reasonId);
+        rulesDetails.setReasonMappingId(reasonMappingId);
+        return rulesDetails;
+    }
+
+    private static List<String> names(List<NativeRule> rules) {
+        return rules.stream().map(NativeRule::name).toList();
+    }
+
+    @Test
+    void candidates_useMostSelectiveAttributeAndKeepOrder() {
+        NativeRuleIndex index = new NativeRuleIndex(List.of(
+                rule("wound", "requiredQuestionnaireContext == \"MC_CORE_ELIGIBILITY_QUESTION\" && reasonId == 86"),
+                rule("any", "age > 18"),
+                rule("uti", "requiredQuestionnaireContext == \"MC_CORE_ELIGIBILITY_QUESTION\" && reasonId == 30 && reasonMappingId == 48"),
+                rule("menopause", "requiredQuestionnaireContext == \"MC_CORE_ELIGIBILITY_QUESTION\" && reasonId == 30 && reasonMappingId == 132")));
+
+        assertEquals("reasonId", index.getField());
+        assertEquals(List.of("any", "uti", "menopause"), names(index.candidates(rulesDetails(null, 30, null))));
+        assertEquals(List.of("wound", "any"), names(index.candidates(rulesDetails(null, 86, null))));
+        assertEquals(List.of("any"), names(index.candidates(rulesDetails(null, 99, null))));
+        assertEquals(List.of("any"), names(index.candidates(rulesDetails(null, null, null))));
+    }
+
+    @Test
+    void candidates_withoutEqualityAttributesScanAllRules() {
+        NativeRuleIndex index = new NativeRuleIndex(List.of(rule("a", "age > 18"), rule("b", "reasonId != 1")));
+
+        assertNull(index.getField());
+        assertEquals(List.of("a", "b"), names(index.candidates(rulesDetails(null, 1, null))));
+    }
+
+    @Test
+    void candidates_findSameFirstMatchAsFullScan() {
+        Random random = new Random(42);
+        List<NativeRule> rules = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            String condition = switch (i % 4) {
+                case 0 -> "reasonId == " + random.nextInt(300);
+                case 1 -> "reasonId == " + random.nextInt(300) + " && reasonMappingId == " + random.nextInt(5);
+                case 2 -> "requiredQuestionnaireContext == \"CTX" + random.nextInt(3) + "\" && reasonId == " + random.nextInt(300);
+                default -> i % 40 == 3 ? "reasonMappingId == " + random.nextInt(5) : "reasonId == " + random.nextInt(300) + ".0";
+            };
+            rules.add(rule("r" + i, condition));
+        }
+        NativeRuleIndex index = new NativeRuleIndex(rules);
+
+        for (int i = 0; i < 1000; i++) {
+            RulesDetails fact = rulesDetails("CTX" + random.nextInt(3), random.nextInt(300), random.nextInt(5));
+            NativeRule expected = rules.stream().filter(r -> r.predicate().test(fact)).findFirst().orElse(null);
+            NativeRule actual = index.candidates(fact).stream().filter(r -> r.predicate().test(fact)).findFirst().orElse(null);
+            assertSame(expected, actual);
+            assertTrue(index.candidates(fact).size() < rules.size() / 10);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.dto.AnswerOptions;
+import com.cvshealth.digital.microservice.iqe.dto.Questions;
+import com.cvshealth.digital.microservice.iqe.entity.AnswerOptionsEntity;
+import com.cvshealth.digital.microservice.iqe.entity.QuestionsEntity;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QuestionnaireTreeBuilderTest {
+
+    private static QuestionsEntity question(String questionId, int sequenceId, String... answerOptionIds) {
+        return QuestionsEntity.builder()
+                .actionId("A1")
+                .questionId(questionId)
+                .questionText("Question " + questionId)
+                .answerOptionId(List.of(answerOptionIds))
+                .sequence_id(sequenceId)
+                .build();
+    }
+
+    private static AnswerOptionsEntity answerOption(String answerOptionId, String text, int sequenceId,
+                                                    String... relatedQuestions) {
+        return AnswerOptionsEntity.builder()
+                .actionId("A1")
+                .answerOptionId(answerOptionId)
+                .answerText(text)
+                .sequence_id(sequenceId)
+                .relatedQuestions(relatedQuestions.length == 0 ? null : List.of(relatedQuestions))
+                .build();
+    }
+
+    @Test
+    void build_ordersAnswerOptionsBySequenceThenTextWithoutModifyingTheRows() {
+        List<AnswerOptionsEntity> answerOptions = List.of(
+                answerOption("O3", "Maybe", 2),
+                answerOption("O1", "Yes", 1),
+                answerOption("O2", "No", 1),
+                answerOption("OTHER", "Other question", 0));
+
+        Questions tree = new QuestionnaireTreeBuilder(List.of(), answerOptions).build(question("Q1", 1, "O1", "O2", "O3"));
+
+        assertEquals(List.of("No", "Yes", "Maybe"), tree.getAnswerOptions().stream().map(AnswerOptions::getText).toList());
+        assertNull(tree.getAnswerOptions().get(0).getRelatedQuestions());
+    }
+
+    @Test
+    void build_nestsRelatedQuestionsInSequenceOrder() {
+        List<QuestionsEntity> questions = List.of(
+                question("Q1", 1, "O1"),
+                question("Q3", 3, "O3"),
+                question("Q2", 2, "O2"),
+                question("Q4", 1));
+        List<AnswerOptionsEntity> answerOptions = List.of(
+                answerOption("O1", "Yes", 1, "Q3", "Q2"),
+                answerOption("O2", "Yes", 1, "Q4"),
+                answerOption("O3", "Yes", 1));
+
+        List<Questions> trees = new QuestionnaireTreeBuilder(questions, answerOptions).build(List.of(questions.get(0)));
+
+        assertEquals(1, trees.size());
+        List<Questions> related = trees.get(0).getAnswerOptions().get(0).getRelatedQuestions();
+        assertEquals(List.of("Q2", "Q3"), related.stream().map(Questions::getQuestionId).toList());
+        assertEquals("Q4", related.get(0).getAnswerOptions().get(0).getRelatedQuestions().get(0).getQuestionId());
+        assertEquals(List.of(), related.get(0).getAnswerOptions().get(0).getRelatedQuestions().get(0).getAnswerOptions());
+    }
+
+    @Test
+    void build_ordersTopLevelQuestionsAndBuildsSharedQuestionsUnderEachParent() {
+        List<QuestionsEntity> questions = List.of(
+                question("Q2", 2, "O2"),
+                question("Q1", 1, "O1"),
+                question("Q3", 3));
+        List<AnswerOptionsEntity> answerOptions = List.of(
+                answerOption("O1", "Yes", 1, "Q3"),
+                answerOption("O2", "Yes", 1, "Q3"));
+
+        List<Questions> trees = new QuestionnaireTreeBuilder(questions, answerOptions)
+                .build(List.of(questions.get(0), questions.get(1)));
+
+        assertEquals(List.of("Q1", "Q2"), trees.stream().map(Questions::getQuestionId).toList());
+        Questions first = trees.get(0).getAnswerOptions().get(0).getRelatedQuestions().get(0);
+        Questions second = trees.get(1).getAnswerOptions().get(0).getRelatedQuestions().get(0);
+        assertEquals("Q3", first.getQuestionId());
+        assertEquals("Q3", second.getQuestionId());
+        assertNotSame(first, second);
+    }
+
+    @Test
+    void build_leavesQuestionsOutOfTheirOwnSubtree() {
+        List<QuestionsEntity> questions = List.of(
+                question("Q1", 1, "O1"),
+                question("Q2", 2, "O2"));
+        List<AnswerOptionsEntity> answerOptions = List.of(
+                answerOption("O1", "Yes", 1, "Q2"),
+                answerOption("O2", "Yes", 1, "Q1", "Q2"));
+
+        Questions tree = new QuestionnaireTreeBuilder(questions, answerOptions).build(questions.get(0));
+
+        Questions nested = tree.getAnswerOptions().get(0).getRelatedQuestions().get(0);
+        assertEquals("Q2", nested.getQuestionId());
+        assertNull(nested.getAnswerOptions().get(0).getRelatedQuestions());
+    }
+
+    @Test
+    void build_answerOptionWithItsRelatedQuestions() {
+        List<QuestionsEntity> questions = List.of(question("Q2", 1, "O2"));
+        List<AnswerOptionsEntity> answerOptions = List.of(answerOption("O2", "No", 1));
+
+        AnswerOptions tree = new QuestionnaireTreeBuilder(questions, answerOptions)
+                .build(answerOption("O1", "Yes", 1, "Q2"));
+
+        assertEquals("No", tree.getRelatedQuestions().get(0).getAnswerOptions().get(0).getText());
+    }
+}
@@ -0,0 +1,162 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.config.DroolConfig;
+import com.cvshealth.digital.microservice.iqe.config.RulesEngineConfig;
+import com.cvshealth.digital.microservice.iqe.dto.RuleAnalysisReport;
+import com.cvshealth.digital.microservice.iqe.entity.RulesByFlowEntity;
+import com.cvshealth.digital.microservice.iqe.model.RulesDetails;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RuleAnalyzerTest {
+
+    private static final String FLOW = "MC_CORE";
+    private static final String TEMPLATE = DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE;
+    private static final List<RulesByFlowEntity> RULES = List.of(
+            rule("r1", "reasonId == 86 && age >= 18", "ADULT", 100, true),
+            rule("r2", "reasonId == 86 && age > 30", "SENIOR", 90, true),
+            rule("r3", "age >= 18 && reasonId == 86", "ADULT2", 80, true),
+            rule("r4", "reasonId == 86", "ANY", 70, true),
+            rule("r5", "reasonId == 30", "B1", 60, false),
+            rule("r6", "reasonId == 30 && reasonId == 31", "B2", 50, true),
+            rule("r7", "reasonId == 86 || reasonId == 30", "OR", 40, true),
+            rule("r8", "reasonId == 86 || reasonId == 30", "OR2", 30, true));
+
+    private static RulesByFlowEntity rule(String ruleId, String condition, String actionId, int salience,
+                                          boolean active) {
+        return RulesByFlowEntity.builder()
+                .flow(FLOW)
+                .ruleId(ruleId)
+                .condition(condition)
+                .actionId(actionId)
+                .salience(salience)
+                .isActive(active)
+                .build();
+    }
+
+    private static RuleAnalysisReport.Finding finding(String ruleId, RuleAnalysisReport.Reason reason, String coveredBy) {
+        return new RuleAnalysisReport.Finding(ruleId, reason, coveredBy);
+    }
+
+    @Test
+    void analyze_findsRulesThatCanNeverFire() {
+        RuleAnalyzer.Analysis analysis = RuleAnalyzer.analyze(RULES);
+
+        assertEquals(List.of(
+                finding("r2", RuleAnalysisReport.Reason.SHADOWED, "r1"),
+                finding("r3", RuleAnalysisReport.Reason.DUPLICATE, "r1"),
+                finding("r5", RuleAnalysisReport.Reason.INACTIVE, null),
+                finding("r6", RuleAnalysisReport.Reason.UNSATISFIABLE, null),
+                finding("r8", RuleAnalysisReport.Reason.DUPLICATE, "r7")), analysis.findings());
+        assertEquals(List.of(RULES.get(0), RULES.get(3), RULES.get(6)), analysis.kept());
+    }
+
+    @Test
+    void analyze_followsSalienceThenRowOrder() {
+        List<RulesByFlowEntity> rules = List.of(
+                rule("r1", "reasonId == 86", "ANY", 100, true),
+                rule("r2", "reasonId == 86 && age >= 18", "ADULT", 200, true),
+                rule("r3", "reasonId == 86", "ANY2", 100, true));
+
+        RuleAnalyzer.Analysis analysis = RuleAnalyzer.analyze(rules);
+
+        assertEquals(List.of(finding("r3", RuleAnalysisReport.Reason.DUPLICATE, "r1")), analysis.findings());
+        assertEquals(List.of(rules.get(0), rules.get(1)), analysis.kept());
+    }
+
+    @Test
+    void analyze_keepsEveryRuleWhenNoneCanBePruned() {
+        List<RulesByFlowEntity> rules = List.of(
+                rule("r1", "reasonId == 86 && age >= 18", "ADULT", 100, true),
+                rule("r2", "reasonId == 86", "ANY", 90, true),
+                rule("r3", "state.startsWith(\"R\")", "R", 80, true));
+
+        RuleAnalyzer.Analysis analysis = RuleAnalyzer.analyze(rules);
+
+        assertTrue(analysis.findings().isEmpty());
+        assertSame(rules, analysis.kept());
+    }
+
+    @Test
+    void getOrBuild_prunedRuleBaseKeepsOutcomes() {
+        RulesEngineConfig.RulesEngineProperties properties = new RulesEngineConfig.RulesEngineProperties();
+        properties.setNativeConditionsEnabled(false);
+        properties.setMemoMaxEntries(0);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        CompiledRuleBase pruned = new RuleBaseCache(properties, meterRegistry, Schedulers.immediate())
+                .getOrBuild(FLOW, TEMPLATE, RULES).block();
+        RulesEngineConfig.RulesEngineProperties unprunedProperties = new RulesEngineConfig.RulesEngineProperties();
+        unprunedProperties.setNativeConditionsEnabled(false);
+        unprunedProperties.setMemoMaxEntries(0);
+        unprunedProperties.setPruneRules(false);
+        CompiledRuleBase unpruned = new RuleBaseCache(unprunedProperties, new SimpleMeterRegistry(), Schedulers.immediate())
+                .getOrBuild(FLOW, TEMPLATE, RULES.stream().filter(RulesByFlowEntity::isActive).toList()).block();
+
+        for (Integer reasonId : new Integer[]{86, 30, 31, 1}) {
+            for (Double age : new Double[]{null, 17.0, 18.0, 45.0}) {
+                RulesDetails expected = new RulesDetails();
+                expected.setReasonId(reasonId);
+                expected.setAge(age);
+                RulesDetails actual = expected.toBuilder().build();
+                unpruned.fire(expected);
+                pruned.fire(actual);
+                assertEquals(expected.getActionId(), actual.getActionId(), "reasonId " + reasonId + ", age " + age);
+            }
+        }
+        assertEquals(5.0, meterRegistry.get(RuleBaseCache.PRUNED_RULES_METRIC).tag("flow", FLOW).gauge().value());
+        assertEquals(3.0, meterRegistry.get(RuleBaseCache.TOTAL_RULES_METRIC).tag("flow", FLOW).gauge().value());
+        pruned.dispose();
+        unpruned.dispose();
+    }
+
+    @Test
+    void analyze_reportsSavingsOfPruning() {
+        RulesEngineConfig.RulesEngineProperties properties = new RulesEngineConfig.RulesEngineProperties();
+        RuleBaseCache ruleBaseCache = new RuleBaseCache(properties, new SimpleMeterRegistry(), Schedulers.immediate());
+
+        RuleAnalysisReport report = ruleBaseCache.analyze(FLOW, TEMPLATE, RULES).block();
+
+        assertEquals(8, report.getTotalRules());
+        assertEquals(3, report.getKeptRules());
+        assertEquals(5, report.getPrunedRules());
+        assertTrue(report.isPruningEnabled());
+        assertTrue(report.getSavedDrlBytes() > 0);
+        assertEquals(report.getDrlBytes() - report.getPrunedDrlBytes(), report.getSavedDrlBytes());
+        assertNotNull(report.getSavedBuildMillis());
+        assertEquals(0, ruleBaseCache.size());
+    }
+
+    @Test
+    void analyze_reportsReteNodesSavedByCanonicalConditions() {
+        RulesEngineConfig.RulesEngineProperties properties = new RulesEngineConfig.RulesEngineProperties();
+        RuleBaseCache ruleBaseCache = new RuleBaseCache(properties, new SimpleMeterRegistry(), Schedulers.immediate());
+        List<RulesByFlowEntity> rules = List.of(
+                rule("r1", "age >= 18 && state == \"RI\" && reasonId == 86", "ADULT", 100, true),
+                rule("r2", "reasonId==86 && state==\"RI\"", "ANY", 90, true));
+
+        RuleAnalysisReport report = ruleBaseCache.analyze(FLOW, TEMPLATE, rules).block();
+
+        assertEquals(2, report.getCanonicalizableRules());
+        assertTrue(report.getSavedNodes() > 0, report.toString());
+        assertEquals(report.getNodeCount() - report.getCanonicalNodeCount(), report.getSavedNodes());
+    }
+
+    @Test
+    void canonicalize_copiesRowsWithCanonicalConditions() {
+        RulesByFlowEntity row = rule("r1", "state==\"RI\" && reasonId==86", "A1", 100, true);
+
+        List<?> canonical = RuleAnalyzer.canonicalize(List.of(row));
+
+        RulesByFlowEntity copy = (RulesByFlowEntity) canonical.get(0);
+        assertEquals("reasonId == 86 && state == \"RI\"", copy.getCondition());
+        assertEquals("state==\"RI\" && reasonId==86", row.getCondition());
+        assertEquals(row.getRuleId(), copy.getRuleId());
+        assertEquals(row.getSalience(), copy.getSalience());
+        assertEquals(1, RuleAnalyzer.countChanged(List.of(row), canonical));
+    }
+}
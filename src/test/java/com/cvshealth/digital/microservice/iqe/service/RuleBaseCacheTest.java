@@ -0,0 +1,754 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.config.DroolConfig;
+import com.cvshealth.digital.microservice.iqe.config.RulesEngineConfig;
+import com.cvshealth.digital.microservice.iqe.entity.QuestionnaireRules;
+import com.cvshealth.digital.microservice.iqe.entity.RuleArtifactEntity;
+import com.cvshealth.digital.microservice.iqe.entity.RulesByFlowEntity;
+import com.cvshealth.digital.microservice.iqe.model.PreparedQuestions;
+import com.cvshealth.digital.microservice.iqe.model.RulesDetails;
+import com.cvshealth.digital.microservice.iqe.repository.RuleArtifactRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.kie.api.KieBase;
+import org.kie.api.runtime.KieSession;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RuleBaseCacheTest {
+
+    private SimpleMeterRegistry meterRegistry;
+    private Scheduler compileScheduler;
+    private RuleBaseCache ruleBaseCache;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        compileScheduler = Schedulers.newBoundedElastic(2, 10, "rule-compile-test");
+        ruleBaseCache = new RuleBaseCache(new RulesEngineConfig.RulesEngineProperties(), meterRegistry,
+                compileScheduler);
+    }
+
+    @AfterEach
+    void tearDown() {
+        compileScheduler.dispose();
+    }
+
+    private static RulesByFlowEntity rule(String ruleId, String condition, String actionId, int salience) {
+        return RulesByFlowEntity.builder()
+                .flow("MC_CORE")
+                .ruleId(ruleId)
+                .condition(condition)
+                .actionId(actionId)
+                .salience(salience)
+                .isActive(true)
+                .build();
+    }
+
+    @Test
+    void getOrBuild_reusesRuleBaseForSameRows() {
+        List<RulesByFlowEntity> rules = List.of(rule("r1", "reasonId == 86", "A1", 100));
+
+        CompiledRuleBase first = ruleBaseCache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, rules).block();
+        CompiledRuleBase second = ruleBaseCache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, rules).block();
+
+        assertSame(first, second);
+        assertEquals(1.0, meterRegistry.get(RuleBaseCache.CACHE_METRIC).tag("result", "hit").counter().count());
+        assertEquals(1.0, meterRegistry.get(RuleBaseCache.CACHE_METRIC).tag("result", "miss").counter().count());
+        assertEquals(1, meterRegistry.get(RuleBaseCache.BUILD_METRIC).timer().count());
+    }
+
+    @Test
+    void getOrBuild_rebuildsWhenRowsChange() {
+        CompiledRuleBase first = ruleBaseCache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                List.of(rule("r1", "reasonId == 86", "A1", 100))).block();
+        CompiledRuleBase second = ruleBaseCache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                List.of(rule("r1", "reasonId == 87", "A1", 100))).block();
+
+        assertNotSame(first, second);
+        assertEquals(1, ruleBaseCache.size());
+
+        RulesDetails rulesDetails = new RulesDetails();
+        rulesDetails.setFlow("MC_CORE");
+        rulesDetails.setReasonId(87);
+        assertEquals(1, second.fire(rulesDetails));
+        assertEquals("A1", rulesDetails.getActionId());
+    }
+
+    @Test
+    void invalidate_removesOnlyTheFlow() {
+        ruleBaseCache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                List.of(rule("r1", "reasonId == 86", "A1", 100))).block();
+        ruleBaseCache.getOrBuild("VACCINE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                List.of(rule("r2", "reasonId == 86", "A2", 100))).block();
+
+        ruleBaseCache.invalidate("MC_CORE");
+
+        assertEquals(1, ruleBaseCache.size());
+    }
+
+    @Test
+    void getOrBuild_preparesQuestionsOfActionsOnce() {
+        QuestionnaireRules rule = new QuestionnaireRules();
+        rule.setFlow("MC_CORE");
+        rule.setId("10009");
+        rule.setSalience(100);
+        rule.setCondition("reasonId == 86");
+        rule.setAction("\"{\\\"questions\\\":[{\\\"id\\\":\\\"q1\\\",\\\"unknown\\\":1}]}\"");
+        RulesEngineConfig.RulesEngineProperties properties = new RulesEngineConfig.RulesEngineProperties();
+        properties.setMemoMaxEntries(0);
+
+        for (boolean nativeConditions : new boolean[]{true, false}) {
+            properties.setNativeConditionsEnabled(nativeConditions);
+            CompiledRuleBase ruleBase = new RuleBaseCache(properties, meterRegistry, compileScheduler)
+                    .getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE, List.of(rule)).block();
+            RulesDetails first = new RulesDetails();
+            first.setReasonId(86);
+            RulesDetails second = first.toBuilder().build();
+            ruleBase.fire(first);
+            ruleBase.fire(second);
+
+            PreparedQuestions questions = ruleBase.preparedQuestions(first.getQuestions());
+            assertNotNull(questions);
+            assertSame(questions, ruleBase.preparedQuestions(second.getQuestions()));
+            assertEquals("q1", questions.getQuestions().get(0).getId());
+            assertEquals("{\"questions\":[{\"id\":\"q1\"}]}", questions.json());
+            assertThrows(UnsupportedOperationException.class, () -> questions.getQuestions().clear());
+            assertNull(ruleBase.preparedQuestions(null));
+            ruleBase.dispose();
+        }
+    }
+
+    @Test
+    void stage_isReusedByGetOrBuildWithoutEvictingTheLiveRuleBase() {
+        CompiledRuleBase live = ruleBaseCache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                List.of(rule("r1", "reasonId == 86", "A1", 100))).block();
+        List<RulesByFlowEntity> imported = List.of(rule("r1", "reasonId == 87", "A1", 100));
+
+        CompiledRuleBase staged = ruleBaseCache.stage("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, imported).block();
+
+        assertSame(live, ruleBaseCache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                List.of(rule("r1", "reasonId == 86", "A1", 100))).block());
+        assertSame(staged, ruleBaseCache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, imported).block());
+        assertEquals(2, meterRegistry.get(RuleBaseCache.BUILD_METRIC).timer().count());
+    }
+
+    private RuleBaseCache droolsRuleBaseCache() {
+        RulesEngineConfig.RulesEngineProperties properties = new RulesEngineConfig.RulesEngineProperties();
+        properties.setNativeConditionsEnabled(false);
+        properties.setMemoMaxEntries(0);
+        return new RuleBaseCache(properties, meterRegistry, compileScheduler);
+    }
+
+    private static String fire(CompiledRuleBase ruleBase, int reasonId) {
+        RulesDetails rulesDetails = new RulesDetails();
+        rulesDetails.setReasonId(reasonId);
+        ruleBase.fire(rulesDetails);
+        return rulesDetails.getActionId();
+    }
+
+    @Test
+    void getOrBuild_derivesDroolsRuleBaseFromItsLastBuild() {
+        RuleBaseCache cache = droolsRuleBaseCache();
+        CompiledRuleBase first = cache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                List.of(rule("r1", "reasonId == 86", "A1", 100),
+                        rule("r2", "reasonId == 87", "A2", 90),
+                        rule("r3", "reasonId == 88", "A3", 80))).block();
+
+        CompiledRuleBase second = cache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                List.of(rule("r1", "reasonId == 86", "A1", 100),
+                        rule("r2", "reasonId == 89", "A2", 90),
+                        rule("r4", "reasonId == 90", "A4", 70))).block();
+
+        assertNotSame(first, second);
+        assertNotSame(first.getKieBase(), second.getKieBase());
+        assertEquals(1, meterRegistry.get(RuleBaseCache.BUILD_METRIC).tag("source", "incremental").timer().count());
+        assertEquals("A1", fire(second, 86));
+        assertNull(fire(second, 87));
+        assertNull(fire(second, 88));
+        assertEquals("A2", fire(second, 89));
+        assertEquals("A4", fire(second, 90));
+        // The replaced rule base keeps the rules it was published with
+        assertEquals("A2", fire(first, 87));
+        assertEquals("A3", fire(first, 88));
+        assertNull(fire(first, 90));
+
+        // A further change is derived from the same build, not from the derived rule base
+        CompiledRuleBase third = cache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                List.of(rule("r1", "reasonId == 86", "A1", 100),
+                        rule("r2", "reasonId == 89", "A2", 90),
+                        rule("r4", "reasonId == 91", "A4", 70))).block();
+
+        assertEquals(2, meterRegistry.get(RuleBaseCache.BUILD_METRIC).tag("source", "incremental").timer().count());
+        assertNull(fire(third, 88));
+        assertNull(fire(third, 90));
+        assertEquals("A4", fire(third, 91));
+        assertEquals("A4", fire(second, 90));
+    }
+
+    @Test
+    void getOrBuild_rebuildsWhenAddedRuleTiesOnSalience() {
+        RuleBaseCache cache = droolsRuleBaseCache();
+        CompiledRuleBase first = cache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                List.of(rule("r2", "reasonId == 86", "A2", 100))).block();
+
+        CompiledRuleBase second = cache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                List.of(rule("r1", "reasonId == 86", "A1", 100),
+                        rule("r2", "reasonId == 86", "A2", 100))).block();
+
+        assertNotSame(first.getKieBase(), second.getKieBase());
+        assertNull(meterRegistry.find(RuleBaseCache.BUILD_METRIC).tag("source", "incremental").timer());
+        assertEquals("A1", fire(second, 86));
+    }
+
+    @Test
+    void getOrBuild_sharesInProgressBuild() {
+        List<RulesByFlowEntity> rules = List.of(rule("r1", "reasonId == 86", "A1", 100));
+
+        List<CompiledRuleBase> kieBases = Mono.zip(
+                        ruleBaseCache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, rules),
+                        ruleBaseCache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, rules),
+                        ruleBaseCache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, rules))
+                .map(t -> List.of(t.getT1(), t.getT2(), t.getT3()))
+                .block();
+
+        assertSame(kieBases.get(0), kieBases.get(1));
+        assertSame(kieBases.get(0), kieBases.get(2));
+        assertEquals(1, meterRegistry.get(RuleBaseCache.BUILD_METRIC).timer().count());
+        assertEquals(1, meterRegistry.get(RuleBaseCache.WAIT_METRIC).timer().count());
+        assertEquals(0.0, meterRegistry.get(RuleBaseCache.QUEUE_METRIC).gauge().value());
+    }
+
+    @Test
+    void getOrBuild_prunesAndBuildsInOneTaskOnTheCompileScheduler() {
+        RulesEngineConfig.RulesEngineProperties properties = new RulesEngineConfig.RulesEngineProperties();
+        // Without the cache the rows are not hashed, so every read of a condition is part of the build
+        properties.setCacheEnabled(false);
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        RulesByFlowEntity watched = new RulesByFlowEntity() {
+            @Override
+            public String getCondition() {
+                threads.add(Thread.currentThread().getName());
+                return super.getCondition();
+            }
+        };
+        watched.setFlow("MC_CORE");
+        watched.setRuleId("r1");
+        watched.setCondition("reasonId == 86");
+        watched.setActionId("A1");
+        watched.setSalience(100);
+        watched.setActive(true);
+
+        CompiledRuleBase ruleBase = new RuleBaseCache(properties, meterRegistry, compileScheduler)
+                .getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                        List.of(watched, rule("r2", "reasonId == 86", "A2", 90))).block();
+
+        assertEquals("A1", fire(ruleBase, 86));
+        assertFalse(threads.isEmpty());
+        assertTrue(threads.stream().allMatch(thread -> thread.startsWith("rule-compile-test")), threads.toString());
+        assertEquals(1.0, meterRegistry.get(RuleBaseCache.PRUNED_RULES_METRIC).gauge().value());
+        assertEquals(1, meterRegistry.get(RuleBaseCache.WAIT_METRIC).timer().count());
+    }
+
+    @Test
+    void getOrBuild_doesNotCacheFailedBuild() {
+        List<RulesByFlowEntity> rules = List.of(rule("r1", "reasonId ==", "A1", 100));
+
+        assertThrows(RuntimeException.class, () -> ruleBaseCache.getOrBuild("MC_CORE",
+                DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, rules).block());
+        assertEquals(0, ruleBaseCache.size());
+    }
+
+    @ParameterizedTest
+    @EnumSource(RulesEngineConfig.SessionMode.class)
+    void fire_firesHighestSalienceRuleInEveryMode(RulesEngineConfig.SessionMode sessionMode) {
+        RulesEngineConfig.RulesEngineProperties properties = new RulesEngineConfig.RulesEngineProperties();
+        properties.setSessionMode(sessionMode);
+        properties.setSessionPoolSize(1);
+        properties.setNativeConditionsEnabled(false);
+        // Every evaluation must reach the sessions
+        properties.setMemoMaxEntries(0);
+        RuleBaseCache cache = new RuleBaseCache(properties, meterRegistry, compileScheduler);
+        CompiledRuleBase ruleBase = cache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                List.of(rule("r1", "reasonId == 86", "A1", 100),
+                        rule("r2", "reasonId == 86", "A2", 200),
+                        rule("r3", "reasonId == 87", "A3", 300))).block();
+
+        // Run twice so pooled and stateless sessions are exercised after reuse
+        for (int i = 0; i < 2; i++) {
+            RulesDetails rulesDetails = new RulesDetails();
+            rulesDetails.setReasonId(86);
+            assertEquals(1, ruleBase.fire(rulesDetails));
+            assertEquals("A2", rulesDetails.getActionId());
+        }
+
+        RulesDetails noMatch = new RulesDetails();
+        noMatch.setReasonId(1);
+        assertEquals(0, ruleBase.fire(noMatch));
+        assertNull(noMatch.getActionId());
+    }
+
+    /**
+     * Sleeps in a rule condition.
+     */
+    public static boolean slow(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+        return true;
+    }
+
+    @ParameterizedTest
+    @EnumSource(RulesEngineConfig.SessionMode.class)
+    void fire_leavesFactsOverBudgetUnmatchedAndNamesTheSlowRule(RulesEngineConfig.SessionMode sessionMode)
+            throws InterruptedException {
+        RulesEngineConfig.RulesEngineProperties properties = new RulesEngineConfig.RulesEngineProperties();
+        properties.setSessionMode(sessionMode);
+        properties.setNativeConditionsEnabled(false);
+        properties.setEvaluationTimeout(Duration.ofMillis(50));
+        RuleBaseCache cache = new RuleBaseCache(properties, meterRegistry, compileScheduler);
+        CompiledRuleBase ruleBase = cache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, List.of(
+                rule("r1", "reasonId == 86 && " + RuleBaseCacheTest.class.getName() + ".slow(300)", "A1", 100),
+                rule("r2", "reasonId == 87", "A2", 90))).block();
+
+        long start = System.nanoTime();
+        assertNull(fire(ruleBase, 86));
+        assertTrue(System.nanoTime() - start < Duration.ofMillis(250).toNanos());
+        assertEquals(1.0, meterRegistry.get(EvaluationBudget.EXCEEDED_METRIC).tag("reason", "timeout").counter().count());
+        // The abandoned evaluation is not memoized, and facts within the budget are still decided
+        assertNull(fire(ruleBase, 86));
+        assertEquals(2.0, meterRegistry.get(EvaluationBudget.EXCEEDED_METRIC).tag("reason", "timeout").counter().count());
+        assertEquals("A2", fire(ruleBase, 87));
+        for (int i = 0; i < 100 && meterRegistry.find(EvaluationBudget.OFFENDER_METRIC).counter() == null; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(1.0, meterRegistry.get(EvaluationBudget.OFFENDER_METRIC).tag("rule", "r1").counter().count());
+        cache.shutdown();
+    }
+
+    @Test
+    void fire_haltsAbandonedSessionsAndAbandonsEvaluationsFindingTheSchedulerFull() {
+        EvaluationBudget evaluationBudget = new EvaluationBudget(Duration.ofMillis(20), 1, 1, meterRegistry);
+        EvaluationBudget.RuleBaseBudget budget = evaluationBudget
+                .forRuleBase("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, Map.of());
+        AtomicBoolean halted = new AtomicBoolean();
+        RulesDetails rulesDetails = new RulesDetails();
+
+        assertThrows(EvaluationBudget.Exceeded.class, () -> budget.fire(rulesDetails, (fact, deadline) -> {
+            deadline.watch(() -> halted.set(true));
+            fact.setActionId("LATE");
+            while (!halted.get()) {
+                Thread.onSpinWait();
+            }
+            deadline.release();
+            return 1;
+        }));
+        assertTrue(halted.get());
+        // The abandoned evaluation ran on a copy, so its outcome never reaches the fact
+        assertNull(rulesDetails.getActionId());
+
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread busy = new Thread(() -> {
+            try {
+                budget.fire(new RulesDetails(), (fact, deadline) -> {
+                    running.countDown();
+                    awaitQuietly(release);
+                    return 0;
+                });
+            } catch (EvaluationBudget.Exceeded e) {
+                // Expected once the budget passes
+            }
+        });
+        busy.start();
+        try {
+            awaitQuietly(running);
+            // The second evaluation waits behind the running one past its budget and stays queued
+            assertThrows(EvaluationBudget.Exceeded.class, () -> budget.fire(new RulesDetails(), (fact, deadline) -> 0));
+            // so the third finds the queue full and is abandoned right away
+            assertThrows(EvaluationBudget.Exceeded.class, () -> budget.fire(new RulesDetails(), (fact, deadline) -> 0));
+            assertEquals(1.0, meterRegistry.get(EvaluationBudget.EXCEEDED_METRIC).tag("reason", "rejected").counter().count());
+        } finally {
+            release.countDown();
+            evaluationBudget.dispose();
+        }
+
+        RulesDetails decided = new RulesDetails();
+        EvaluationBudget.RuleBaseBudget fresh = new EvaluationBudget(Duration.ofSeconds(5), 1, 1, meterRegistry)
+                .forRuleBase("VM", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, Map.of());
+        assertEquals(1, fresh.fire(decided, (fact, deadline) -> {
+            fact.setActionId("A1");
+            return 1;
+        }));
+        assertEquals("A1", decided.getActionId());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(RulesEngineConfig.SessionMode.class)
+    void getOrBuild_consolidatedFlowsFireOnlyTheirOwnRules(RulesEngineConfig.SessionMode sessionMode) {
+        RulesEngineConfig.RulesEngineProperties properties = new RulesEngineConfig.RulesEngineProperties();
+        properties.setSessionMode(sessionMode);
+        properties.setSessionPoolSize(1);
+        properties.setNativeConditionsEnabled(false);
+        properties.setMemoMaxEntries(0);
+        properties.setRuleBaseLayout(RulesEngineConfig.RuleBaseLayout.CONSOLIDATED);
+        RuleBaseCache cache = new RuleBaseCache(properties, meterRegistry, compileScheduler);
+
+        CompiledRuleBase mcCore = cache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                List.of(rule("r1", "reasonId == 86", "A1", 100))).block();
+        KieBase firstBuilt = mcCore.getKieBase();
+        CompiledRuleBase vaccine = cache.getOrBuild("VACCINE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                List.of(rule("r1", "reasonId == 86", "V1", 200),
+                        rule("r2", "reasonId == 87", "V2", 100))).block();
+
+        assertSame(mcCore.getKieBase(), vaccine.getKieBase());
+        assertEquals("A1", fire(mcCore, 86));
+        assertNull(fire(mcCore, 87));
+        assertEquals("V1", fire(vaccine, 86));
+        assertEquals("V2", fire(vaccine, 87));
+
+        KieBase replaced = vaccine.getKieBase();
+        CompiledRuleBase rebuilt = cache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                List.of(rule("r1", "reasonId == 88", "A1", 100))).block();
+
+        assertNull(fire(rebuilt, 86));
+        assertEquals("A1", fire(rebuilt, 88));
+        assertEquals("V1", fire(vaccine, 86));
+        assertEquals("V2", fire(vaccine, 87));
+        assertSame(rebuilt.getKieBase(), vaccine.getKieBase());
+        // The rule base replaced two builds ago was brought up to date, while the one serving before keeps the previous rules
+        assertSame(firstBuilt, rebuilt.getKieBase());
+        assertNotSame(replaced, rebuilt.getKieBase());
+        assertNotNull(replaced.getRule(ConsolidatedRuleBases.flowPackage("MC_CORE"), "r1"));
+        RulesDetails rulesDetails = new RulesDetails();
+        rulesDetails.setReasonId(86);
+        KieSession kieSession = replaced.newKieSession();
+        kieSession.insert(rulesDetails);
+        kieSession.getAgenda().getAgendaGroup("MC_CORE").setFocus();
+        kieSession.fireAllRules();
+        kieSession.dispose();
+        assertEquals("A1", rulesDetails.getActionId());
+    }
+
+    @ParameterizedTest
+    @EnumSource(RulesEngineConfig.CompilationMode.class)
+    void getOrBuild_compilesInEveryCompilationMode(RulesEngineConfig.CompilationMode compilationMode) {
+        RulesEngineConfig.RulesEngineProperties properties = new RulesEngineConfig.RulesEngineProperties();
+        properties.setCompilationMode(compilationMode);
+        properties.setNativeConditionsEnabled(false);
+        RuleBaseCache cache = new RuleBaseCache(properties, meterRegistry, compileScheduler);
+        CompiledRuleBase ruleBase = cache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                List.of(rule("r1", "requiredQuestionnaireContext == \"MC_CORE_ELIGIBILITY_QUESTION\" && reasonId == 30",
+                                "A1", 100),
+                        rule("r2", "reasonId == 30 && reasonMappingId == 48", "A2", 200))).block();
+
+        RulesDetails rulesDetails = new RulesDetails();
+        rulesDetails.setRequiredQuestionnaireContext("MC_CORE_ELIGIBILITY_QUESTION");
+        rulesDetails.setReasonId(30);
+        assertEquals(1, ruleBase.fire(rulesDetails));
+        assertEquals("A1", rulesDetails.getActionId());
+
+        rulesDetails.setActionId(null);
+        rulesDetails.setReasonMappingId(48);
+        assertEquals(1, ruleBase.fire(rulesDetails));
+        assertEquals("A2", rulesDetails.getActionId());
+    }
+
+    @Test
+    void getOrBuild_evaluatesSimpleConditionsNatively() {
+        List<RulesByFlowEntity> rules = List.of(
+                rule("r1", "requiredQuestionnaireContext == \"MC_CORE_ELIGIBILITY_QUESTION\" && reasonId==86", "A1", 100),
+                rule("r2", "reasonId == 86", "A2", 100),
+                rule("r3", "reasonId == 86 && age >= 18", "A3", 200));
+        RulesEngineConfig.RulesEngineProperties droolsProperties = new RulesEngineConfig.RulesEngineProperties();
+        droolsProperties.setNativeConditionsEnabled(false);
+        droolsProperties.setMemoMaxEntries(0);
+        CompiledRuleBase drools = new RuleBaseCache(droolsProperties, new SimpleMeterRegistry(), compileScheduler)
+                .getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, rules).block();
+        CompiledRuleBase nativeRules = ruleBaseCache
+                .getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, rules).block();
+
+        assertTrue(nativeRules.isNative());
+        assertFalse(drools.isNative());
+        assertEquals(3.0, meterRegistry.get(RuleBaseCache.NATIVE_RULES_METRIC).tag("flow", "MC_CORE").gauge().value());
+
+        for (Double age : new Double[]{null, 17.0, 18.0}) {
+            for (String context : new String[]{null, "MC_CORE_ELIGIBILITY_QUESTION"}) {
+                RulesDetails expected = new RulesDetails();
+                expected.setReasonId(86);
+                expected.setAge(age);
+                expected.setRequiredQuestionnaireContext(context);
+                RulesDetails actual = new RulesDetails();
+                actual.setReasonId(86);
+                actual.setAge(age);
+                actual.setRequiredQuestionnaireContext(context);
+
+                assertEquals(drools.fire(expected), nativeRules.fire(actual));
+                assertEquals(expected.getActionId(), actual.getActionId(), "age=" + age + ", context=" + context);
+            }
+        }
+    }
+
+    @Test
+    void getOrBuild_fallsBackToDroolsWhenAnyConditionIsComplex() {
+        CompiledRuleBase ruleBase = ruleBaseCache.getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                List.of(rule("r1", "reasonId == 86", "A1", 100),
+                        rule("r2", "reasonId == 87 || reasonId == 88", "A2", 100))).block();
+
+        assertFalse(ruleBase.isNative());
+        assertEquals(0.0, meterRegistry.get(RuleBaseCache.NATIVE_RULES_METRIC).tag("flow", "MC_CORE").gauge().value());
+        assertEquals(2.0, meterRegistry.get(RuleBaseCache.TOTAL_RULES_METRIC).tag("flow", "MC_CORE").gauge().value());
+    }
+
+    /**
+     * Repository holding a single artifact in memory, standing in for the table shared by nodes.
+     */
+    private static RuleArtifactRepository artifactRepository(AtomicReference<RuleArtifactEntity> stored) {
+        RuleArtifactRepository repository = mock(RuleArtifactRepository.class);
+        when(repository.findArtifact(anyString(), anyString(), anyString()))
+                .thenAnswer(invocation -> Mono.justOrEmpty(stored.get()));
+        when(repository.save(any(RuleArtifactEntity.class))).thenAnswer(invocation -> {
+            stored.set(invocation.getArgument(0));
+            return Mono.just(stored.get());
+        });
+        return repository;
+    }
+
+    private RuleBaseCache artifactCache(SimpleMeterRegistry registry, AtomicReference<RuleArtifactEntity> stored) {
+        return artifactCache(registry, stored, RulesEngineConfig.CompilationMode.EXECUTABLE_MODEL);
+    }
+
+    private RuleBaseCache artifactCache(SimpleMeterRegistry registry, AtomicReference<RuleArtifactEntity> stored,
+                                        RulesEngineConfig.CompilationMode compilationMode) {
+        RulesEngineConfig.RulesEngineProperties properties = new RulesEngineConfig.RulesEngineProperties();
+        properties.setNativeConditionsEnabled(false);
+        properties.setCompilationMode(compilationMode);
+        properties.setArtifactsEnabled(true);
+        return new RuleBaseCache(properties, registry, compileScheduler, artifactRepository(stored));
+    }
+
+    /**
+     * The KJAR with the DRL of its rules replaced by text that does not compile.
+     */
+    private static byte[] withoutDrl(byte[] kjar) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(kjar));
+             ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+                zip.putNextEntry(new ZipEntry(entry.getName()));
+                zip.write(entry.getName().endsWith(".drl")
+                        ? "rule \"broken\" when this is not DRL".getBytes(StandardCharsets.UTF_8)
+                        : in.readAllBytes());
+                zip.closeEntry();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void getOrBuild_loadsArtifactStoredByAnotherNode() {
+        List<RulesByFlowEntity> rules = List.of(rule("r1", "reasonId == 86 || reasonId == 87", "A1", 100));
+        AtomicReference<RuleArtifactEntity> stored = new AtomicReference<>();
+        SimpleMeterRegistry compilingNode = new SimpleMeterRegistry();
+        SimpleMeterRegistry loadingNode = new SimpleMeterRegistry();
+
+        artifactCache(compilingNode, stored).getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, rules).block();
+        CompiledRuleBase loaded = artifactCache(loadingNode, stored)
+                .getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, rules).block();
+
+        assertNotNull(stored.get());
+        assertEquals(RuleBaseCache.rulesHash(rules), stored.get().getRulesHash());
+        assertEquals(1.0, compilingNode.get(RuleArtifactStore.ARTIFACT_METRIC).tag("result", "stored").counter().count());
+        assertEquals(1.0, loadingNode.get(RuleArtifactStore.ARTIFACT_METRIC).tag("result", "loaded").counter().count());
+        assertEquals(1, loadingNode.get(RuleBaseCache.BUILD_METRIC).tag("source", "artifact").timer().count());
+        assertTrue(loadingNode.find(RuleBaseCache.BUILD_METRIC).tag("source", "compiled").timers().isEmpty());
+
+        RulesDetails rulesDetails = new RulesDetails();
+        rulesDetails.setReasonId(87);
+        assertEquals(1, loaded.fire(rulesDetails));
+        assertEquals("A1", rulesDetails.getActionId());
+    }
+
+    @Test
+    void getOrBuild_loadsArtifactWithoutCompilingItsDrl() throws IOException {
+        List<RulesByFlowEntity> rules = List.of(rule("r1", "reasonId == 86 || reasonId == 87", "A1", 100));
+        AtomicReference<RuleArtifactEntity> stored = new AtomicReference<>();
+        artifactCache(new SimpleMeterRegistry(), stored)
+                .getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, rules).block();
+        byte[] kjar = withoutDrl(stored.get().getKjar().array());
+        stored.get().setKjar(ByteBuffer.wrap(kjar));
+        stored.get().setChecksum(DigestUtils.sha256Hex(kjar));
+
+        SimpleMeterRegistry loadingNode = new SimpleMeterRegistry();
+        CompiledRuleBase loaded = artifactCache(loadingNode, stored)
+                .getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, rules).block();
+
+        // The DRL left in the KJAR no longer compiles, so the rules come from the compiled model
+        assertEquals(1.0, loadingNode.get(RuleArtifactStore.ARTIFACT_METRIC).tag("result", "loaded").counter().count());
+        assertTrue(loadingNode.find(RuleArtifactStore.ARTIFACT_METRIC).tag("result", "failed").counters().isEmpty());
+        assertTrue(loadingNode.find(RuleBaseCache.BUILD_METRIC).tag("source", "compiled").timers().isEmpty());
+        RulesDetails rulesDetails = new RulesDetails();
+        rulesDetails.setReasonId(87);
+        assertEquals(1, loaded.fire(rulesDetails));
+        assertEquals("A1", rulesDetails.getActionId());
+    }
+
+    @Test
+    void properties_rejectArtifactsWithoutTheExecutableModel() {
+        RulesEngineConfig.RulesEngineProperties properties = new RulesEngineConfig.RulesEngineProperties();
+        properties.afterPropertiesSet();
+
+        properties.setArtifactsEnabled(true);
+        assertThrows(IllegalStateException.class, properties::afterPropertiesSet);
+
+        properties.setCompilationMode(RulesEngineConfig.CompilationMode.EXECUTABLE_MODEL);
+        properties.afterPropertiesSet();
+    }
+
+    @Test
+    void getOrBuild_neitherStoresNorLoadsMvelArtifacts() {
+        List<RulesByFlowEntity> rules = List.of(rule("r1", "reasonId == 86", "A1", 100));
+        AtomicReference<RuleArtifactEntity> stored = new AtomicReference<>();
+        artifactCache(new SimpleMeterRegistry(), stored)
+                .getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, rules).block();
+        RuleArtifactEntity executableModel = stored.get();
+        stored.get().setCompilationMode(RulesEngineConfig.CompilationMode.MVEL.name());
+
+        SimpleMeterRegistry mvelNode = new SimpleMeterRegistry();
+        artifactCache(mvelNode, stored, RulesEngineConfig.CompilationMode.MVEL)
+                .getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, rules).block();
+
+        assertSame(executableModel, stored.get());
+        assertTrue(mvelNode.find(RuleArtifactStore.ARTIFACT_METRIC).counters().isEmpty());
+        assertEquals(1, mvelNode.get(RuleBaseCache.BUILD_METRIC).tag("source", "compiled").timer().count());
+    }
+
+    @Test
+    void getOrBuild_compilesWhenArtifactIsStaleOrCorrupt() {
+        AtomicReference<RuleArtifactEntity> stored = new AtomicReference<>();
+        List<RulesByFlowEntity> oldRules = List.of(rule("r1", "reasonId == 86 || reasonId == 87", "A1", 100));
+        List<RulesByFlowEntity> newRules = List.of(rule("r1", "reasonId == 86 || reasonId == 88", "A1", 100));
+        artifactCache(new SimpleMeterRegistry(), stored)
+                .getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, oldRules).block();
+
+        SimpleMeterRegistry staleNode = new SimpleMeterRegistry();
+        artifactCache(staleNode, stored).getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, newRules).block();
+        assertEquals(1.0, staleNode.get(RuleArtifactStore.ARTIFACT_METRIC).tag("result", "stale").counter().count());
+        assertEquals(RuleBaseCache.rulesHash(newRules), stored.get().getRulesHash());
+
+        byte[] kjar = stored.get().getKjar().array().clone();
+        kjar[kjar.length / 2] ^= 1;
+        stored.get().setKjar(ByteBuffer.wrap(kjar));
+        SimpleMeterRegistry corruptNode = new SimpleMeterRegistry();
+        CompiledRuleBase ruleBase = artifactCache(corruptNode, stored)
+                .getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, newRules).block();
+        assertEquals(1.0, corruptNode.get(RuleArtifactStore.ARTIFACT_METRIC).tag("result", "corrupt").counter().count());
+
+        RulesDetails rulesDetails = new RulesDetails();
+        rulesDetails.setReasonId(88);
+        assertEquals(1, ruleBase.fire(rulesDetails));
+        assertEquals("A1", rulesDetails.getActionId());
+    }
+
+    @Test
+    void fire_memoizesOutcomesByFieldsAndAgeThresholds() {
+        RulesEngineConfig.RulesEngineProperties properties = new RulesEngineConfig.RulesEngineProperties();
+        properties.setNativeConditionsEnabled(false);
+        CompiledRuleBase ruleBase = new RuleBaseCache(properties, meterRegistry, compileScheduler)
+                .getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                        List.of(rule("r1", "reasonId == 86 && (age >= 18 || state == \"RI\")", "ADULT", 200),
+                                rule("r2", "reasonId == 86", "MINOR", 100))).block();
+        assertTrue(ruleBase.isMemoized());
+
+        double[] ages = {30, 65, 17, 18, 5};
+        String[] expected = {"ADULT", "ADULT", "MINOR", "ADULT", "MINOR"};
+        for (int i = 0; i < ages.length; i++) {
+            RulesDetails rulesDetails = new RulesDetails();
+            rulesDetails.setReasonId(86);
+            rulesDetails.setAge(ages[i]);
+            // Not read by any condition, so it must not split the memo
+            rulesDetails.setCode("C" + i);
+            assertEquals(1, ruleBase.fire(rulesDetails));
+            assertEquals(expected[i], rulesDetails.getActionId(), "age=" + ages[i]);
+        }
+
+        // 30 and 65 are both above 18, 5 and 17 both below it
+        assertEquals(2.0, meterRegistry.get(RuleBaseCache.MEMO_METRIC).tag("result", "hit").counter().count());
+        assertEquals(3.0, meterRegistry.get(RuleBaseCache.MEMO_METRIC).tag("result", "miss").counter().count());
+
+        RulesDetails noMatch = new RulesDetails();
+        noMatch.setReasonId(1);
+        assertEquals(0, ruleBase.fire(noMatch));
+        assertEquals(0, ruleBase.fire(noMatch));
+        assertNull(noMatch.getActionId());
+    }
+
+    @Test
+    void fire_doesNotMemoizeComparisonsWithArithmetic() {
+        RulesEngineConfig.RulesEngineProperties properties = new RulesEngineConfig.RulesEngineProperties();
+        properties.setNativeConditionsEnabled(false);
+        CompiledRuleBase ruleBase = new RuleBaseCache(properties, meterRegistry, compileScheduler)
+                .getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                        List.of(rule("r1", "reasonId == 86 && age > 5 + 1", "OLDER", 200),
+                                rule("r2", "reasonId == 86", "YOUNGER", 100))).block();
+        assertFalse(ruleBase.isMemoized());
+
+        // Both ages are above 5, the first literal, but only one is above 6
+        double[] ages = {6.5, 5.5};
+        String[] expected = {"OLDER", "YOUNGER"};
+        for (int i = 0; i < ages.length; i++) {
+            RulesDetails rulesDetails = new RulesDetails();
+            rulesDetails.setReasonId(86);
+            rulesDetails.setAge(ages[i]);
+            assertEquals(1, ruleBase.fire(rulesDetails));
+            assertEquals(expected[i], rulesDetails.getActionId(), "age=" + ages[i]);
+        }
+    }
+
+    @Test
+    void getOrBuild_doesNotMemoizeConditionsWithUnknownInputs() {
+        RulesEngineConfig.RulesEngineProperties properties = new RulesEngineConfig.RulesEngineProperties();
+        properties.setNativeConditionsEnabled(false);
+        CompiledRuleBase ruleBase = new RuleBaseCache(properties, meterRegistry, compileScheduler)
+                .getOrBuild("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                        List.of(rule("r1", "state.startsWith(\"R\")", "A1", 100))).block();
+
+        assertFalse(ruleBase.isMemoized());
+    }
+}
@@ -0,0 +1,117 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.config.DroolConfig;
+import com.cvshealth.digital.microservice.iqe.config.RulesEngineConfig;
+import com.cvshealth.digital.microservice.iqe.entity.QuestionnaireRules;
+import com.cvshealth.digital.microservice.iqe.entity.RulesByFlowEntity;
+import com.cvshealth.digital.microservice.iqe.repository.QuestionnaireRulesRepository;
+import com.cvshealth.digital.microservice.iqe.repository.RulesByFlowRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.boot.actuate.health.Status;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RuleBaseWarmupTest {
+
+    @Mock private RulesByFlowRepository rulesByFlowRepo;
+    @Mock private QuestionnaireRulesRepository rulesRepo;
+
+    private RulesEngineConfig.RulesEngineProperties properties;
+    private RuleBaseCache ruleBaseCache;
+    private RuleSetRegistry ruleSetRegistry;
+    private RuleBaseWarmup ruleBaseWarmup;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        properties = new RulesEngineConfig.RulesEngineProperties();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ruleBaseCache = new RuleBaseCache(properties, meterRegistry, Schedulers.immediate());
+        ruleSetRegistry = new RuleSetRegistry(ruleBaseCache, properties, meterRegistry);
+        ruleBaseWarmup = new RuleBaseWarmup(properties, rulesByFlowRepo, rulesRepo, ruleSetRegistry);
+    }
+
+    private static RulesByFlowEntity rule(String flow, String ruleId) {
+        return RulesByFlowEntity.builder().flow(flow).ruleId(ruleId).condition("reasonId == 86")
+                .actionId("A-" + ruleId).salience(100).isActive(true).build();
+    }
+
+    private static QuestionnaireRules legacyRule(String flow) {
+        QuestionnaireRules rule = new QuestionnaireRules();
+        rule.setFlow(flow);
+        rule.setId("legacy");
+        rule.setSalience(1);
+        rule.setCondition("age > 18");
+        rule.setAction("\"{}\"");
+        return rule;
+    }
+
+    @Test
+    void warmup_activatesEveryFlowAndBecomesReady() {
+        RulesByFlowEntity mcCore = rule("MC_CORE", "r1");
+        RulesByFlowEntity vaccine = rule("VACCINE", "r2");
+        QuestionnaireRules legacy = legacyRule("MC_CORE");
+        when(rulesByFlowRepo.findAll()).thenReturn(Flux.just(mcCore, vaccine));
+        when(rulesByFlowRepo.findByFlow("MC_CORE")).thenReturn(Flux.just(mcCore));
+        when(rulesByFlowRepo.findByFlow("VACCINE")).thenReturn(Flux.just(vaccine));
+        when(rulesRepo.findAll()).thenReturn(Flux.just(legacy));
+        when(rulesRepo.findByFlow("MC_CORE")).thenReturn(Flux.just(legacy));
+
+        assertEquals(Status.OUT_OF_SERVICE, ruleBaseWarmup.health().getStatus());
+
+        StepVerifier.create(ruleBaseWarmup.warmup()).verifyComplete();
+
+        assertEquals(Status.UP, ruleBaseWarmup.health().getStatus());
+        assertEquals(3, ruleBaseWarmup.health().getDetails().get("warmedFlows"));
+        assertEquals(3, ruleBaseCache.size());
+        assertEquals(0L, ruleSetRegistry.activeVersion("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE));
+        assertEquals(0L, ruleSetRegistry.activeVersion("VACCINE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE));
+        assertEquals(0L, ruleSetRegistry.activeVersion("MC_CORE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE));
+
+        // Requests are served the warmed rule base without reading the rows again
+        StepVerifier.create(ruleSetRegistry.ruleBase("VACCINE", DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE,
+                        () -> Mono.error(new AssertionError("rows read after warmup"))))
+                .expectNextCount(1)
+                .verifyComplete();
+        verify(rulesByFlowRepo, times(1)).findByFlow("VACCINE");
+    }
+
+    @Test
+    void warmup_releasesReadinessAfterTimeout() {
+        properties.setWarmupTimeout(Duration.ofMillis(50));
+        when(rulesByFlowRepo.findAll()).thenReturn(Flux.never());
+        when(rulesRepo.findAll()).thenReturn(Flux.empty());
+
+        StepVerifier.create(ruleBaseWarmup.warmup()).verifyComplete();
+
+        assertEquals(Status.UP, ruleBaseWarmup.health().getStatus());
+        assertEquals(RuleBaseWarmup.WarmupState.ABORTED, ruleBaseWarmup.health().getDetails().get("state"));
+    }
+
+    @Test
+    void warmup_countsFlowsThatFailToCompile() {
+        RulesByFlowEntity broken = RulesByFlowEntity.builder().flow("MHC").ruleId("r1").condition("reasonId ==")
+                .actionId("A1").salience(1).isActive(true).build();
+        when(rulesByFlowRepo.findAll()).thenReturn(Flux.just(broken));
+        when(rulesByFlowRepo.findByFlow("MHC")).thenReturn(Flux.just(broken));
+        when(rulesRepo.findAll()).thenReturn(Flux.empty());
+
+        StepVerifier.create(ruleBaseWarmup.warmup()).verifyComplete();
+
+        assertEquals(Status.UP, ruleBaseWarmup.health().getStatus());
+        assertEquals(1, ruleBaseWarmup.health().getDetails().get("failedFlows"));
+    }
+}
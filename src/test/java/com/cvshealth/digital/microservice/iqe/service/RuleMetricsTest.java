@@ -0,0 +1,130 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.config.DroolConfig;
+import com.cvshealth.digital.microservice.iqe.config.RulesEngineConfig;
+import com.cvshealth.digital.microservice.iqe.entity.RulesByFlowEntity;
+import com.cvshealth.digital.microservice.iqe.model.RulesDetails;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RuleMetricsTest {
+
+    private static final String FLOW = "MC_CORE";
+    private static final String TEMPLATE = DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE;
+    private static final List<RulesByFlowEntity> RULES = List.of(
+            rule("r1", "reasonId == 86", "A1", 100),
+            rule("r2", "reasonId == 30", "B1", 90),
+            rule("r3", "reasonId == 12", "C1", 80));
+
+    private SimpleMeterRegistry meterRegistry;
+    private RulesEngineConfig.RulesEngineProperties properties;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        properties = new RulesEngineConfig.RulesEngineProperties();
+        properties.setMemoMaxEntries(0);
+    }
+
+    private static RulesByFlowEntity rule(String ruleId, String condition, String actionId, int salience) {
+        return RulesByFlowEntity.builder()
+                .flow(FLOW)
+                .ruleId(ruleId)
+                .condition(condition)
+                .actionId(actionId)
+                .salience(salience)
+                .isActive(true)
+                .build();
+    }
+
+    private static RulesDetails fact(int reasonId) {
+        RulesDetails rulesDetails = new RulesDetails();
+        rulesDetails.setFlow(FLOW);
+        rulesDetails.setReasonId(reasonId);
+        return rulesDetails;
+    }
+
+    private RuleMetrics.FlowRuleMetrics fireAll(CompiledRuleBase ruleBase, RuleMetrics ruleMetrics) {
+        RuleMetrics.FlowRuleMetrics metrics = ruleMetrics.forFlow(FLOW, TEMPLATE, List.of("r1", "r2", "r3"));
+        ruleBase.instrument(metrics);
+        for (int reasonId : new int[]{86, 86, 30, 99}) {
+            ruleBase.fire(fact(reasonId));
+        }
+        return metrics;
+    }
+
+    private double evaluations(String outcome) {
+        return meterRegistry.get(RuleMetrics.EVALUATION_METRIC).tag("flow", FLOW).tag("outcome", outcome)
+                .counter().count();
+    }
+
+    @Test
+    void nativeRuleBase_countsFiresPerRuleAndUnmatchedEvaluations() {
+        RuleBaseCache ruleBaseCache = new RuleBaseCache(properties, meterRegistry, Schedulers.immediate());
+        CompiledRuleBase ruleBase = ruleBaseCache.buildDetached(FLOW, TEMPLATE, RULES).block();
+        RuleMetrics.FlowRuleMetrics metrics = fireAll(ruleBase, new RuleMetrics(meterRegistry, properties));
+
+        assertTrue(ruleBase.isNative());
+        assertEquals(2, metrics.fires("r1"));
+        assertEquals(1, metrics.fires("r2"));
+        assertEquals(3.0, evaluations("fired"));
+        assertEquals(1.0, evaluations("no_match"));
+        assertEquals(4, meterRegistry.get(RuleMetrics.EVALUATION_TIME_METRIC).tag("engine", "native").timer().count());
+        assertEquals(1.0, meterRegistry.get(RuleMetrics.UNFIRED_METRIC).tag("flow", FLOW).gauge().value());
+    }
+
+    @ParameterizedTest
+    @EnumSource(RulesEngineConfig.SessionMode.class)
+    void droolsRuleBase_countsFiresThroughAgendaListener(RulesEngineConfig.SessionMode sessionMode) {
+        properties.setNativeConditionsEnabled(false);
+        properties.setSessionMode(sessionMode);
+        properties.setSessionPoolSize(1);
+        RuleBaseCache ruleBaseCache = new RuleBaseCache(properties, meterRegistry, Schedulers.immediate());
+        CompiledRuleBase ruleBase = ruleBaseCache.buildDetached(FLOW, TEMPLATE, RULES).block();
+        RuleMetrics.FlowRuleMetrics metrics = fireAll(ruleBase, new RuleMetrics(meterRegistry, properties));
+
+        assertFalse(ruleBase.isNative());
+        assertEquals(2, metrics.fires("r1"));
+        assertEquals(1, metrics.fires("r2"));
+        assertEquals(0, metrics.fires("r3"));
+        assertEquals(1.0, evaluations("no_match"));
+        assertEquals(4, meterRegistry.get(RuleMetrics.EVALUATION_TIME_METRIC).tag("engine", "drools").timer().count());
+        ruleBase.dispose();
+    }
+
+    @Test
+    void rank_registersCountersForTopRulesOnly() {
+        properties.setRuleMetricsTopN(1);
+        RuleBaseCache ruleBaseCache = new RuleBaseCache(properties, meterRegistry, Schedulers.immediate());
+        CompiledRuleBase ruleBase = ruleBaseCache.buildDetached(FLOW, TEMPLATE, RULES).block();
+        RuleMetrics.FlowRuleMetrics metrics = fireAll(ruleBase, new RuleMetrics(meterRegistry, properties));
+
+        metrics.rank();
+        assertEquals(2.0, meterRegistry.get(RuleMetrics.FIRED_METRIC).tag("rule", "r1").functionCounter().count());
+        assertNull(meterRegistry.find(RuleMetrics.FIRED_METRIC).tag("rule", "r2").functionCounter());
+
+        for (int i = 0; i < 3; i++) {
+            ruleBase.fire(fact(30));
+        }
+        metrics.rank();
+        assertEquals(4.0, meterRegistry.get(RuleMetrics.FIRED_METRIC).tag("rule", "r2").functionCounter().count());
+        assertNull(meterRegistry.find(RuleMetrics.FIRED_METRIC).tag("rule", "r1").functionCounter());
+    }
+
+    @Test
+    void getOrBuild_instrumentsLiveRuleBases() {
+        RuleBaseCache ruleBaseCache = new RuleBaseCache(properties, meterRegistry, Schedulers.immediate());
+
+        ruleBaseCache.getOrBuild(FLOW, TEMPLATE, RULES).block().fire(fact(86));
+
+        assertEquals(1.0, evaluations("fired"));
+    }
+}
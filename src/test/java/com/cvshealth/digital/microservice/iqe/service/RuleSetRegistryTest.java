@@ -0,0 +1,223 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.config.DroolConfig;
+import com.cvshealth.digital.microservice.iqe.config.RulesEngineConfig;
+import com.cvshealth.digital.microservice.iqe.entity.RuleSetVersionEntity;
+import com.cvshealth.digital.microservice.iqe.entity.RulesByFlowEntity;
+import com.cvshealth.digital.microservice.iqe.model.RulesDetails;
+import com.cvshealth.digital.microservice.iqe.repository.RuleSetVersionRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class RuleSetRegistryTest {
+
+    private static final String FLOW = "MC_CORE";
+    private static final String TEMPLATE = DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE;
+
+    private SimpleMeterRegistry meterRegistry;
+    private RuleSetRegistry ruleSetRegistry;
+    private RuleSetVersionRepository versionRepo;
+    private final AtomicLong storedVersion = new AtomicLong(1);
+    private final AtomicReference<List<RulesByFlowEntity>> storedRules = new AtomicReference<>();
+    private final AtomicInteger rowReads = new AtomicInteger();
+    private final Supplier<Mono<? extends List<?>>> rules = () -> Mono.fromSupplier(() -> {
+        rowReads.incrementAndGet();
+        return storedRules.get();
+    });
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        RulesEngineConfig.RulesEngineProperties properties = new RulesEngineConfig.RulesEngineProperties();
+        RuleBaseCache ruleBaseCache = new RuleBaseCache(properties, meterRegistry, Schedulers.immediate());
+
+        versionRepo = mock(RuleSetVersionRepository.class);
+        when(versionRepo.findById(anyString())).thenAnswer(invocation ->
+                Mono.just(new RuleSetVersionEntity(invocation.getArgument(0), storedVersion.get())));
+        when(versionRepo.findAll()).thenAnswer(invocation ->
+                Flux.just(new RuleSetVersionEntity(FLOW, storedVersion.get())));
+        when(versionRepo.incrementVersion(anyString())).thenAnswer(invocation ->
+                Mono.fromRunnable(storedVersion::incrementAndGet));
+
+        ruleSetRegistry = new RuleSetRegistry(ruleBaseCache, properties, meterRegistry, versionRepo);
+        storedRules.set(List.of(rule("reasonId == 86", "A1")));
+    }
+
+    private static RulesByFlowEntity rule(String condition, String actionId) {
+        return RulesByFlowEntity.builder()
+                .flow(FLOW)
+                .ruleId("r1")
+                .condition(condition)
+                .actionId(actionId)
+                .salience(100)
+                .isActive(true)
+                .build();
+    }
+
+    private String actionId(CompiledRuleBase ruleBase) {
+        RulesDetails rulesDetails = new RulesDetails();
+        rulesDetails.setFlow(FLOW);
+        rulesDetails.setReasonId(86);
+        ruleBase.fire(rulesDetails);
+        return rulesDetails.getActionId();
+    }
+
+    @Test
+    void ruleBase_servesActiveVersionWithoutReadingRowsAgain() {
+        CompiledRuleBase first = ruleSetRegistry.ruleBase(FLOW, TEMPLATE, rules).block();
+        storedRules.set(List.of(rule("reasonId == 86", "A2")));
+        CompiledRuleBase second = ruleSetRegistry.ruleBase(FLOW, TEMPLATE, rules).block();
+
+        assertSame(first, second);
+        assertEquals(1, rowReads.get());
+        assertEquals(1L, ruleSetRegistry.activeVersion(FLOW, TEMPLATE));
+        assertEquals(1.0, meterRegistry.get(RuleSetRegistry.VERSION_METRIC).tag("flow", FLOW).gauge().value());
+    }
+
+    @Test
+    void ruleBase_isEmptyWhenFlowHasNoRules() {
+        storedRules.set(List.of());
+
+        assertNull(ruleSetRegistry.ruleBase(FLOW, TEMPLATE, rules).block());
+        assertNull(ruleSetRegistry.ruleBase(FLOW, TEMPLATE, rules).block());
+        assertEquals(1L, ruleSetRegistry.activeVersion(FLOW, TEMPLATE));
+        assertEquals(1, rowReads.get());
+    }
+
+    @Test
+    void ruleBase_recordsServedVersionInContext() {
+        Map<String, Long> versions = new HashMap<>();
+
+        ruleSetRegistry.ruleBase(FLOW, TEMPLATE, rules)
+                .contextWrite(RuleSetRegistry.servedVersions(versions))
+                .block();
+
+        assertEquals(Map.of(FLOW, 1L), versions);
+    }
+
+    @Test
+    void refresh_swapsInNewerVersion() {
+        CompiledRuleBase first = ruleSetRegistry.ruleBase(FLOW, TEMPLATE, rules).block();
+        storedRules.set(List.of(rule("reasonId == 86", "A2")));
+        storedVersion.set(2);
+
+        assertSame(first, ruleSetRegistry.ruleBase(FLOW, TEMPLATE, rules).block());
+        ruleSetRegistry.refresh().block();
+        CompiledRuleBase refreshed = ruleSetRegistry.ruleBase(FLOW, TEMPLATE, rules).block();
+
+        assertEquals("A1", actionId(first));
+        assertEquals("A2", actionId(refreshed));
+        assertEquals(2L, ruleSetRegistry.activeVersion(FLOW, TEMPLATE));
+        assertEquals(2.0, meterRegistry.get(RuleSetRegistry.VERSION_METRIC).tag("flow", FLOW).gauge().value());
+    }
+
+    @Test
+    void refresh_skipsRuleSetsAlreadyCurrent() {
+        ruleSetRegistry.ruleBase(FLOW, TEMPLATE, rules).block();
+
+        ruleSetRegistry.refresh().block();
+
+        assertEquals(1, rowReads.get());
+        assertEquals(1.0, meterRegistry.get(RuleSetRegistry.SWAP_METRIC).counter().count());
+    }
+
+    @Test
+    void publish_incrementsVersionAndSwapsInNewRules() {
+        ruleSetRegistry.ruleBase(FLOW, TEMPLATE, rules).block();
+        storedRules.set(List.of(rule("reasonId == 86", "A2")));
+
+        ruleSetRegistry.publish(FLOW, TEMPLATE, rules).block();
+
+        assertEquals(2L, ruleSetRegistry.activeVersion(FLOW, TEMPLATE));
+        assertEquals("A2", actionId(ruleSetRegistry.ruleBase(FLOW, TEMPLATE, rules).block()));
+    }
+
+    @Test
+    void publish_stopsServingRulesOnceTheLastIsDeleted() {
+        assertNotNull(ruleSetRegistry.ruleBase(FLOW, TEMPLATE, rules).block());
+        storedRules.set(List.of());
+
+        ruleSetRegistry.publish(FLOW, TEMPLATE, rules).block();
+
+        assertEquals(2L, ruleSetRegistry.activeVersion(FLOW, TEMPLATE));
+        assertNull(ruleSetRegistry.ruleBase(FLOW, TEMPLATE, rules).block());
+    }
+
+    @Test
+    void publish_failsWhenTheVersionCannotBeIncremented() {
+        AtomicInteger attempts = new AtomicInteger();
+        when(versionRepo.incrementVersion(anyString())).thenAnswer(invocation -> Mono.defer(() -> {
+            attempts.incrementAndGet();
+            return Mono.error(new IllegalStateException("write timeout"));
+        }));
+        CompiledRuleBase active = ruleSetRegistry.ruleBase(FLOW, TEMPLATE, rules).block();
+        storedRules.set(List.of(rule("reasonId == 86", "A2")));
+
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> ruleSetRegistry.publish(FLOW, TEMPLATE, rules).block());
+
+        assertEquals("write timeout", e.getMessage());
+        assertEquals(4, attempts.get());
+        assertSame(active, ruleSetRegistry.ruleBase(FLOW, TEMPLATE, rules).block());
+    }
+
+    @Test
+    void publish_letsRequestsHoldingTheReplacedPooledRuleBaseFinish() {
+        RulesEngineConfig.RulesEngineProperties properties = new RulesEngineConfig.RulesEngineProperties();
+        properties.setSessionMode(RulesEngineConfig.SessionMode.POOLED);
+        properties.setNativeConditionsEnabled(false);
+        properties.setMemoMaxEntries(0);
+        properties.setIncrementalUpdates(false);
+        RuleSetRegistry pooled = new RuleSetRegistry(new RuleBaseCache(properties, meterRegistry, Schedulers.immediate()),
+                properties, meterRegistry, versionRepo);
+        CompiledRuleBase replaced = pooled.ruleBase(FLOW, TEMPLATE, rules).block();
+        storedRules.set(List.of(rule("reasonId == 86", "A2")));
+
+        pooled.publish(FLOW, TEMPLATE, rules).block();
+
+        assertEquals("A1", actionId(replaced));
+        assertEquals("A2", actionId(pooled.ruleBase(FLOW, TEMPLATE, rules).block()));
+    }
+
+    @Test
+    void publish_doesNotReplaceNewerVersion() {
+        storedVersion.set(5);
+        CompiledRuleBase active = ruleSetRegistry.ruleBase(FLOW, TEMPLATE, rules).block();
+        // A load that read an older version completing after the newer one was installed
+        storedVersion.set(3);
+        storedRules.set(List.of(rule("reasonId == 86", "A2")));
+
+        ruleSetRegistry.refresh().block();
+        ruleSetRegistry.publish(FLOW, TEMPLATE, rules).block();
+
+        assertEquals(5L, ruleSetRegistry.activeVersion(FLOW, TEMPLATE));
+        assertSame(active, ruleSetRegistry.ruleBase(FLOW, TEMPLATE, rules).block());
+    }
+
+    @Test
+    void formatVersions_sortsByFlow() {
+        Map<String, Long> versions = new LinkedHashMap<>();
+        versions.put("MC_CORE", 3L);
+        versions.put("IMZ", 12L);
+
+        assertEquals("IMZ=12,MC_CORE=3", RuleSetRegistry.formatVersions(versions));
+    }
+}
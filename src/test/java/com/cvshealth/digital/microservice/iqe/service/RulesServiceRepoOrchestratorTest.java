@@ -86,4 +86,16 @@ class RulesServiceRepoOrchestratorTest {
                 .verify();
     }
 
-}
\ No newline at end of file
+    @Test
+    void validateRequest_rejectsConditionsThatCallMethods() {
+        QuestionareRequest req = buildRequest(false, false, false);
+        req.getRulesByFlow().setCondition("state.startsWith(\"R\")");
+
+        StepVerifier.create(orchestrator.validateRequest(req, new IQEResponse()))
+                .expectErrorMatches(e -> e instanceof InvalidRequestException
+                        && e.getMessage().contains("calls the method startsWith"))
+                .verify();
+        verifyNoInteractions(rulesByFlowRepo);
+    }
+
+}
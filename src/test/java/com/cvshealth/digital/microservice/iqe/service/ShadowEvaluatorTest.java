@@ -0,0 +1,200 @@
+package com.cvshealth.digital.microservice.iqe.service;
+
+import com.cvshealth.digital.microservice.iqe.config.DroolConfig;
+import com.cvshealth.digital.microservice.iqe.config.RulesEngineConfig;
+import com.cvshealth.digital.microservice.iqe.dto.ShadowReport;
+import com.cvshealth.digital.microservice.iqe.entity.RulesByFlowEntity;
+import com.cvshealth.digital.microservice.iqe.model.RulesDetails;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShadowEvaluatorTest {
+
+    private static final String FLOW = "MC_CORE";
+
+    private SimpleMeterRegistry meterRegistry;
+    private RulesEngineConfig.RulesEngineProperties properties;
+    private RuleBaseCache ruleBaseCache;
+    private ShadowEvaluator shadowEvaluator;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        properties = new RulesEngineConfig.RulesEngineProperties();
+        properties.setShadowSampleRate(1.0);
+        properties.setShadowReportSize(2);
+        ruleBaseCache = new RuleBaseCache(properties, meterRegistry, Schedulers.immediate());
+        shadowEvaluator = new ShadowEvaluator(ruleBaseCache, properties, meterRegistry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        shadowEvaluator.dispose();
+    }
+
+    private static RulesByFlowEntity rule(String ruleId, String condition, String actionId, int salience) {
+        return RulesByFlowEntity.builder()
+                .flow(FLOW)
+                .ruleId(ruleId)
+                .condition(condition)
+                .actionId(actionId)
+                .salience(salience)
+                .isActive(true)
+                .build();
+    }
+
+    private static RulesDetails fact(int reasonId) {
+        RulesDetails rulesDetails = new RulesDetails();
+        rulesDetails.setFlow(FLOW);
+        rulesDetails.setReasonId(reasonId);
+        return rulesDetails;
+    }
+
+    private CompiledRuleBase live() {
+        return ruleBaseCache.getOrBuild(FLOW, DroolConfig.QUESTIONNAIRE_TEMPLATE_FILE_IQE, List.of(
+                rule("r1", "reasonId == 86", "A1", 100),
+                rule("r2", "reasonId == 30", "B1", 90))).block();
+    }
+
+    /**
+     * Evaluates the fact against the live rule base the way the service does.
+     */
+    private int fire(CompiledRuleBase live, RulesDetails rulesDetails) {
+        ShadowEvaluator.Sample sample = shadowEvaluator.sample(live, rulesDetails);
+        int fired = live.fire(rulesDetails);
+        sample.replay(rulesDetails);
+        return fired;
+    }
+
+    private ShadowReport awaitSampled(long sampled) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        ShadowReport report = shadowEvaluator.report(FLOW).orElseThrow();
+        while (report.getSampled() + report.getFailed() < sampled && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            report = shadowEvaluator.report(FLOW).orElseThrow();
+        }
+        return report;
+    }
+
+    @Test
+    void sample_withoutCandidateDoesNothing() {
+        RulesDetails rulesDetails = fact(86);
+        CompiledRuleBase live = live();
+
+        assertSame(ShadowEvaluator.Sample.NONE, shadowEvaluator.sample(live, rulesDetails));
+        assertEquals(1, fire(live, rulesDetails));
+
+        assertEquals("A1", rulesDetails.getActionId());
+        assertTrue(shadowEvaluator.report(FLOW).isEmpty());
+        assertTrue(meterRegistry.find(ShadowEvaluator.RESULT_METRIC).counters().isEmpty());
+    }
+
+    @Test
+    void sample_recordsMatchesAndMismatchesWithoutChangingLiveOutcome() throws InterruptedException {
+        CompiledRuleBase live = live();
+        shadowEvaluator.register(FLOW, List.of(
+                rule("r1", "reasonId == 86", "A1", 100),
+                rule("r2", "reasonId == 30", "B2", 90))).block();
+
+        RulesDetails matching = fact(86);
+        RulesDetails mismatching = fact(30);
+        fire(live, matching);
+        fire(live, mismatching);
+        ShadowReport report = awaitSampled(2);
+
+        assertEquals("A1", matching.getActionId());
+        assertEquals("B1", mismatching.getActionId());
+        assertEquals(2, report.getSampled());
+        assertEquals(1, report.getMatched());
+        assertEquals(1, report.getMismatched());
+        ShadowReport.Mismatch mismatch = report.getMismatches().get(0);
+        assertEquals("B1", mismatch.getLiveActionId());
+        assertEquals("B2", mismatch.getCandidateActionId());
+        assertEquals(FLOW, mismatch.getFlow());
+        assertEquals("r2", mismatch.getLiveRuleId());
+        assertEquals("r2", mismatch.getCandidateRuleId());
+        assertEquals(1.0, meterRegistry.get(ShadowEvaluator.RESULT_METRIC).tag("result", "mismatch").counter().count());
+    }
+
+    @Test
+    void sample_keepsCandidateEvaluationsOutOfLiveMetrics() throws InterruptedException {
+        properties.setNativeConditionsEnabled(false);
+        CompiledRuleBase live = live();
+        assertTrue(live.isMemoized());
+        shadowEvaluator.register(FLOW, List.of(rule("r1", "reasonId == 86", "A1", 100))).block();
+
+        fire(live, fact(86));
+        fire(live, fact(30));
+        awaitSampled(2);
+
+        // Only the two live evaluations count towards the flow's memo
+        assertEquals(2.0, meterRegistry.get(RuleBaseCache.MEMO_METRIC).tag("result", "miss").counter().count());
+        assertEquals(1, meterRegistry.get(RuleBaseCache.BUILD_METRIC).tag("flow", FLOW).timers().size());
+        assertEquals(1, meterRegistry.get(RuleBaseCache.BUILD_METRIC).tag("flow", FLOW).timer().count());
+    }
+
+    @Test
+    void sample_timesLiveAndCandidateOnTheShadowThread() throws InterruptedException {
+        properties.setNativeConditionsEnabled(false);
+        CompiledRuleBase live = live();
+        shadowEvaluator.register(FLOW, List.of(rule("r1", "reasonId == 86", "A1", 100))).block();
+
+        fire(live, fact(86));
+        fire(live, fact(30));
+        ShadowReport report = awaitSampled(2);
+
+        assertEquals(2, meterRegistry.get(ShadowEvaluator.LATENCY_METRIC).tag("variant", "live").timer().count());
+        assertEquals(2, meterRegistry.get(ShadowEvaluator.LATENCY_METRIC).tag("variant", "candidate").timer().count());
+        assertNotNull(report.getMeanLiveMicros());
+        assertNotNull(report.getMeanCandidateMicros());
+        assertEquals(report.getMeanCandidateMicros() - report.getMeanLiveMicros(), report.getMeanLatencyDeltaMicros(), 1e-9);
+        // Timing the live rule base on the shadow thread leaves its memo alone
+        assertEquals(2.0, meterRegistry.get(RuleBaseCache.MEMO_METRIC).tag("result", "miss").counter().count());
+    }
+
+    @Test
+    void sample_keepsOnlyMostRecentMismatches() throws InterruptedException {
+        CompiledRuleBase live = live();
+        shadowEvaluator.register(FLOW, List.of(rule("r1", "reasonId == 1", "X", 100))).block();
+
+        int[] reasonIds = {86, 30, 86};
+        for (int i = 0; i < reasonIds.length; i++) {
+            fire(live, fact(reasonIds[i]));
+            awaitSampled(i + 1);
+        }
+        ShadowReport report = shadowEvaluator.report(FLOW).orElseThrow();
+
+        assertEquals(3, report.getMismatched());
+        assertEquals(2, report.getMismatches().size());
+        assertEquals("A1", report.getMismatches().get(1).getLiveActionId());
+    }
+
+    @Test
+    void sample_skipsSamplingAtZeroRate() {
+        properties.setShadowSampleRate(0);
+        shadowEvaluator.register(FLOW, List.of(rule("r1", "reasonId == 86", "A2", 100))).block();
+
+        CompiledRuleBase live = live();
+
+        assertSame(ShadowEvaluator.Sample.NONE, shadowEvaluator.sample(live, fact(86)));
+        fire(live, fact(86));
+
+        assertEquals(0, shadowEvaluator.report(FLOW).orElseThrow().getSampled());
+    }
+
+    @Test
+    void remove_returnsFinalReportAndStopsShadowing() {
+        shadowEvaluator.register(FLOW, List.of(rule("r1", "reasonId == 86", "A2", 100))).block();
+
+        assertTrue(shadowEvaluator.remove(FLOW).isPresent());
+        assertTrue(shadowEvaluator.remove(FLOW).isEmpty());
+        assertTrue(shadowEvaluator.report(FLOW).isEmpty());
+    }
+}
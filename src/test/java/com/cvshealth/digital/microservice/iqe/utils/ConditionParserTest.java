@@ -0,0 +1,226 @@
+package com.cvshealth.digital.microservice.iqe.utils;
+
+import com.cvshealth.digital.microservice.iqe.model.RulesDetails;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConditionParserTest {
+
+    private static Predicate<RulesDetails> predicate(String condition) {
+        return ConditionParser.parse(condition).orElseThrow().toPredicate();
+    }
+
+    private static RulesDetails rulesDetails(String context, Integer reasonId, Integer reasonMappingId) {
+        RulesDetails rulesDetails = new RulesDetails();
+        rulesDetails.setRequiredQuestionnaireContext(context);
+        rulesDetails.setReasonId(reasonId);
+        rulesDetails.setReasonMappingId(reasonMappingId);
+        return rulesDetails;
+    }
+
+    @Test
+    void parse_conjunctionOfEqualities() {
+        ConditionParser.ParsedCondition condition = ConditionParser.parse(
+                "requiredQuestionnaireContext == \"MC_CORE_ELIGIBILITY_QUESTION\" && reasonId==86 && reasonMappingId==48")
+                .orElseThrow();
+
+        assertEquals(List.of(
+                new ConditionParser.Comparison("requiredQuestionnaireContext", ConditionParser.Operator.EQ,
+                        "MC_CORE_ELIGIBILITY_QUESTION"),
+                new ConditionParser.Comparison("reasonId", ConditionParser.Operator.EQ, new BigDecimal("86")),
+                new ConditionParser.Comparison("reasonMappingId", ConditionParser.Operator.EQ, new BigDecimal("48"))),
+                condition.comparisons());
+        assertTrue(condition.toPredicate().test(rulesDetails("MC_CORE_ELIGIBILITY_QUESTION", 86, 48)));
+        assertFalse(condition.toPredicate().test(rulesDetails("MC_CORE_ELIGIBILITY_QUESTION", 86, 132)));
+        assertFalse(condition.toPredicate().test(rulesDetails(null, 86, 48)));
+    }
+
+    @Test
+    void parse_commaSeparatedConstraintsAndRelationalOperators() {
+        Predicate<RulesDetails> predicate = predicate("age >= 18, age < 65.5, state != \"NY\"");
+        RulesDetails rulesDetails = new RulesDetails();
+
+        rulesDetails.setAge(18.0);
+        assertTrue(predicate.test(rulesDetails));
+        rulesDetails.setAge(65.5);
+        assertFalse(predicate.test(rulesDetails));
+        rulesDetails.setAge(30.0);
+        rulesDetails.setState("NY");
+        assertFalse(predicate.test(rulesDetails));
+    }
+
+    @Test
+    void predicate_nullFieldsBehaveLikeDrools() {
+        RulesDetails empty = new RulesDetails();
+
+        assertFalse(predicate("reasonId == 86").test(empty));
+        assertTrue(predicate("reasonId != 86").test(empty));
+        assertFalse(predicate("age > 18").test(empty));
+        assertFalse(predicate("state == \"RI\"").test(empty));
+        assertTrue(predicate("state != \"RI\"").test(empty));
+        assertTrue(predicate("state == null").test(empty));
+        assertTrue(predicate("").test(empty));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "reasonId == 86 || reasonId == 87",
+            "reasonId == \"86\"",
+            "state == RI",
+            "state > \"A\"",
+            "state.equals(\"RI\")",
+            "unknownField == 1",
+            "reasonId == 10L",
+            "(reasonId == 86)",
+            "reasonId == 86 &&",
+            "age > null"
+    })
+    void parse_rejectsConditionsOutsideTheGrammar(String condition) {
+        assertTrue(ConditionParser.parse(condition).isEmpty());
+    }
+
+    @Test
+    void canonicalize_ordersEqualitiesFirstAndNormalizesSpacing() {
+        String canonical = "reasonId == 86 && requiredQuestionnaireContext == \"X\" && age >= 18";
+
+        assertEquals(canonical, ConditionParser.canonicalize(
+                "age>=18 && requiredQuestionnaireContext==\"X\" , reasonId ==  86"));
+        assertEquals(canonical, ConditionParser.canonicalize(
+                "requiredQuestionnaireContext == \"X\" && reasonId == 86 && age >= 18 && reasonId == 86"));
+        assertEquals(canonical, ConditionParser.canonicalize(canonical));
+        assertEquals("state == \"R\\\"I\" && age < 65.50", ConditionParser.canonicalize("age<65.50&&state==\"R\\\"I\""));
+    }
+
+    @Test
+    void canonicalize_leavesConditionsOutsideTheGrammarAsWritten() {
+        assertEquals("reasonId == 86 || reasonId == 30", ConditionParser.canonicalize(" reasonId == 86 || reasonId == 30 "));
+        assertEquals("", ConditionParser.canonicalize("  "));
+        assertNull(ConditionParser.canonicalize(null));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "state.startsWith(\"R\")",
+            "java.lang.System.exit(0) == null",
+            "reasonId == new Integer(86)",
+            "reasonId in [86, 87]",
+            "code == {\"a\"}[0]"
+    })
+    void sandboxViolation_rejectsCodeInConditions(String condition) {
+        assertTrue(ConditionParser.sandboxViolation(condition).isPresent(), condition);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "reasonId == 86 && (state == \"RI\" || state == \"MA\")",
+            "reasonId in (86, 87)",
+            "state == \"startsWith(\" && lob != 'new('",
+            "age >= 18, !(code == null)"
+    })
+    void sandboxViolation_acceptsConstraints(String condition) {
+        assertTrue(ConditionParser.sandboxViolation(condition).isEmpty(), condition);
+    }
+
+    @Test
+    void parseStringLiteral_unescapesDrlString() {
+        assertEquals("{\n  \"id\": \"UTI_1\"}",
+                ConditionParser.parseStringLiteral(" \"{\\n  \\\"id\\\": \\\"UTI_1\\\"}\" ").orElseThrow());
+        assertTrue(ConditionParser.parseStringLiteral("\"a\" + \"b\"").isEmpty());
+        assertTrue(ConditionParser.parseStringLiteral("null").isEmpty());
+    }
+
+    @Test
+    void fieldUsage_collectsFieldsAndNumericThresholds() {
+        ConditionParser.FieldUsage usage = ConditionParser.fieldUsage(
+                "(age >= 18 || age < 6.5) && state != \"NY\" && reasonId == 86 || reasonId == null || 3 < reasonMappingId")
+                .orElseThrow();
+
+        assertEquals(Set.of("age", "state", "reasonId", "reasonMappingId"), usage.fields());
+        assertEquals(List.of(new BigDecimal("6.5"), new BigDecimal("18")), List.copyOf(usage.thresholds().get("age")));
+        assertEquals(List.of(new BigDecimal("86")), List.copyOf(usage.thresholds().get("reasonId")));
+        // Strings and literals on the left of the operator are keyed by exact value
+        assertFalse(usage.thresholds().containsKey("state"));
+        assertFalse(usage.thresholds().containsKey("reasonMappingId"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "state.equals(\"RI\")",
+            "this.age > 18",
+            "$a : age > 18",
+            "age > 10L",
+            "unknownField == 1",
+            "state == 'RI'",
+            "age > 5 + 1",
+            "(age >= 18 - 1) && state == \"RI\"",
+            "reasonId == 86 * 2 || age > 18"
+    })
+    void fieldUsage_rejectsConstraintsWithUnknownInputs(String condition) {
+        assertTrue(ConditionParser.fieldUsage(condition).isEmpty());
+    }
+
+    @Test
+    void implies_isSoundForEveryPairOfComparisons() {
+        List<String> conditions = List.of("age == 18", "age != 18", "age > 18", "age >= 18", "age < 18",
+                "age <= 18", "age > 17.5", "age >= 65", "age < 65", "age == null", "age != null",
+                "state == \"RI\"", "state != \"RI\"", "state != \"NY\"", "state == null", "state != null");
+        Double[] ages = {null, 17.0, 17.5, 18.0, 18.5, 64.0, 65.0, 66.0};
+        String[] states = {null, "RI", "NY", "MA"};
+        for (String condition : conditions) {
+            ConditionParser.ParsedCondition parsed = ConditionParser.parse(condition).orElseThrow();
+            for (String otherCondition : conditions) {
+                ConditionParser.ParsedCondition other = ConditionParser.parse(otherCondition).orElseThrow();
+                if (!parsed.implies(other)) {
+                    continue;
+                }
+                for (Double age : ages) {
+                    for (String state : states) {
+                        RulesDetails rulesDetails = new RulesDetails();
+                        rulesDetails.setAge(age);
+                        rulesDetails.setState(state);
+                        assertTrue(!parsed.toPredicate().test(rulesDetails) || other.toPredicate().test(rulesDetails),
+                                condition + " does not imply " + otherCondition + " for " + age + ", " + state);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void implies_findsNarrowerConditions() {
+        ConditionParser.ParsedCondition broad = ConditionParser.parse("reasonId == 86 && age >= 18").orElseThrow();
+
+        assertTrue(ConditionParser.parse("age > 30 && reasonId == 86 && state == \"RI\"").orElseThrow().implies(broad));
+        assertTrue(ConditionParser.parse("reasonId == 86 && age == 18").orElseThrow().implies(broad));
+        assertFalse(ConditionParser.parse("reasonId == 86 && age > 17").orElseThrow().implies(broad));
+        assertFalse(ConditionParser.parse("reasonId == 86").orElseThrow().implies(broad));
+        assertTrue(ConditionParser.parse("reasonId == 86").orElseThrow().implies(ConditionParser.parse("").orElseThrow()));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "reasonId == 86 && reasonId == 87",
+            "age > 65 && age < 18",
+            "age > 18 && age <= 18",
+            "state == null && state != null",
+            "state == \"RI\" && state != \"RI\"",
+            "age == 18 && age > 30"
+    })
+    void isSatisfiable_rejectsContradictions(String condition) {
+        assertFalse(ConditionParser.parse(condition).orElseThrow().isSatisfiable());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", "age >= 18 && age <= 18", "state != \"RI\" && state != \"NY\"", "age == 18 && age != 19"})
+    void isSatisfiable_acceptsSatisfiableConditions(String condition) {
+        assertTrue(ConditionParser.parse(condition).orElseThrow().isSatisfiable());
+    }
+}